@@ -0,0 +1,65 @@
+package com.sabine.cameraview.internal;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.sabine.cameraview.size.Size;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the time of the encoder selection done before each video snapshot,
+ * with an empty {@link EncoderCapabilityIndex} (cold) and with a filled one (warm).
+ */
+@RunWith(AndroidJUnit4.class)
+public class DeviceEncodersBenchmark {
+
+    private final static String TAG = DeviceEncodersBenchmark.class.getSimpleName();
+    private final static String VIDEO_TYPE = "video/avc";
+    private final static String AUDIO_TYPE = "audio/mp4a-latm";
+    private final static int ROUNDS = 5;
+
+    /**
+     * The same steps as SnapshotVideoRecorder.
+     * @return the selected video encoder
+     */
+    private static String select() {
+        DeviceEncoders encoders = new DeviceEncoders(DeviceEncoders.MODE_RESPECT_ORDER,
+                VIDEO_TYPE, AUDIO_TYPE, 0, 0);
+        encoders = new DeviceEncoders(DeviceEncoders.MODE_PREFER_HARDWARE,
+                VIDEO_TYPE, AUDIO_TYPE, 0, 0);
+        Size size = encoders.getSupportedVideoSize(new Size(1920, 1080));
+        int bitRate = encoders.getSupportedVideoBitRate(20 * 1000 * 1000);
+        int frameRate = encoders.getSupportedVideoFrameRate(size, 30);
+        encoders.tryConfigureVideo(VIDEO_TYPE, size, frameRate, bitRate);
+        int audioBitRate = encoders.getSupportedAudioBitRate(128000);
+        encoders.tryConfigureAudio(AUDIO_TYPE, audioBitRate, 44100, 2);
+        return encoders.getVideoEncoder();
+    }
+
+    @Test
+    public void testColdVersusWarmSelection() {
+        EncoderCapabilityIndex index = DeviceEncoders.getCapabilityIndex();
+        long coldNanos = 0;
+        long warmNanos = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            index.clear();
+            long start = System.nanoTime();
+            String cold = select();
+            coldNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            String warm = select();
+            warmNanos += System.nanoTime() - start;
+            assertEquals(cold, warm);
+        }
+        Log.i(TAG, "cold: " + coldNanos / ROUNDS / 1000 + "us"
+                + " warm: " + warmNanos / ROUNDS / 1000 + "us");
+        assertTrue(warmNanos < coldNanos);
+    }
+}
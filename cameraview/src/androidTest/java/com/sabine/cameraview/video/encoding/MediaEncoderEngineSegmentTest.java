@@ -0,0 +1,319 @@
+package com.sabine.cameraview.video.encoding;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a segmented {@link MediaEncoderEngine} with encoders that have no codec:
+ * the test writes their samples to the controller, and checks which segment muxer
+ * received them.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MediaEncoderEngineSegmentTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final long START_US = 1000000L;
+    private static final long SEGMENT_US = 1000000L;
+
+    private static class FakeVideoEncoder extends VideoMediaEncoder<VideoConfig> {
+
+        private FakeVideoEncoder() {
+            super(videoConfig());
+        }
+
+        private static VideoConfig videoConfig() {
+            VideoConfig config = new VideoConfig();
+            config.width = 640;
+            config.height = 480;
+            config.bitRate = 1000000;
+            config.frameRate = 10;
+            config.mimeType = "video/avc";
+            return config;
+        }
+
+        @Override
+        protected void onStop() {
+            onStopped();
+        }
+    }
+
+    private static class FakeAudioEncoder extends AudioMediaEncoder {
+
+        private FakeAudioEncoder() {
+            super(new AudioConfig());
+        }
+
+        @Override
+        protected void onPrepare(@Nullable MediaEncoderEngine.Controller controller) {
+        }
+
+        @Override
+        protected void onStart() {
+        }
+
+        @Override
+        protected void onStop() {
+            onStopped();
+        }
+    }
+
+    private static class RecordingMuxer implements Muxer {
+
+        private final List<Long> mVideoTimes = new ArrayList<>();
+        private final List<Long> mAudioTimes = new ArrayList<>();
+        private boolean mClosed;
+
+        @Override
+        public void addTrack(boolean isVideo, @NonNull ByteBuffer config, int size) {
+        }
+
+        @Override
+        public synchronized void writeSample(boolean isVideo, @NonNull ByteBuffer data, int size,
+                                             long presentationTimeUs, boolean isKeyFrame) {
+            (isVideo ? mVideoTimes : mAudioTimes).add(presentationTimeUs);
+        }
+
+        @Override
+        public synchronized void close() {
+            mClosed = true;
+        }
+
+        @Override
+        public boolean acceptsDirectBuffers() {
+            return false;
+        }
+
+        private synchronized List<Long> videoTimes() {
+            return new ArrayList<>(mVideoTimes);
+        }
+
+        private synchronized List<Long> audioTimes() {
+            return new ArrayList<>(mAudioTimes);
+        }
+
+        private synchronized boolean isClosed() {
+            return mClosed;
+        }
+    }
+
+    /**
+     * Owns the engine and the muxers it created.
+     */
+    private static class Recording implements Muxer.Factory, MediaEncoderEngine.Listener,
+            MediaEncoderEngine.SegmentListener {
+
+        private final List<RecordingMuxer> mMuxers = new ArrayList<>();
+        private final List<long[]> mSegments = new ArrayList<>();
+        private final CountDownLatch mEnd = new CountDownLatch(1);
+        private final OutputBufferPool mPool = new OutputBufferPool();
+        private final FakeVideoEncoder mVideoEncoder = new FakeVideoEncoder();
+        private final FakeAudioEncoder mAudioEncoder = new FakeAudioEncoder();
+        private final MediaEncoderEngine mEngine;
+        private final MediaEncoderEngine.Controller mController;
+
+        private Recording() throws IOException, InterruptedException {
+            SegmentConfig config = new SegmentConfig();
+            config.segmentDurationMillis = SEGMENT_US / 1000L;
+            mEngine = new MediaEncoderEngine(this, config, mVideoEncoder, mAudioEncoder, this);
+            mEngine.setSegmentListener(this);
+            mEngine.start();
+            mController = mVideoEncoder.mController;
+            mController.notifyStarted(new MediaFormat());
+            mController.notifyStarted(new MediaFormat());
+            long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (!mController.isStarted() && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            assertTrue(mController.isStarted());
+        }
+
+        @NonNull
+        @Override
+        public synchronized Muxer createMuxer(int segment) {
+            RecordingMuxer muxer = new RecordingMuxer();
+            mMuxers.add(muxer);
+            return muxer;
+        }
+
+        @Override
+        public synchronized void onSegmentEnd(int index, long startTimeUs, long endTimeUs,
+                                              @Nullable Exception e) {
+            mSegments.add(new long[]{ index, startTimeUs, endTimeUs });
+        }
+
+        @Override
+        public void onEncodingStart(int videoBitrate) {
+        }
+
+        @Override
+        public void onEncodingStop() {
+        }
+
+        @Override
+        public void onEncodingEnd(int reason, @Nullable Exception e) {
+            mEnd.countDown();
+        }
+
+        private void video(long timeUs, boolean isKeyFrame) {
+            write(true, timeUs, isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        }
+
+        private void audio(long timeUs) {
+            write(false, timeUs, 0);
+        }
+
+        private void write(boolean isVideo, long timeUs, int flags) {
+            OutputBuffer buffer = mPool.get();
+            //noinspection ConstantConditions
+            buffer.isVideo = isVideo;
+            buffer.data = ByteBuffer.allocate(16);
+            buffer.info.set(0, 16, timeUs, flags);
+            mController.write(mPool, buffer, false);
+        }
+
+        private synchronized RecordingMuxer muxer(int index) {
+            return mMuxers.get(index);
+        }
+
+        private synchronized int muxerCount() {
+            return mMuxers.size();
+        }
+
+        private synchronized List<long[]> segments() {
+            return new ArrayList<>(mSegments);
+        }
+
+        private void stop() throws InterruptedException {
+            mEngine.stop();
+            assertTrue(mEnd.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private static void assertAllBefore(List<Long> times, long timeUs) {
+        for (long time : times) assertTrue(time + " < " + timeUs, time < timeUs);
+    }
+
+    private static void assertAllFrom(List<Long> times, long timeUs) {
+        for (long time : times) assertTrue(time + " >= " + timeUs, time >= timeUs);
+    }
+
+    @Test
+    public void testCutAtKeyframe() throws Exception {
+        Recording recording = new Recording();
+        long cutUs = START_US + 1300000L;
+        // Frames every 100ms, keyframes at the start and 300ms after the boundary.
+        // Audio is 50ms after each frame.
+        for (int i = 0; i < 20; i++) {
+            long timeUs = START_US + i * 100000L;
+            recording.video(timeUs, i == 0 || timeUs == cutUs);
+            recording.audio(timeUs + 50000L);
+        }
+        recording.stop();
+
+        assertEquals(2, recording.muxerCount());
+        RecordingMuxer first = recording.muxer(0);
+        RecordingMuxer second = recording.muxer(1);
+        assertTrue(first.isClosed());
+        assertTrue(second.isClosed());
+        assertEquals(13, first.videoTimes().size());
+        assertAllBefore(first.videoTimes(), cutUs);
+        assertEquals(cutUs, (long) second.videoTimes().get(0));
+        assertAllFrom(second.videoTimes(), cutUs);
+
+        List<long[]> segments = recording.segments();
+        assertEquals(2, segments.size());
+        assertEquals(0, segments.get(0)[0]);
+        assertEquals(START_US, segments.get(0)[1]);
+        assertEquals(cutUs, segments.get(0)[2]);
+        assertEquals(1, segments.get(1)[0]);
+        assertEquals(cutUs, segments.get(1)[1]);
+    }
+
+    @Test
+    public void testAudioHandoffAcrossSegments() throws Exception {
+        Recording recording = new Recording();
+        long cutUs = START_US + 1300000L;
+        for (int i = 0; i < 20; i++) {
+            long timeUs = START_US + i * 100000L;
+            recording.video(timeUs, i == 0 || timeUs == cutUs);
+            recording.audio(timeUs + 50000L);
+        }
+        recording.stop();
+
+        // Audio after the boundary was held until the keyframe, then split at the cut.
+        List<Long> firstAudio = recording.muxer(0).audioTimes();
+        List<Long> secondAudio = recording.muxer(1).audioTimes();
+        assertEquals(13, firstAudio.size());
+        assertAllBefore(firstAudio, cutUs);
+        assertEquals(cutUs - 50000L, (long) firstAudio.get(firstAudio.size() - 1));
+        assertEquals(7, secondAudio.size());
+        assertAllFrom(secondAudio, cutUs);
+        assertEquals(cutUs + 50000L, (long) secondAudio.get(0));
+    }
+
+    @Test
+    public void testFinishWhileAudioIsHeld() throws Exception {
+        Recording recording = new Recording();
+        // Past the boundary, but no keyframe comes: audio is held when recording stops.
+        for (int i = 0; i < 13; i++) {
+            long timeUs = START_US + i * 100000L;
+            recording.video(timeUs, i == 0);
+            recording.audio(timeUs + 50000L);
+        }
+        recording.stop();
+
+        assertEquals(1, recording.muxerCount());
+        RecordingMuxer muxer = recording.muxer(0);
+        assertTrue(muxer.isClosed());
+        assertEquals(13, muxer.videoTimes().size());
+        // The held audio was written before closing.
+        assertEquals(13, muxer.audioTimes().size());
+        List<long[]> segments = recording.segments();
+        assertEquals(1, segments.size());
+        assertEquals(0, segments.get(0)[0]);
+    }
+
+    @Test
+    public void testHeldAudioIsCapped() throws Exception {
+        Recording recording = new Recording();
+        // The encoder never sends the keyframe after the boundary.
+        for (int i = 0; i < 50; i++) {
+            long timeUs = START_US + i * 100000L;
+            recording.video(timeUs, i == 0);
+            recording.audio(timeUs + 50000L);
+        }
+        // While still recording, audio more than 2 seconds older than the last sample
+        // is written: 10 samples before the boundary, and 19 held ones.
+        RecordingMuxer muxer = recording.muxer(0);
+        long lastAudioUs = START_US + 49 * 100000L + 50000L;
+        long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (muxer.audioTimes().size() < 29 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        List<Long> written = muxer.audioTimes();
+        assertEquals(29, written.size());
+        assertEquals(lastAudioUs - 2100000L, (long) written.get(written.size() - 1));
+        assertFalse(muxer.isClosed());
+        recording.stop();
+        assertEquals(50, muxer.audioTimes().size());
+        assertEquals(1, recording.muxerCount());
+    }
+}
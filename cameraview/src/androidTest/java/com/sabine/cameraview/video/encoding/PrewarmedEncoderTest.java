@@ -0,0 +1,91 @@
+package com.sabine.cameraview.video.encoding;
+
+import android.opengl.EGL14;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Prewarms encoders and releases them without attaching them to an engine,
+ * as {@link com.sabine.cameraview.video.SnapshotVideoPrewarmer} does when values change.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PrewarmedEncoderTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final List<Throwable> mErrors = new ArrayList<>();
+    private Thread.UncaughtExceptionHandler mDefaultHandler;
+
+    @Before
+    public void setUp() {
+        // The video output is drained on a raw thread: catch what it throws.
+        mDefaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                synchronized (mErrors) {
+                    mErrors.add(e);
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        Thread.setDefaultUncaughtExceptionHandler(mDefaultHandler);
+    }
+
+    private static TextureConfig videoConfig() {
+        TextureConfig config = new TextureConfig();
+        config.width = 1280;
+        config.height = 720;
+        config.bitRate = 4000000;
+        config.frameRate = 30;
+        config.mimeType = "video/avc";
+        config.eglContext = EGL14.EGL_NO_CONTEXT;
+        return config;
+    }
+
+    private static AudioConfig audioConfig() {
+        AudioConfig config = new AudioConfig();
+        config.bitRate = 128000;
+        config.channels = 2;
+        return config;
+    }
+
+    private static void awaitStopped(MediaEncoder encoder) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!encoder.isStopped() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testReleaseUnattached() throws InterruptedException {
+        AudioMediaEncoder audioEncoder = new AudioMediaEncoder(audioConfig());
+        TextureMediaEncoder videoEncoder = new TextureMediaEncoder(videoConfig(), audioEncoder);
+        videoEncoder.prewarm();
+        audioEncoder.prewarm();
+        assertTrue(videoEncoder.isPrewarmed());
+
+        videoEncoder.release();
+        audioEncoder.release();
+        awaitStopped(videoEncoder);
+        awaitStopped(audioEncoder);
+        assertTrue(videoEncoder.isStopped());
+        assertTrue(audioEncoder.isStopped());
+        synchronized (mErrors) {
+            assertTrue(mErrors.toString(), mErrors.isEmpty());
+        }
+    }
+}
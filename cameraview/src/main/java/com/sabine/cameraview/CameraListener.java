@@ -6,6 +6,8 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.UiThread;
 
+import java.io.File;
+
 /**
  * The base class for receiving updates from a {@link CameraView} instance.
  * You can add and remove listeners using {@link CameraView#addCameraListener(CameraListener)}
@@ -154,6 +156,19 @@ public abstract class CameraListener {
 
     }
 
+    /**
+     * Notifies that the video bit rate was changed while recording a video snapshot.
+     * It is lowered when the storage can not keep up with the encoder, and raised
+     * again, up to the initial value, when it recovers.
+     * Only called if {@link CameraView#setVideoAdaptiveBitRate(boolean)} is enabled.
+     *
+     * @param videoBitrate the new bit rate
+     */
+    @UiThread
+    public void onVideoEncodeBitRateChanged(int videoBitrate) {
+
+    }
+
     /**
      * Notifies that the actual video recording has ended.
      * At this point recording has ended, though the file might still be processed.
@@ -168,6 +183,20 @@ public abstract class CameraListener {
 
     }
 
+    /**
+     * Notifies that a segment of a segmented recording was completed and its file
+     * can be used. The last segment is also returned by {@link #onVideoTaken(VideoResult)}.
+     *
+     * @see CameraView#setVideoSegmentConfig(com.sabine.cameraview.video.encoding.SegmentConfig)
+     * @param file the segment file
+     * @param startTimeUs timestamp of the segment start
+     * @param endTimeUs timestamp of the segment end
+     */
+    @UiThread
+    public void onVideoSegmentTaken(@NonNull File file, long startTimeUs, long endTimeUs) {
+
+    }
+
     /**
      * Called once a second, return the fps value.
      * @param fps The fps of video.
@@ -8,6 +8,7 @@ import androidx.lifecycle.Lifecycle;
 import androidx.lifecycle.LifecycleObserver;
 import androidx.lifecycle.LifecycleOwner;
 import androidx.lifecycle.OnLifecycleEvent;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.ContextWrapper;
 import android.content.pm.PackageInfo;
@@ -67,7 +68,10 @@ import com.sabine.cameraview.filter.NoFilter;
 import com.sabine.cameraview.filter.OneParameterFilter;
 import com.sabine.cameraview.filter.TwoParameterFilter;
 import com.sabine.cameraview.frame.Frame;
+import com.sabine.cameraview.frame.FrameDispatcher;
 import com.sabine.cameraview.frame.FrameProcessor;
+import com.sabine.cameraview.frame.FrameProcessorConfig;
+import com.sabine.cameraview.frame.FrameProcessorStats;
 import com.sabine.cameraview.gesture.Gesture;
 import com.sabine.cameraview.gesture.GestureAction;
 import com.sabine.cameraview.gesture.GestureFinder;
@@ -78,6 +82,7 @@ import com.sabine.cameraview.gesture.TapGestureFinder;
 import com.sabine.cameraview.internal.CountDownLayout;
 import com.sabine.cameraview.internal.FaceRangeLayout;
 import com.sabine.cameraview.internal.FocusLayout;
+import com.sabine.cameraview.internal.DeviceEncoders;
 import com.sabine.cameraview.internal.GridLinesLayout;
 import com.sabine.cameraview.internal.CropHelper;
 import com.sabine.cameraview.internal.OrientationHelper;
@@ -97,6 +102,14 @@ import com.sabine.cameraview.size.Size;
 import com.sabine.cameraview.size.SizeSelector;
 import com.sabine.cameraview.size.SizeSelectorParser;
 import com.sabine.cameraview.size.SizeSelectors;
+import com.sabine.cameraview.video.encoding.FragmentConfig;
+import com.sabine.cameraview.video.encoding.EncoderMetrics;
+import com.sabine.cameraview.video.encoding.MetricsConfig;
+import com.sabine.cameraview.video.encoding.TimeLapseConfig;
+import com.sabine.cameraview.video.encoding.WriteBehindConfig;
+import com.sabine.cameraview.video.encoding.PreRollConfig;
+import com.sabine.cameraview.video.encoding.VideoOutputConfig;
+import com.sabine.cameraview.video.encoding.SegmentConfig;
 
 import java.io.File;
 import java.io.FileDescriptor;
@@ -147,6 +160,7 @@ public class CameraView extends FrameLayout implements LifecycleObserver, FocusL
     private Filter mPendingFilter;
     private float mFilterLevel;
     private int mFrameProcessingExecutors;
+    private boolean mFrameProcessingParallel;
     private Context mContext;
 
     private CameraPreview.DualInputTextureMode mPendingDualMode;
@@ -154,6 +168,7 @@ public class CameraView extends FrameLayout implements LifecycleObserver, FocusL
     // Components
     private Handler mUiHandler;
     private Executor mFrameProcessingExecutor;
+    private FrameDispatcher mFrameDispatcher;
     @VisibleForTesting CameraCallbacks mCameraCallbacks;
     private CameraPreview mCameraPreview;
     private OrientationHelper mOrientationHelper;
@@ -269,6 +284,7 @@ public class CameraView extends FrameLayout implements LifecycleObserver, FocusL
         // Components
         mCameraCallbacks = new CameraCallbacks();
         mUiHandler = new Handler(Looper.getMainLooper());
+        DeviceEncoders.loadCapabilityIndex(context);
 
         // Gestures
         mPinchGestureFinder = new PinchGestureFinder(mCameraCallbacks);
@@ -316,6 +332,8 @@ public class CameraView extends FrameLayout implements LifecycleObserver, FocusL
         setVideoSize(getVideoSize(), false);
         setVideoCodec(controls.getVideoCodec());
         setVideoBitRate(videoBitRate);
+        setVideoMaxSize(videoMaxSize);
+        setVideoMaxDuration(videoMaxDuration);
         setAutoFocusResetDelay(autoFocusResetDelay);
         setPreviewFrameRateExact(videoFrameRateExact);
         setPreviewFrameRate(videoFrameRate);
@@ -442,15 +460,39 @@ public class CameraView extends FrameLayout implements LifecycleObserver, FocusL
             doInstantiatePreview();
         }
         mOrientationHelper.enable();
+        getContext().registerComponentCallbacks(mMemoryCallbacks);
     }
 
     @Override
     protected void onDetachedFromWindow() {
-        if (!mInEditor) mOrientationHelper.disable();
+        if (!mInEditor) {
+            mOrientationHelper.disable();
+            getContext().unregisterComponentCallbacks(mMemoryCallbacks);
+        }
         mLastPreviewStreamSize = null;
         super.onDetachedFromWindow();
     }
 
+    // Pre-warmed encoders are the first thing to go when memory is low.
+    private final ComponentCallbacks2 mMemoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= TRIM_MEMORY_RUNNING_LOW) {
+                LOG.i("onTrimMemory:", level, "releasing video prewarm.");
+                mCameraEngine.releaseVideoPrewarm();
+            }
+        }
+
+        @Override
+        public void onConfigurationChanged(@NonNull Configuration newConfig) {
+        }
+
+        @Override
+        public void onLowMemory() {
+            mCameraEngine.releaseVideoPrewarm();
+        }
+    };
+
     //endregion
 
     //region Measuring behavior
@@ -853,6 +895,7 @@ public class CameraView extends FrameLayout implements LifecycleObserver, FocusL
             mCameraEngine.getAngles().setDisplayOffset(mOrientationHelper.getLastDisplayOffset());
             mFirstCameraIndex = firstCameraIndex;
             mCameraEngine.start(mFirstCameraIndex);
+            mCameraEngine.prewarmVideo();
         }
     }
 
@@ -919,6 +962,7 @@ public class CameraView extends FrameLayout implements LifecycleObserver, FocusL
 //    @OnLifecycleEvent(Lifecycle.Event.ON_PAUSE)
     public void close() {
         if (mInEditor) return;
+        mCameraEngine.releaseVideoPrewarm();
         mCameraEngine.stop(false);
         if (mCameraPreview != null) mCameraPreview.onPause();
     }
@@ -1085,6 +1129,18 @@ public class CameraView extends FrameLayout implements LifecycleObserver, FocusL
         setVideoSize(oldEngine.getVideoSize(), false);
         setVideoCodec(oldEngine.getVideoCodec());
         setVideoBitRate(oldEngine.getVideoBitRate());
+        setVideoMaxSize(oldEngine.getVideoMaxSize());
+        setVideoMaxDuration(oldEngine.getVideoMaxDuration());
+        setVideoFragmentConfig(oldEngine.getVideoFragmentConfig());
+        setVideoSegmentConfig(oldEngine.getVideoSegmentConfig());
+        setVideoPreRollConfig(oldEngine.getVideoPreRollConfig());
+        setVideoPrewarmSize(oldEngine.getVideoPrewarmSize());
+        setInternalAudioCapture(oldEngine.getInternalAudioCapture());
+        setVideoAdaptiveBitRate(oldEngine.getVideoAdaptiveBitRate());
+        setVideoMetricsConfig(oldEngine.getVideoMetricsConfig());
+        setVideoOutputConfigs(oldEngine.getVideoOutputConfigs());
+        setVideoTimeLapseConfig(oldEngine.getVideoTimeLapseConfig());
+        setVideoWriteBehindConfig(oldEngine.getVideoWriteBehindConfig());
         setAutoFocusResetDelay(oldEngine.getAutoFocusResetDelay());
         setPreviewFrameRate(oldEngine.getPreviewFrameRate());
         setPreviewFrameRateExact(oldEngine.getPreviewFrameRateExact());
@@ -1094,6 +1150,8 @@ public class CameraView extends FrameLayout implements LifecycleObserver, FocusL
         setFrameProcessingMaxHeight(oldEngine.getFrameProcessingMaxHeight());
         setFrameProcessingFormat(0 /* this is very engine specific, so do not pass */);
         setFrameProcessingPoolSize(oldEngine.getFrameProcessingPoolSize());
+        setFrameProcessingMaxMemory(oldEngine.getFrameProcessingMaxMemory());
+        setFrameProcessingDirectBuffers(oldEngine.getFrameProcessingDirectBuffers());
         mCameraEngine.setHasFrameProcessors(!mFrameProcessors.isEmpty());
     }
 
@@ -1718,6 +1776,286 @@ public class CameraView extends FrameLayout implements LifecycleObserver, FocusL
         return mCameraEngine.getVideoBitRate();
     }
 
+    /**
+     * Sets a max size for the recorded video file, in bytes. When the size is reached,
+     * the recording stops and {@link VideoResult#getTerminationReason()} returns
+     * {@link VideoResult#REASON_MAX_SIZE_REACHED}. Snapshots stop at a video keyframe
+     * before the size would be exceeded, counting the index of the file as well.
+     * Use 0 or negative values to disable, which is the default.
+     *
+     * @param videoMaxSizeInBytes the max size in bytes
+     */
+    public void setVideoMaxSize(long videoMaxSizeInBytes) {
+        mCameraEngine.setVideoMaxSize(videoMaxSizeInBytes);
+    }
+
+    /**
+     * Returns the current max size for video files, or 0 if not set.
+     * @return the max size in bytes
+     */
+    @SuppressWarnings("unused")
+    public long getVideoMaxSize() {
+        return mCameraEngine.getVideoMaxSize();
+    }
+
+    /**
+     * Sets a max duration for the recorded video, in milliseconds. When the duration is
+     * reached, the recording stops and {@link VideoResult#getTerminationReason()} returns
+     * {@link VideoResult#REASON_MAX_DURATION_REACHED}. Snapshots stop at a video keyframe
+     * before the duration would be exceeded. Use 0 or negative values to disable,
+     * which is the default.
+     *
+     * @param videoMaxDurationMillis the max duration in milliseconds
+     */
+    public void setVideoMaxDuration(int videoMaxDurationMillis) {
+        mCameraEngine.setVideoMaxDuration(videoMaxDurationMillis);
+    }
+
+    /**
+     * Returns the current max duration for videos, or 0 if not set.
+     * @return the max duration in milliseconds
+     */
+    @SuppressWarnings("unused")
+    public int getVideoMaxDuration() {
+        return mCameraEngine.getVideoMaxDuration();
+    }
+
+    /**
+     * Enables fragmented MP4 output for {@link #takeVideoSnapshot(File, Size, boolean, int)}.
+     * Fragments are written to the file while recording, so if the app is killed only the
+     * last one is lost. Pass null to go back to a regular MP4 file.
+     *
+     * @param config the fragment config, or null
+     */
+    public void setVideoFragmentConfig(@Nullable FragmentConfig config) {
+        mCameraEngine.setVideoFragmentConfig(config);
+    }
+
+    /**
+     * Returns the current fragmented MP4 config, if any.
+     * @return the fragment config, or null
+     */
+    @Nullable
+    public FragmentConfig getVideoFragmentConfig() {
+        return mCameraEngine.getVideoFragmentConfig();
+    }
+
+    /**
+     * Splits {@link #takeVideoSnapshot(File, Size, boolean, int)} recordings into segments of
+     * a fixed duration, without restarting the encoders. Segment files are named after the
+     * given file by {@link SegmentConfig#getSegmentFile(File, int)}, and each one is reported
+     * to {@link CameraListener#onVideoSegmentTaken(File, long, long)} when completed.
+     * Pass null to record a single file.
+     *
+     * @param config the segment config, or null
+     */
+    public void setVideoSegmentConfig(@Nullable SegmentConfig config) {
+        mCameraEngine.setVideoSegmentConfig(config);
+    }
+
+    /**
+     * Returns the current segment config, if any.
+     * @return the segment config, or null
+     */
+    @Nullable
+    public SegmentConfig getVideoSegmentConfig() {
+        return mCameraEngine.getVideoSegmentConfig();
+    }
+
+    /**
+     * Arms a pre-roll for {@link #takeVideoSnapshot(File, Size, boolean, int)} recordings.
+     * Encoded samples are kept in memory, within the config budget, and nothing is written
+     * until {@link #triggerVideoPreRoll()} is called: the file will then start up to
+     * {@link PreRollConfig#durationMillis} before the trigger. If the video is stopped
+     * without a trigger, the file only contains the buffered history.
+     * Pass null to write from the start.
+     *
+     * @param config the pre-roll config, or null
+     */
+    public void setVideoPreRollConfig(@Nullable PreRollConfig config) {
+        mCameraEngine.setVideoPreRollConfig(config);
+    }
+
+    /**
+     * Returns the current pre-roll config, if any.
+     * @return the pre-roll config, or null
+     */
+    @Nullable
+    public PreRollConfig getVideoPreRollConfig() {
+        return mCameraEngine.getVideoPreRollConfig();
+    }
+
+    /**
+     * Whether {@link #takeVideoSnapshot(File, Size, boolean, int)} recordings should capture
+     * the microphone themselves, reading from an internal {@link android.media.AudioRecord}.
+     * When enabled, {@link #putAudioPcm(byte[], int, boolean)} is ignored, and the
+     * RECORD_AUDIO permission is needed. Defaults to false: the app pushes the audio.
+     *
+     * @param internalAudioCapture whether to capture the audio internally
+     */
+    public void setInternalAudioCapture(boolean internalAudioCapture) {
+        mCameraEngine.setInternalAudioCapture(internalAudioCapture);
+    }
+
+    /**
+     * Returns whether video snapshots capture the audio internally.
+     * @return whether to capture the audio internally
+     * @see #setInternalAudioCapture(boolean)
+     */
+    public boolean getInternalAudioCapture() {
+        return mCameraEngine.getInternalAudioCapture();
+    }
+
+    /**
+     * Enables the pre-warm mode for {@link #takeVideoSnapshot(File, Size, boolean, int)}.
+     * While the preview runs, video and audio encoders are prepared for the given size and
+     * the current codec, bit rates and preview frame rate, so that starting a recording
+     * only has to open the output file. Encoders are released when these values change,
+     * when the camera is closed or when the system is low on memory, and prepared again
+     * after the next recording. Pre-warmed codecs are not available to other apps.
+     * Pass null to disable.
+     *
+     * See {@link VideoResult#isPrewarmed()} and {@link VideoResult#getStartLatencyMillis()}.
+     *
+     * @param size the size that will be passed to takeVideoSnapshot, or null
+     */
+    public void setVideoPrewarmSize(@Nullable Size size) {
+        mCameraEngine.setVideoPrewarmSize(size);
+    }
+
+    /**
+     * Returns the current pre-warm size, if any.
+     * @return the pre-warm size, or null
+     */
+    @Nullable
+    public Size getVideoPrewarmSize() {
+        return mCameraEngine.getVideoPrewarmSize();
+    }
+
+    /**
+     * Whether {@link #takeVideoSnapshot(File, Size, boolean, int)} recordings should lower
+     * the video bit rate when the file can't be written fast enough (slow storage, for
+     * example), and raise it again when writes catch up. Changes are passed to
+     * {@link CameraListener#onVideoEncodeBitRateChanged(int)}, and the lowest bit rate is
+     * in {@link VideoResult#getMinVideoBitRate()}. Defaults to false.
+     *
+     * @param adaptiveBitRate whether to adapt the bit rate
+     */
+    public void setVideoAdaptiveBitRate(boolean adaptiveBitRate) {
+        mCameraEngine.setVideoAdaptiveBitRate(adaptiveBitRate);
+    }
+
+    /**
+     * Returns whether video snapshots adapt their bit rate.
+     * @return whether to adapt the bit rate
+     * @see #setVideoAdaptiveBitRate(boolean)
+     */
+    public boolean getVideoAdaptiveBitRate() {
+        return mCameraEngine.getVideoAdaptiveBitRate();
+    }
+
+    /**
+     * Enables runtime metrics for {@link #takeVideoSnapshot(File, Size, boolean, int)}
+     * recordings: latency of each encoding stage, A/V skew, dropped frames by reason
+     * and queue depths. Metrics can be read with {@link #getVideoMetrics()} while recording,
+     * are passed to {@link MetricsConfig#listener} periodically, and the final ones
+     * are in {@link VideoResult#getMetrics()}. Pass null to disable, which is the default.
+     *
+     * @param config the metrics config, or null
+     */
+    public void setVideoMetricsConfig(@Nullable MetricsConfig config) {
+        mCameraEngine.setVideoMetricsConfig(config);
+    }
+
+    /**
+     * Returns the current metrics config, if any.
+     * @return the metrics config, or null
+     */
+    @Nullable
+    public MetricsConfig getVideoMetricsConfig() {
+        return mCameraEngine.getVideoMetricsConfig();
+    }
+
+    /**
+     * Returns the metrics of the current video snapshot, if metrics are enabled
+     * with {@link #setVideoMetricsConfig(MetricsConfig)}.
+     *
+     * @return the metrics, or null
+     */
+    @Nullable
+    public EncoderMetrics.Snapshot getVideoMetrics() {
+        return mCameraEngine.getVideoMetrics();
+    }
+
+    /**
+     * Adds outputs to {@link #takeVideoSnapshot(File, Size, boolean, int)} recordings,
+     * for example a low resolution proxy of the main file, or a live stream.
+     * Each output has its own size, bit rate and codec, and is encoded from the same
+     * filtered frames, so filters are rendered once per frame. See {@link VideoOutputConfig}.
+     * Pass null to disable, which is the default.
+     *
+     * Each output uses a hardware encoder, and devices only have a few of them.
+     *
+     * @param configs the output configs, or null
+     */
+    public void setVideoOutputConfigs(@Nullable List<VideoOutputConfig> configs) {
+        mCameraEngine.setVideoOutputConfigs(configs);
+    }
+
+    /**
+     * Returns the current additional outputs, if any.
+     * @return the output configs, or null
+     */
+    @Nullable
+    public List<VideoOutputConfig> getVideoOutputConfigs() {
+        return mCameraEngine.getVideoOutputConfigs();
+    }
+
+    /**
+     * Records {@link #takeVideoSnapshot(File, Size, boolean, int)} videos as time-lapses:
+     * one frame is captured every interval, or every few frames, and the video plays
+     * at the config frame rate. Skipped frames are not drawn nor encoded, so long
+     * time-lapses use little power. The audio is dropped, or replaced by silence
+     * if {@link TimeLapseConfig#silentAudio} is set. Pass null to disable, which is the default.
+     *
+     * @param config the time-lapse config, or null
+     */
+    public void setVideoTimeLapseConfig(@Nullable TimeLapseConfig config) {
+        mCameraEngine.setVideoTimeLapseConfig(config);
+    }
+
+    /**
+     * Returns the current time-lapse config, if any.
+     * @return the time-lapse config, or null
+     */
+    @Nullable
+    public TimeLapseConfig getVideoTimeLapseConfig() {
+        return mCameraEngine.getVideoTimeLapseConfig();
+    }
+
+    /**
+     * Collects the output of {@link #takeVideoSnapshot(File, Size, boolean, int)} in memory
+     * and writes it in large chunks, instead of a small write per sample. This lowers the
+     * storage load of long or high bit rate recordings. Throughput and flush latency are
+     * in {@link VideoResult#getWriteStats()}. Pass null to disable, which is the default.
+     * This works with every recording mode: since the native mp4v2 muxer writes each
+     * sample itself, plain recordings use the Java ISO muxer when this is set.
+     *
+     * @param config the write-behind config, or null
+     */
+    public void setVideoWriteBehindConfig(@Nullable WriteBehindConfig config) {
+        mCameraEngine.setVideoWriteBehindConfig(config);
+    }
+
+    /**
+     * Returns the current write-behind config, if any.
+     * @return the write-behind config, or null
+     */
+    @Nullable
+    public WriteBehindConfig getVideoWriteBehindConfig() {
+        return mCameraEngine.getVideoWriteBehindConfig();
+    }
+
     /**
      * A flag to control the behavior when calling {@link #setPreviewFrameRate(float)}.
      *
@@ -1977,7 +2315,24 @@ public class CameraView extends FrameLayout implements LifecycleObserver, FocusL
         mCameraEngine.takeVideoSnapshot(stub, file, size, isFlip, rotation);
     }
 
-    // TODO: pauseVideo and resumeVideo? There is mediarecorder.pause(), but API 24...
+    /**
+     * Pauses the video snapshot being recorded, if there is any. The file stays open,
+     * and frames and audio are not encoded until {@link #resumeVideo()} is called.
+     * Audio should still be passed to {@link #putAudioPcm(byte[], int, boolean)} while
+     * paused, so that the audio clock keeps running. Not supported by
+     * {@link #takeVideo(File)}.
+     */
+    public void pauseVideo() {
+        mCameraEngine.pauseVideo();
+    }
+
+    /**
+     * Resumes a video snapshot paused with {@link #pauseVideo()}. The paused time is
+     * removed from the video, which plays back continuously.
+     */
+    public void resumeVideo() {
+        mCameraEngine.resumeVideo();
+    }
 
     /**
      * Stops capturing video or video snapshots being recorded, if there was any.
@@ -1987,6 +2342,17 @@ public class CameraView extends FrameLayout implements LifecycleObserver, FocusL
         mCameraEngine.stopVideo(isCameraShutdown);
     }
 
+    /**
+     * Starts writing a video snapshot that was taken with a pre-roll config, including
+     * the samples that were buffered before this call.
+     * Has no effect if there's no such recording.
+     *
+     * @see #setVideoPreRollConfig(PreRollConfig)
+     */
+    public void triggerVideoPreRoll() {
+        mCameraEngine.triggerVideoPreRoll();
+    }
+
     /**
      * Sets the max width for snapshots taken with {@link #takePictureSnapshot()} or
      * {@link #takeVideoSnapshot(File, Size, boolean, int)}. If the snapshot width exceeds this value, the snapshot
@@ -2167,6 +2533,7 @@ public class CameraView extends FrameLayout implements LifecycleObserver, FocusL
      * @see VideoCodec#DEVICE_DEFAULT
      * @see VideoCodec#H_263
      * @see VideoCodec#H_264
+     * @see VideoCodec#H_265
      *
      * @param codec requested video codec
      */
@@ -2517,6 +2884,9 @@ public class CameraView extends FrameLayout implements LifecycleObserver, FocusL
             if (mFrameProcessors.isEmpty()) {
                 // Mark as released. This instance will be reused.
                 frame.release();
+            } else if (mFrameProcessingParallel) {
+                // Each processor gets a reference, and runs on its own.
+                mFrameDispatcher.dispatch(frame);
             } else {
                 // Dispatch this frame to frame processors.
                 mFrameProcessingExecutor.execute(new Runnable() {
@@ -2575,6 +2945,19 @@ public class CameraView extends FrameLayout implements LifecycleObserver, FocusL
             });
         }
 
+        @Override
+        public void dispatchOnVideoEncodeBitRateChanged(final int bitrate) {
+            LOG.i("dispatchOnVideoEncodeBitRateChanged", bitrate);
+            mUiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (CameraListener listener : mListeners) {
+                        listener.onVideoEncodeBitRateChanged(bitrate);
+                    }
+                }
+            });
+        }
+
         @Override
         public void dispatchOnVideoRecordingEnd() {
             LOG.i("dispatchOnVideoRecordingEnd");
@@ -2587,6 +2970,21 @@ public class CameraView extends FrameLayout implements LifecycleObserver, FocusL
                 }
             });
         }
+
+        @Override
+        public void dispatchOnVideoSegmentTaken(@NonNull final File file,
+                                                final long startTimeUs,
+                                                final long endTimeUs) {
+            LOG.i("dispatchOnVideoSegmentTaken", file);
+            mUiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (CameraListener listener : mListeners) {
+                        listener.onVideoSegmentTaken(file, startTimeUs, endTimeUs);
+                    }
+                }
+            });
+        }
     }
 
     //endregion
@@ -2600,7 +2998,23 @@ public class CameraView extends FrameLayout implements LifecycleObserver, FocusL
      * @param processor a frame processor.
      */
     public void addFrameProcessor(@Nullable FrameProcessor processor) {
+        addFrameProcessor(processor, new FrameProcessorConfig());
+    }
+
+    /**
+     * Adds a {@link FrameProcessor} instance to be notified of
+     * new frames in the preview stream, with options that apply when
+     * frames are dispatched in parallel. See {@link #setFrameProcessingParallel(boolean)}.
+     * If the processor was already added, only its options are changed.
+     *
+     * @param processor a frame processor
+     * @param config the processor options
+     */
+    public void addFrameProcessor(@Nullable FrameProcessor processor,
+                                  @NonNull FrameProcessorConfig config) {
         if (processor != null) {
+            mFrameDispatcher.add(processor, config);
+            if (mFrameProcessors.contains(processor)) return;
             mFrameProcessors.add(processor);
             if (mFrameProcessors.size() == 1) {
                 mCameraEngine.setHasFrameProcessors(true);
@@ -2616,6 +3030,7 @@ public class CameraView extends FrameLayout implements LifecycleObserver, FocusL
     public void removeFrameProcessor(@Nullable FrameProcessor processor) {
         if (processor != null) {
             mFrameProcessors.remove(processor);
+            mFrameDispatcher.remove(processor);
             if (mFrameProcessors.size() == 0) {
                 mCameraEngine.setHasFrameProcessors(false);
             }
@@ -2629,6 +3044,7 @@ public class CameraView extends FrameLayout implements LifecycleObserver, FocusL
     public void clearFrameProcessors() {
         boolean had = mFrameProcessors.size() > 0;
         mFrameProcessors.clear();
+        mFrameDispatcher.clear();
         if (had) {
             mCameraEngine.setHasFrameProcessors(false);
         }
@@ -2719,6 +3135,53 @@ public class CameraView extends FrameLayout implements LifecycleObserver, FocusL
         return mCameraEngine.getFrameProcessingPoolSize();
     }
 
+    /**
+     * Sets the max memory of the frame processing pool, in bytes. When processors keep
+     * frames with {@link Frame#retain()} or {@link Frame#freeze()}, new frames are allocated
+     * so that the camera does not run out of them, until the pool reaches this size.
+     * Past that, {@link Frame#freeze()} copies the frame instead.
+     *
+     * Defaults to 0, so the pool never grows. Has no effect on {@link Engine#CAMERA2},
+     * which can't allocate more frames than the pool size.
+     *
+     * @param maxMemory max memory in bytes
+     */
+    public void setFrameProcessingMaxMemory(long maxMemory) {
+        mCameraEngine.setFrameProcessingMaxMemory(maxMemory);
+    }
+
+    /**
+     * Returns the max memory of the frame processing pool.
+     * @see #setFrameProcessingMaxMemory(long)
+     * @return max memory in bytes
+     */
+    public long getFrameProcessingMaxMemory() {
+        return mCameraEngine.getFrameProcessingMaxMemory();
+    }
+
+    /**
+     * Whether frames of {@link Engine#CAMERA1} should hold direct, off-heap buffers
+     * instead of byte arrays, so that they can be passed to native code without copies.
+     * The preview data is copied once into a pooled direct buffer and the camera gets
+     * its array back right away. {@link Engine#CAMERA2} frames are always direct.
+     *
+     * Defaults to false. Changing this value after camera initialization will have no effect.
+     * @param directBuffers whether to use direct buffers
+     * @see com.sabine.cameraview.frame.DirectByteBufferFrameManager
+     */
+    public void setFrameProcessingDirectBuffers(boolean directBuffers) {
+        mCameraEngine.setFrameProcessingDirectBuffers(directBuffers);
+    }
+
+    /**
+     * Returns whether frames hold direct buffers.
+     * @see #setFrameProcessingDirectBuffers(boolean)
+     * @return whether to use direct buffers
+     */
+    public boolean getFrameProcessingDirectBuffers() {
+        return mCameraEngine.getFrameProcessingDirectBuffers();
+    }
+
     /**
      * Sets the thread pool size for frame processing. This means that if the processing rate
      * is slower than the preview rate, you can set this value to something bigger than 1
@@ -2751,6 +3214,11 @@ public class CameraView extends FrameLayout implements LifecycleObserver, FocusL
         );
         executor.allowCoreThreadTimeOut(true);
         mFrameProcessingExecutor = executor;
+        if (mFrameDispatcher == null) {
+            mFrameDispatcher = new FrameDispatcher(executor);
+        } else {
+            mFrameDispatcher.setExecutor(executor);
+        }
     }
 
     /**
@@ -2762,6 +3230,47 @@ public class CameraView extends FrameLayout implements LifecycleObserver, FocusL
         return mFrameProcessingExecutors;
     }
 
+    /**
+     * Sets whether frames should be dispatched to processors in parallel.
+     *
+     * By default, each frame is passed to all processors one after the other, on a single
+     * executor thread, so a slow processor delays the others. In parallel mode, each processor
+     * runs on its own, on the threads of {@link #setFrameProcessingExecutors(int)}, and the
+     * frame goes back to the pool when the last processor returns. Each processor receives
+     * frames one at a time, and frames that come while it is busy are dropped or queued
+     * according to its {@link FrameProcessorConfig}.
+     *
+     * For processors to run at the same time, use as many executors as processors,
+     * and a pool size that is larger by at least one.
+     *
+     * @param parallel whether to dispatch in parallel
+     */
+    public void setFrameProcessingParallel(boolean parallel) {
+        mFrameProcessingParallel = parallel;
+    }
+
+    /**
+     * Returns whether frames are dispatched to processors in parallel.
+     * @see #setFrameProcessingParallel(boolean)
+     * @return true if parallel
+     */
+    public boolean getFrameProcessingParallel() {
+        return mFrameProcessingParallel;
+    }
+
+    /**
+     * Returns the statistics of a processor: processed and dropped frames, queue depth
+     * and processing time. Only collected when frames are dispatched in parallel.
+     * @see #setFrameProcessingParallel(boolean)
+     *
+     * @param processor a frame processor
+     * @return the stats, or null if the processor was not added
+     */
+    @Nullable
+    public FrameProcessorStats getFrameProcessorStats(@NonNull FrameProcessor processor) {
+        return mFrameDispatcher.getStats(processor);
+    }
+
     //endregion
 
     //region Overlays
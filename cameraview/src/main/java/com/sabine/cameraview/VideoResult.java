@@ -9,9 +9,20 @@ import com.sabine.cameraview.controls.Audio;
 import com.sabine.cameraview.controls.Facing;
 import com.sabine.cameraview.controls.VideoCodec;
 import com.sabine.cameraview.size.Size;
+import com.sabine.cameraview.video.encoding.EncoderMetrics;
+import com.sabine.cameraview.video.encoding.FragmentConfig;
+import com.sabine.cameraview.video.encoding.MetricsConfig;
+import com.sabine.cameraview.video.encoding.PreRollConfig;
+import com.sabine.cameraview.video.encoding.SegmentConfig;
+import com.sabine.cameraview.video.encoding.TimeLapseConfig;
+import com.sabine.cameraview.video.encoding.VideoOutputConfig;
+import com.sabine.cameraview.video.encoding.WriteBehindConfig;
+import com.sabine.cameraview.video.encoding.WriteBehindStats;
 
 import java.io.File;
 import java.io.FileDescriptor;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Wraps the result of a video recording started by {@link CameraView#takeVideo(File)}.
@@ -37,11 +48,29 @@ public class VideoResult {
         public VideoCodec videoCodec;
         public Audio audio;
         public int endReason;
+        public long maxSize;
+        public int maxDuration;
         public int videoBitRate;
+        public int minVideoBitRate;
+        public boolean adaptiveBitRate;
         public int videoFrameRate;
         public int audioBitRate;
         public float scaleX;
         public float scaleY;
+        public FragmentConfig fragmentConfig;
+        public SegmentConfig segmentConfig;
+        public PreRollConfig preRollConfig;
+        public boolean internalAudioCapture;
+        public boolean prewarmed;
+        public long startLatencyMillis;
+        public MetricsConfig metricsConfig;
+        public EncoderMetrics.Snapshot metrics;
+        public List<VideoOutputConfig> outputConfigs;
+        public int droppedFrames;
+        public int[] outputDroppedFrames;
+        public TimeLapseConfig timeLapseConfig;
+        public WriteBehindConfig writeBehindConfig;
+        public WriteBehindStats.Snapshot writeStats;
 
         @Override
         public String toString() {
@@ -56,11 +85,29 @@ public class VideoResult {
                     ", videoCodec=" + videoCodec +
                     ", audio=" + audio +
                     ", endReason=" + endReason +
+                    ", maxSize=" + maxSize +
+                    ", maxDuration=" + maxDuration +
                     ", videoBitRate=" + videoBitRate +
+                    ", minVideoBitRate=" + minVideoBitRate +
+                    ", adaptiveBitRate=" + adaptiveBitRate +
                     ", videoFrameRate=" + videoFrameRate +
                     ", audioBitRate=" + audioBitRate +
                     ", scaleX=" + scaleX +
                     ", scaleY=" + scaleY +
+                    ", fragmentConfig=" + fragmentConfig +
+                    ", segmentConfig=" + segmentConfig +
+                    ", preRollConfig=" + preRollConfig +
+                    ", internalAudioCapture=" + internalAudioCapture +
+                    ", prewarmed=" + prewarmed +
+                    ", startLatencyMillis=" + startLatencyMillis +
+                    ", metricsConfig=" + metricsConfig +
+                    ", metrics=" + metrics +
+                    ", outputConfigs=" + outputConfigs +
+                    ", droppedFrames=" + droppedFrames +
+                    ", outputDroppedFrames=" + Arrays.toString(outputDroppedFrames) +
+                    ", timeLapseConfig=" + timeLapseConfig +
+                    ", writeBehindConfig=" + writeBehindConfig +
+                    ", writeStats=" + writeStats +
                     '}';
         }
     }
@@ -85,8 +132,15 @@ public class VideoResult {
     private final Audio audio;
     private final int endReason;
     private final int videoBitRate;
+    private final int minVideoBitRate;
     private final int videoFrameRate;
     private final int audioBitRate;
+    private final boolean prewarmed;
+    private final long startLatencyMillis;
+    private final EncoderMetrics.Snapshot metrics;
+    private final int droppedFrames;
+    private final int[] outputDroppedFrames;
+    private final WriteBehindStats.Snapshot writeStats;
 
     VideoResult(@NonNull Stub builder) {
         isSnapshot = builder.isSnapshot;
@@ -100,8 +154,17 @@ public class VideoResult {
         audio = builder.audio;
         endReason = builder.endReason;
         videoBitRate = builder.videoBitRate;
+        minVideoBitRate = builder.minVideoBitRate > 0
+                ? builder.minVideoBitRate : builder.videoBitRate;
         videoFrameRate = builder.videoFrameRate;
         audioBitRate = builder.audioBitRate;
+        prewarmed = builder.prewarmed;
+        startLatencyMillis = builder.startLatencyMillis;
+        metrics = builder.metrics;
+        droppedFrames = builder.droppedFrames;
+        outputDroppedFrames = builder.outputDroppedFrames != null
+                ? builder.outputDroppedFrames : new int[0];
+        writeStats = builder.writeStats;
     }
 
     /**
@@ -219,6 +282,17 @@ public class VideoResult {
         return videoBitRate;
     }
 
+    /**
+     * Returns the lowest bit rate used for video encoding. It is lower than
+     * {@link #getVideoBitRate()} when {@link CameraView#setVideoAdaptiveBitRate(boolean)}
+     * lowered it during the recording.
+     *
+     * @return the lowest video bit rate
+     */
+    public int getMinVideoBitRate() {
+        return minVideoBitRate;
+    }
+
     /**
      * Returns the frame rate used for video encoding
      * in frames per second.
@@ -238,6 +312,71 @@ public class VideoResult {
         return audioBitRate;
     }
 
+    /**
+     * Returns true if the recording used encoders that were prepared
+     * before it started, see {@link CameraView#setVideoPrewarmSize(Size)}.
+     *
+     * @return whether encoders were pre-warmed
+     */
+    public boolean isPrewarmed() {
+        return prewarmed;
+    }
+
+    /**
+     * Returns the time between the recording request and the first frame
+     * being passed to the encoder, in milliseconds. Only available for snapshots.
+     *
+     * @return the start latency
+     */
+    public long getStartLatencyMillis() {
+        return startLatencyMillis;
+    }
+
+    /**
+     * Returns the metrics at the end of the recording, if they were enabled with
+     * {@link CameraView#setVideoMetricsConfig(MetricsConfig)}. Only available for snapshots.
+     *
+     * @return the metrics, or null
+     */
+    @Nullable
+    public EncoderMetrics.Snapshot getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the number of frames that were skipped because the video encoder
+     * could not keep up. Only available for snapshots.
+     *
+     * @return the dropped frames
+     */
+    public int getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Returns the number of frames skipped by each additional output, in the order of
+     * {@link CameraView#setVideoOutputConfigs(List)}. Outputs that could not be created
+     * are not included. Only available for snapshots.
+     *
+     * @return the dropped frames of each output
+     */
+    @NonNull
+    public int[] getOutputDroppedFrames() {
+        return outputDroppedFrames.clone();
+    }
+
+    /**
+     * Returns the write-behind stats at the end of the recording, if it was enabled with
+     * {@link CameraView#setVideoWriteBehindConfig(WriteBehindConfig)}. Only available
+     * for snapshots.
+     *
+     * @return the stats, or null
+     */
+    @Nullable
+    public WriteBehindStats.Snapshot getWriteStats() {
+        return writeStats;
+    }
+
     @Override
     public String toString() {
         return "VideoResult{" +
@@ -252,8 +391,15 @@ public class VideoResult {
                 ", audio=" + audio +
                 ", endReason=" + endReason +
                 ", videoBitRate=" + videoBitRate +
+                ", minVideoBitRate=" + minVideoBitRate +
                 ", videoFrameRate=" + videoFrameRate +
                 ", audioBitRate=" + audioBitRate +
+                ", prewarmed=" + prewarmed +
+                ", startLatencyMillis=" + startLatencyMillis +
+                ", metrics=" + metrics +
+                ", droppedFrames=" + droppedFrames +
+                ", outputDroppedFrames=" + Arrays.toString(outputDroppedFrames) +
+                ", writeStats=" + writeStats +
                 '}';
     }
 }
@@ -34,6 +34,7 @@ import com.sabine.cameraview.engine.offset.Reference;
 import com.sabine.cameraview.engine.options.Camera1Options;
 import com.sabine.cameraview.engine.orchestrator.CameraState;
 import com.sabine.cameraview.frame.ByteBufferFrameManager;
+import com.sabine.cameraview.frame.DirectByteBufferFrameManager;
 import com.sabine.cameraview.frame.Frame;
 import com.sabine.cameraview.frame.FrameManager;
 import com.sabine.cameraview.gesture.Gesture;
@@ -428,10 +429,18 @@ public class Camera1Engine extends CameraBaseEngine implements
         LOG.i("onTakeVideoSnapshot", "rotation:", stub.rotation, "size:", stub.size);
 
         // Start.
-        mVideoRecorder = new SnapshotVideoRecorder(Camera1Engine.this, glPreview, getOverlay());
+        mVideoRecorder = new SnapshotVideoRecorder(Camera1Engine.this, glPreview, getOverlay(),
+                takeVideoPrewarmer());
         mVideoRecorder.start(stub);
     }
 
+    @Nullable
+    @Override
+    protected Size getVideoSnapshotSize(@NonNull Size size) {
+        // We record the preview crop, not the requested size.
+        return null;
+    }
+
     @Override
     public void onVideoResult(@Nullable VideoResult.Stub result, @Nullable Exception exception) {
         super.onVideoResult(result, exception);
@@ -827,13 +836,22 @@ public class Camera1Engine extends CameraBaseEngine implements
     @NonNull
     @Override
     protected FrameManager instantiateFrameManager(int poolSize) {
+        if (getFrameProcessingDirectBuffers()) {
+            return new DirectByteBufferFrameManager(poolSize, this);
+        }
         return new ByteBufferFrameManager(poolSize, this);
     }
 
+    /**
+     * Returns the frame manager: a {@link ByteBufferFrameManager}, or a
+     * {@link DirectByteBufferFrameManager} when frame processing uses direct buffers.
+     * This used to always return a {@link ByteBufferFrameManager}.
+     * @return the frame manager
+     */
     @NonNull
     @Override
-    public ByteBufferFrameManager getFrameManager() {
-        return (ByteBufferFrameManager) super.getFrameManager();
+    public FrameManager<?> getFrameManager() {
+        return super.getFrameManager();
     }
 
     @Nullable
@@ -873,7 +891,11 @@ public class Camera1Engine extends CameraBaseEngine implements
             // Seen this happen in logs.
             return;
         }
-        Frame frame = getFrameManager().getFrame(data, System.currentTimeMillis());
+        FrameManager<?> manager = getFrameManager();
+        long time = System.currentTimeMillis();
+        Frame frame = manager instanceof DirectByteBufferFrameManager
+                ? ((DirectByteBufferFrameManager) manager).getFrame(data, time)
+                : ((ByteBufferFrameManager) manager).getFrame(data, time);
         if (frame != null) {
             getCallback().dispatchFrame(frame);
         }
@@ -2142,11 +2142,19 @@ public class Camera2Engine extends CameraBaseEngine implements
 //        stub.deviceRotation = getAngles().offset(Reference.VIEW, Reference.OUTPUT, Axis.ABSOLUTE);
         stub.deviceRotation = 0;
         stub.videoFrameRate = Math.round(mPreviewFrameRate);
+        stub.size = getVideoSnapshotSize(stub.size);
+        mVideoRecorder = new SnapshotVideoRecorder(this, glPreview, getOverlay(),
+                takeVideoPrewarmer());
+        mVideoRecorder.start(stub);
+    }
+
+    @NonNull
+    @Override
+    protected Size getVideoSnapshotSize(@NonNull Size size) {
         if (mOritation == Configuration.ORIENTATION_LANDSCAPE) {
-            stub.size = stub.size.flip();
+            return size.flip();
         }
-        mVideoRecorder = new SnapshotVideoRecorder(this, glPreview, getOverlay());
-        mVideoRecorder.start(stub);
+        return size;
     }
 
     /**
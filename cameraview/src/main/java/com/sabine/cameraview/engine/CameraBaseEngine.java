@@ -2,6 +2,7 @@ package com.sabine.cameraview.engine;
 
 import android.content.res.Configuration;
 import android.location.Location;
+import android.os.Build;
 
 import androidx.annotation.CallSuper;
 import androidx.annotation.NonNull;
@@ -29,13 +30,23 @@ import com.sabine.cameraview.frame.FrameManager;
 import com.sabine.cameraview.overlay.Overlay;
 import com.sabine.cameraview.picture.PictureRecorder;
 import com.sabine.cameraview.preview.CameraPreview;
+import com.sabine.cameraview.preview.GlCameraPreview;
 import com.sabine.cameraview.preview.RendererFpsCallback;
 import com.sabine.cameraview.size.AspectRatio;
 import com.sabine.cameraview.size.Size;
 import com.sabine.cameraview.size.SizeSelector;
 import com.sabine.cameraview.size.SizeSelectors;
 import com.sabine.cameraview.utils.LogUtil;
+import com.sabine.cameraview.video.SnapshotVideoPrewarmer;
 import com.sabine.cameraview.video.VideoRecorder;
+import com.sabine.cameraview.video.encoding.EncoderMetrics;
+import com.sabine.cameraview.video.encoding.FragmentConfig;
+import com.sabine.cameraview.video.encoding.MetricsConfig;
+import com.sabine.cameraview.video.encoding.TimeLapseConfig;
+import com.sabine.cameraview.video.encoding.WriteBehindConfig;
+import com.sabine.cameraview.video.encoding.PreRollConfig;
+import com.sabine.cameraview.video.encoding.SegmentConfig;
+import com.sabine.cameraview.video.encoding.VideoOutputConfig;
 
 import java.io.File;
 import java.io.FileDescriptor;
@@ -81,13 +92,28 @@ public abstract class CameraBaseEngine extends CameraEngine {
     private Mode mMode;
     private Audio mAudio;
     private int mVideoBitRate;
+    private long mVideoMaxSize;
+    private int mVideoMaxDuration;
     private int mAudioBitRate;
+    private FragmentConfig mVideoFragmentConfig;
+    private SegmentConfig mVideoSegmentConfig;
+    private PreRollConfig mVideoPreRollConfig;
+    private boolean mInternalAudioCapture;
+    private Size mVideoPrewarmSize;
+    private MetricsConfig mVideoMetricsConfig;
+    private boolean mVideoAdaptiveBitRate;
+    private List<VideoOutputConfig> mVideoOutputConfigs;
+    private TimeLapseConfig mVideoTimeLapseConfig;
+    private WriteBehindConfig mVideoWriteBehindConfig;
+    private SnapshotVideoPrewarmer mVideoPrewarmer;
     private long mAutoFocusResetDelayMillis;
     private int mSnapshotMaxWidth; // in REF_VIEW like SizeSelectors
     private int mSnapshotMaxHeight; // in REF_VIEW like SizeSelectors
     private int mFrameProcessingMaxWidth; // in REF_VIEW like SizeSelectors
     private int mFrameProcessingMaxHeight; // in REF_VIEW like SizeSelectors
     private int mFrameProcessingPoolSize;
+    private long mFrameProcessingMaxMemory;
+    private boolean mFrameProcessingDirectBuffers;
     private Overlay mOverlay;
     boolean supportHighSpeed = false;
     protected int supportDuoCamera = -1;  //-1:unknown; 0:unsupport; 1:support;
@@ -146,6 +172,7 @@ public abstract class CameraBaseEngine extends CameraEngine {
     public FrameManager getFrameManager() {
         if (mFrameManager == null) {
             mFrameManager = instantiateFrameManager(mFrameProcessingPoolSize);
+            mFrameManager.setMaxMemory(mFrameProcessingMaxMemory);
         }
         return mFrameManager;
     }
@@ -226,6 +253,7 @@ public abstract class CameraBaseEngine extends CameraEngine {
     @Override
     public final void setVideoCodec(@NonNull VideoCodec codec) {
         mVideoCodec = codec;
+        if (mVideoPrewarmSize != null) prewarmVideo();
     }
 
     @NonNull
@@ -237,6 +265,7 @@ public abstract class CameraBaseEngine extends CameraEngine {
     @Override
     public final void setVideoBitRate(int videoBitRate) {
         mVideoBitRate = videoBitRate;
+        if (mVideoPrewarmSize != null) prewarmVideo();
     }
 
     @Override
@@ -244,9 +273,146 @@ public abstract class CameraBaseEngine extends CameraEngine {
         return mVideoBitRate;
     }
 
+    @Override
+    public final void setVideoMaxSize(long videoMaxSizeInBytes) {
+        mVideoMaxSize = videoMaxSizeInBytes;
+    }
+
+    @Override
+    public final long getVideoMaxSize() {
+        return mVideoMaxSize;
+    }
+
+    @Override
+    public final void setVideoMaxDuration(int videoMaxDurationMillis) {
+        mVideoMaxDuration = videoMaxDurationMillis;
+    }
+
+    @Override
+    public final int getVideoMaxDuration() {
+        return mVideoMaxDuration;
+    }
+
+    @Override
+    public final void setVideoFragmentConfig(@Nullable FragmentConfig config) {
+        mVideoFragmentConfig = config;
+    }
+
+    @Nullable
+    @Override
+    public final FragmentConfig getVideoFragmentConfig() {
+        return mVideoFragmentConfig;
+    }
+
+    @Override
+    public final void setVideoSegmentConfig(@Nullable SegmentConfig config) {
+        mVideoSegmentConfig = config;
+    }
+
+    @Nullable
+    @Override
+    public final SegmentConfig getVideoSegmentConfig() {
+        return mVideoSegmentConfig;
+    }
+
+    @Override
+    public final void setVideoPreRollConfig(@Nullable PreRollConfig config) {
+        mVideoPreRollConfig = config;
+    }
+
+    @Nullable
+    @Override
+    public final PreRollConfig getVideoPreRollConfig() {
+        return mVideoPreRollConfig;
+    }
+
+    @Override
+    public final void setInternalAudioCapture(boolean internalAudioCapture) {
+        mInternalAudioCapture = internalAudioCapture;
+    }
+
+    @Override
+    public final boolean getInternalAudioCapture() {
+        return mInternalAudioCapture;
+    }
+
+    @Override
+    public final void setVideoPrewarmSize(@Nullable Size size) {
+        mVideoPrewarmSize = size;
+        prewarmVideo();
+    }
+
+    @Nullable
+    @Override
+    public final Size getVideoPrewarmSize() {
+        return mVideoPrewarmSize;
+    }
+
+    @Override
+    public final void setVideoAdaptiveBitRate(boolean adaptiveBitRate) {
+        mVideoAdaptiveBitRate = adaptiveBitRate;
+    }
+
+    @Override
+    public final boolean getVideoAdaptiveBitRate() {
+        return mVideoAdaptiveBitRate;
+    }
+
+    @Override
+    public final void setVideoMetricsConfig(@Nullable MetricsConfig config) {
+        mVideoMetricsConfig = config;
+    }
+
+    @Nullable
+    @Override
+    public final MetricsConfig getVideoMetricsConfig() {
+        return mVideoMetricsConfig;
+    }
+
+    @Nullable
+    @Override
+    public final EncoderMetrics.Snapshot getVideoMetrics() {
+        VideoRecorder recorder = mVideoRecorder;
+        return recorder != null ? recorder.getMetrics() : null;
+    }
+
+    @Override
+    public final void setVideoTimeLapseConfig(@Nullable TimeLapseConfig config) {
+        mVideoTimeLapseConfig = config;
+    }
+
+    @Nullable
+    @Override
+    public final TimeLapseConfig getVideoTimeLapseConfig() {
+        return mVideoTimeLapseConfig;
+    }
+
+    @Override
+    public final void setVideoWriteBehindConfig(@Nullable WriteBehindConfig config) {
+        mVideoWriteBehindConfig = config;
+    }
+
+    @Nullable
+    @Override
+    public final WriteBehindConfig getVideoWriteBehindConfig() {
+        return mVideoWriteBehindConfig;
+    }
+
+    @Override
+    public final void setVideoOutputConfigs(@Nullable List<VideoOutputConfig> configs) {
+        mVideoOutputConfigs = configs;
+    }
+
+    @Nullable
+    @Override
+    public final List<VideoOutputConfig> getVideoOutputConfigs() {
+        return mVideoOutputConfigs;
+    }
+
     @Override
     public final void setAudioBitRate(int audioBitRate) {
         mAudioBitRate = audioBitRate;
+        if (mVideoPrewarmSize != null) prewarmVideo();
     }
 
     @Override
@@ -309,6 +475,27 @@ public abstract class CameraBaseEngine extends CameraEngine {
         return mFrameProcessingPoolSize;
     }
 
+    @Override
+    public final void setFrameProcessingMaxMemory(long maxMemory) {
+        mFrameProcessingMaxMemory = maxMemory;
+        if (mFrameManager != null) mFrameManager.setMaxMemory(maxMemory);
+    }
+
+    @Override
+    public final long getFrameProcessingMaxMemory() {
+        return mFrameProcessingMaxMemory;
+    }
+
+    @Override
+    public final void setFrameProcessingDirectBuffers(boolean directBuffers) {
+        mFrameProcessingDirectBuffers = directBuffers;
+    }
+
+    @Override
+    public final boolean getFrameProcessingDirectBuffers() {
+        return mFrameProcessingDirectBuffers;
+    }
+
     @Override
     public final void setAutoFocusResetDelay(long delayMillis) {
         mAutoFocusResetDelayMillis = delayMillis;
@@ -647,6 +834,8 @@ public abstract class CameraBaseEngine extends CameraEngine {
                 stub.audio = mAudio;
                 stub.videoBitRate = mVideoBitRate;
                 stub.audioBitRate = mAudioBitRate;
+                stub.maxSize = mVideoMaxSize;
+                stub.maxDuration = mVideoMaxDuration;
                 onTakeVideo(stub);
             }
         });
@@ -671,6 +860,18 @@ public abstract class CameraBaseEngine extends CameraEngine {
                 stub.facing = mFacing;
                 stub.videoBitRate = mVideoBitRate;
                 stub.audioBitRate = mAudioBitRate;
+                stub.maxSize = mVideoMaxSize;
+                stub.maxDuration = mVideoMaxDuration;
+                stub.fragmentConfig = mVideoFragmentConfig;
+                stub.segmentConfig = mVideoSegmentConfig;
+                stub.preRollConfig = mVideoPreRollConfig;
+                stub.internalAudioCapture = mInternalAudioCapture;
+                stub.metricsConfig = mVideoMetricsConfig;
+                stub.adaptiveBitRate = mVideoAdaptiveBitRate;
+                stub.outputConfigs = mVideoOutputConfigs != null
+                        ? new ArrayList<>(mVideoOutputConfigs) : null;
+                stub.timeLapseConfig = mVideoTimeLapseConfig;
+                stub.writeBehindConfig = mVideoWriteBehindConfig;
                 stub.size = size;
                 stub.scaleX = 1.0f;
                 if (isFlip && !dual()) {
@@ -712,6 +913,7 @@ public abstract class CameraBaseEngine extends CameraEngine {
     @Override
     public void onVideoResult(@Nullable VideoResult.Stub result, @Nullable Exception exception) {
         mVideoRecorder = null;
+        if (mVideoPrewarmSize != null) prewarmVideo();
         if (result != null) {
             getCallback().dispatchOnVideoTaken(result);
         } else {
@@ -736,11 +938,21 @@ public abstract class CameraBaseEngine extends CameraEngine {
         getCallback().dispatchOnVideoEncodeStart(videoBitrate);
     }
 
+    @Override
+    public void onVideoEncodeBitRateChanged(int videoBitrate) {
+        getCallback().dispatchOnVideoEncodeBitRateChanged(videoBitrate);
+    }
+
     @Override
     public void onVideoRecordingEnd() {
         getCallback().dispatchOnVideoRecordingEnd();
     }
 
+    @Override
+    public void onVideoSegmentTaken(@NonNull File file, long startTimeUs, long endTimeUs) {
+        getCallback().dispatchOnVideoSegmentTaken(file, startTimeUs, endTimeUs);
+    }
+
     @EngineThread
     protected abstract void onTakePicture(@NonNull PictureResult.Stub stub, boolean doMetering);
 
@@ -1057,6 +1269,91 @@ public abstract class CameraBaseEngine extends CameraEngine {
         if (mVideoRecorder != null) mVideoRecorder.putAudioPcm(pcm, length, isEndOfStream);
     }
 
+    @Override
+    public void triggerVideoPreRoll() {
+        VideoRecorder recorder = mVideoRecorder;
+        if (recorder != null) recorder.triggerPreRoll();
+    }
+
+    @Override
+    public void pauseVideo() {
+        VideoRecorder recorder = mVideoRecorder;
+        if (recorder != null) recorder.pause();
+    }
+
+    @Override
+    public void resumeVideo() {
+        VideoRecorder recorder = mVideoRecorder;
+        if (recorder != null) recorder.resume();
+    }
+
+    /**
+     * Releases the current pre-warmer, then creates a new one if a pre-warm size
+     * is set and we are not recording. The new one will prepare encoders for
+     * the current values with the next preview frame.
+     */
+    @Override
+    public final void prewarmVideo() {
+        getOrchestrator().schedule("prewarm video", true, new Runnable() {
+            @Override
+            public void run() {
+                doReleaseVideoPrewarm();
+                if (mVideoPrewarmSize == null || isTakingVideo()) return;
+                if (!(mPreview instanceof GlCameraPreview)
+                        || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) return;
+                Size size = getVideoSnapshotSize(mVideoPrewarmSize);
+                if (size == null) return;
+                LOG.i("prewarmVideo:", "size:", size, "codec:", mVideoCodec);
+                mVideoPrewarmer = new SnapshotVideoPrewarmer((GlCameraPreview) mPreview, size,
+                        mVideoCodec, mVideoBitRate, mPreviewFrameRate, mAudioBitRate);
+            }
+        });
+    }
+
+    @Override
+    public final void releaseVideoPrewarm() {
+        getOrchestrator().schedule("release video prewarm", true, new Runnable() {
+            @Override
+            public void run() {
+                doReleaseVideoPrewarm();
+            }
+        });
+    }
+
+    @EngineThread
+    private void doReleaseVideoPrewarm() {
+        if (mVideoPrewarmer != null) {
+            mVideoPrewarmer.release();
+            mVideoPrewarmer = null;
+        }
+    }
+
+    /**
+     * Returns the pre-warmer to be passed to the video snapshot recorder, if any.
+     * It belongs to the caller from now on.
+     * @return the pre-warmer or null
+     */
+    @EngineThread
+    @Nullable
+    protected final SnapshotVideoPrewarmer takeVideoPrewarmer() {
+        SnapshotVideoPrewarmer prewarmer = mVideoPrewarmer;
+        mVideoPrewarmer = null;
+        return prewarmer;
+    }
+
+    /**
+     * Returns the size that {@link #onTakeVideoSnapshot(VideoResult.Stub, AspectRatio, int)}
+     * will record when the given size is requested, so that encoders can be pre-warmed.
+     * Engines that choose the size themselves return null.
+     *
+     * @param size the requested size
+     * @return the recorded size or null
+     */
+    @Nullable
+    protected Size getVideoSnapshotSize(@NonNull Size size) {
+        return size;
+    }
+
     @Override
     public List<Integer> getSupportPreviewFramerate() {
         return mCameraOptions.getPreviewFrameRateArray();
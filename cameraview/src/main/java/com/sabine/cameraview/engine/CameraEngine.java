@@ -45,6 +45,14 @@ import com.sabine.cameraview.picture.PictureRecorder;
 import com.sabine.cameraview.preview.CameraPreview;
 import com.sabine.cameraview.size.Size;
 import com.sabine.cameraview.video.VideoRecorder;
+import com.sabine.cameraview.video.encoding.FragmentConfig;
+import com.sabine.cameraview.video.encoding.EncoderMetrics;
+import com.sabine.cameraview.video.encoding.MetricsConfig;
+import com.sabine.cameraview.video.encoding.TimeLapseConfig;
+import com.sabine.cameraview.video.encoding.WriteBehindConfig;
+import com.sabine.cameraview.video.encoding.PreRollConfig;
+import com.sabine.cameraview.video.encoding.VideoOutputConfig;
+import com.sabine.cameraview.video.encoding.SegmentConfig;
 
 import java.io.File;
 import java.io.FileDescriptor;
@@ -129,7 +137,9 @@ public abstract class CameraEngine implements
         void dispatchError(CameraException exception);
         void dispatchOnVideoRecordingStart(long timestamp);
         void dispatchOnVideoEncodeStart(int bitrate);
+        void dispatchOnVideoEncodeBitRateChanged(int bitrate);
         void dispatchOnVideoRecordingEnd();
+        void dispatchOnVideoSegmentTaken(@NonNull File file, long startTimeUs, long endTimeUs);
     }
 
     protected static final String TAG = CameraEngine.class.getSimpleName();
@@ -746,9 +756,46 @@ public abstract class CameraEngine implements
     public abstract void setVideoBitRate(int videoBitRate);
     public abstract int getVideoBitRate();
 
+    public abstract void setVideoMaxSize(long videoMaxSizeInBytes);
+    public abstract long getVideoMaxSize();
+
+    public abstract void setVideoMaxDuration(int videoMaxDurationMillis);
+    public abstract int getVideoMaxDuration();
+
     public abstract void setAudioBitRate(int audioBitRate);
     public abstract int getAudioBitRate();
 
+    public abstract void setVideoFragmentConfig(@Nullable FragmentConfig config);
+    @Nullable public abstract FragmentConfig getVideoFragmentConfig();
+
+    public abstract void setVideoSegmentConfig(@Nullable SegmentConfig config);
+    @Nullable public abstract SegmentConfig getVideoSegmentConfig();
+
+    public abstract void setVideoPreRollConfig(@Nullable PreRollConfig config);
+    @Nullable public abstract PreRollConfig getVideoPreRollConfig();
+
+    public abstract void setInternalAudioCapture(boolean internalAudioCapture);
+    public abstract boolean getInternalAudioCapture();
+
+    public abstract void setVideoPrewarmSize(@Nullable Size size);
+    @Nullable public abstract Size getVideoPrewarmSize();
+
+    public abstract void setVideoAdaptiveBitRate(boolean adaptiveBitRate);
+    public abstract boolean getVideoAdaptiveBitRate();
+
+    public abstract void setVideoMetricsConfig(@Nullable MetricsConfig config);
+    @Nullable public abstract MetricsConfig getVideoMetricsConfig();
+    @Nullable public abstract EncoderMetrics.Snapshot getVideoMetrics();
+
+    public abstract void setVideoOutputConfigs(@Nullable List<VideoOutputConfig> configs);
+    @Nullable public abstract List<VideoOutputConfig> getVideoOutputConfigs();
+
+    public abstract void setVideoTimeLapseConfig(@Nullable TimeLapseConfig config);
+    @Nullable public abstract TimeLapseConfig getVideoTimeLapseConfig();
+
+    public abstract void setVideoWriteBehindConfig(@Nullable WriteBehindConfig config);
+    @Nullable public abstract WriteBehindConfig getVideoWriteBehindConfig();
+
     public abstract void setSnapshotMaxWidth(int maxWidth);
     public abstract int getSnapshotMaxWidth();
 
@@ -767,6 +814,12 @@ public abstract class CameraEngine implements
     public abstract void setFrameProcessingPoolSize(int poolSize);
     public abstract int getFrameProcessingPoolSize();
 
+    public abstract void setFrameProcessingMaxMemory(long maxMemory);
+    public abstract long getFrameProcessingMaxMemory();
+
+    public abstract void setFrameProcessingDirectBuffers(boolean directBuffers);
+    public abstract boolean getFrameProcessingDirectBuffers();
+
     public abstract void setAutoFocusResetDelay(long delayMillis);
     public abstract long getAutoFocusResetDelay();
 
@@ -850,6 +903,11 @@ public abstract class CameraEngine implements
                                    @Nullable FileDescriptor fileDescriptor);
     public abstract void takeVideoSnapshot(@NonNull VideoResult.Stub stub, @NonNull File file, Size size, boolean isFlip, int rotation);
     public abstract void stopVideo(boolean isCameraShutdown);
+    public abstract void triggerVideoPreRoll();
+    public abstract void pauseVideo();
+    public abstract void resumeVideo();
+    public abstract void prewarmVideo();
+    public abstract void releaseVideoPrewarm();
 
     public abstract long getTimeStamp();
 
@@ -7,7 +7,6 @@ import androidx.annotation.Nullable;
 import com.sabine.cameraview.engine.offset.Angles;
 import com.sabine.cameraview.size.Size;
 
-import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * This class manages the allocation of byte buffers and {@link Frame} objects.
@@ -55,7 +54,7 @@ public class ByteBufferFrameManager extends FrameManager<byte[]> {
      */
     private final static int BUFFER_MODE_ENQUEUE = 1;
 
-    private LinkedBlockingQueue<byte[]> mBufferQueue;
+    private FramePool<byte[]> mBufferQueue;
     private BufferCallback mBufferCallback;
     private final int mBufferMode;
 
@@ -73,7 +72,7 @@ public class ByteBufferFrameManager extends FrameManager<byte[]> {
             mBufferCallback = callback;
             mBufferMode = BUFFER_MODE_DISPATCH;
         } else {
-            mBufferQueue = new LinkedBlockingQueue<>(poolSize);
+            mBufferQueue = new FramePool<>(poolSize);
             mBufferMode = BUFFER_MODE_ENQUEUE;
         }
     }
@@ -111,6 +110,16 @@ public class ByteBufferFrameManager extends FrameManager<byte[]> {
         return mBufferQueue.poll();
     }
 
+    /**
+     * Returns the statistics of the buffer pool, which only exists
+     * in {@link #BUFFER_MODE_ENQUEUE} mode.
+     * @return the buffer pool stats, or null
+     */
+    @Nullable
+    public FramePoolStats getBufferPoolStats() {
+        return mBufferQueue == null ? null : mBufferQueue.getStats();
+    }
+
     /**
      * Can be called if the buffer obtained by {@link #getBuffer()}
      * was not used to construct a frame, so it can be put back into the queue.
@@ -140,6 +149,17 @@ public class ByteBufferFrameManager extends FrameManager<byte[]> {
         }
     }
 
+    @Override
+    protected boolean onAllocateFrameData() {
+        byte[] buffer = new byte[getFrameBytes()];
+        if (mBufferMode == BUFFER_MODE_DISPATCH) {
+            mBufferCallback.onBufferAvailable(buffer);
+        } else {
+            mBufferQueue.offer(buffer);
+        }
+        return true;
+    }
+
     @NonNull
     @Override
     protected byte[] onCloneFrameData(@NonNull byte[] data) {
@@ -148,6 +168,14 @@ public class ByteBufferFrameManager extends FrameManager<byte[]> {
         return clone;
     }
 
+    @NonNull
+    @Override
+    protected byte[] onCopyFrameData(@NonNull byte[] data, @Nullable byte[] target) {
+        if (target == null || target.length != data.length) return onCloneFrameData(data);
+        System.arraycopy(data, 0, target, 0, data.length);
+        return target;
+    }
+
     /**
      * Releases all frames controlled by this manager and
      * clears the pool.
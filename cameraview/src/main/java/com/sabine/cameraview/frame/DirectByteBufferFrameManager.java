@@ -0,0 +1,256 @@
+package com.sabine.cameraview.frame;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.sabine.cameraview.engine.offset.Angles;
+import com.sabine.cameraview.size.Size;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A {@link FrameManager} of direct {@link ByteBuffer}s, for processors that pass frames
+ * to native code (for example through GetDirectBufferAddress) without copying them.
+ *
+ * Buffers are pooled, in native byte order, and their capacity is a multiple of
+ * {@link #ALIGNMENT}. When the runtime provides ByteBuffer#alignedSlice, their address
+ * is aligned as well, which is what SIMD code wants. Buffers are kept across
+ * {@link #release()} and {@link #setUp(int, Size, Angles)}, and reused if they are
+ * large enough for the new size, until {@link #releaseBuffers()} is called.
+ *
+ * Native code that keeps a buffer after the frame is released can {@link #pin(ByteBuffer)}
+ * it: the buffer is not reused, nor freed, until {@link #unpin(ByteBuffer)}.
+ *
+ * The camera can fill buffers directly through {@link #getBuffer()}, or pass its own byte
+ * arrays to {@link #getFrame(byte[], long)}, which copies them once and gives them back
+ * to the {@link ByteBufferFrameManager.BufferCallback} right away. This is used for Camera1.
+ */
+public class DirectByteBufferFrameManager extends FrameManager<ByteBuffer> {
+
+    /**
+     * Buffer capacity, and address when supported, are multiples of this.
+     */
+    public final static int ALIGNMENT = 64;
+
+    private final static Method ALIGNED_SLICE = findAlignedSlice();
+
+    private final ByteBufferFrameManager.BufferCallback mArrayCallback;
+    private final FramePool<ByteBuffer> mBufferQueue;
+    // Pinned buffers, and whether their frame was released. Guarded by itself.
+    private final Map<ByteBuffer, Boolean> mPinned = new IdentityHashMap<>();
+
+    /**
+     * Construct a new frame manager.
+     * The construction must be followed by an {@link FrameManager#setUp(int, Size, Angles)} call
+     * as soon as the parameters are known.
+     *
+     * @param poolSize the size of the backing pool.
+     * @param callback receives byte arrays for the camera, or null to use {@link #getBuffer()}
+     */
+    public DirectByteBufferFrameManager(int poolSize,
+                                        @Nullable ByteBufferFrameManager.BufferCallback callback) {
+        super(poolSize, ByteBuffer.class);
+        mArrayCallback = callback;
+        mBufferQueue = new FramePool<>(poolSize);
+    }
+
+    @Override
+    public void setUp(int format, @NonNull Size size, @NonNull Angles angles) {
+        super.setUp(format, size, angles);
+        int bytes = getFrameBytes();
+        // Reuse buffers from the previous set up, if large enough.
+        int reused = 0;
+        int count = mBufferQueue.size();
+        for (int i = 0; i < count; i++) {
+            ByteBuffer buffer = mBufferQueue.take();
+            if (buffer == null) break;
+            if (buffer.capacity() >= bytes) {
+                mBufferQueue.offer(buffer);
+                reused++;
+            }
+        }
+        LOG.i("setUp:", "reused buffers:", reused);
+        for (int i = reused; i < getPoolSize(); i++) {
+            mBufferQueue.offer(allocate(bytes));
+        }
+        if (mArrayCallback != null) {
+            for (int i = 0; i < getPoolSize(); i++) {
+                mArrayCallback.onBufferAvailable(new byte[bytes]);
+            }
+        }
+    }
+
+    /**
+     * Returns a direct buffer that can be filled, with a limit of the frame size.
+     * If not null, the buffer can be used to get a new frame through
+     * {@link FrameManager#getFrame(Object, long)}, or given back with
+     * {@link #onBufferUnused(ByteBuffer)}.
+     *
+     * @return a buffer, or null
+     */
+    @Nullable
+    public ByteBuffer getBuffer() {
+        ByteBuffer buffer = mBufferQueue.poll();
+        if (buffer != null) {
+            buffer.clear();
+            buffer.limit(getFrameBytes());
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns the statistics of the buffer pool.
+     * @return the buffer pool stats
+     */
+    @NonNull
+    public FramePoolStats getBufferPoolStats() {
+        return mBufferQueue.getStats();
+    }
+
+    /**
+     * Can be called if the buffer obtained by {@link #getBuffer()}
+     * was not used to construct a frame, so it can be put back into the queue.
+     * @param buffer a buffer
+     */
+    public void onBufferUnused(@NonNull ByteBuffer buffer) {
+        if (isSetUp()) {
+            mBufferQueue.offer(buffer);
+        } else {
+            LOG.w("onBufferUnused: buffer was returned but we're not set up anymore.");
+        }
+    }
+
+    /**
+     * Copies a camera byte array into a direct buffer and returns a frame for it.
+     * The array is given back to the callback, whether a frame is returned or not.
+     *
+     * @param data the camera data
+     * @param time timestamp
+     * @return a new frame, or null if no buffer is available
+     */
+    @Nullable
+    public Frame getFrame(@NonNull byte[] data, long time) {
+        ByteBuffer buffer = getBuffer();
+        Frame frame = null;
+        if (buffer != null) {
+            buffer.put(data, 0, Math.min(data.length, buffer.remaining()));
+            buffer.flip();
+            frame = getFrame(buffer, time);
+        } else {
+            LOG.v("getFrame for time:", time, "NO BUFFER.");
+        }
+        if (mArrayCallback != null && isSetUp() && data.length == getFrameBytes()) {
+            mArrayCallback.onBufferAvailable(data);
+        }
+        return frame;
+    }
+
+    /**
+     * Keeps a buffer out of the pool, for native code that holds its address after
+     * the frame is released. The buffer is reused after {@link #unpin(ByteBuffer)}.
+     *
+     * @param buffer a frame buffer
+     */
+    public void pin(@NonNull ByteBuffer buffer) {
+        synchronized (mPinned) {
+            if (!mPinned.containsKey(buffer)) mPinned.put(buffer, false);
+        }
+    }
+
+    /**
+     * Gives a pinned buffer back to the pool, if its frame was released.
+     * @param buffer a pinned buffer
+     */
+    public void unpin(@NonNull ByteBuffer buffer) {
+        Boolean released;
+        synchronized (mPinned) {
+            released = mPinned.remove(buffer);
+        }
+        if (released != null && released) recycle(buffer);
+    }
+
+    @Override
+    protected void onFrameDataReleased(@NonNull ByteBuffer data, boolean recycled) {
+        synchronized (mPinned) {
+            if (mPinned.containsKey(data)) {
+                mPinned.put(data, true);
+                return;
+            }
+        }
+        if (recycled) recycle(data);
+    }
+
+    private void recycle(@NonNull ByteBuffer buffer) {
+        if (isSetUp() && buffer.capacity() >= getFrameBytes()) mBufferQueue.offer(buffer);
+    }
+
+    @Override
+    protected boolean onAllocateFrameData() {
+        mBufferQueue.offer(allocate(getFrameBytes()));
+        return true;
+    }
+
+    @NonNull
+    @Override
+    protected ByteBuffer onCloneFrameData(@NonNull ByteBuffer data) {
+        return onCopyFrameData(data, null);
+    }
+
+    @NonNull
+    @Override
+    protected ByteBuffer onCopyFrameData(@NonNull ByteBuffer data, @Nullable ByteBuffer target) {
+        if (target == null || target.capacity() < data.remaining()) {
+            target = allocate(data.remaining());
+        }
+        target.clear();
+        target.put(data.duplicate());
+        target.flip();
+        return target;
+    }
+
+    /**
+     * Releases the pooled buffers. They are otherwise kept across {@link #release()},
+     * to be reused by the next {@link #setUp(int, Size, Angles)}.
+     */
+    public void releaseBuffers() {
+        mBufferQueue.clear();
+    }
+
+    /**
+     * Allocates a direct buffer in native order, with a capacity rounded up to
+     * {@link #ALIGNMENT}, and an aligned address when supported.
+     *
+     * @param bytes the min capacity
+     * @return a buffer
+     */
+    @NonNull
+    static ByteBuffer allocate(int bytes) {
+        int capacity = (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        ByteBuffer buffer = null;
+        if (ALIGNED_SLICE != null) {
+            try {
+                ByteBuffer raw = ByteBuffer.allocateDirect(capacity + ALIGNMENT);
+                buffer = (ByteBuffer) ALIGNED_SLICE.invoke(raw, ALIGNMENT);
+                buffer.limit(capacity);
+                buffer = buffer.slice();
+            } catch (Exception e) {
+                buffer = null;
+            }
+        }
+        if (buffer == null) buffer = ByteBuffer.allocateDirect(capacity);
+        return buffer.order(ByteOrder.nativeOrder());
+    }
+
+    @Nullable
+    private static Method findAlignedSlice() {
+        try {
+            return ByteBuffer.class.getMethod("alignedSlice", int.class);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -8,16 +8,24 @@ import com.sabine.cameraview.CameraLogger;
 import com.sabine.cameraview.controls.Engine;
 import com.sabine.cameraview.size.Size;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * A preview frame to be processed by {@link FrameProcessor}s.
+ *
+ * Frames are reference counted. A new frame holds one reference, and goes back to its
+ * {@link FrameManager} when the last reference is released, so that it can be shared
+ * by processors running on different threads. Use {@link #retain()} to keep a frame
+ * after {@link FrameProcessor#process(Frame)} returns, without copying its data.
  */
 public class Frame {
 
     private final static String TAG = Frame.class.getSimpleName();
     private final static CameraLogger LOG = CameraLogger.create(TAG);
 
-    private final FrameManager mManager;
+    private final FrameManager<?> mManager;
     private final Class<?> mDataClass;
+    private final boolean mIsCopy;
 
     private Object mData = null;
     private long mTime = -1;
@@ -26,10 +34,18 @@ public class Frame {
     private int mViewRotation = 0;
     private Size mSize = null;
     private int mFormat = -1;
+    private final AtomicInteger mReferences = new AtomicInteger(0);
+    // Whether the manager replaced this frame in the pool. Guarded by the manager.
+    boolean mHeld;
+
+    Frame(@NonNull FrameManager<?> manager) {
+        this(manager, false);
+    }
 
-    Frame(@NonNull FrameManager manager) {
+    private Frame(@NonNull FrameManager<?> manager, boolean isCopy) {
         mManager = manager;
         mDataClass = manager.getFrameDataClass();
+        mIsCopy = isCopy;
     }
 
     void setContent(@NonNull Object data, long time, int userRotation, int viewRotation,
@@ -41,6 +57,39 @@ public class Frame {
         mViewRotation = viewRotation;
         mSize = size;
         mFormat = format;
+        mHeld = false;
+        mReferences.set(1);
+    }
+
+    /**
+     * Adds a reference to this frame, which must be released with {@link #release()}.
+     * Used to share the frame for a short time, the pool is not grown.
+     */
+    void addReference() {
+        ensureHasContent();
+        mReferences.incrementAndGet();
+    }
+
+    /**
+     * Keeps this frame after {@link FrameProcessor#process(Frame)} returns, without copying
+     * its data. The frame can be passed to other threads, and must be released with
+     * {@link #release()} when done. Its contents do not change until then.
+     *
+     * While the frame is kept, the {@link FrameManager} allocates another one for the camera,
+     * as long as the pool stays within its max memory. Past that, the camera has fewer
+     * buffers and might skip frames until this one is released.
+     *
+     * @return this frame
+     */
+    @NonNull
+    public Frame retain() {
+        addReference();
+        mManager.onFrameRetained(this);
+        return this;
+    }
+
+    boolean isCopy() {
+        return mIsCopy;
     }
 
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
@@ -65,29 +114,38 @@ public class Frame {
     }
 
     /**
-     * Clones the frame, returning a frozen content that will not be overwritten.
+     * Returns a frozen content that will not be overwritten.
      * This can be kept or safely passed to other threads.
      * Using freeze without clearing with {@link #release()} can result in memory leaks.
      *
+     * This is the same as {@link #retain()}, unless the {@link FrameManager} pool is at
+     * its max memory. In that case, the data is copied into a buffer taken from a pool
+     * of copies, so that this frame can go back to the camera.
+     *
      * @return a frozen Frame
      */
     @SuppressLint("NewApi")
     @NonNull
     public Frame freeze() {
         ensureHasContent();
-        Frame other = new Frame(mManager);
-        //noinspection unchecked
-        Object data = mManager.cloneFrameData(getData());
+        if (mManager.onFrameRetained(this)) {
+            addReference();
+            return this;
+        }
+        Frame other = new Frame(mManager, true);
+        Object data = copyFrameData(mManager, mData);
         other.setContent(data, mTime, mUserRotation, mViewRotation, mSize, mFormat);
         return other;
     }
 
     /**
      * Disposes the contents of this frame. Can be useful for frozen frames
-     * that are not useful anymore.
+     * that are not useful anymore. If the frame is shared, this only releases
+     * one reference, and the contents are disposed with the last one.
      */
     public void release() {
         if (!hasContent()) return;
+        if (mReferences.decrementAndGet() != 0) return;
         LOG.v("Frame with time", mTime, "is being released.");
         Object data = mData;
         mData = null;
@@ -99,8 +157,18 @@ public class Frame {
         // After the manager is notified, this frame instance can be taken by
         // someone else, possibly from another thread. So this should be the
         // last call in this method. If we null data after, we can have issues.
-        //noinspection unchecked
-        mManager.onFrameReleased(this, data);
+        onFrameReleased(mManager, this, data);
+    }
+
+    // The manager created this frame, so data is of its data class.
+    @NonNull
+    private static <T> T copyFrameData(@NonNull FrameManager<T> manager, @NonNull Object data) {
+        return manager.copyFrameData(manager.getFrameDataClass().cast(data));
+    }
+
+    private static <T> void onFrameReleased(@NonNull FrameManager<T> manager,
+                                            @NonNull Frame frame, @NonNull Object data) {
+        manager.onFrameReleased(frame, manager.getFrameDataClass().cast(data));
     }
 
     /**
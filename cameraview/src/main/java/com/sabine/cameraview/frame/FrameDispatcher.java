@@ -0,0 +1,228 @@
+package com.sabine.cameraview.frame;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.sabine.cameraview.CameraLogger;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Dispatches each {@link Frame} to several {@link FrameProcessor}s in parallel, on the
+ * threads of an {@link Executor}, so that a slow processor does not hold back the others.
+ *
+ * The frame is shared, not copied: it is retained once for each processor, and goes
+ * back to its {@link FrameManager} when the last processor is done with it.
+ * Each processor receives frames one at a time, in order, and has its own
+ * {@link FrameProcessorConfig} that tells what to drop when it is busy.
+ * At most one task per processor is submitted to the executor. If the executor rejects
+ * it, the waiting frames of that processor are dropped, and the next frame tries again.
+ */
+public class FrameDispatcher {
+
+    private final static String TAG = FrameDispatcher.class.getSimpleName();
+    private final static CameraLogger LOG = CameraLogger.create(TAG);
+
+    private final List<Lane> mLanes = new CopyOnWriteArrayList<>();
+    private volatile Executor mExecutor;
+
+    /**
+     * Creates a dispatcher running processors on the given executor.
+     * @param executor the executor
+     */
+    public FrameDispatcher(@NonNull Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Changes the executor. Processors that are running finish on the old one.
+     * @param executor the executor
+     */
+    public void setExecutor(@NonNull Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Adds a processor, or changes its config if it was already added.
+     *
+     * @param processor the processor
+     * @param config the config
+     */
+    public void add(@NonNull FrameProcessor processor, @NonNull FrameProcessorConfig config) {
+        Lane lane = find(processor);
+        if (lane != null) {
+            lane.mConfig = config;
+        } else {
+            mLanes.add(new Lane(processor, config));
+        }
+    }
+
+    /**
+     * Removes a processor. Its waiting frames are released.
+     * @param processor the processor
+     */
+    public void remove(@NonNull FrameProcessor processor) {
+        Lane lane = find(processor);
+        if (lane != null) {
+            mLanes.remove(lane);
+            lane.clear();
+        }
+    }
+
+    /**
+     * Removes all processors. Their waiting frames are released.
+     */
+    public void clear() {
+        for (Lane lane : mLanes) remove(lane.mProcessor);
+    }
+
+    /**
+     * Passes a frame to all processors. The caller reference to the frame
+     * is taken over by the dispatcher, and released when dispatched.
+     *
+     * @param frame the frame
+     */
+    public void dispatch(@NonNull Frame frame) {
+        for (Lane lane : mLanes) {
+            frame.addReference();
+            lane.offer(frame);
+        }
+        frame.release();
+    }
+
+    /**
+     * Returns the statistics of a processor, or null if it was not added.
+     * @param processor the processor
+     * @return the stats or null
+     */
+    @Nullable
+    public FrameProcessorStats getStats(@NonNull FrameProcessor processor) {
+        Lane lane = find(processor);
+        return lane != null ? lane.stats() : null;
+    }
+
+    @Nullable
+    private Lane find(@NonNull FrameProcessor processor) {
+        for (Lane lane : mLanes) {
+            if (lane.mProcessor == processor) return lane;
+        }
+        return null;
+    }
+
+    /**
+     * The frames of a single processor. Runs on the executor while it has frames.
+     */
+    private class Lane implements Runnable {
+
+        private final FrameProcessor mProcessor;
+        private volatile FrameProcessorConfig mConfig;
+        // Waiting frames, not including the one being processed. Guarded by this.
+        private final ArrayDeque<Frame> mQueue = new ArrayDeque<>();
+        private boolean mRunning;
+        private long mProcessed;
+        private long mDropped;
+        private long mFailed;
+        private int mMaxQueueDepth;
+        private long mProcessNanos;
+
+        private Lane(@NonNull FrameProcessor processor, @NonNull FrameProcessorConfig config) {
+            mProcessor = processor;
+            mConfig = config;
+        }
+
+        private void offer(@NonNull Frame frame) {
+            Frame dropped = null;
+            boolean schedule = false;
+            synchronized (this) {
+                FrameProcessorConfig config = mConfig;
+                if (mRunning && mQueue.size() >= config.maxQueuedFrames) {
+                    if (config.dropOldest && !mQueue.isEmpty()) {
+                        dropped = mQueue.pollFirst();
+                        mQueue.addLast(frame);
+                    } else {
+                        dropped = frame;
+                    }
+                    mDropped++;
+                } else {
+                    mQueue.addLast(frame);
+                    if (!mRunning) {
+                        mRunning = true;
+                        schedule = true;
+                    }
+                }
+                mMaxQueueDepth = Math.max(mMaxQueueDepth, mQueue.size());
+            }
+            if (dropped != null) dropped.release();
+            if (schedule) {
+                try {
+                    mExecutor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    LOG.w("Executor rejected the processor. Dropping its frames.", e);
+                    onRejected();
+                }
+            }
+        }
+
+        private void onRejected() {
+            ArrayDeque<Frame> frames;
+            synchronized (this) {
+                // Frames offered meanwhile were queued without scheduling: drop them too.
+                frames = new ArrayDeque<>(mQueue);
+                mQueue.clear();
+                mDropped += frames.size();
+                mRunning = false;
+            }
+            for (Frame frame : frames) frame.release();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Frame frame;
+                synchronized (this) {
+                    frame = mQueue.pollFirst();
+                    if (frame == null) {
+                        mRunning = false;
+                        return;
+                    }
+                }
+                long start = System.nanoTime();
+                boolean failed = false;
+                try {
+                    mProcessor.process(frame);
+                } catch (Exception e) {
+                    LOG.w("Frame processor crashed:", e);
+                    failed = true;
+                }
+                long nanos = System.nanoTime() - start;
+                frame.release();
+                synchronized (this) {
+                    mProcessed++;
+                    mProcessNanos += nanos;
+                    if (failed) mFailed++;
+                }
+            }
+        }
+
+        private void clear() {
+            Frame frame;
+            while (true) {
+                synchronized (this) {
+                    frame = mQueue.pollFirst();
+                }
+                if (frame == null) return;
+                frame.release();
+            }
+        }
+
+        @NonNull
+        private synchronized FrameProcessorStats stats() {
+            return new FrameProcessorStats(mProcessed, mDropped, mFailed,
+                    mQueue.size(), mMaxQueueDepth, mProcessNanos);
+        }
+    }
+}
@@ -12,7 +12,7 @@ import com.sabine.cameraview.engine.offset.Axis;
 import com.sabine.cameraview.engine.offset.Reference;
 import com.sabine.cameraview.size.Size;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayDeque;
 
 /**
  * This class manages the allocation of {@link Frame} objects.
@@ -25,6 +25,10 @@ import java.util.concurrent.LinkedBlockingQueue;
  *
  * For frames to get back to the FrameManager pool, all you have to do
  * is call {@link Frame#release()} when done.
+ *
+ * The pool is elastic: when a frame is kept with {@link Frame#retain()}, another one is
+ * allocated for the camera, as long as the pool stays within {@link #setMaxMemory(long)}.
+ * Extra frames are dropped when the retained ones are released.
  */
 public abstract class FrameManager<T> {
 
@@ -36,8 +40,12 @@ public abstract class FrameManager<T> {
     private Size mFrameSize = null;
     private int mFrameFormat = -1;
     private final Class<T> mFrameDataClass;
-    private LinkedBlockingQueue<Frame> mFrameQueue;
+    private final FramePool<Frame> mFrameQueue;
     private Angles mAngles;
+    // Elastic pool. Guarded by this.
+    private long mMaxMemory;
+    private int mExtraFrames;
+    private final ArrayDeque<T> mCopies = new ArrayDeque<>();
 
 
     /**
@@ -50,7 +58,7 @@ public abstract class FrameManager<T> {
     protected FrameManager(int poolSize, @NonNull Class<T> dataClass) {
         mPoolSize = poolSize;
         mFrameDataClass = dataClass;
-        mFrameQueue = new LinkedBlockingQueue<>(mPoolSize);
+        mFrameQueue = new FramePool<>(mPoolSize);
     }
 
     /**
@@ -62,6 +70,44 @@ public abstract class FrameManager<T> {
         return mPoolSize;
     }
 
+    /**
+     * Sets the max memory of the pool, in bytes. Frames are allocated beyond the pool size
+     * to replace retained frames, up to this limit. Defaults to 0, which means that
+     * the pool never grows.
+     *
+     * @param maxMemory the max memory in bytes
+     */
+    public final synchronized void setMaxMemory(long maxMemory) {
+        mMaxMemory = maxMemory;
+    }
+
+    /**
+     * Returns the max memory of the pool.
+     * @see #setMaxMemory(long)
+     * @return the max memory in bytes
+     */
+    public final synchronized long getMaxMemory() {
+        return mMaxMemory;
+    }
+
+    /**
+     * Returns the number of frames currently allocated beyond the pool size.
+     * @return the extra frames
+     */
+    public final synchronized int getExtraFrames() {
+        return mExtraFrames;
+    }
+
+    /**
+     * Returns the statistics of the frame pool. A miss means that
+     * the camera had a frame but no {@link Frame} to hold it.
+     * @return the frame pool stats
+     */
+    @NonNull
+    public final FramePoolStats getFramePoolStats() {
+        return mFrameQueue.getStats();
+    }
+
     /**
      * Returns the frame size in bytes.
      * @return frame size in bytes
@@ -146,11 +192,56 @@ public abstract class FrameManager<T> {
         }
     }
 
+    /**
+     * Called by frames when they are retained or frozen. Allocates another frame for
+     * the camera, unless this frame was already replaced.
+     *
+     * @param frame the retained frame
+     * @return true if the frame is replaced, false if the pool is at its max memory
+     */
+    synchronized boolean onFrameRetained(@NonNull Frame frame) {
+        if (frame.mHeld) return true;
+        if (!isSetUp() || frame.isCopy()) return false;
+        long memory = (long) (mPoolSize + mExtraFrames + 1) * mFrameBytes;
+        if (memory > mMaxMemory || !onAllocateFrameData()) return false;
+        mExtraFrames++;
+        frame.mHeld = true;
+        mFrameQueue.offer(new Frame(this));
+        LOG.v("onFrameRetained:", "extraFrames:", mExtraFrames);
+        return true;
+    }
+
+    /**
+     * Called when the pool grows, to allocate the data of the new frame.
+     * Managers that can't allocate data should return false, which is the default.
+     *
+     * @return true if allocated
+     */
+    protected boolean onAllocateFrameData() {
+        return false;
+    }
+
     /**
      * Called by child frames when they are released.
      * @param frame the released frame
      */
     void onFrameReleased(@NonNull Frame frame, @NonNull T data) {
+        if (frame.isCopy()) {
+            synchronized (this) {
+                if (isSetUp() && mCopies.size() < mPoolSize) mCopies.addLast(data);
+            }
+            return;
+        }
+        if (frame.mHeld) {
+            synchronized (this) {
+                if (mExtraFrames > 0) {
+                    // The pool shrinks back.
+                    mExtraFrames--;
+                    onFrameDataReleased(data, false);
+                    return;
+                }
+            }
+        }
         if (!isSetUp()) return;
         // If frame queue is full, let's drop everything.
         // If frame queue accepts this frame, let's recycle the buffer as well.
@@ -168,14 +259,36 @@ public abstract class FrameManager<T> {
      */
     protected abstract void onFrameDataReleased(@NonNull T data, boolean recycled);
 
+    /**
+     * Copies the data of a frozen frame, reusing a previous copy if possible.
+     * @param data the data
+     * @return a copy
+     */
     @NonNull
-    final T cloneFrameData(@NonNull T data) {
-        return onCloneFrameData(data);
+    final T copyFrameData(@NonNull T data) {
+        T target;
+        synchronized (this) {
+            target = mCopies.pollFirst();
+        }
+        return onCopyFrameData(data, target);
     }
 
     @NonNull
     protected abstract T onCloneFrameData(@NonNull T data);
 
+    /**
+     * Copies the data into the target, if it is compatible, or into new data.
+     * The default implementation ignores the target.
+     *
+     * @param data the data
+     * @param target a previous copy, or null
+     * @return the copy
+     */
+    @NonNull
+    protected T onCopyFrameData(@NonNull T data, @Nullable T target) {
+        return onCloneFrameData(data);
+    }
+
     /**
      * Releases all frames controlled by this manager and
      * clears the pool.
@@ -186,8 +299,12 @@ public abstract class FrameManager<T> {
             return;
         }
 
-        LOG.i("release: Clearing the frame and buffer queue.");
+        LOG.i("release: Clearing the frame and buffer queue.", mFrameQueue.getStats());
         mFrameQueue.clear();
+        synchronized (this) {
+            mExtraFrames = 0;
+            mCopies.clear();
+        }
         mFrameBytes = -1;
         mFrameSize = null;
         mFrameFormat = -1;
@@ -0,0 +1,139 @@
+package com.sabine.cameraview.frame;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-capacity pool of frames or buffers, shared by the camera thread, which takes
+ * items, and the processor threads, which give them back.
+ *
+ * This is a bounded array queue where each slot has a sequence number telling whether
+ * it can be written or read at a given position, so that {@link #offer(Object)} and
+ * {@link #poll()} only need a compare-and-set on the tail or head, with no locks and
+ * no node allocations.
+ *
+ * The pool counts hits (a poll that returned an item), misses (a poll on an empty pool)
+ * and drops (an offer to a full pool).
+ */
+final class FramePool<T> {
+
+    // Indices of the head and tail in mCursors: 16 longs (128 bytes) apart from each
+    // other and from the array ends, so that they never share a cache line.
+    private final static int PAD = 16;
+    private final static int HEAD = PAD;
+    private final static int TAIL = 2 * PAD;
+
+    private final int mCapacity;
+    private final AtomicReferenceArray<T> mItems;
+    private final AtomicLongArray mSequences;
+    private final AtomicLongArray mCursors = new AtomicLongArray(3 * PAD);
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mDrops = new AtomicLong();
+
+    FramePool(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be > 0.");
+        mCapacity = capacity;
+        mItems = new AtomicReferenceArray<>(capacity);
+        mSequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) mSequences.set(i, i);
+    }
+
+    int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Adds an item, unless the pool is full.
+     * @param item the item
+     * @return true if added
+     */
+    boolean offer(@NonNull T item) {
+        while (true) {
+            long tail = mCursors.get(TAIL);
+            int index = (int) (tail % mCapacity);
+            long diff = mSequences.get(index) - tail;
+            if (diff == 0) {
+                if (mCursors.compareAndSet(TAIL, tail, tail + 1)) {
+                    mItems.lazySet(index, item);
+                    mSequences.set(index, tail + 1);
+                    return true;
+                }
+            } else if (diff < 0 && tail - mCursors.get(HEAD) >= mCapacity) {
+                // The slot was not read since the last lap: full.
+                mDrops.incrementAndGet();
+                return false;
+            }
+            // Else another thread moved the tail, or is still reading
+            // this slot: retry.
+        }
+    }
+
+    /**
+     * Takes an item, if any.
+     * @return an item or null
+     */
+    @Nullable
+    T poll() {
+        T item = take();
+        if (item == null) {
+            mMisses.incrementAndGet();
+        } else {
+            mHits.incrementAndGet();
+        }
+        return item;
+    }
+
+    /**
+     * Takes an item, if any, without counting a hit or miss.
+     * @return an item or null
+     */
+    @Nullable
+    T take() {
+        while (true) {
+            long head = mCursors.get(HEAD);
+            int index = (int) (head % mCapacity);
+            long diff = mSequences.get(index) - (head + 1);
+            if (diff == 0) {
+                if (mCursors.compareAndSet(HEAD, head, head + 1)) {
+                    T item = mItems.get(index);
+                    mItems.lazySet(index, null);
+                    mSequences.set(index, head + mCapacity);
+                    return item;
+                }
+            } else if (diff < 0 && mCursors.get(TAIL) == head) {
+                // The slot was not written since the last lap: empty.
+                return null;
+            }
+            // Else another thread moved the head, or is still writing
+            // this slot: retry.
+        }
+    }
+
+    /**
+     * Removes all items, without counting them.
+     */
+    void clear() {
+        //noinspection StatementWithEmptyBody
+        while (take() != null) {}
+    }
+
+    /**
+     * Returns the number of items, which might be stale under concurrent access.
+     * @return the item count
+     */
+    int size() {
+        long size = mCursors.get(TAIL) - mCursors.get(HEAD);
+        return (int) Math.max(0, Math.min(size, mCapacity));
+    }
+
+    @NonNull
+    FramePoolStats getStats() {
+        return new FramePoolStats(mCapacity, size(),
+                mHits.get(), mMisses.get(), mDrops.get());
+    }
+}
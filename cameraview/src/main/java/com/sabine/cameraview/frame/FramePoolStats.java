@@ -0,0 +1,77 @@
+package com.sabine.cameraview.frame;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Statistics of a {@link FrameManager} pool of frames or buffers, since its creation.
+ */
+@SuppressWarnings("WeakerAccess")
+public class FramePoolStats {
+
+    private final int mCapacity;
+    private final int mSize;
+    private final long mHits;
+    private final long mMisses;
+    private final long mDrops;
+
+    FramePoolStats(int capacity, int size, long hits, long misses, long drops) {
+        mCapacity = capacity;
+        mSize = size;
+        mHits = hits;
+        mMisses = misses;
+        mDrops = drops;
+    }
+
+    /**
+     * Returns the max number of items in the pool.
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns the number of items currently available in the pool.
+     * @return the size
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Returns the number of times an item was available when requested.
+     * @return the hits
+     */
+    public long getHitCount() {
+        return mHits;
+    }
+
+    /**
+     * Returns the number of times the pool was empty when an item was requested.
+     * For frames, this means that the camera dropped a frame.
+     * @return the misses
+     */
+    public long getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * Returns the number of items that were given back to a full pool and dropped,
+     * for example frames from a previous set up.
+     * @return the drops
+     */
+    public long getDropCount() {
+        return mDrops;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "FramePoolStats{capacity=" + mCapacity +
+                ", size=" + mSize +
+                ", hits=" + mHits +
+                ", misses=" + mMisses +
+                ", drops=" + mDrops +
+                '}';
+    }
+}
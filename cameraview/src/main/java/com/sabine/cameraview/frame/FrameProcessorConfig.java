@@ -0,0 +1,19 @@
+package com.sabine.cameraview.frame;
+
+/**
+ * Options of a {@link FrameProcessor} when frames are dispatched in parallel,
+ * to be passed to {@link FrameDispatcher#add(FrameProcessor, FrameProcessorConfig)}.
+ *
+ * Each processor receives frames one at a time. Frames that come while it is busy wait
+ * in a queue of {@link #maxQueuedFrames}, which includes a frame that is waiting for
+ * an executor thread. When the queue is full, either the oldest
+ * waiting frame or the new one is dropped, and goes back to the pool right away.
+ * The default config drops new frames while the processor is busy.
+ */
+@SuppressWarnings("WeakerAccess")
+public class FrameProcessorConfig {
+
+    // Configurable options
+    public int maxQueuedFrames = 0; // frames waiting while busy, 0 to drop them
+    public boolean dropOldest = true; // when full, replace the oldest waiting frame
+}
@@ -0,0 +1,87 @@
+package com.sabine.cameraview.frame;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Statistics of a {@link FrameProcessor} dispatched by a {@link FrameDispatcher}.
+ */
+@SuppressWarnings("WeakerAccess")
+public class FrameProcessorStats {
+
+    private final long mProcessed;
+    private final long mDropped;
+    private final long mFailed;
+    private final int mQueueDepth;
+    private final int mMaxQueueDepth;
+    private final long mProcessNanos;
+
+    FrameProcessorStats(long processed, long dropped, long failed,
+                        int queueDepth, int maxQueueDepth, long processNanos) {
+        mProcessed = processed;
+        mDropped = dropped;
+        mFailed = failed;
+        mQueueDepth = queueDepth;
+        mMaxQueueDepth = maxQueueDepth;
+        mProcessNanos = processNanos;
+    }
+
+    /**
+     * Returns the number of frames that were processed.
+     * @return the processed frames
+     */
+    public long getProcessedCount() {
+        return mProcessed;
+    }
+
+    /**
+     * Returns the number of frames that were dropped because the processor was busy.
+     * @return the dropped frames
+     */
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Returns the number of frames for which the processor threw.
+     * @return the failed frames
+     */
+    public long getFailedCount() {
+        return mFailed;
+    }
+
+    /**
+     * Returns the number of frames currently waiting for the processor.
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /**
+     * Returns the max number of frames that waited for the processor at once.
+     * @return the max queue depth
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /**
+     * Returns the average time spent in {@link FrameProcessor#process(Frame)}.
+     * @return the average time in microseconds
+     */
+    public long getAverageProcessMicros() {
+        return mProcessed == 0 ? 0 : mProcessNanos / mProcessed / 1000L;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "FrameProcessorStats{processed=" + mProcessed +
+                ", dropped=" + mDropped +
+                ", failed=" + mFailed +
+                ", queueDepth=" + mQueueDepth +
+                ", maxQueueDepth=" + mMaxQueueDepth +
+                ", averageProcessMicros=" + getAverageProcessMicros() +
+                '}';
+    }
+}
@@ -23,8 +23,8 @@ public class ImageFrameManager extends FrameManager<Image> {
     @NonNull
     @Override
     protected Image onCloneFrameData(@NonNull Image data) {
-        throw new RuntimeException("Cannot freeze() an Image Frame. " +
+        throw new RuntimeException("Cannot copy an Image Frame. " +
                 "Please consider using the frame synchronously in your process() method, " +
-                "which also gives better performance.");
+                "or keeping it with retain(), which does not copy.");
     }
 }
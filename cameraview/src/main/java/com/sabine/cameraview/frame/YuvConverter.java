@@ -0,0 +1,477 @@
+package com.sabine.cameraview.frame;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts YUV frames to RGB, for processors that need pixels.
+ *
+ * Inputs can be {@link Frame}s, NV21 byte arrays and direct buffers (Camera1), or
+ * {@link ImageFormat#YUV_420_888} {@link Image}s with any row and pixel stride (Camera2).
+ * Outputs are written into arrays owned by the caller, which can be reused across frames:
+ * - ARGB int arrays, as used by {@link android.graphics.Bitmap#setPixels}
+ * - RGB byte arrays, three bytes per pixel
+ * - float tensors, RGB interleaved (HWC) or planar (CHW), as c * scale + bias
+ *
+ * The conversion uses full-range BT.601 coefficients, like the camera JPEG encoder,
+ * in 16-bit fixed point. Rows are split across the threads of a {@link ForkJoinPool}.
+ * The output has the frame orientation: {@link Frame#getRotationToUser()} is not applied.
+ */
+@SuppressWarnings("WeakerAccess")
+public class YuvConverter {
+
+    private final static int SHIFT = 16;
+    private final static int HALF = 1 << (SHIFT - 1);
+    private final static int V_TO_R = 91881; // 1.402
+    private final static int U_TO_G = 22554; // 0.344136
+    private final static int V_TO_G = 46802; // 0.714136
+    private final static int U_TO_B = 116130; // 1.772
+
+    private final static int OUTPUT_ARGB = 0;
+    private final static int OUTPUT_RGB = 1;
+    private final static int OUTPUT_HWC = 2;
+    private final static int OUTPUT_CHW = 3;
+
+    // Below this, tasks are not split further.
+    private final static int MIN_TASK_ROWS = 16;
+
+    private static ForkJoinPool sDefaultPool;
+
+    private final ForkJoinPool mPool;
+
+    /**
+     * Creates a converter that uses a pool shared by all converters,
+     * with one thread per core.
+     */
+    public YuvConverter() {
+        this(getDefaultPool());
+    }
+
+    /**
+     * Creates a converter that uses the given pool, or the calling thread if null.
+     * @param pool a pool or null
+     */
+    public YuvConverter(@Nullable ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    private static synchronized ForkJoinPool getDefaultPool() {
+        if (sDefaultPool == null) {
+            sDefaultPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return sDefaultPool;
+    }
+
+    /**
+     * Converts a frame to ARGB pixels.
+     * @param frame an NV21 or YUV_420_888 frame
+     * @param output at least width * height ints
+     */
+    public void toArgb(@NonNull Frame frame, @NonNull int[] output) {
+        convert(planes(frame), new Output(OUTPUT_ARGB, output, null, null, 1F, 0F));
+    }
+
+    /**
+     * Converts a frame to RGB bytes.
+     * @param frame an NV21 or YUV_420_888 frame
+     * @param output at least width * height * 3 bytes
+     */
+    public void toRgb(@NonNull Frame frame, @NonNull byte[] output) {
+        convert(planes(frame), new Output(OUTPUT_RGB, null, output, null, 1F, 0F));
+    }
+
+    /**
+     * Converts a frame to a float tensor, where each value is c * scale + bias
+     * and c is the channel value, from 0 to 255.
+     *
+     * @param frame an NV21 or YUV_420_888 frame
+     * @param output at least width * height * 3 floats
+     * @param planar true for CHW, false for HWC
+     * @param scale the scale, for example 1F / 255F
+     * @param bias the bias
+     */
+    public void toTensor(@NonNull Frame frame, @NonNull float[] output,
+                         boolean planar, float scale, float bias) {
+        convert(planes(frame), new Output(planar ? OUTPUT_CHW : OUTPUT_HWC,
+                null, null, output, scale, bias));
+    }
+
+    /**
+     * Converts NV21 data to ARGB pixels.
+     * @param nv21 the data
+     * @param width the width
+     * @param height the height
+     * @param output at least width * height ints
+     */
+    public void toArgb(@NonNull byte[] nv21, int width, int height, @NonNull int[] output) {
+        convert(Planes.nv21(nv21, width, height),
+                new Output(OUTPUT_ARGB, output, null, null, 1F, 0F));
+    }
+
+    /**
+     * Converts NV21 data to RGB bytes.
+     * @param nv21 the data
+     * @param width the width
+     * @param height the height
+     * @param output at least width * height * 3 bytes
+     */
+    public void toRgb(@NonNull byte[] nv21, int width, int height, @NonNull byte[] output) {
+        convert(Planes.nv21(nv21, width, height),
+                new Output(OUTPUT_RGB, null, output, null, 1F, 0F));
+    }
+
+    /**
+     * Converts NV21 data to a float tensor.
+     * @see #toTensor(Frame, float[], boolean, float, float)
+     * @param nv21 the data
+     * @param width the width
+     * @param height the height
+     * @param output at least width * height * 3 floats
+     * @param planar true for CHW, false for HWC
+     * @param scale the scale
+     * @param bias the bias
+     */
+    public void toTensor(@NonNull byte[] nv21, int width, int height, @NonNull float[] output,
+                         boolean planar, float scale, float bias) {
+        convert(Planes.nv21(nv21, width, height), new Output(planar ? OUTPUT_CHW : OUTPUT_HWC,
+                null, null, output, scale, bias));
+    }
+
+    /**
+     * Converts a YUV_420_888 image to ARGB pixels.
+     * @param image the image
+     * @param output at least width * height ints
+     */
+    public void toArgb(@NonNull Image image, @NonNull int[] output) {
+        convert(Planes.image(image), new Output(OUTPUT_ARGB, output, null, null, 1F, 0F));
+    }
+
+    /**
+     * Converts a YUV_420_888 image to RGB bytes.
+     * @param image the image
+     * @param output at least width * height * 3 bytes
+     */
+    public void toRgb(@NonNull Image image, @NonNull byte[] output) {
+        convert(Planes.image(image), new Output(OUTPUT_RGB, null, output, null, 1F, 0F));
+    }
+
+    /**
+     * Converts a YUV_420_888 image to a float tensor.
+     * @see #toTensor(Frame, float[], boolean, float, float)
+     * @param image the image
+     * @param output at least width * height * 3 floats
+     * @param planar true for CHW, false for HWC
+     * @param scale the scale
+     * @param bias the bias
+     */
+    public void toTensor(@NonNull Image image, @NonNull float[] output,
+                         boolean planar, float scale, float bias) {
+        convert(Planes.image(image), new Output(planar ? OUTPUT_CHW : OUTPUT_HWC,
+                null, null, output, scale, bias));
+    }
+
+    @NonNull
+    private static Planes planes(@NonNull Frame frame) {
+        Class<?> dataClass = frame.getDataClass();
+        int width = frame.getSize().getWidth();
+        int height = frame.getSize().getHeight();
+        if (dataClass == Image.class) {
+            return Planes.image(frame.<Image>getData());
+        }
+        if (frame.getFormat() != ImageFormat.NV21) {
+            throw new IllegalArgumentException("Unsupported frame format: " + frame.getFormat());
+        }
+        if (dataClass == byte[].class) {
+            return Planes.nv21(frame.<byte[]>getData(), width, height);
+        } else if (dataClass == ByteBuffer.class) {
+            return Planes.nv21(frame.<ByteBuffer>getData(), width, height);
+        }
+        throw new IllegalArgumentException("Unsupported frame data: " + dataClass);
+    }
+
+    void convert(@NonNull Planes planes, @NonNull Output output) {
+        output.check(planes.width * planes.height);
+        if (mPool == null || planes.height < 2 * MIN_TASK_ROWS) {
+            new RowTask(planes, output, 0, planes.height, planes.height).compute();
+        } else {
+            int tasks = mPool.getParallelism() * 4;
+            int rows = Math.max(MIN_TASK_ROWS, (planes.height + tasks - 1) / tasks);
+            mPool.invoke(new RowTask(planes, output, 0, planes.height, rows));
+        }
+    }
+
+    /**
+     * One plane of the YUV data, backed by an array, or by a buffer
+     * whose rows are copied before conversion.
+     */
+    final static class Plane {
+        final byte[] array;
+        final ByteBuffer buffer;
+        final int offset;
+        final int rowStride;
+        final int pixelStride;
+
+        Plane(@NonNull byte[] array, int offset, int rowStride, int pixelStride) {
+            this.array = array;
+            this.buffer = null;
+            this.offset = offset;
+            this.rowStride = rowStride;
+            this.pixelStride = pixelStride;
+        }
+
+        Plane(@NonNull ByteBuffer buffer, int offset, int rowStride, int pixelStride) {
+            if (buffer.hasArray()) {
+                this.array = buffer.array();
+                this.buffer = null;
+                this.offset = buffer.arrayOffset() + buffer.position() + offset;
+            } else {
+                this.array = null;
+                this.buffer = buffer;
+                this.offset = buffer.position() + offset;
+            }
+            this.rowStride = rowStride;
+            this.pixelStride = pixelStride;
+        }
+    }
+
+    final static class Planes {
+        final int width;
+        final int height;
+        final Plane y;
+        final Plane u;
+        final Plane v;
+
+        Planes(int width, int height, @NonNull Plane y, @NonNull Plane u, @NonNull Plane v) {
+            this.width = width;
+            this.height = height;
+            this.y = y;
+            this.u = u;
+            this.v = v;
+        }
+
+        @NonNull
+        static Planes nv21(@NonNull byte[] data, int width, int height) {
+            int chroma = width * height;
+            if (data.length < chroma + 2 * ((width + 1) / 2) * ((height + 1) / 2)) {
+                throw new IllegalArgumentException("NV21 data is too small for the size.");
+            }
+            int chromaRow = 2 * ((width + 1) / 2);
+            return new Planes(width, height,
+                    new Plane(data, 0, width, 1),
+                    new Plane(data, chroma + 1, chromaRow, 2),
+                    new Plane(data, chroma, chromaRow, 2));
+        }
+
+        @NonNull
+        static Planes nv21(@NonNull ByteBuffer data, int width, int height) {
+            int chroma = width * height;
+            if (data.remaining() < chroma + 2 * ((width + 1) / 2) * ((height + 1) / 2)) {
+                throw new IllegalArgumentException("NV21 data is too small for the size.");
+            }
+            int chromaRow = 2 * ((width + 1) / 2);
+            return new Planes(width, height,
+                    new Plane(data, 0, width, 1),
+                    new Plane(data, chroma + 1, chromaRow, 2),
+                    new Plane(data, chroma, chromaRow, 2));
+        }
+
+        @NonNull
+        static Planes image(@NonNull Image image) {
+            if (image.getFormat() != ImageFormat.YUV_420_888) {
+                throw new IllegalArgumentException("Unsupported image format: "
+                        + image.getFormat());
+            }
+            Image.Plane[] planes = image.getPlanes();
+            return new Planes(image.getWidth(), image.getHeight(),
+                    plane(planes[0]), plane(planes[1]), plane(planes[2]));
+        }
+
+        @NonNull
+        private static Plane plane(@NonNull Image.Plane plane) {
+            return new Plane(plane.getBuffer(), 0, plane.getRowStride(), plane.getPixelStride());
+        }
+    }
+
+    final static class Output {
+        final int mode;
+        final int[] ints;
+        final byte[] bytes;
+        final float[] floats;
+        final float[] table;
+        int pixels;
+
+        Output(int mode, @Nullable int[] ints, @Nullable byte[] bytes, @Nullable float[] floats,
+               float scale, float bias) {
+            this.mode = mode;
+            this.ints = ints;
+            this.bytes = bytes;
+            this.floats = floats;
+            if (floats != null) {
+                table = new float[256];
+                for (int i = 0; i < 256; i++) table[i] = i * scale + bias;
+            } else {
+                table = null;
+            }
+        }
+
+        void check(int pixels) {
+            this.pixels = pixels;
+            int length = mode == OUTPUT_ARGB ? ints.length
+                    : mode == OUTPUT_RGB ? bytes.length / 3 : floats.length / 3;
+            if (length < pixels) {
+                throw new IllegalArgumentException("Output is too small: "
+                        + length + " pixels, needs " + pixels + ".");
+            }
+        }
+    }
+
+    /**
+     * Converts rows [from, to), splitting them in halves until there are at most
+     * maxRows. Splits happen on even rows, so chroma rows are not shared.
+     */
+    @SuppressWarnings("serial")
+    private static class RowTask extends RecursiveAction {
+
+        private final Planes mPlanes;
+        private final Output mOutput;
+        private final int mFrom;
+        private final int mTo;
+        private final int mMaxRows;
+
+        private RowTask(@NonNull Planes planes, @NonNull Output output,
+                        int from, int to, int maxRows) {
+            mPlanes = planes;
+            mOutput = output;
+            mFrom = from;
+            mTo = to;
+            mMaxRows = maxRows;
+        }
+
+        @Override
+        protected void compute() {
+            int rows = mTo - mFrom;
+            if (rows > mMaxRows) {
+                int middle = mFrom + (rows / 2 & ~1);
+                invokeAll(new RowTask(mPlanes, mOutput, mFrom, middle, mMaxRows),
+                        new RowTask(mPlanes, mOutput, middle, mTo, mMaxRows));
+                return;
+            }
+            Planes p = mPlanes;
+            int chromaWidth = (p.width + 1) / 2;
+            RowReader y = new RowReader(p.y, p.width);
+            RowReader u = new RowReader(p.u, chromaWidth);
+            RowReader v = new RowReader(p.v, chromaWidth);
+            for (int row = mFrom; row < mTo; row++) {
+                y.read(row);
+                u.read(row / 2);
+                v.read(row / 2);
+                convertRow(y, u, v, p.width, row * p.width, mOutput);
+            }
+        }
+    }
+
+    /**
+     * Gives access to a plane row as an array and offset,
+     * copying it first if the plane is not backed by an array.
+     */
+    private static class RowReader {
+        private final Plane mPlane;
+        private final ByteBuffer mBuffer;
+        private final int mRowBytes;
+        private byte[] array;
+        private int offset;
+        private int mRow = -1;
+
+        private RowReader(@NonNull Plane plane, int pixels) {
+            mPlane = plane;
+            mRowBytes = (pixels - 1) * plane.pixelStride + 1;
+            if (plane.array != null) {
+                mBuffer = null;
+                array = plane.array;
+            } else {
+                mBuffer = plane.buffer.duplicate();
+                array = new byte[mRowBytes];
+            }
+        }
+
+        private void read(int row) {
+            if (row == mRow) return;
+            mRow = row;
+            int start = mPlane.offset + row * mPlane.rowStride;
+            if (mBuffer == null) {
+                offset = start;
+            } else {
+                mBuffer.position(start);
+                mBuffer.get(array, 0, mRowBytes);
+                offset = 0;
+            }
+        }
+    }
+
+    private static void convertRow(@NonNull RowReader yRow,
+                                   @NonNull RowReader uRow,
+                                   @NonNull RowReader vRow,
+                                   int width, int pixel, @NonNull Output output) {
+        byte[] y = yRow.array;
+        byte[] u = uRow.array;
+        byte[] v = vRow.array;
+        int yIndex = yRow.offset;
+        int yStride = yRow.mPlane.pixelStride;
+        int uIndex = uRow.offset;
+        int uStride = uRow.mPlane.pixelStride;
+        int vIndex = vRow.offset;
+        int vStride = vRow.mPlane.pixelStride;
+        for (int x = 0; x < width; x += 2) {
+            // Two pixels share the same chroma.
+            int cu = (u[uIndex] & 0xFF) - 128;
+            int cv = (v[vIndex] & 0xFF) - 128;
+            uIndex += uStride;
+            vIndex += vStride;
+            int r = V_TO_R * cv;
+            int g = -U_TO_G * cu - V_TO_G * cv;
+            int b = U_TO_B * cu;
+            write(output, pixel++, ((y[yIndex] & 0xFF) << SHIFT) + HALF, r, g, b);
+            yIndex += yStride;
+            if (x + 1 < width) {
+                write(output, pixel++, ((y[yIndex] & 0xFF) << SHIFT) + HALF, r, g, b);
+                yIndex += yStride;
+            }
+        }
+    }
+
+    private static void write(@NonNull Output output, int pixel, int luma, int r, int g, int b) {
+        r = (luma + r) >> SHIFT;
+        g = (luma + g) >> SHIFT;
+        b = (luma + b) >> SHIFT;
+        r = r < 0 ? 0 : (r > 255 ? 255 : r);
+        g = g < 0 ? 0 : (g > 255 ? 255 : g);
+        b = b < 0 ? 0 : (b > 255 ? 255 : b);
+        switch (output.mode) {
+            case OUTPUT_ARGB:
+                output.ints[pixel] = 0xFF000000 | (r << 16) | (g << 8) | b;
+                break;
+            case OUTPUT_RGB:
+                output.bytes[3 * pixel] = (byte) r;
+                output.bytes[3 * pixel + 1] = (byte) g;
+                output.bytes[3 * pixel + 2] = (byte) b;
+                break;
+            case OUTPUT_HWC:
+                output.floats[3 * pixel] = output.table[r];
+                output.floats[3 * pixel + 1] = output.table[g];
+                output.floats[3 * pixel + 2] = output.table[b];
+                break;
+            default:
+                output.floats[pixel] = output.table[r];
+                output.floats[output.pixels + pixel] = output.table[g];
+                output.floats[2 * output.pixels + pixel] = output.table[b];
+                break;
+        }
+    }
+}
@@ -1,12 +1,14 @@
 package com.sabine.cameraview.internal;
 
 import android.annotation.SuppressLint;
+import android.content.Context;
 import android.media.AudioFormat;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.util.Range;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -15,10 +17,13 @@ import androidx.annotation.VisibleForTesting;
 import com.sabine.cameraview.CameraLogger;
 import com.sabine.cameraview.size.Size;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Checks the capabilities of device encoders and adjust parameters to ensure
@@ -62,6 +67,12 @@ import java.util.List;
  * are preferred over software ones. It's questionable whether this is good or not. Some vendors
  * might forget to put hardware encoders first in the list, some others might put poor hardware
  * encoders on the bottom of the list on purpose.
+ *
+ * Walking the codec list and probing codecs can take hundreds of milliseconds, so everything
+ * we learn is kept in a {@link EncoderCapabilityIndex}, which is persisted once
+ * {@link #loadCapabilityIndex(Context)} was called. When the index knows the answer, we don't
+ * touch {@link MediaCodecList} at all. In this case, the codec list is checked again in
+ * background once per process, and the index is cleared if it changed.
  */
 public class DeviceEncoders {
 
@@ -73,6 +84,90 @@ public class DeviceEncoders {
     public final static int MODE_RESPECT_ORDER = 0;
     public final static int MODE_PREFER_HARDWARE = 1;
 
+    private final static String INDEX_FILE_NAME = "cameraview_encoders.idx";
+    private final static String INDEX_THREAD_NAME = "EncoderIndex";
+
+    private final static EncoderCapabilityIndex INDEX = new EncoderCapabilityIndex(
+            Build.FINGERPRINT + "/" + Build.VERSION.SDK_INT);
+    private static volatile File sIndexFile;
+    private final static AtomicBoolean sIndexSavePending = new AtomicBoolean(false);
+    private final static AtomicBoolean sIndexRefreshed = new AtomicBoolean(false);
+
+    /**
+     * Loads the persisted capability index in background, and enables saving it.
+     * Recordings started before the index is loaded just don't use it.
+     *
+     * @param context a context
+     */
+    public static void loadCapabilityIndex(@NonNull Context context) {
+        if (sIndexFile != null) return;
+        final File file = new File(context.getCacheDir(), INDEX_FILE_NAME);
+        sIndexFile = file;
+        WorkerHandler.get(INDEX_THREAD_NAME).post(new Runnable() {
+            @Override
+            public void run() {
+                boolean loaded = INDEX.load(file);
+                LOG.i("loadCapabilityIndex:", "loaded:", loaded, "index:", INDEX);
+            }
+        });
+    }
+
+    /**
+     * Returns the capability index shared by all instances.
+     * @return the index
+     */
+    @NonNull
+    @VisibleForTesting
+    static EncoderCapabilityIndex getCapabilityIndex() {
+        return INDEX;
+    }
+
+    private static void saveCapabilityIndex() {
+        final File file = sIndexFile;
+        if (file == null || !INDEX.isDirty()) return;
+        if (!sIndexSavePending.compareAndSet(false, true)) return;
+        WorkerHandler.get(INDEX_THREAD_NAME).post(new Runnable() {
+            @Override
+            public void run() {
+                sIndexSavePending.set(false);
+                try {
+                    INDEX.save(file);
+                } catch (IOException e) {
+                    LOG.w("saveCapabilityIndex:", "failed.", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Checks the device codec list in background, in case it changed since the index was
+     * written without the build changing (e.g. a codec update). Done once per process.
+     */
+    private void refreshCapabilityIndex() {
+        if (!sIndexRefreshed.compareAndSet(false, true)) return;
+        WorkerHandler.get(INDEX_THREAD_NAME).post(new Runnable() {
+            @Override
+            public void run() {
+                List<MediaCodecInfo> encoders = getDeviceEncoders();
+                boolean changed = false;
+                List<String> mimeTypes = new ArrayList<>(INDEX.getMimeTypes());
+                List<List<String>> names = new ArrayList<>();
+                for (String mimeType : mimeTypes) {
+                    List<String> current = getEncoderNames(encoders, mimeType);
+                    names.add(current);
+                    if (!current.equals(INDEX.getEncoders(mimeType))) changed = true;
+                }
+                LOG.i("refreshCapabilityIndex:", "changed:", changed);
+                if (!changed) return;
+                INDEX.clear();
+                for (int i = 0; i < mimeTypes.size(); i++) {
+                    INDEX.putEncoders(mimeTypes.get(i), names.get(i));
+                }
+                saveCapabilityIndex();
+            }
+        });
+    }
+
     /**
      * Exception thrown when trying to find appropriate values
      * for a video encoder.
@@ -93,12 +188,14 @@ public class DeviceEncoders {
         }
     }
 
-    @SuppressWarnings("FieldCanBeLocal")
-    private final MediaCodecInfo mVideoEncoder;
-    @SuppressWarnings("FieldCanBeLocal")
-    private final MediaCodecInfo mAudioEncoder;
-    private final MediaCodecInfo.VideoCapabilities mVideoCapabilities;
-    private final MediaCodecInfo.AudioCapabilities mAudioCapabilities;
+    private final String mVideoType;
+    private final String mAudioType;
+    private final String mVideoEncoder;
+    private final String mAudioEncoder;
+    // Only loaded when the index can't answer.
+    private List<MediaCodecInfo> mDeviceEncoders;
+    private MediaCodecInfo.VideoCapabilities mVideoCapabilities;
+    private MediaCodecInfo.AudioCapabilities mAudioCapabilities;
 
     @SuppressLint("NewApi")
     public DeviceEncoders(int mode,
@@ -106,23 +203,30 @@ public class DeviceEncoders {
                           @NonNull String audioType,
                           int videoOffset,
                           int audioOffset) {
+        mVideoType = videoType;
+        mAudioType = audioType;
         // We could still get a list of MediaCodecInfo for API >= 16, but it seems that the APIs
         // for querying the availability of a specified MediaFormat were only added in 21 anyway.
         if (ENABLED) {
-            List<MediaCodecInfo> encoders = getDeviceEncoders();
-            mVideoEncoder = findDeviceEncoder(encoders, videoType, mode, videoOffset);
-            LOG.i("Enabled. Found video encoder:", mVideoEncoder.getName());
-            mAudioEncoder = findDeviceEncoder(encoders, audioType, mode, audioOffset);
-            LOG.i("Enabled. Found audio encoder:", mAudioEncoder.getName());
-            mVideoCapabilities = mVideoEncoder.getCapabilitiesForType(videoType)
-                    .getVideoCapabilities();
-            mAudioCapabilities = mAudioEncoder.getCapabilitiesForType(audioType)
-                    .getAudioCapabilities();
+            List<String> videoEncoders = INDEX.getEncoders(videoType);
+            List<String> audioEncoders = INDEX.getEncoders(audioType);
+            if (videoEncoders == null || audioEncoders == null) {
+                mDeviceEncoders = getDeviceEncoders();
+                videoEncoders = getEncoderNames(mDeviceEncoders, videoType);
+                audioEncoders = getEncoderNames(mDeviceEncoders, audioType);
+                INDEX.putEncoders(videoType, videoEncoders);
+                INDEX.putEncoders(audioType, audioEncoders);
+                saveCapabilityIndex();
+            } else {
+                refreshCapabilityIndex();
+            }
+            mVideoEncoder = findDeviceEncoder(videoEncoders, videoType, mode, videoOffset);
+            LOG.i("Enabled. Found video encoder:", mVideoEncoder);
+            mAudioEncoder = findDeviceEncoder(audioEncoders, audioType, mode, audioOffset);
+            LOG.i("Enabled. Found audio encoder:", mAudioEncoder);
         } else {
             mVideoEncoder = null;
             mAudioEncoder = null;
-            mVideoCapabilities = null;
-            mAudioCapabilities = null;
             LOG.i("Disabled.");
         }
     }
@@ -162,40 +266,55 @@ public class DeviceEncoders {
     }
 
     /**
-     * Finds the encoder we'll be using, depending on the given mode flag:
-     * - {@link #MODE_RESPECT_ORDER} will just take the first of the list
-     * - {@link #MODE_PREFER_HARDWARE} will prefer hardware encoders
-     * Throws if we find no encoder for this type.
+     * Returns the names of the encoders that support the given type, in vendor order.
      *
      * @param encoders encoders
      * @param mimeType mime type
-     * @param mode mode
-     * @return encoder
+     * @return encoder names
      */
     @SuppressLint("NewApi")
     @NonNull
     @VisibleForTesting
-    MediaCodecInfo findDeviceEncoder(@NonNull List<MediaCodecInfo> encoders,
-                                     @NonNull String mimeType,
-                                     int mode,
-                                     int offset) {
-        ArrayList<MediaCodecInfo> results = new ArrayList<>();
+    static List<String> getEncoderNames(@NonNull List<MediaCodecInfo> encoders,
+                                        @NonNull String mimeType) {
+        ArrayList<String> results = new ArrayList<>();
         for (MediaCodecInfo encoder : encoders) {
             String[] types = encoder.getSupportedTypes();
             for (String type : types) {
                 if (type.equalsIgnoreCase(mimeType)) {
-                    results.add(encoder);
+                    results.add(encoder.getName());
                     break;
                 }
             }
         }
+        return results;
+    }
+
+    /**
+     * Finds the encoder we'll be using, depending on the given mode flag:
+     * - {@link #MODE_RESPECT_ORDER} will just take the first of the list
+     * - {@link #MODE_PREFER_HARDWARE} will prefer hardware encoders
+     * Throws if we find no encoder for this type.
+     *
+     * @param encoders names of the encoders for this type, in vendor order
+     * @param mimeType mime type
+     * @param mode mode
+     * @return encoder name
+     */
+    @NonNull
+    @VisibleForTesting
+    String findDeviceEncoder(@NonNull List<String> encoders,
+                             @NonNull String mimeType,
+                             int mode,
+                             int offset) {
+        ArrayList<String> results = new ArrayList<>(encoders);
         LOG.i("findDeviceEncoder -", "type:", mimeType, "encoders:", results.size());
         if (mode == MODE_PREFER_HARDWARE) {
-            Collections.sort(results, new Comparator<MediaCodecInfo>() {
+            Collections.sort(results, new Comparator<String>() {
                 @Override
-                public int compare(MediaCodecInfo o1, MediaCodecInfo o2) {
-                    boolean hw1 = isHardwareEncoder(o1.getName());
-                    boolean hw2 = isHardwareEncoder(o2.getName());
+                public int compare(String o1, String o2) {
+                    boolean hw1 = isHardwareEncoder(o1);
+                    boolean hw2 = isHardwareEncoder(o2);
                     return Boolean.compare(hw2, hw1);
                 }
             });
@@ -208,6 +327,41 @@ public class DeviceEncoders {
         return results.get(offset);
     }
 
+    @SuppressLint("NewApi")
+    @Nullable
+    private MediaCodecInfo findCodecInfo(@NonNull String name) {
+        if (mDeviceEncoders == null) mDeviceEncoders = getDeviceEncoders();
+        for (MediaCodecInfo info : mDeviceEncoders) {
+            if (info.getName().equals(name)) return info;
+        }
+        // The index is stale. Clear it so that the next instance walks the list.
+        LOG.w("findCodecInfo:", "encoder not found, clearing index.", name);
+        INDEX.clear();
+        return null;
+    }
+
+    @SuppressLint("NewApi")
+    @NonNull
+    private MediaCodecInfo.VideoCapabilities getVideoCapabilities() {
+        if (mVideoCapabilities == null) {
+            MediaCodecInfo info = findCodecInfo(mVideoEncoder);
+            if (info == null) throw new VideoException("Encoder not found: " + mVideoEncoder);
+            mVideoCapabilities = info.getCapabilitiesForType(mVideoType).getVideoCapabilities();
+        }
+        return mVideoCapabilities;
+    }
+
+    @SuppressLint("NewApi")
+    @NonNull
+    private MediaCodecInfo.AudioCapabilities getAudioCapabilities() {
+        if (mAudioCapabilities == null) {
+            MediaCodecInfo info = findCodecInfo(mAudioEncoder);
+            if (info == null) throw new AudioException("Encoder not found: " + mAudioEncoder);
+            mAudioCapabilities = info.getCapabilitiesForType(mAudioType).getAudioCapabilities();
+        }
+        return mAudioCapabilities;
+    }
+
     /**
      * Returns a video size supported by the device encoders.
      * Throws if input width or height are out of the supported boundaries.
@@ -215,72 +369,96 @@ public class DeviceEncoders {
      * @param size input size
      * @return adjusted size
      */
-    @SuppressLint("NewApi")
     @NonNull
     public Size getSupportedVideoSize(@NonNull Size size) {
         if (!ENABLED) return size;
+        String key = "size/" + mVideoEncoder + "/" + mVideoType + "/" + size;
+        Long cached = INDEX.getResult(key);
+        if (cached != null) {
+            if (cached == EncoderCapabilityIndex.FAILED) {
+                throw new VideoException("Size not supported (cached). Desired:" + size);
+            }
+            return new Size((int) (cached >> 32), (int) (cached & 0xFFFFFFFFL));
+        }
+        try {
+            Size result = computeSupportedVideoSize(size);
+            INDEX.putResult(key, ((long) result.getWidth() << 32) | result.getHeight());
+            return result;
+        } catch (VideoException e) {
+            INDEX.putResult(key, EncoderCapabilityIndex.FAILED);
+            throw e;
+        } finally {
+            saveCapabilityIndex();
+        }
+    }
+
+    @SuppressLint("NewApi")
+    @NonNull
+    private Size computeSupportedVideoSize(@NonNull Size size) {
+        MediaCodecInfo.VideoCapabilities capabilities = getVideoCapabilities();
         int width = size.getWidth();
         int height = size.getHeight();
         double aspect = (double) width / height;
         LOG.i("getSupportedVideoSize - started. width:", width, "height:", height);
 
         // If width is too large, scale down, but keep aspect ratio.
-        if (mVideoCapabilities.getSupportedWidths().getUpper() < width) {
-            width = mVideoCapabilities.getSupportedWidths().getUpper();
+        if (capabilities.getSupportedWidths().getUpper() < width) {
+            width = capabilities.getSupportedWidths().getUpper();
             height = (int) Math.round(width / aspect);
             LOG.i("getSupportedVideoSize - exceeds maxWidth! width:", width,
                     "height:", height);
         }
 
         // If height is too large, scale down, but keep aspect ratio.
-        if (mVideoCapabilities.getSupportedHeights().getUpper() < height) {
-            height = mVideoCapabilities.getSupportedHeights().getUpper();
+        if (capabilities.getSupportedHeights().getUpper() < height) {
+            height = capabilities.getSupportedHeights().getUpper();
             width = (int) Math.round(aspect * height);
             LOG.i("getSupportedVideoSize - exceeds maxHeight! width:", width,
                     "height:", height);
         }
 
         // Adjust the alignment.
-        while (width % mVideoCapabilities.getWidthAlignment() != 0) width--;
-        while (height % mVideoCapabilities.getHeightAlignment() != 0) height--;
+        while (width % capabilities.getWidthAlignment() != 0) width--;
+        while (height % capabilities.getHeightAlignment() != 0) height--;
         LOG.i("getSupportedVideoSize - aligned. width:", width, "height:", height);
 
         // It's still possible that we're BELOW the lower.
-        if (!mVideoCapabilities.getSupportedWidths().contains(width)) {
+        if (!capabilities.getSupportedWidths().contains(width)) {
             throw new VideoException("Width not supported after adjustment." +
                     " Desired:" + width +
-                    " Range:" + mVideoCapabilities.getSupportedWidths());
+                    " Range:" + capabilities.getSupportedWidths());
         }
-        if (!mVideoCapabilities.getSupportedHeights().contains(height)) {
+        if (!capabilities.getSupportedHeights().contains(height)) {
             throw new VideoException("Height not supported after adjustment." +
                     " Desired:" + height +
-                    " Range:" + mVideoCapabilities.getSupportedHeights());
+                    " Range:" + capabilities.getSupportedHeights());
         }
 
         // We cannot change the aspect ratio, but the max block count might also be the
         // issue. Try to find a width that contains a height that would accept our AR.
         try {
-            if (!mVideoCapabilities.getSupportedHeightsFor(width).contains(height)) {
+            if (!capabilities.getSupportedHeightsFor(width).contains(height)) {
                 int candidateWidth = width;
-                int minWidth = mVideoCapabilities.getSupportedWidths().getLower();
-                int widthAlignment = mVideoCapabilities.getWidthAlignment();
+                int minWidth = capabilities.getSupportedWidths().getLower();
+                int widthAlignment = capabilities.getWidthAlignment();
                 while (candidateWidth >= minWidth) {
                     // Reduce by 32 and realign just in case, then check if our AR is now
                     // supported. If it is, restart from scratch to go through the other checks.
                     candidateWidth -= 32;
                     while (candidateWidth % widthAlignment != 0) candidateWidth--;
                     int candidateHeight = (int) Math.round(candidateWidth / aspect);
-                    if (mVideoCapabilities.getSupportedHeightsFor(candidateWidth)
+                    if (capabilities.getSupportedHeightsFor(candidateWidth)
                             .contains(candidateHeight)) {
                         LOG.w("getSupportedVideoSize - restarting with smaller size.");
-                        return getSupportedVideoSize(new Size(candidateWidth, candidateHeight));
+                        return computeSupportedVideoSize(
+                                new Size(candidateWidth, candidateHeight));
                     }
                 }
             }
         } catch (IllegalArgumentException ignore) {}
 
         // It's still possible that we're unsupported for other reasons.
-        if (!mVideoCapabilities.isSizeSupported(width, height)) {
+        if (!capabilities.isSizeSupported(width, height)) {
             throw new VideoException("Size not supported for unknown reason." +
                     " Might be an aspect ratio issue." +
                     " Desired size:" + new Size(width, height));
@@ -298,7 +476,14 @@ public class DeviceEncoders {
     @SuppressLint("NewApi")
     public int getSupportedVideoBitRate(int bitRate) {
         if (!ENABLED) return bitRate;
-        int newBitRate = mVideoCapabilities.getBitrateRange().clamp(bitRate);
+        int[] range = INDEX.getBitRateRange(mVideoEncoder, mVideoType);
+        if (range == null) {
+            Range<Integer> bitRates = getVideoCapabilities().getBitrateRange();
+            range = new int[]{bitRates.getLower(), bitRates.getUpper()};
+            INDEX.putBitRateRange(mVideoEncoder, mVideoType, range[0], range[1]);
+            saveCapabilityIndex();
+        }
+        int newBitRate = Math.max(range[0], Math.min(range[1], bitRate));
         LOG.i("getSupportedVideoBitRate -",
                 "inputRate:", bitRate,
                 "adjustedRate:", newBitRate);
@@ -315,9 +500,18 @@ public class DeviceEncoders {
     @SuppressLint("NewApi")
     public int getSupportedVideoFrameRate(@NonNull Size size, int frameRate) {
         if (!ENABLED) return frameRate;
-        int newFrameRate = (int) (double) mVideoCapabilities
-                .getSupportedFrameRatesFor(size.getWidth(), size.getHeight())
-                .clamp((double) frameRate);
+        String key = "fps/" + mVideoEncoder + "/" + mVideoType + "/" + size + "/" + frameRate;
+        Long cached = INDEX.getResult(key);
+        int newFrameRate;
+        if (cached != null) {
+            newFrameRate = (int) (long) cached;
+        } else {
+            newFrameRate = (int) (double) getVideoCapabilities()
+                    .getSupportedFrameRatesFor(size.getWidth(), size.getHeight())
+                    .clamp((double) frameRate);
+            INDEX.putResult(key, newFrameRate);
+            saveCapabilityIndex();
+        }
         LOG.i("getSupportedVideoFrameRate -",
                 "inputRate:", frameRate,
                 "adjustedRate:", newFrameRate);
@@ -334,7 +528,14 @@ public class DeviceEncoders {
     @SuppressLint("NewApi")
     public int getSupportedAudioBitRate(int bitRate) {
         if (!ENABLED) return bitRate;
-        int newBitRate = mAudioCapabilities.getBitrateRange().clamp(bitRate);
+        int[] range = INDEX.getBitRateRange(mAudioEncoder, mAudioType);
+        if (range == null) {
+            Range<Integer> bitRates = getAudioCapabilities().getBitrateRange();
+            range = new int[]{bitRates.getLower(), bitRates.getUpper()};
+            INDEX.putBitRateRange(mAudioEncoder, mAudioType, range[0], range[1]);
+            saveCapabilityIndex();
+        }
+        int newBitRate = Math.max(range[0], Math.min(range[1], bitRate));
         LOG.i("getSupportedAudioBitRate -",
                 "inputRate:", bitRate,
                 "adjustedRate:", newBitRate);
@@ -349,28 +550,18 @@ public class DeviceEncoders {
      * Returns the name of the video encoder if we were able to determine one.
      * @return encoder name
      */
-    @SuppressLint("NewApi")
     @Nullable
     public String getVideoEncoder() {
-        if (mVideoEncoder != null) {
-            return mVideoEncoder.getName();
-        } else {
-            return null;
-        }
+        return mVideoEncoder;
     }
 
     /**
      * Returns the name of the audio encoder if we were able to determine one.
      * @return encoder name
      */
-    @SuppressLint("NewApi")
     @Nullable
     public String getAudioEncoder() {
-        if (mAudioEncoder != null) {
-            return mAudioEncoder.getName();
-        } else {
-            return null;
-        }
+        return mAudioEncoder;
     }
 
     @SuppressLint("NewApi")
@@ -379,6 +570,9 @@ public class DeviceEncoders {
                                   int frameRate,
                                   int bitRate) {
         if (mVideoEncoder != null) {
+            String key = "video/" + mVideoEncoder + "/" + mimeType + "/" + size
+                    + "/" + frameRate + "/" + bitRate;
+            if (INDEX.isConfigured(key)) return;
             MediaCodec codec = null;
             try {
                 MediaFormat format = MediaFormat.createVideoFormat(mimeType, size.getWidth(),
@@ -388,9 +582,11 @@ public class DeviceEncoders {
                 format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
                 format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
                 format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
-                codec = MediaCodec.createByCodecName(mVideoEncoder.getName());
+                codec = MediaCodec.createByCodecName(mVideoEncoder);
                 codec.configure(format, null, null,
                         MediaCodec.CONFIGURE_FLAG_ENCODE);
+                INDEX.putConfigured(key);
+                saveCapabilityIndex();
             } catch (Exception e) {
                 throw new VideoException("Failed to configure video codec: " + e.getMessage());
             } finally {
@@ -409,6 +605,9 @@ public class DeviceEncoders {
                                   int sampleRate,
                                   int channels) {
         if (mAudioEncoder != null) {
+            String key = "audio/" + mAudioEncoder + "/" + mimeType + "/" + bitRate
+                    + "/" + sampleRate + "/" + channels;
+            if (INDEX.isConfigured(key)) return;
             MediaCodec codec = null;
             try {
                 final MediaFormat format = MediaFormat.createAudioFormat(mimeType, sampleRate,
@@ -418,9 +617,11 @@ public class DeviceEncoders {
                 format.setInteger(MediaFormat.KEY_CHANNEL_MASK, channelMask);
                 format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
 
-                codec = MediaCodec.createByCodecName(mAudioEncoder.getName());
+                codec = MediaCodec.createByCodecName(mAudioEncoder);
                 codec.configure(format, null, null,
                         MediaCodec.CONFIGURE_FLAG_ENCODE);
+                INDEX.putConfigured(key);
+                saveCapabilityIndex();
             } catch (Exception e) {
                 throw new AudioException("Failed to configure video audio: " + e.getMessage());
             } finally {
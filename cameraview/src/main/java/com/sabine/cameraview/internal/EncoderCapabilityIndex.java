@@ -0,0 +1,361 @@
+package com.sabine.cameraview.internal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.sabine.cameraview.CameraLogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent index of what {@link DeviceEncoders} learned about the device encoders,
+ * so that the next recordings can skip walking the codec list and probing codecs.
+ *
+ * The index contains:
+ * - the encoder names for each mime type, in the vendor order
+ * - the bit rate range of each encoder
+ * - the results of size and frame rate adjustments, keyed by their input
+ * - the configure calls that succeeded. Failures are not kept, since they might be
+ *   caused by a codec being temporarily busy.
+ *
+ * The index is only valid for the device build it was created on. When loading a file
+ * whose key (device fingerprint and OS build) is different, its content is discarded.
+ * Files are written with a checksum and replaced atomically, so a corrupted file is
+ * simply ignored.
+ *
+ * All methods are thread safe.
+ */
+public class EncoderCapabilityIndex {
+
+    private final static String TAG = EncoderCapabilityIndex.class.getSimpleName();
+    private final static CameraLogger LOG = CameraLogger.create(TAG);
+
+    private final static int MAGIC = 0x43564549; // CVEI
+    private final static int VERSION = 1;
+
+    /**
+     * The value of a cached result that failed.
+     */
+    public final static long FAILED = Long.MIN_VALUE;
+
+    private final String mKey;
+    private final Map<String, List<String>> mEncoders = new HashMap<>();
+    private final Map<String, int[]> mBitRateRanges = new HashMap<>();
+    private final Map<String, Long> mResults = new HashMap<>();
+    private final Set<String> mConfigured = new HashSet<>();
+    private final Object mLock = new Object();
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    /**
+     * Creates an empty index.
+     * @param key identifies the device build, e.g. fingerprint and SDK version
+     */
+    public EncoderCapabilityIndex(@NonNull String key) {
+        mKey = key;
+    }
+
+    /**
+     * Returns the encoder names for the given mime type, or null if unknown.
+     * @param mimeType the mime type
+     * @return encoder names, in vendor order
+     */
+    @Nullable
+    public List<String> getEncoders(@NonNull String mimeType) {
+        synchronized (mLock) {
+            return mEncoders.get(mimeType);
+        }
+    }
+
+    public void putEncoders(@NonNull String mimeType, @NonNull List<String> names) {
+        synchronized (mLock) {
+            List<String> previous = mEncoders.put(mimeType,
+                    Collections.unmodifiableList(new ArrayList<>(names)));
+            if (!names.equals(previous)) mDirty = true;
+        }
+    }
+
+    /**
+     * Returns the mime types whose encoders are known.
+     * @return the mime types
+     */
+    @NonNull
+    public Set<String> getMimeTypes() {
+        synchronized (mLock) {
+            return new HashSet<>(mEncoders.keySet());
+        }
+    }
+
+    /**
+     * Returns the bit rate range of an encoder, as a {lower, upper} array, or null.
+     * @param encoder the encoder name
+     * @param mimeType the mime type
+     * @return the range or null
+     */
+    @Nullable
+    public int[] getBitRateRange(@NonNull String encoder, @NonNull String mimeType) {
+        synchronized (mLock) {
+            int[] range = mBitRateRanges.get(encoder + "/" + mimeType);
+            return range == null ? null : range.clone();
+        }
+    }
+
+    public void putBitRateRange(@NonNull String encoder, @NonNull String mimeType,
+                                int lower, int upper) {
+        synchronized (mLock) {
+            mBitRateRanges.put(encoder + "/" + mimeType, new int[]{lower, upper});
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Returns a cached result, {@link #FAILED}, or null if there's none.
+     * @param key the query key
+     * @return the result
+     */
+    @Nullable
+    public Long getResult(@NonNull String key) {
+        synchronized (mLock) {
+            return mResults.get(key);
+        }
+    }
+
+    public void putResult(@NonNull String key, long result) {
+        synchronized (mLock) {
+            mResults.put(key, result);
+            mDirty = true;
+        }
+    }
+
+    public boolean isConfigured(@NonNull String key) {
+        synchronized (mLock) {
+            return mConfigured.contains(key);
+        }
+    }
+
+    public void putConfigured(@NonNull String key) {
+        synchronized (mLock) {
+            if (mConfigured.add(key)) mDirty = true;
+        }
+    }
+
+    /**
+     * Removes everything, for example because the encoders list changed.
+     */
+    public void clear() {
+        synchronized (mLock) {
+            mEncoders.clear();
+            mBitRateRanges.clear();
+            mResults.clear();
+            mConfigured.clear();
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Whether the content came from a file that matched our key.
+     * @return true if loaded
+     */
+    public boolean isLoaded() {
+        synchronized (mLock) {
+            return mLoaded;
+        }
+    }
+
+    /**
+     * Whether the content has changed since it was last loaded or saved.
+     * @return true if dirty
+     */
+    public boolean isDirty() {
+        synchronized (mLock) {
+            return mDirty;
+        }
+    }
+
+    public int size() {
+        synchronized (mLock) {
+            return mEncoders.size() + mBitRateRanges.size() + mResults.size()
+                    + mConfigured.size();
+        }
+    }
+
+    /**
+     * Reads the given file, replacing the current content. If the file does not exist,
+     * is corrupted or was written for another device build, nothing changes.
+     *
+     * @param file the file
+     * @return true if the content was loaded
+     */
+    public boolean load(@NonNull File file) {
+        if (!file.exists()) return false;
+        byte[] bytes;
+        try {
+            bytes = readFully(file);
+        } catch (IOException e) {
+            LOG.w("load:", "could not read", file, e);
+            return false;
+        }
+        if (bytes.length < 4) return false;
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        int expected = ((bytes[bytes.length - 4] & 0xFF) << 24)
+                | ((bytes[bytes.length - 3] & 0xFF) << 16)
+                | ((bytes[bytes.length - 2] & 0xFF) << 8)
+                | (bytes[bytes.length - 1] & 0xFF);
+        if ((int) crc.getValue() != expected) {
+            LOG.w("load:", "checksum mismatch, ignoring", file);
+            return false;
+        }
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(bytes, 0, bytes.length - 4));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return false;
+            if (!mKey.equals(in.readUTF())) {
+                LOG.i("load:", "index was created for another build, ignoring.");
+                return false;
+            }
+            Map<String, List<String>> encoders = new HashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                String mimeType = in.readUTF();
+                List<String> names = new ArrayList<>();
+                for (int j = in.readShort(); j > 0; j--) names.add(in.readUTF());
+                encoders.put(mimeType, Collections.unmodifiableList(names));
+            }
+            Map<String, int[]> ranges = new HashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                ranges.put(in.readUTF(), new int[]{in.readInt(), in.readInt()});
+            }
+            Map<String, Long> results = new HashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                results.put(in.readUTF(), in.readLong());
+            }
+            Set<String> configured = new HashSet<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                configured.add(in.readUTF());
+            }
+            synchronized (mLock) {
+                mEncoders.clear();
+                mEncoders.putAll(encoders);
+                mBitRateRanges.clear();
+                mBitRateRanges.putAll(ranges);
+                mResults.clear();
+                mResults.putAll(results);
+                mConfigured.clear();
+                mConfigured.addAll(configured);
+                mLoaded = true;
+                mDirty = false;
+            }
+            return true;
+        } catch (IOException e) {
+            LOG.w("load:", "malformed index, ignoring", file, e);
+            return false;
+        }
+    }
+
+    /**
+     * Writes the content to the given file. The file is replaced atomically.
+     *
+     * @param file the file
+     * @throws IOException if writing fails
+     */
+    public void save(@NonNull File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        DataOutputStream out = new DataOutputStream(bytes);
+        synchronized (mLock) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(mKey);
+            out.writeInt(mEncoders.size());
+            for (Map.Entry<String, List<String>> entry : mEncoders.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeShort(entry.getValue().size());
+                for (String name : entry.getValue()) out.writeUTF(name);
+            }
+            out.writeInt(mBitRateRanges.size());
+            for (Map.Entry<String, int[]> entry : mBitRateRanges.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue()[0]);
+                out.writeInt(entry.getValue()[1]);
+            }
+            out.writeInt(mResults.size());
+            for (Map.Entry<String, Long> entry : mResults.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.writeInt(mConfigured.size());
+            for (String key : mConfigured) out.writeUTF(key);
+            mDirty = false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream stream = new FileOutputStream(temp);
+            try {
+                BufferedOutputStream buffered = new BufferedOutputStream(stream);
+                bytes.writeTo(buffered);
+                buffered.flush();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+            if (!temp.renameTo(file)) {
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+                throw new IOException("Could not replace " + file);
+            }
+        } catch (IOException e) {
+            synchronized (mLock) {
+                mDirty = true;
+            }
+            throw e;
+        }
+    }
+
+    @NonNull
+    private static byte[] readFully(@NonNull File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "EncoderCapabilityIndex{encoders=" + mEncoders.size()
+                    + ", ranges=" + mBitRateRanges.size()
+                    + ", results=" + mResults.size()
+                    + ", configured=" + mConfigured.size()
+                    + ", loaded=" + mLoaded + "}";
+        }
+    }
+}
@@ -6,7 +6,7 @@ import androidx.annotation.Nullable;
 
 import com.sabine.cameraview.CameraLogger;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayDeque;
 
 /**
  * Base class for thread-safe pools of recycleable objects.
@@ -19,7 +19,8 @@ public class Pool<T> {
 
     private int maxPoolSize;
     private int activeCount;
-    private LinkedBlockingQueue<T> queue;
+    // Guarded by lock. Unlike a LinkedBlockingQueue, this does not allocate on recycle().
+    private ArrayDeque<T> queue;
     private Factory<T> factory;
     private final Object lock = new Object();
 
@@ -38,7 +39,7 @@ public class Pool<T> {
      */
     public Pool(int maxPoolSize, @NonNull Factory<T> factory) {
         this.maxPoolSize = maxPoolSize;
-        this.queue = new LinkedBlockingQueue<>(maxPoolSize);
+        this.queue = new ArrayDeque<>();
         this.factory = factory;
     }
 
@@ -97,7 +98,7 @@ public class Pool<T> {
                         "recycled were not coming from this pool, or some item was recycled " +
                         "more than once. " + this);
             }
-            if (!queue.offer(item)) {
+            if (queue.size() >= maxPoolSize || !queue.offer(item)) {
                 throw new IllegalStateException("Trying to recycle an item while the queue " +
                         "is full. This means that this or some previous items being recycled " +
                         "were not coming from this pool, or some item was recycled " +
@@ -2,6 +2,7 @@ package com.sabine.cameraview.video;
 
 import android.media.CamcorderProfile;
 import android.media.MediaRecorder;
+import android.os.Build;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -104,6 +105,14 @@ public abstract class FullVideoRecorder extends VideoRecorder {
         } else if (stub.videoCodec == VideoCodec.H_263) {
             mProfile.videoCodec = MediaRecorder.VideoEncoder.H263;
             mProfile.fileFormat = MediaRecorder.OutputFormat.MPEG_4; // should work
+        } else if (stub.videoCodec == VideoCodec.H_265) {
+            // MediaRecorder can only write H.265 from API 24.
+            mProfile.videoCodec = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                    ? MediaRecorder.VideoEncoder.HEVC : MediaRecorder.VideoEncoder.H264;
+            mProfile.fileFormat = MediaRecorder.OutputFormat.MPEG_4;
+            if (mProfile.videoCodec == MediaRecorder.VideoEncoder.H264) {
+                stub.videoCodec = VideoCodec.H_264;
+            }
         }
         mMediaRecorder.setOutputFormat(mProfile.fileFormat);
 
@@ -161,6 +170,14 @@ public abstract class FullVideoRecorder extends VideoRecorder {
                     encoders = new DeviceEncoders(DeviceEncoders.MODE_RESPECT_ORDER,
                             videoType, audioType, videoEncoderOffset, audioEncoderOffset);
                 } catch (RuntimeException e) {
+                    if (stub.videoCodec == VideoCodec.H_265) {
+                        LOG.w("prepareMediaRecorder:", "Could not use H.265 encoders.",
+                                "Trying again with H.264.");
+                        mMediaRecorder.release();
+                        if (flip) stub.size = stub.size.flip();
+                        stub.videoCodec = VideoCodec.H_264;
+                        return prepareMediaRecorder(stub, true);
+                    }
                     LOG.w("prepareMediaRecorder:", "Could not respect encoders parameters.",
                             "Trying again without checking encoders.");
                     return prepareMediaRecorder(stub, false);
@@ -229,6 +246,14 @@ public abstract class FullVideoRecorder extends VideoRecorder {
         }
 
         mMediaRecorder.setOrientationHint(stub.rotation);
+        // Increase the max size, so that we get MAX_FILESIZE_APPROACHING (see below)
+        // before the actual limit.
+        if (stub.maxSize > 0) {
+            mMediaRecorder.setMaxFileSize(Math.round(stub.maxSize / 0.9D));
+        }
+        if (stub.maxDuration > 0) {
+            mMediaRecorder.setMaxDuration(stub.maxDuration);
+        }
         // When using MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED, the recorder might have stopped
         // before calling it. But this creates issues on Camera2 Legacy devices - they need a
         // callback BEFORE the recorder stops (see Camera2Engine). For this reason, we increase
@@ -0,0 +1,194 @@
+package com.sabine.cameraview.video;
+
+import android.opengl.EGLContext;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import com.sabine.cameraview.CameraLogger;
+import com.sabine.cameraview.controls.VideoCodec;
+import com.sabine.cameraview.internal.DeviceEncoders;
+import com.sabine.cameraview.size.Size;
+import com.sabine.cameraview.video.encoding.AudioConfig;
+import com.sabine.cameraview.video.encoding.AudioMediaEncoder;
+import com.sabine.cameraview.video.encoding.TextureConfig;
+import com.sabine.cameraview.video.encoding.TextureMediaEncoder;
+
+/**
+ * Selects the device encoders for a video snapshot and holds the configs
+ * and the encoders created for them.
+ *
+ * This is shared by {@link SnapshotVideoRecorder}, which does it when recording starts,
+ * and {@link SnapshotVideoPrewarmer}, which does it ahead of time.
+ */
+@RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+class SnapshotEncoders {
+
+    private static final String TAG = SnapshotEncoders.class.getSimpleName();
+    private static final CameraLogger LOG = CameraLogger.create(TAG);
+
+    private static final int DEFAULT_VIDEO_FRAMERATE = 30;
+    private static final int DEFAULT_AUDIO_BITRATE = 128000;
+    private static final int AUDIO_CHANNELS = 2;
+
+    // https://stackoverflow.com/a/5220554/4288782
+    // Assuming low motion, we don't want to put this too high for default usage,
+    // advanced users are still free to change this for each video.
+    private static int estimateVideoBitRate(@NonNull Size size, int frameRate) {
+        return (int) (0.07F * 1F * size.getWidth() * size.getHeight() * frameRate);
+    }
+
+    final Size size;
+    final VideoCodec videoCodec;
+    final VideoCodec actualVideoCodec; // videoCodec, or the one we fell back to
+    final int videoFrameRate;
+    final int videoBitRate;
+    final int audioBitRate;
+    final TextureConfig videoConfig = new TextureConfig();
+    final AudioConfig audioConfig = new AudioConfig();
+    TextureMediaEncoder videoEncoder;
+    AudioMediaEncoder audioEncoder;
+
+    /**
+     * Selects the encoders for the given values, which can be zero to use defaults.
+     * The video config is not complete: texture, EGL context and rotation
+     * must be set before calling {@link #createEncoders()}.
+     */
+    SnapshotEncoders(@NonNull Size size, @NonNull VideoCodec videoCodec,
+                     int videoBitRate, int videoFrameRate, int audioBitRate) {
+        this.size = size;
+        this.videoCodec = videoCodec;
+        this.videoFrameRate = videoFrameRate > 0 ? videoFrameRate : DEFAULT_VIDEO_FRAMERATE;
+        this.videoBitRate = videoBitRate > 0 ? videoBitRate
+                : estimateVideoBitRate(size, this.videoFrameRate);
+        this.audioBitRate = audioBitRate > 0 ? audioBitRate : DEFAULT_AUDIO_BITRATE;
+
+        // Define mime types. H.265 falls back to H.264 when it can't be used.
+        String[] videoTypes;
+        switch (videoCodec) {
+            case H_263: videoTypes = new String[]{ "video/3gpp" }; break; // MediaFormat.MIMETYPE_VIDEO_H263;
+            case H_265: videoTypes = new String[]{ "video/hevc", "video/avc" }; break; // MediaFormat.MIMETYPE_VIDEO_HEVC
+            case H_264:
+            case DEVICE_DEFAULT:
+            default: videoTypes = new String[]{ "video/avc" }; break; // MediaFormat.MIMETYPE_VIDEO_AVC:
+        }
+        String audioType = "audio/mp4a-latm";
+
+        // Check the availability of values
+        String videoType = videoTypes[0];
+        DeviceEncoders deviceEncoders = null;
+        for (int i = 0; i < videoTypes.length; i++) {
+            videoType = videoTypes[i];
+            deviceEncoders = findDeviceEncoders(videoType, audioType);
+            if (deviceEncoders != null || i == videoTypes.length - 1) break;
+            LOG.w("Could not find an encoder for", videoType, "- trying", videoTypes[i + 1]);
+        }
+        this.actualVideoCodec = videoType.equals("video/hevc") ? VideoCodec.H_265
+                : videoType.equals("video/3gpp") ? VideoCodec.H_263
+                : videoCodec == VideoCodec.DEVICE_DEFAULT ? videoCodec : VideoCodec.H_264;
+
+        // Video
+        videoConfig.width = size.getWidth();
+        videoConfig.height = size.getHeight();
+        videoConfig.bitRate = this.videoBitRate;
+        videoConfig.frameRate = this.videoFrameRate;
+        videoConfig.mimeType = videoType;
+        videoConfig.encoder = deviceEncoders != null ? deviceEncoders.getVideoEncoder() : null;
+        // Audio
+        audioConfig.bitRate = this.audioBitRate;
+        audioConfig.channels = AUDIO_CHANNELS;
+        audioConfig.encoder = deviceEncoders != null ? deviceEncoders.getAudioEncoder() : null;
+    }
+
+    /**
+     * Finds encoders that accept our values for the given types, or returns null
+     * if none of the device encoders for the video type does.
+     */
+    @Nullable
+    private DeviceEncoders findDeviceEncoders(@NonNull String videoType,
+                                              @NonNull String audioType) {
+        int videoEncoderOffset = 0;
+        int audioEncoderOffset = 0;
+        while (true) {
+            LOG.i("Checking DeviceEncoders...",
+                    "videoType:", videoType,
+                    "videoOffset:", videoEncoderOffset,
+                    "audioOffset:", audioEncoderOffset);
+            try {
+                new DeviceEncoders(DeviceEncoders.MODE_RESPECT_ORDER,
+                        videoType, audioType, videoEncoderOffset, audioEncoderOffset);
+            } catch (RuntimeException e) {
+                LOG.w("Could not respect encoders parameters.", e.getMessage());
+                return null;
+            }
+            DeviceEncoders deviceEncoders = new DeviceEncoders(DeviceEncoders.MODE_PREFER_HARDWARE,
+                    videoType, audioType, videoEncoderOffset, audioEncoderOffset);
+            try {
+                Size newVideoSize = deviceEncoders.getSupportedVideoSize(size);
+                int newVideoBitRate = deviceEncoders.getSupportedVideoBitRate(this.videoBitRate);
+                int newVideoFrameRate = deviceEncoders.getSupportedVideoFrameRate(newVideoSize,
+                        this.videoFrameRate);
+                deviceEncoders.tryConfigureVideo(videoType, newVideoSize, newVideoFrameRate,
+                        newVideoBitRate);
+                int newAudioBitRate = deviceEncoders.getSupportedAudioBitRate(this.audioBitRate);
+                deviceEncoders.tryConfigureAudio(audioType, newAudioBitRate,
+                        audioConfig.samplingFrequency, AUDIO_CHANNELS);
+                return deviceEncoders;
+            } catch (DeviceEncoders.VideoException videoException) {
+                LOG.i("Got VideoException:", videoException.getMessage());
+                videoEncoderOffset++;
+            } catch (DeviceEncoders.AudioException audioException) {
+                LOG.i("Got AudioException:", audioException.getMessage());
+                audioEncoderOffset++;
+            }
+        }
+    }
+
+    /**
+     * Creates the encoders from the current configs.
+     */
+    void createEncoders() {
+        audioEncoder = new AudioMediaEncoder(audioConfig);
+        videoEncoder = new TextureMediaEncoder(videoConfig, audioEncoder);
+    }
+
+    /**
+     * Creates the video encoder only, for an additional output that writes
+     * a copy of the audio of the main encoders.
+     */
+    void createVideoEncoder() {
+        videoEncoder = new TextureMediaEncoder(videoConfig, null);
+    }
+
+    /**
+     * Whether these encoders can be used for a snapshot with the given values.
+     * Values are the ones passed to the constructor, before defaults.
+     */
+    boolean matches(@NonNull Size size, @NonNull VideoCodec videoCodec,
+                    int videoBitRate, int videoFrameRate, int audioBitRate,
+                    int textureId, boolean frontIsFirst, @Nullable EGLContext eglContext) {
+        int frameRate = videoFrameRate > 0 ? videoFrameRate : DEFAULT_VIDEO_FRAMERATE;
+        return this.size.equals(size)
+                && this.videoCodec == videoCodec
+                && this.videoFrameRate == frameRate
+                && this.videoBitRate == (videoBitRate > 0 ? videoBitRate
+                        : estimateVideoBitRate(size, frameRate))
+                && this.audioBitRate == (audioBitRate > 0 ? audioBitRate : DEFAULT_AUDIO_BITRATE)
+                && videoConfig.textureId == textureId
+                && videoConfig.frontIsFirst == frontIsFirst
+                && videoConfig.eglContext != null
+                && videoConfig.eglContext.equals(eglContext);
+    }
+
+    /**
+     * Releases encoders that were pre-warmed but not used.
+     */
+    void release() {
+        if (videoEncoder != null) videoEncoder.release();
+        if (audioEncoder != null) audioEncoder.release();
+        videoEncoder = null;
+        audioEncoder = null;
+    }
+}
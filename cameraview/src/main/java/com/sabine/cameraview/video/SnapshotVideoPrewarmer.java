@@ -0,0 +1,236 @@
+package com.sabine.cameraview.video;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import com.otaliastudios.opengl.texture.GlTexture;
+import com.sabine.cameraview.CameraLogger;
+import com.sabine.cameraview.controls.VideoCodec;
+import com.sabine.cameraview.filter.Filter;
+import com.sabine.cameraview.preview.GlCameraPreview;
+import com.sabine.cameraview.preview.RendererFrameCallback;
+import com.sabine.cameraview.preview.RendererThread;
+import com.sabine.cameraview.size.Size;
+
+/**
+ * Keeps the encoders of the next video snapshot prepared while the preview runs:
+ * codecs are created, configured and started, and the EGL window surface is bound
+ * to the video encoder input. When the {@link SnapshotVideoRecorder} starts with the
+ * same values, it takes them and only has to open the output.
+ *
+ * Encoders are prepared with the first preview frame, because we need the renderer
+ * EGL context and texture. If the texture is created again, they are released and
+ * prepared again with the next frame.
+ *
+ * Prepared encoders hold hardware codecs, so {@link #release()} must be called
+ * when they are not needed anymore, for example because some value changed or
+ * the system is low on memory.
+ */
+@RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class SnapshotVideoPrewarmer implements RendererFrameCallback {
+
+    private static final String TAG = SnapshotVideoPrewarmer.class.getSimpleName();
+    private static final CameraLogger LOG = CameraLogger.create(TAG);
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_PREPARING = 1;
+    private static final int STATE_PREPARED = 2;
+    private static final int STATE_RELEASED = 3;
+
+    // Codecs that fail to prepare usually keep failing: stop trying after this.
+    private static final int MAX_FAILURES = 3;
+
+    private final GlCameraPreview mPreview;
+    private final Size mSize;
+    private final VideoCodec mVideoCodec;
+    private final int mVideoBitRate;
+    private final int mVideoFrameRate;
+    private final int mAudioBitRate;
+    private final Object mLock = new Object();
+
+    private int mState = STATE_IDLE;
+    private int mTextureId;
+    private boolean mFrontIsFirst;
+    private int mGeneration;
+    private SnapshotEncoders mEncoders;
+    private int mFailures;
+
+    /**
+     * Creates a new pre-warmer and starts listening to the preview frames.
+     * Values can be zero to use the recorder defaults.
+     *
+     * @param preview the preview
+     * @param size the video size
+     * @param videoCodec the video codec
+     * @param videoBitRate the video bit rate
+     * @param videoFrameRate the video frame rate
+     * @param audioBitRate the audio bit rate
+     */
+    public SnapshotVideoPrewarmer(@NonNull GlCameraPreview preview,
+                                  @NonNull Size size,
+                                  @NonNull VideoCodec videoCodec,
+                                  int videoBitRate,
+                                  int videoFrameRate,
+                                  int audioBitRate) {
+        mPreview = preview;
+        mSize = size;
+        mVideoCodec = videoCodec;
+        mVideoBitRate = videoBitRate;
+        mVideoFrameRate = videoFrameRate;
+        mAudioBitRate = audioBitRate;
+        mPreview.addRendererFrameCallback(this);
+    }
+
+    /**
+     * Whether encoders are prepared and waiting to be taken.
+     * @return true if prepared
+     */
+    public boolean isPrepared() {
+        synchronized (mLock) {
+            return mState == STATE_PREPARED;
+        }
+    }
+
+    /**
+     * Stops listening to the preview and releases the prepared encoders, if any.
+     * Encoders that are still being prepared are released as soon as they are.
+     */
+    public void release() {
+        mPreview.removeRendererFrameCallback(this);
+        SnapshotEncoders encoders;
+        synchronized (mLock) {
+            if (mState == STATE_RELEASED) return;
+            encoders = mState == STATE_PREPARED ? mEncoders : null;
+            mEncoders = null;
+            mState = STATE_RELEASED;
+        }
+        if (encoders != null) {
+            LOG.i("release:", "releasing the prepared encoders.");
+            encoders.release();
+        }
+    }
+
+    /**
+     * Returns the prepared encoders if they match the given values, then stops
+     * listening to the preview. If they don't match, they are released.
+     * Either way, this pre-warmer can't be used anymore.
+     */
+    @Nullable
+    SnapshotEncoders take(@NonNull Size size, @NonNull VideoCodec videoCodec,
+                          int videoBitRate, int videoFrameRate, int audioBitRate,
+                          int textureId, boolean frontIsFirst, @Nullable EGLContext eglContext) {
+        SnapshotEncoders encoders;
+        synchronized (mLock) {
+            encoders = mState == STATE_PREPARED ? mEncoders : null;
+            if (encoders != null && encoders.matches(size, videoCodec, videoBitRate,
+                    videoFrameRate, audioBitRate, textureId, frontIsFirst, eglContext)) {
+                mEncoders = null;
+                mState = STATE_RELEASED;
+                mPreview.removeRendererFrameCallback(this);
+                LOG.i("take:", "using the prepared encoders.");
+                return encoders;
+            }
+        }
+        LOG.i("take:", "no matching encoders.", "prepared:", encoders != null);
+        release();
+        return null;
+    }
+
+    @RendererThread
+    @Override
+    public void onRendererTextureCreated(int textureId, boolean frontIsFirst) {
+        SnapshotEncoders encoders;
+        synchronized (mLock) {
+            if (mState == STATE_RELEASED) return;
+            mTextureId = textureId;
+            mFrontIsFirst = frontIsFirst;
+            // Encoders drawing the old texture can't be used anymore.
+            encoders = mState == STATE_PREPARED ? mEncoders : null;
+            mEncoders = null;
+            mGeneration++;
+            mState = STATE_IDLE;
+        }
+        if (encoders != null) encoders.release();
+    }
+
+    @RendererThread
+    @Override
+    public void onRendererFrame(@NonNull SurfaceTexture surfaceTexture, long timestampNanos,
+                                int rotation, float scaleX, float scaleY,
+                                GlTexture inputTextureId) {
+        final int textureId;
+        final boolean frontIsFirst;
+        final int generation;
+        synchronized (mLock) {
+            if (mState != STATE_IDLE || mFailures >= MAX_FAILURES) return;
+            mState = STATE_PREPARING;
+            textureId = mTextureId;
+            frontIsFirst = mFrontIsFirst;
+            generation = mGeneration;
+        }
+        final EGLContext eglContext = EGL14.eglGetCurrentContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                SnapshotEncoders encoders = null;
+                try {
+                    encoders = new SnapshotEncoders(mSize, mVideoCodec,
+                            mVideoBitRate, mVideoFrameRate, mAudioBitRate);
+                    encoders.videoConfig.textureId = textureId;
+                    encoders.videoConfig.frontIsFirst = frontIsFirst;
+                    encoders.videoConfig.eglContext = eglContext;
+                    encoders.createEncoders();
+                    encoders.videoEncoder.prewarm();
+                    encoders.audioEncoder.prewarm();
+                } catch (RuntimeException e) {
+                    // The recorder will prepare its own encoders.
+                    LOG.w("Could not prepare encoders.", e);
+                    if (encoders != null) encoders.release();
+                    synchronized (mLock) {
+                        mFailures++;
+                        if (mState == STATE_PREPARING && mGeneration == generation) {
+                            mState = STATE_IDLE;
+                        }
+                    }
+                    return;
+                }
+                boolean keep;
+                synchronized (mLock) {
+                    keep = mState == STATE_PREPARING && mGeneration == generation;
+                    if (keep) {
+                        mEncoders = encoders;
+                        mState = STATE_PREPARED;
+                    }
+                }
+                if (keep) {
+                    LOG.i("Prepared encoders.", "millis:", (System.nanoTime() - start) / 1000000L);
+                } else {
+                    // Released or texture changed in the meantime.
+                    encoders.release();
+                }
+            }
+        }, "SnapshotVideoPrewarmer").start();
+    }
+
+    @RendererThread
+    @Override
+    public void onRendererFilterChanged(@NonNull Filter filter, float filterLevel) {
+    }
+
+    @RendererThread
+    @Override
+    public void onRendererInputTextureIdChanged(@NonNull int textureId) {
+    }
+
+    @RendererThread
+    @Override
+    public void onRendererSwitchInputTexture() {
+    }
+}
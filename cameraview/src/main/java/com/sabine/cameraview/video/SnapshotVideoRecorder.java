@@ -18,7 +18,6 @@ import com.sabine.cameraview.controls.Audio;
 import com.sabine.cameraview.engine.CameraEngine;
 import com.sabine.cameraview.filter.Filter;
 import com.sabine.cameraview.filter.MultiFilter;
-import com.sabine.cameraview.internal.DeviceEncoders;
 import com.sabine.cameraview.overlay.Overlay;
 import com.sabine.cameraview.overlay.OverlayDrawer;
 import com.sabine.cameraview.preview.GlCameraPreview;
@@ -26,34 +25,41 @@ import com.sabine.cameraview.preview.RendererCameraPreview;
 import com.sabine.cameraview.preview.RendererFpsCallback;
 import com.sabine.cameraview.preview.RendererFrameCallback;
 import com.sabine.cameraview.preview.RendererThread;
-import com.sabine.cameraview.size.Size;
 import com.sabine.cameraview.video.encoding.AudioConfig;
 import com.sabine.cameraview.video.encoding.AudioMediaEncoder;
+import com.sabine.cameraview.video.encoding.EncoderMetrics;
 import com.sabine.cameraview.video.encoding.EncoderThread;
+import com.sabine.cameraview.video.encoding.FragmentConfig;
+import com.sabine.cameraview.video.encoding.FragmentedMp4Muxer;
+import com.sabine.cameraview.video.encoding.FrameClock;
+import com.sabine.cameraview.video.encoding.IsoMp4Muxer;
 import com.sabine.cameraview.video.encoding.MediaEncoderEngine;
+import com.sabine.cameraview.video.encoding.Muxer;
+import com.sabine.cameraview.video.encoding.SegmentConfig;
+import com.sabine.cameraview.video.encoding.SystemMuxer;
 import com.sabine.cameraview.video.encoding.TextureConfig;
 import com.sabine.cameraview.video.encoding.TextureMediaEncoder;
+import com.sabine.cameraview.video.encoding.TimeLapseConfig;
+import com.sabine.cameraview.video.encoding.VideoOutputConfig;
+import com.sabine.cameraview.video.encoding.WriteBehindStats;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A {@link VideoRecorder} that uses {@link android.media.MediaCodec} APIs.
  */
 @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
 public class SnapshotVideoRecorder extends VideoRecorder implements RendererFrameCallback,
-        MediaEncoderEngine.Listener {
+        MediaEncoderEngine.Listener, MediaEncoderEngine.SegmentListener,
+        MediaEncoderEngine.BitRateListener {
 
     private static final String TAG = SnapshotVideoRecorder.class.getSimpleName();
     private static final CameraLogger LOG = CameraLogger.create(TAG);
 
-    private static final int DEFAULT_VIDEO_FRAMERATE = 30;
-    private static final int DEFAULT_AUDIO_BITRATE = 128000;
-
-    // https://stackoverflow.com/a/5220554/4288782
-    // Assuming low motion, we don't want to put this too high for default usage,
-    // advanced users are still free to change this for each video.
-    private static int estimateVideoBitRate(@NonNull Size size, int frameRate) {
-        return (int) (0.07F * 1F * size.getWidth() * size.getHeight() * frameRate);
-    }
-
     private static final int STATE_RECORDING = 0;
     private static final int STATE_NOT_RECORDING = 1;
     private static final int STATE_INITIALIZING = 2;
@@ -77,13 +83,51 @@ public class SnapshotVideoRecorder extends VideoRecorder implements RendererFram
 
     private long startTimestamp = 0;
 
+    private File mSegmentBaseFile;
+    private boolean mPreRollTriggered;
+    // Guarded by mEncoderEngineLock.
+    private boolean mPaused;
+
+    private volatile SnapshotVideoPrewarmer mPrewarmer;
+    private long mStartNanos;
+
+    /**
+     * An additional output, see {@link VideoOutputConfig}.
+     */
+    private static class Output {
+        private TextureMediaEncoder encoder;
+        private MediaEncoderEngine engine;
+    }
+
+    // Guarded by mEncoderEngineLock.
+    private final List<Output> mOutputs = new ArrayList<>();
+    // The result is dispatched when all engines have ended.
+    private final AtomicInteger mRunningEngines = new AtomicInteger(1);
+
     public SnapshotVideoRecorder(@NonNull CameraEngine engine,
                                  @NonNull GlCameraPreview preview,
                                  @Nullable Overlay overlay) {
+        this(engine, preview, overlay, null);
+    }
+
+    /**
+     * Creates a recorder that will use the encoders of the given pre-warmer,
+     * if they match the video values. The pre-warmer is released either way.
+     *
+     * @param engine the engine
+     * @param preview the preview
+     * @param overlay the overlay
+     * @param prewarmer a pre-warmer
+     */
+    public SnapshotVideoRecorder(@NonNull CameraEngine engine,
+                                 @NonNull GlCameraPreview preview,
+                                 @Nullable Overlay overlay,
+                                 @Nullable SnapshotVideoPrewarmer prewarmer) {
         super(engine);
         mPreview = preview;
         mOverlay = overlay;
         mHasOverlay = overlay != null && overlay.drawsOn(Overlay.Target.VIDEO_SNAPSHOT);
+        mPrewarmer = prewarmer;
     }
 
     @Override
@@ -94,6 +138,7 @@ public class SnapshotVideoRecorder extends VideoRecorder implements RendererFram
 
     @Override
     protected void onStart() {
+        mStartNanos = System.nanoTime();
         mDesiredState = STATE_RECORDING;
         mPreview.addRendererFrameCallback(this);
     }
@@ -101,6 +146,37 @@ public class SnapshotVideoRecorder extends VideoRecorder implements RendererFram
     @Override
     public void setScaleCrop(float scaleX, float scaleY) {
         if (textureMediaEncoder != null) textureMediaEncoder.setScaleCrop(scaleX, scaleY);
+        synchronized (mEncoderEngineLock) {
+            for (Output output : mOutputs) output.encoder.setScaleCrop(scaleX, scaleY);
+        }
+    }
+
+    @Override
+    public void triggerPreRoll() {
+        synchronized (mEncoderEngineLock) {
+            // The engine is created with the first frame, so it might not exist yet.
+            mPreRollTriggered = true;
+            if (mEncoderEngine != null) mEncoderEngine.triggerPreRoll();
+        }
+    }
+
+    @Override
+    public void pause() {
+        synchronized (mEncoderEngineLock) {
+            // The engine is created with the first frame, so it might not exist yet.
+            mPaused = true;
+            if (mEncoderEngine != null) mEncoderEngine.pause();
+            for (Output output : mOutputs) output.engine.pause();
+        }
+    }
+
+    @Override
+    public void resume() {
+        synchronized (mEncoderEngineLock) {
+            mPaused = false;
+            if (mEncoderEngine != null) mEncoderEngine.resume();
+            for (Output output : mOutputs) output.engine.resume();
+        }
     }
 
     // Can be called different threads
@@ -112,6 +188,8 @@ public class SnapshotVideoRecorder extends VideoRecorder implements RendererFram
             LOG.i("Stopping the encoder engine from isCameraShutdown.");
             mDesiredState = STATE_NOT_RECORDING;
             mCurrentState = STATE_NOT_RECORDING;
+            SnapshotVideoPrewarmer prewarmer = mPrewarmer;
+            if (prewarmer != null) prewarmer.release();
             synchronized (mEncoderEngineLock) {
                 if (mEncoderEngine != null) {
                     mEncoderEngine.stop();
@@ -148,6 +226,9 @@ public class SnapshotVideoRecorder extends VideoRecorder implements RendererFram
     @Override
     public void onRendererInputTextureIdChanged(@NonNull int textureId) {
         if (textureMediaEncoder != null) textureMediaEncoder.changeInputTextureId(textureId);
+        synchronized (mEncoderEngineLock) {
+            for (Output output : mOutputs) output.encoder.changeInputTextureId(textureId);
+        }
     }
 
     @Override
@@ -155,6 +236,7 @@ public class SnapshotVideoRecorder extends VideoRecorder implements RendererFram
         synchronized (mEncoderEngineLock) {
             if (mEncoderEngine != null) {
                 if (textureMediaEncoder != null) textureMediaEncoder.switchInputTexture();
+                for (Output output : mOutputs) output.encoder.switchInputTexture();
             }
         }
     }
@@ -171,81 +253,35 @@ public class SnapshotVideoRecorder extends VideoRecorder implements RendererFram
                 public void run() {
                     LOG.e("Starting the encoder engine.");
 
-                    // Set default options
-                    if (mResult.videoFrameRate <= 0) mResult.videoFrameRate = DEFAULT_VIDEO_FRAMERATE;
-                    if (mResult.videoBitRate <= 0) mResult.videoBitRate
-                            = estimateVideoBitRate(mResult.size, mResult.videoFrameRate);
-                    if (mResult.audioBitRate <= 0) mResult.audioBitRate = DEFAULT_AUDIO_BITRATE;
-
-                    // Define mime types
-                    String videoType = "";
-                    switch (mResult.videoCodec) {
-                        case H_263: videoType = "video/3gpp"; break; // MediaFormat.MIMETYPE_VIDEO_H263;
-                        case H_264:
-                        case DEVICE_DEFAULT:
-                            videoType = "video/avc"; break; // MediaFormat.MIMETYPE_VIDEO_AVC:
-                    }
-                    String audioType = "audio/mp4a-latm";
-                    TextureConfig videoConfig = new TextureConfig();
-                    AudioConfig audioConfig = new AudioConfig();
-
-                    int audioChannels = 2;
-                    // Check the availability of values
-                    Size newVideoSize = null;
-                    int newVideoBitRate = 0;
-                    int newAudioBitRate = 0;
-                    int newVideoFrameRate = 0;
-                    int videoEncoderOffset = 0;
-                    int audioEncoderOffset = 0;
-                    boolean encodersFound = false;
-                    DeviceEncoders deviceEncoders = null;
-                    while (!encodersFound) {
-                        LOG.i("Checking DeviceEncoders...",
-                                "videoOffset:", videoEncoderOffset,
-                                "audioOffset:", audioEncoderOffset);
-                        try {
-                            deviceEncoders = new DeviceEncoders(DeviceEncoders.MODE_RESPECT_ORDER,
-                                    videoType, audioType, videoEncoderOffset, audioEncoderOffset);
-                        } catch (RuntimeException e) {
-                            LOG.w("Could not respect encoders parameters.",
-                                    "Going on again without checking encoders, possibly failing.");
-                            newVideoSize = mResult.size;
-                            newVideoBitRate = mResult.videoBitRate;
-                            newVideoFrameRate = mResult.videoFrameRate;
-                            newAudioBitRate = mResult.audioBitRate;
-                            break;
-                        }
-                        deviceEncoders = new DeviceEncoders(DeviceEncoders.MODE_PREFER_HARDWARE,
-                                videoType, audioType, videoEncoderOffset, audioEncoderOffset);
-                        try {
-                            newVideoSize = deviceEncoders.getSupportedVideoSize(mResult.size);
-                            newVideoBitRate = deviceEncoders.getSupportedVideoBitRate(mResult.videoBitRate);
-                            newVideoFrameRate = deviceEncoders.getSupportedVideoFrameRate(newVideoSize,
-                                    mResult.videoFrameRate);
-                            deviceEncoders.tryConfigureVideo(videoType, newVideoSize, newVideoFrameRate,
-                                    newVideoBitRate);
-                            newAudioBitRate = deviceEncoders
-                                    .getSupportedAudioBitRate(mResult.audioBitRate);
-                            deviceEncoders.tryConfigureAudio(audioType, newAudioBitRate,
-                                    audioConfig.samplingFrequency, audioChannels);
-                            encodersFound = true;
-                        } catch (DeviceEncoders.VideoException videoException) {
-                            LOG.i("Got VideoException:", videoException.getMessage());
-                            videoEncoderOffset++;
-                        } catch (DeviceEncoders.AudioException audioException) {
-                            LOG.i("Got AudioException:", audioException.getMessage());
-                            audioEncoderOffset++;
+                    SnapshotEncoders encoders = null;
+                    if (mPrewarmer != null) {
+                        // Overlays are drawn by the encoder, which was prepared without them.
+                        if (!mHasOverlay) {
+                            encoders = mPrewarmer.take(mResult.size, mResult.videoCodec,
+                                    mResult.videoBitRate, mResult.videoFrameRate,
+                                    mResult.audioBitRate, mTextureId, mFrontIsFirst, eglContext);
+                        } else {
+                            mPrewarmer.release();
                         }
+                        mPrewarmer = null;
                     }
+                    mResult.prewarmed = encoders != null;
+                    if (encoders == null) {
+                        encoders = new SnapshotEncoders(mResult.size, mResult.videoCodec,
+                                mResult.videoBitRate, mResult.videoFrameRate,
+                                mResult.audioBitRate);
+                    }
+                    // Set default options
+                    mResult.videoCodec = encoders.actualVideoCodec;
+                    mResult.videoFrameRate = encoders.videoFrameRate;
+                    mResult.videoBitRate = encoders.videoBitRate;
+                    mResult.minVideoBitRate = encoders.videoBitRate;
+                    mResult.audioBitRate = encoders.audioBitRate;
 
                     // Video
-                    videoConfig.width = mResult.size.getWidth();
-                    videoConfig.height = mResult.size.getHeight();
-                    videoConfig.bitRate = mResult.videoBitRate;
-                    videoConfig.frameRate = mResult.videoFrameRate;
+                    TextureConfig videoConfig = encoders.videoConfig;
+                    AudioConfig audioConfig = encoders.audioConfig;
                     videoConfig.rotation = rotation + mResult.rotation;
-                    videoConfig.mimeType = videoType;
-                    videoConfig.encoder = deviceEncoders.getVideoEncoder();
                     videoConfig.textureId = mTextureId;
                     videoConfig.frontIsFirst = mFrontIsFirst;
                     videoConfig.scaleX = mResult.scaleX;
@@ -260,13 +296,25 @@ public class SnapshotVideoRecorder extends VideoRecorder implements RendererFram
                         videoConfig.overlayRotation = mResult.rotation;
                         // ^ no "rotation" here! Overlays are already in VIEW ref.
                     }
-                    // Audio
-                    audioConfig.bitRate = mResult.audioBitRate;
-                    audioConfig.channels = audioChannels;
-                    audioConfig.encoder = deviceEncoders.getAudioEncoder();
 
-                    audioMediaEncoder = new AudioMediaEncoder(audioConfig);
-                    textureMediaEncoder = new TextureMediaEncoder(videoConfig, audioMediaEncoder);
+                    // A time-lapse drops the audio track, unless it asks for silence.
+                    TimeLapseConfig timeLapseConfig = mResult.timeLapseConfig;
+                    boolean hasAudio = timeLapseConfig == null || timeLapseConfig.silentAudio;
+                    if (!hasAudio) mResult.audio = Audio.OFF;
+                    if (mResult.prewarmed) {
+                        // The encoder has its own copy of the config.
+                        encoders.videoEncoder.setScaleCrop(mResult.scaleX, mResult.scaleY);
+                        if (!hasAudio) encoders.audioEncoder.release();
+                    } else if (hasAudio) {
+                        encoders.createEncoders();
+                    } else {
+                        encoders.createVideoEncoder();
+                    }
+                    audioMediaEncoder = hasAudio ? encoders.audioEncoder : null;
+                    textureMediaEncoder = encoders.videoEncoder;
+                    if (audioMediaEncoder != null) {
+                        audioMediaEncoder.setCaptureEnabled(mResult.internalAudioCapture);
+                    }
 
                     // Adjustment
 //            mResult.rotation = 0; // We will rotate the result instead.
@@ -282,10 +330,48 @@ public class SnapshotVideoRecorder extends VideoRecorder implements RendererFram
 
                     // Engine
                     synchronized (mEncoderEngineLock) {
-                        mEncoderEngine = new MediaEncoderEngine(mResult.file,
-                                textureMediaEncoder,
-                                audioMediaEncoder,
-                                SnapshotVideoRecorder.this);
+                        try {
+                            mEncoderEngine = createEncoderEngine(videoConfig,
+                                    hasAudio ? audioConfig : null);
+                        } catch (IOException e) {
+                            // No engine will start them: release pre-warmed codecs.
+                            textureMediaEncoder.release();
+                            if (audioMediaEncoder != null) audioMediaEncoder.release();
+                            onEncodingEnd(MediaEncoderEngine.END_BY_USER, e);
+                            return;
+                        }
+                        if (mResult.preRollConfig != null) {
+                            mEncoderEngine.setPreRollConfig(mResult.preRollConfig);
+                            if (mPreRollTriggered) mEncoderEngine.triggerPreRoll();
+                        }
+                        if (mResult.metricsConfig != null) {
+                            mEncoderEngine.setMetricsConfig(mResult.metricsConfig);
+                        }
+                        if (mResult.adaptiveBitRate) {
+                            mEncoderEngine.setAdaptiveBitRate(true);
+                            mEncoderEngine.setBitRateListener(SnapshotVideoRecorder.this);
+                        }
+                        if (timeLapseConfig != null) {
+                            mEncoderEngine.setTimeLapseConfig(timeLapseConfig);
+                        }
+                        if (mResult.writeBehindConfig != null) {
+                            mEncoderEngine.setWriteBehindConfig(mResult.writeBehindConfig);
+                        }
+                        if (mResult.maxSize > 0) mEncoderEngine.setMaxSize(mResult.maxSize);
+                        if (mResult.maxDuration > 0) {
+                            mEncoderEngine.setMaxDuration(mResult.maxDuration);
+                        }
+                        // Camera1 frames are in the monotonic clock, Camera2 ones in boottime.
+                        mEncoderEngine.setFrameClock(FrameClock.detect(timestampNanos / 1000L));
+                        if (mPaused) mEncoderEngine.pause();
+                        if (mResult.outputConfigs != null) {
+                            for (VideoOutputConfig config : mResult.outputConfigs) {
+                                createOutput(config, videoConfig,
+                                        hasAudio ? audioConfig : null);
+                            }
+                            // Outputs first, so that they don't miss the first audio samples.
+                            for (Output output : mOutputs) output.engine.start();
+                        }
 //                mEncoderEngine.notify(TextureMediaEncoder.FILTER_EVENT, mCurrentFilter);
 //                if (textureMediaEncoder != null) textureMediaEncoder.setFileterLevel(mPreview.getFilterLevel());
 
@@ -298,34 +384,25 @@ public class SnapshotVideoRecorder extends VideoRecorder implements RendererFram
             if (mCurrentState == STATE_RECORDING) {
 //                LOG.v("scheduling frame.");
                 synchronized (mEncoderEngineLock) {
-                    if (mEncoderEngine != null) { // Can be null on teardown.
+                    // Can be null on teardown. While paused, there's no need to draw frames.
+                    if (mEncoderEngine != null && !mPaused) {
 //                        LOG.v("dispatching frame.");
                         if (startTimestamp == 0) {
                             startTimestamp = timestampNanos;
+                            mResult.startLatencyMillis
+                                    = (System.nanoTime() - mStartNanos) / 1000000L;
+                            LOG.i("First frame.", "startLatencyMillis:",
+                                    mResult.startLatencyMillis,
+                                    "prewarmed:", mResult.prewarmed);
                             dispatchVideoRecordingStart(startTimestamp);
                         }
-                        TextureMediaEncoder textureEncoder
-                                = (TextureMediaEncoder) mEncoderEngine.getVideoEncoder();
-                        TextureMediaEncoder.Frame frame = textureEncoder.acquireFrame();
-                        frame.timestampNanos = timestampNanos/*surfaceTexture.getTimestamp()*/;
-                        // NOTE: this is an approximation but it seems to work:
-//                        frame.timestampMillis = System.currentTimeMillis();
-                        frame.cropScaleX = scaleX;
-                        frame.cropScaleY = scaleY;
-                        // 为了解决在倒计时过程中旋转屏幕导致录制结果颠倒的问题 ：mResult.rotation为倒计时开始时的角度；mResult.deviceRotation为倒计时结束时的角度
-//                        if (mResult.deviceRotation != mResult.rotation && Math.abs(mResult.rotation - mResult.deviceRotation) % 180 != 0) {
-//                            frame.drawRotation = (rotation + 180) % 360;
-//                        } else {
-//                            frame.drawRotation = rotation;
-//                        }
-                        frame.drawRotation = 0;
-                        frame.inputTextureId = inputTextureId;
-//                        if (inputTextureId != -1 && inputTextureId != mTextureId && textureMediaEncoder != null) {
-//                            mTextureId = inputTextureId;
-//                            textureMediaEncoder.changeInputTextureId(mTextureId);
-//                        }
-//                        LOG.e(TAG, "------------------> onRendererFrame:", frame.timestampNanos);
-                        mEncoderEngine.notify(TextureMediaEncoder.FRAME_EVENT, frame);
+                        dispatchFrame(mEncoderEngine, timestampNanos, scaleX, scaleY,
+                                inputTextureId);
+                        // All outputs draw the same filtered texture.
+                        for (Output output : mOutputs) {
+                            dispatchFrame(output.engine, timestampNanos, scaleX, scaleY,
+                                    inputTextureId);
+                        }
                     }
                 }
                 if (mDesiredState == STATE_NOT_RECORDING) {
@@ -343,6 +420,170 @@ public class SnapshotVideoRecorder extends VideoRecorder implements RendererFram
 
     }
 
+    private void dispatchFrame(@NonNull MediaEncoderEngine engine, long timestampNanos,
+                               float scaleX, float scaleY, GlTexture inputTextureId) {
+        TextureMediaEncoder textureEncoder
+                = (TextureMediaEncoder) engine.getVideoEncoder();
+        TextureMediaEncoder.Frame frame = textureEncoder.acquireFrame();
+        frame.timestampNanos = timestampNanos/*surfaceTexture.getTimestamp()*/;
+        // NOTE: this is an approximation but it seems to work:
+//        frame.timestampMillis = System.currentTimeMillis();
+        frame.cropScaleX = scaleX;
+        frame.cropScaleY = scaleY;
+        // 为了解决在倒计时过程中旋转屏幕导致录制结果颠倒的问题 ：mResult.rotation为倒计时开始时的角度；mResult.deviceRotation为倒计时结束时的角度
+//        if (mResult.deviceRotation != mResult.rotation && Math.abs(mResult.rotation - mResult.deviceRotation) % 180 != 0) {
+//            frame.drawRotation = (rotation + 180) % 360;
+//        } else {
+//            frame.drawRotation = rotation;
+//        }
+        frame.drawRotation = 0;
+        frame.inputTextureId = inputTextureId;
+//        if (inputTextureId != -1 && inputTextureId != mTextureId && textureMediaEncoder != null) {
+//            mTextureId = inputTextureId;
+//            textureMediaEncoder.changeInputTextureId(mTextureId);
+//        }
+//        LOG.e(TAG, "------------------> onRendererFrame:", frame.timestampNanos);
+        engine.notify(TextureMediaEncoder.FRAME_EVENT, frame);
+    }
+
+    @NonNull
+    private MediaEncoderEngine createEncoderEngine(@NonNull final TextureConfig videoConfig,
+                                                   @Nullable final AudioConfig audioConfig)
+            throws IOException {
+        final FragmentConfig fragmentConfig = mResult.fragmentConfig;
+        final SegmentConfig segmentConfig = mResult.segmentConfig;
+        if (segmentConfig != null) {
+            // mp4v2 can only write one file at a time, while segments overlap a little.
+            mSegmentBaseFile = mResult.file;
+            Muxer.Factory factory = new Muxer.Factory() {
+                @NonNull
+                @Override
+                public Muxer createMuxer(int segment) throws IOException {
+                    File file = segmentConfig.getSegmentFile(mSegmentBaseFile, segment);
+                    if (fragmentConfig != null) {
+                        return new FragmentedMp4Muxer(file, videoConfig, audioConfig,
+                                fragmentConfig);
+                    }
+                    return new IsoMp4Muxer(file, videoConfig, audioConfig);
+                }
+            };
+            MediaEncoderEngine engine = new MediaEncoderEngine(factory, segmentConfig,
+                    textureMediaEncoder, audioMediaEncoder, this);
+            engine.setSegmentListener(this);
+            return engine;
+        } else if (fragmentConfig != null) {
+            Muxer muxer = new FragmentedMp4Muxer(mResult.file, videoConfig, audioConfig,
+                    fragmentConfig);
+            return new MediaEncoderEngine(muxer, textureMediaEncoder, audioMediaEncoder, this);
+        } else if (audioConfig == null || videoConfig.isHevc()
+                || mResult.writeBehindConfig != null) {
+            // The default muxer can only write H.264 files with audio,
+            // and it writes each sample natively, so it can't coalesce writes.
+            Muxer muxer = new IsoMp4Muxer(mResult.file, videoConfig, audioConfig);
+            return new MediaEncoderEngine(muxer, textureMediaEncoder, audioMediaEncoder, this);
+        } else {
+            try {
+                return new MediaEncoderEngine(mResult.file, textureMediaEncoder,
+                        audioMediaEncoder, this);
+            } catch (LinkageError e) {
+                // The mp4v2 library is missing for this ABI. Use the platform muxer.
+                LOG.w("createEncoderEngine:", "mp4v2 not available, using MediaMuxer.", e);
+                // The texture encoder already rotated the frames.
+                Muxer muxer = new SystemMuxer(mResult.file, videoConfig, audioConfig, 0);
+                return new MediaEncoderEngine(muxer, textureMediaEncoder, audioMediaEncoder,
+                        this);
+            }
+        }
+    }
+
+    /**
+     * Creates the encoder and engine of an additional output. If this fails,
+     * the main recording goes on without it.
+     */
+    private void createOutput(@NonNull VideoOutputConfig config,
+                              @NonNull TextureConfig videoConfig,
+                              @Nullable AudioConfig audioConfig) {
+        SnapshotEncoders encoders = new SnapshotEncoders(config.size, config.videoCodec,
+                config.videoBitRate, mResult.videoFrameRate, mResult.audioBitRate);
+        TextureConfig outputConfig = encoders.videoConfig;
+        outputConfig.rotation = videoConfig.rotation;
+        outputConfig.textureId = videoConfig.textureId;
+        outputConfig.frontIsFirst = videoConfig.frontIsFirst;
+        outputConfig.scaleX = videoConfig.scaleX;
+        outputConfig.scaleY = videoConfig.scaleY;
+        // All encoders share the EGL context of the renderer, and so its textures.
+        outputConfig.eglContext = videoConfig.eglContext;
+        encoders.createVideoEncoder();
+        // Outputs can only copy the audio of the main engine.
+        boolean withAudio = config.audio && audioConfig != null;
+        final Output output = new Output();
+        output.encoder = encoders.videoEncoder;
+        try {
+            Muxer muxer = config.muxer;
+            if (muxer == null) {
+                muxer = new IsoMp4Muxer(config.file, outputConfig,
+                        withAudio ? audioConfig : null);
+            }
+            output.engine = new MediaEncoderEngine(muxer, output.encoder, null,
+                    new OutputListener(mOutputs.size()));
+        } catch (IOException e) {
+            LOG.e("createOutput:", "Could not create the output. Skipping.", config.file, e);
+            encoders.videoEncoder.release();
+            return;
+        }
+        if (mResult.timeLapseConfig != null) {
+            output.engine.setTimeLapseConfig(mResult.timeLapseConfig);
+        }
+        if (mResult.writeBehindConfig != null) {
+            output.engine.setWriteBehindConfig(mResult.writeBehindConfig);
+        }
+        output.engine.setFrameClock(mEncoderEngine.getFrameClock());
+        if (withAudio) mEncoderEngine.addAudioOutput(output.engine);
+        if (mPaused) output.engine.pause();
+        mOutputs.add(output);
+        mRunningEngines.incrementAndGet();
+    }
+
+    /**
+     * Receives the events of an additional output.
+     */
+    private class OutputListener implements MediaEncoderEngine.Listener {
+
+        private final int mIndex;
+
+        private OutputListener(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public void onEncodingStart(int videoBitrate) {}
+
+        @Override
+        public void onEncodingStop() {}
+
+        @EncoderThread
+        @Override
+        public void onEncodingEnd(int reason, @Nullable Exception e) {
+            // A failed output does not fail the main recording.
+            if (e != null) LOG.e("Error onEncodingEnd for output", mIndex, e);
+            onEngineEnd();
+        }
+    }
+
+    @Override
+    public void onSegmentEnd(int index, long startTimeUs, long endTimeUs,
+                             @Nullable Exception e) {
+        File file = mResult.segmentConfig.getSegmentFile(mSegmentBaseFile, index);
+        if (e != null) {
+            LOG.e("onSegmentEnd:", "Segment failed.", index, e);
+            return;
+        }
+        LOG.i("onSegmentEnd:", index, "file:", file, "durationUs:", endTimeUs - startTimeUs);
+        // The final result is the last segment.
+        mResult.file = file;
+        dispatchVideoSegment(file, startTimeUs, endTimeUs);
+    }
+
     @Override
     public void onEncodingStart(int videoBitrate) {
         // This would be the most correct place to call dispatchVideoRecordingStart. However,
@@ -352,8 +593,38 @@ public class SnapshotVideoRecorder extends VideoRecorder implements RendererFram
     }
 
     @Override
-    public void onEncodingStop() {
+    public void onEncodingBitRateChanged(int videoBitrate) {
+        if (mResult != null && videoBitrate < mResult.minVideoBitRate) {
+            mResult.minVideoBitRate = videoBitrate;
+        }
+        dispatchEncodeBitRateChanged(videoBitrate);
+    }
+
+    @Nullable
+    @Override
+    public EncoderMetrics.Snapshot getMetrics() {
+        synchronized (mEncoderEngineLock) {
+            if (mEncoderEngine == null) return null;
+            EncoderMetrics metrics = mEncoderEngine.getMetrics();
+            return metrics != null ? metrics.snapshot() : null;
+        }
+    }
+
+    @Nullable
+    private WriteBehindStats.Snapshot getWriteStats() {
+        synchronized (mEncoderEngineLock) {
+            if (mEncoderEngine == null) return null;
+            WriteBehindStats stats = mEncoderEngine.getWriteBehindStats();
+            return stats != null ? stats.snapshot() : null;
+        }
+    }
 
+    @Override
+    public void onEncodingStop() {
+        // Called for any reason the main engine stops, e.g. max duration.
+        synchronized (mEncoderEngineLock) {
+            for (Output output : mOutputs) output.engine.stop();
+        }
     }
 
     @EncoderThread
@@ -375,6 +646,27 @@ public class SnapshotVideoRecorder extends VideoRecorder implements RendererFram
             } else {
                 LOG.i("onEncodingEnd because of user.");
             }
+            mResult.metrics = getMetrics();
+            mResult.writeStats = getWriteStats();
+        }
+        onEngineEnd();
+    }
+
+    /**
+     * Called when the main engine or an output has ended. When all of them have,
+     * files are complete and we can dispatch the result.
+     */
+    private void onEngineEnd() {
+        if (mRunningEngines.decrementAndGet() > 0) return;
+        if (mResult != null) {
+            synchronized (mEncoderEngineLock) {
+                mResult.droppedFrames = textureMediaEncoder != null
+                        ? textureMediaEncoder.getDroppedFrames() : 0;
+                mResult.outputDroppedFrames = new int[mOutputs.size()];
+                for (int i = 0; i < mOutputs.size(); i++) {
+                    mResult.outputDroppedFrames[i] = mOutputs.get(i).encoder.getDroppedFrames();
+                }
+            }
         }
         // Cleanup
         mCurrentState = STATE_NOT_RECORDING;
@@ -387,6 +679,7 @@ public class SnapshotVideoRecorder extends VideoRecorder implements RendererFram
         }
         synchronized (mEncoderEngineLock) {
             if (mEncoderEngine != null) mEncoderEngine = null;
+            mOutputs.clear();
         }
         dispatchVideoRecordingEnd();
         dispatchResult();
@@ -7,8 +7,11 @@ import androidx.annotation.VisibleForTesting;
 
 import com.sabine.cameraview.CameraLogger;
 import com.sabine.cameraview.VideoResult;
+import com.sabine.cameraview.video.encoding.EncoderMetrics;
 import com.sabine.cameraview.utils.LogUtil;
 
+import java.io.File;
+
 /**
  * Interface for video recording.
  * Don't call start if already started. Don't call stop if already stopped.
@@ -37,8 +40,22 @@ public abstract class VideoRecorder {
 
         void onVideoEncodeStart(int videoBitrate);
 
+        /**
+         * The video bit rate was changed while recording.
+         * @param videoBitrate the new bit rate
+         */
+        void onVideoEncodeBitRateChanged(int videoBitrate);
+
         void onVideoFps(int fps);
 
+        /**
+         * A segment of a segmented recording was completed.
+         * @param file the segment file
+         * @param startTimeUs the segment start
+         * @param endTimeUs the segment end
+         */
+        void onVideoSegmentTaken(@NonNull File file, long startTimeUs, long endTimeUs);
+
         /**
          * Video recording has ended. We will finish processing the file
          * and soon {@link #onVideoResult(VideoResult.Stub, Exception)} will be called.
@@ -118,10 +135,36 @@ public abstract class VideoRecorder {
         }
     }
 
+    /**
+     * Returns the metrics of the current recording, if the recorder supports them
+     * and they were enabled.
+     * @return the metrics, or null
+     */
+    @Nullable
+    public EncoderMetrics.Snapshot getMetrics() {
+        return null;
+    }
+
     protected abstract void onStart();
 
     public void setScaleCrop(float scaleX, float scaleY) {}
 
+    /**
+     * Writes the samples kept before this call, when recording with a
+     * {@link com.sabine.cameraview.video.encoding.PreRollConfig}, and the following ones.
+     */
+    public void triggerPreRoll() {}
+
+    /**
+     * Pauses the recording without closing the file, if supported.
+     */
+    public void pause() {}
+
+    /**
+     * Resumes a recording paused with {@link #pause()}.
+     */
+    public void resume() {}
+
     /**
      * Should stop recording as fast as possible. This can be called twice because the
      * shutdown boolean might be different.
@@ -194,6 +237,31 @@ public abstract class VideoRecorder {
         }
     }
 
+    /**
+     * Subclasses can call this to notify that the video bit rate was changed.
+     * @param videoBitrate the new bit rate
+     */
+    @SuppressWarnings("WeakerAccess")
+    protected void dispatchEncodeBitRateChanged(int videoBitrate) {
+        LOG.i("dispatchEncodeBitRateChanged:", "videoBitrate = " + videoBitrate);
+        if (mListener != null) {
+            mListener.onVideoEncodeBitRateChanged(videoBitrate);
+        }
+    }
+
+    /**
+     * Subclasses can call this to notify that a segment file was completed.
+     * @param file the segment file
+     * @param startTimeUs the segment start
+     * @param endTimeUs the segment end
+     */
+    protected void dispatchVideoSegment(@NonNull File file, long startTimeUs, long endTimeUs) {
+        LOG.i("dispatchVideoSegment:", "file:", file);
+        if (mListener != null) {
+            mListener.onVideoSegmentTaken(file, startTimeUs, endTimeUs);
+        }
+    }
+
     protected void dispatchVideoFps(int fps) {
         LOG.i("dispatchVideoFps:", "fps = " + fps);
         if (mListener != null) {
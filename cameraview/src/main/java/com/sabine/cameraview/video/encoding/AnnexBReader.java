@@ -0,0 +1,161 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Splits H.264 or H.265 Annex-B data (NAL units separated by 3 or 4 bytes start codes), as produced
+ * by MediaCodec, and converts it to the length-prefixed format used in MP4 files.
+ *
+ * Instances keep their working arrays between calls, so they should be reused and
+ * are not thread safe.
+ */
+class AnnexBReader {
+
+    private int[] mBounds = new int[16];
+    private int mCount;
+    private ByteBuffer mScratch = ByteBuffer.allocate(0);
+
+    /**
+     * Finds the NAL units in the given range. Their bounds can then be read with
+     * {@link #start(int)} and {@link #end(int)}.
+     *
+     * @param data the data
+     * @param start the range start
+     * @param end the range end
+     * @return the number of NAL units, 0 if data does not start with a start code
+     */
+    int find(@NonNull ByteBuffer data, int start, int end) {
+        mCount = 0;
+        int nalStart = -1;
+        int i = start;
+        while (i + 2 < end) {
+            if (data.get(i + 2) > 1) {
+                i += 3;
+            } else if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                int codeStart = i > start && data.get(i - 1) == 0 ? i - 1 : i;
+                if (nalStart >= 0) {
+                    add(nalStart, codeStart);
+                } else if (codeStart != start) {
+                    mCount = 0;
+                    return 0;
+                }
+                nalStart = i + 3;
+                i += 3;
+            } else {
+                i++;
+            }
+        }
+        if (nalStart >= 0) add(nalStart, end);
+        return mCount;
+    }
+
+    int start(int index) {
+        return mBounds[2 * index];
+    }
+
+    int end(int index) {
+        return mBounds[2 * index + 1];
+    }
+
+    private void add(int start, int end) {
+        if (2 * mCount + 1 >= mBounds.length) {
+            int[] grown = new int[mBounds.length * 2];
+            System.arraycopy(mBounds, 0, grown, 0, mBounds.length);
+            mBounds = grown;
+        }
+        mBounds[2 * mCount] = start;
+        mBounds[2 * mCount + 1] = end;
+        mCount++;
+    }
+
+    /**
+     * Converts a sample to 4 bytes length-prefixed NAL units. When all start codes are
+     * 4 bytes long, the data is modified in place and a view of it is returned.
+     * Otherwise the result is written to an internal buffer which is only valid until the
+     * next call. Data that is not in Annex-B format is returned as is.
+     *
+     * @param data the sample, starting at its position
+     * @param size the sample size
+     * @return a buffer with the converted sample between position and limit
+     */
+    @NonNull
+    ByteBuffer toLengthPrefixed(@NonNull ByteBuffer data, int size) {
+        int start = data.position();
+        int count = find(data, start, start + size);
+        boolean inPlace = count == 0 || start(0) == start + 4;
+        for (int i = 1; inPlace && i < count; i++) {
+            inPlace = start(i) - end(i - 1) == 4;
+        }
+        if (inPlace) {
+            for (int i = 0; i < count; i++) {
+                data.putInt(start(i) - 4, end(i) - start(i));
+            }
+            return slice(data, start, start + size);
+        }
+        int total = 0;
+        for (int i = 0; i < count; i++) total += 4 + end(i) - start(i);
+        if (mScratch.capacity() < total) mScratch = ByteBuffer.allocate(total);
+        mScratch.clear();
+        for (int i = 0; i < count; i++) {
+            mScratch.putInt(end(i) - start(i));
+            mScratch.put(slice(data, start(i), end(i)));
+        }
+        mScratch.flip();
+        return mScratch;
+    }
+
+    /**
+     * Reads SPS and PPS units from codec config data.
+     *
+     * @param config the codec config, starting at its position
+     * @param size the config size
+     * @param sps receives the SPS units
+     * @param pps receives the PPS units
+     */
+    void readParameterSets(@NonNull ByteBuffer config, int size,
+                           @NonNull List<byte[]> sps, @NonNull List<byte[]> pps) {
+        int count = find(config, config.position(), config.position() + size);
+        for (int i = 0; i < count; i++) {
+            if (end(i) <= start(i)) continue;
+            byte[] nal = new byte[end(i) - start(i)];
+            slice(config, start(i), end(i)).get(nal);
+            int type = nal[0] & 0x1F;
+            if (type == 7) sps.add(nal);
+            else if (type == 8) pps.add(nal);
+        }
+    }
+
+    /**
+     * Reads VPS, SPS and PPS units from H.265 codec config data.
+     *
+     * @param config the codec config, starting at its position
+     * @param size the config size
+     * @param vps receives the VPS units
+     * @param sps receives the SPS units
+     * @param pps receives the PPS units
+     */
+    void readHevcParameterSets(@NonNull ByteBuffer config, int size, @NonNull List<byte[]> vps,
+                               @NonNull List<byte[]> sps, @NonNull List<byte[]> pps) {
+        int count = find(config, config.position(), config.position() + size);
+        for (int i = 0; i < count; i++) {
+            if (end(i) - start(i) < 2) continue;
+            byte[] nal = new byte[end(i) - start(i)];
+            slice(config, start(i), end(i)).get(nal);
+            int type = (nal[0] >> 1) & 0x3F;
+            if (type == 32) vps.add(nal);
+            else if (type == 33) sps.add(nal);
+            else if (type == 34) pps.add(nal);
+        }
+    }
+
+    @NonNull
+    private static ByteBuffer slice(@NonNull ByteBuffer data, int start, int end) {
+        ByteBuffer slice = data.duplicate();
+        slice.limit(end);
+        slice.position(start);
+        return slice;
+    }
+}
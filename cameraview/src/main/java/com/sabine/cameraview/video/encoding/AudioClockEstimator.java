@@ -0,0 +1,174 @@
+package com.sabine.cameraview.video.encoding;
+
+/**
+ * Recovers the capture clock of an audio stream from the times at which chunks of it
+ * are received, and returns a smooth timestamp for the start of each chunk.
+ *
+ * Receipt times are noisy: a chunk is received some time after it was captured,
+ * and this delay changes with scheduling. The sample clock can also run slightly
+ * faster or slower than the system clock, so that counting bytes at the nominal
+ * byte rate drifts away from real time on long recordings.
+ *
+ * This is a second order delay-locked loop. It tracks the time at which the last chunk
+ * ended (the phase) and the duration of a byte (the rate). Each receipt time is compared
+ * with the predicted end of the chunk, and the error corrects both, with gains that depend
+ * on the loop bandwidth: a low bandwidth smooths more jitter, but follows changes slower.
+ *
+ * Errors bigger than the gap threshold are not used to correct the loop. If some of them
+ * come in a row with a similar value, audio was lost: the phase jumps forward by that
+ * amount, and the gap is reported. Late chunks that catch up, as it happens after a stall,
+ * have decreasing errors and are not considered a gap.
+ *
+ * Timestamps are in the receipt time reference, and always increasing.
+ */
+class AudioClockEstimator {
+
+    // Number of late chunks in a row needed to detect a gap.
+    private static final int GAP_CONFIRMATIONS = 4;
+
+    private final double mNominalUsPerByte;
+    private final double mBandwidthHz;
+    private final long mGapThresholdUs;
+
+    private boolean mStarted;
+    private double mPhaseUs;
+    private double mUsPerByte;
+    private long mLastStartUs;
+    private double mFirstPhaseUs;
+    private long mBytes;
+
+    private int mLateCount;
+    private double mLateSumUs;
+    private double mLateMinUs;
+    private double mLateMaxUs;
+    private long mLastGapUs;
+    private int mGapCount;
+    private long mTotalGapUs;
+
+    /**
+     * Creates a new estimator.
+     *
+     * @param byteRate the nominal byte rate
+     * @param bandwidthHz the loop bandwidth
+     * @param gapThresholdUs the error above which a chunk is late, and possibly a gap
+     */
+    AudioClockEstimator(int byteRate, double bandwidthHz, long gapThresholdUs) {
+        mNominalUsPerByte = 1000000D / byteRate;
+        mBandwidthHz = bandwidthHz;
+        mGapThresholdUs = gapThresholdUs;
+        reset();
+    }
+
+    /**
+     * Forgets everything. The next chunk starts the clock again.
+     */
+    void reset() {
+        mStarted = false;
+        mPhaseUs = 0;
+        mUsPerByte = mNominalUsPerByte;
+        mLastStartUs = Long.MIN_VALUE;
+        mBytes = 0;
+        mLateCount = 0;
+        mLastGapUs = 0;
+        mGapCount = 0;
+        mTotalGapUs = 0;
+    }
+
+    /**
+     * Accounts for a chunk received at the given time and returns the estimated
+     * time of its start.
+     *
+     * @param bytes the chunk length
+     * @param receiptUs the receipt time
+     * @return the chunk start time
+     */
+    long update(int bytes, long receiptUs) {
+        mLastGapUs = 0;
+        double durationUs = bytes * mUsPerByte;
+        if (!mStarted) {
+            mStarted = true;
+            mPhaseUs = receiptUs;
+            mFirstPhaseUs = receiptUs;
+            return emit(receiptUs - durationUs);
+        }
+
+        double startUs = mPhaseUs;
+        mBytes += bytes;
+        double predictedUs = mPhaseUs + durationUs;
+        double errorUs = receiptUs - predictedUs;
+        if (errorUs > mGapThresholdUs) {
+            if (mLateCount == 0) {
+                mLateSumUs = 0;
+                mLateMinUs = errorUs;
+                mLateMaxUs = errorUs;
+            }
+            mLateCount++;
+            mLateSumUs += errorUs;
+            mLateMinUs = Math.min(mLateMinUs, errorUs);
+            mLateMaxUs = Math.max(mLateMaxUs, errorUs);
+            if (mLateCount >= GAP_CONFIRMATIONS
+                    && mLateMaxUs - mLateMinUs < mGapThresholdUs / 2D) {
+                // A steady offset: audio was lost.
+                long gapUs = Math.round(mLateSumUs / mLateCount);
+                mLateCount = 0;
+                mLastGapUs = gapUs;
+                mGapCount++;
+                mTotalGapUs += gapUs;
+                startUs += gapUs;
+                predictedUs += gapUs;
+                errorUs -= gapUs;
+            } else {
+                // Late, but we don't know why yet. Don't let this move the loop.
+                if (mLateCount >= GAP_CONFIRMATIONS) mLateCount = 0;
+                mPhaseUs = predictedUs;
+                return emit(startUs);
+            }
+        } else {
+            mLateCount = 0;
+            errorUs = Math.max(errorUs, -mGapThresholdUs);
+        }
+
+        double omega = 2D * Math.PI * mBandwidthHz * durationUs / 1000000D;
+        mPhaseUs = predictedUs + Math.sqrt(2D) * omega * errorUs;
+        mUsPerByte += omega * omega * errorUs / bytes;
+        return emit(startUs);
+    }
+
+    private long emit(double startUs) {
+        long start = Math.round(startUs);
+        if (mLastStartUs != Long.MIN_VALUE && start <= mLastStartUs) {
+            start = mLastStartUs + 1;
+        }
+        mLastStartUs = start;
+        return start;
+    }
+
+    /**
+     * Returns the gap detected by the last {@link #update(int, long)}, if any.
+     * The chunk start returned by that call already accounts for it.
+     *
+     * @return the gap or 0
+     */
+    long getLastGapUs() {
+        return mLastGapUs;
+    }
+
+    int getGapCount() {
+        return mGapCount;
+    }
+
+    long getTotalGapUs() {
+        return mTotalGapUs;
+    }
+
+    /**
+     * Returns how much faster the sample clock runs with respect to the receipt clock,
+     * on average since the start. The loop rate is too noisy for this.
+     * @return the drift in parts per million
+     */
+    double getDriftPpm() {
+        double elapsedUs = mPhaseUs - mFirstPhaseUs - mTotalGapUs;
+        if (mBytes == 0 || elapsedUs <= 0) return 0;
+        return (mBytes * mNominalUsPerByte / elapsedUs - 1D) * 1000000D;
+    }
+}
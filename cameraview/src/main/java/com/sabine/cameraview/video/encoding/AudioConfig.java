@@ -70,6 +70,16 @@ public class AudioConfig {
         return 1024 * channels;
     }
 
+    /**
+     * The size of the raw input for one AAC frame, which is 1024 samples per channel.
+     * Input is sliced into buffers of this size before being passed to the encoder.
+     *
+     * @return the codec frame size in bytes
+     */
+    int codecFrameSize() {
+        return 1024 * channels * sampleSizePerChannel;
+    }
+
     /**
      * Number of frames contained in the {@link android.media.AudioRecord} buffer.
      * In theory, the higher this value is, the safer it is to delay reading as the
@@ -84,14 +94,14 @@ public class AudioConfig {
     }
 
     /**
-     * We allocate buffers of {@link #frameSize()} each, which is not much.
+     * We allocate buffers of {@link #codecFrameSize()} each, which is not much.
      *
      * This value indicates the maximum number of these buffers that we can allocate at a given
      * instant. This value is the number of runnables that the encoder thread is allowed to be
      * 'behind' the recorder thread. It's not safe to have it very large or we can end encoding
      * A LOT AFTER the actual recording. It's better to reduce this and skip recording at all.
      *
-     * Should be coordinated with {@link #frameSize()}.
+     * Should be coordinated with {@link #codecFrameSize()}.
      *
      * @return the buffer pool max size
      */
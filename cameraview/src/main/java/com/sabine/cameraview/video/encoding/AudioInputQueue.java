@@ -0,0 +1,228 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands input buffers from the thread calling {@link AudioMediaEncoder#putAudioPcm}
+ * to the audio encoding thread.
+ *
+ * The consumer blocks in {@link #drainTo(InputBuffer[], long)} until some buffer is
+ * available or the timeout expires, and then takes everything that is queued at once.
+ * This replaces sleeping for a fixed time when the queue is empty, which added a delay
+ * of up to the sleep duration to every buffer and woke up the thread for nothing.
+ *
+ * The queue is a fixed array, so offering and draining do not allocate.
+ * It also measures the time buffers wait in the queue and how often the consumer wakes up.
+ */
+class AudioInputQueue {
+
+    private final InputBuffer[] mItems;
+    private final long[] mTimes;
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private int mHead;
+    private int mCount;
+
+    // Stats, guarded by mLock.
+    private long mOffered;
+    private long mRejected;
+    private long mDrained;
+    private long mWakeups;
+    private long mEmptyWakeups;
+    private long mTotalLatencyNanos;
+    private long mMaxLatencyNanos;
+    private volatile EncoderMetrics mMetrics;
+
+    AudioInputQueue(int capacity) {
+        mItems = new InputBuffer[capacity];
+        mTimes = new long[capacity];
+    }
+
+    /**
+     * Also records the time buffers wait in the queue into the given metrics.
+     * @param metrics the metrics or null
+     */
+    void setMetrics(@Nullable EncoderMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Adds a buffer, waking up the consumer.
+     * @param buffer the buffer
+     * @return false if the queue is full: the buffer was not added
+     */
+    boolean offer(@NonNull InputBuffer buffer) {
+        mLock.lock();
+        try {
+            if (mCount == mItems.length) {
+                mRejected++;
+                return false;
+            }
+            int index = (mHead + mCount) % mItems.length;
+            mItems[index] = buffer;
+            mTimes[index] = System.nanoTime();
+            mCount++;
+            mOffered++;
+            mNotEmpty.signal();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Waits at most the given time for buffers, then moves all the queued ones,
+     * in order, to the given array.
+     *
+     * @param batch the destination
+     * @param timeoutNanos the max wait
+     * @return the number of buffers moved, 0 on timeout or interruption
+     */
+    int drainTo(@NonNull InputBuffer[] batch, long timeoutNanos) {
+        mLock.lock();
+        try {
+            long remaining = timeoutNanos;
+            boolean waited = false;
+            while (mCount == 0 && remaining > 0) {
+                waited = true;
+                try {
+                    remaining = mNotEmpty.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (waited) mWakeups++;
+            if (mCount == 0) {
+                mEmptyWakeups++;
+                return 0;
+            }
+            long now = System.nanoTime();
+            EncoderMetrics metrics = mMetrics;
+            int drained = Math.min(mCount, batch.length);
+            for (int i = 0; i < drained; i++) {
+                batch[i] = mItems[mHead];
+                long latency = now - mTimes[mHead];
+                mTotalLatencyNanos += latency;
+                if (latency > mMaxLatencyNanos) mMaxLatencyNanos = latency;
+                if (metrics != null) {
+                    metrics.recordStage(EncoderMetrics.STAGE_AUDIO_INPUT, latency / 1000L);
+                }
+                mItems[mHead] = null;
+                mHead = (mHead + 1) % mItems.length;
+            }
+            mCount -= drained;
+            mDrained += drained;
+            return drained;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    int size() {
+        mLock.lock();
+        try {
+            return mCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Removes all buffers without returning them.
+     */
+    void clear() {
+        mLock.lock();
+        try {
+            while (mCount > 0) {
+                mItems[mHead] = null;
+                mHead = (mHead + 1) % mItems.length;
+                mCount--;
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of times the consumer had to wait.
+     * @return the wakeups
+     */
+    long getWakeups() {
+        mLock.lock();
+        try {
+            return mWakeups;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of drains that returned nothing.
+     * @return the empty wakeups
+     */
+    long getEmptyWakeups() {
+        mLock.lock();
+        try {
+            return mEmptyWakeups;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    long getRejectedCount() {
+        mLock.lock();
+        try {
+            return mRejected;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the average time buffers waited in the queue.
+     * @return the average latency in microseconds
+     */
+    long getAverageLatencyUs() {
+        mLock.lock();
+        try {
+            return mDrained == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(mTotalLatencyNanos / mDrained);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the longest time a buffer waited in the queue.
+     * @return the max latency in microseconds
+     */
+    long getMaxLatencyUs() {
+        mLock.lock();
+        try {
+            return TimeUnit.NANOSECONDS.toMicros(mMaxLatencyNanos);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        mLock.lock();
+        try {
+            return "AudioInputQueue{offered=" + mOffered
+                    + ", rejected=" + mRejected
+                    + ", wakeups=" + mWakeups
+                    + ", emptyWakeups=" + mEmptyWakeups
+                    + ", avgLatencyUs=" + (mDrained == 0 ? 0 : mTotalLatencyNanos / mDrained / 1000)
+                    + ", maxLatencyUs=" + mMaxLatencyNanos / 1000 + "}";
+        } finally {
+            mLock.unlock();
+        }
+    }
+}
@@ -1,11 +1,15 @@
 package com.sabine.cameraview.video.encoding;
 
+import android.media.AudioRecord;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.media.MediaRecorder;
 import android.os.Build;
+import android.os.Process;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 
 import com.sabine.cameraview.CameraLogger;
@@ -13,9 +17,6 @@ import com.sabine.cameraview.utils.LogUtil;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Default implementation for audio encoding.
@@ -30,30 +31,52 @@ public class AudioMediaEncoder extends MediaEncoder {
     private static final boolean PERFORMANCE_FILL_GAPS = true;
     private static final int PERFORMANCE_MAX_GAPS = 8;
 
-    private boolean mRequestStop = false;
+    // How long the encoding thread waits for input before checking the state again.
+    private static final int INPUT_WAIT_FRAMES = 4;
+
+    private volatile boolean mRequestStop = false;
     private AudioEncodingThread mEncoder;
-    private ByteBufferPool mByteBufferPool;
+    private volatile boolean mCaptureEnabled;
+    private AudioRecordingThread mRecorder;
     private AudioConfig mConfig;
+    // Holders for silence, only used when aligning the start with the video.
     private InputBufferPool mInputBufferPool = new InputBufferPool();
-    private final LinkedBlockingQueue<InputBuffer> mInputBufferQueue = new LinkedBlockingQueue<>();
-    private ByteBuffer mCurrentBuffer;
+    private final AudioInputQueue mInputQueue;
+    private final PcmFramer mFramer;
+    private final PcmFramer.Callback mFramerCallback = new PcmFramer.Callback() {
+        @Override
+        public void onFrame(@NonNull InputBuffer frame) {
+            enqueue(frame, 0);
+        }
+
+        @Override
+        public void onFrameDropped(int length) {
+            drop(length);
+        }
+    };
+    // Shared zero source for silence. Only read by the encoding thread.
+    private final ByteBuffer mSilence;
     private long mTotalBytes;
     private long mLastTimeUs;
-    private int mPcmLength;
+    private long mLastPresentationUs;
+    private long mDroppedBytes;
+    private volatile TimeLapseClock mTimeLapse;
+    private volatile FrameClock mFrameClock;
 
     // Just to debug performance.
-    private int mDebugSendCount = 0;
     private int mDebugExecuteCount = 0;
-    private long mDebugSendAvgDelay = 0;
     private long mDebugExecuteAvgDelay = 0;
-    private Map<Long, Long> mDebugSendStartMap = new HashMap<>();
 
     private int mFirstSample = 0;
 
     public AudioMediaEncoder(@NonNull AudioConfig config) {
         super(NAME_AUDIO);
         mConfig = config.copy();
-        mTimestamp = new AudioTimestamp(mConfig.byteRate());
+        mTimestamp = new AudioTimestamp(mConfig.byteRate(), mConfig.codecFrameSize());
+        // One more slot for the end of stream frame, which the framer can create in excess.
+        mInputQueue = new AudioInputQueue(mConfig.bufferPoolMaxSize() + 1);
+        mFramer = new PcmFramer(mConfig.codecFrameSize(), mConfig.bufferPoolMaxSize());
+        mSilence = ByteBuffer.allocateDirect(mConfig.codecFrameSize());
         // These two were in onPrepare() but it's better to do warm-up here
         // since thread and looper creation is expensive.
         mEncoder = new AudioEncodingThread();
@@ -62,7 +85,7 @@ public class AudioMediaEncoder extends MediaEncoder {
 
     @EncoderThread
     @Override
-    protected void onPrepare(@NonNull MediaEncoderEngine.Controller controller) {
+    protected void onPrepare(@Nullable MediaEncoderEngine.Controller controller) {
         final MediaFormat audioFormat = MediaFormat.createAudioFormat(
                 mConfig.mimeType,
                 mConfig.samplingFrequency,
@@ -90,7 +113,26 @@ public class AudioMediaEncoder extends MediaEncoder {
     @Override
     protected void onStart() {
         mRequestStop = false;
+        mTimestamp.setRebaser(mController.getPtsRebaser());
+        mTimeLapse = mController.getTimeLapse();
+        mFrameClock = mController.getFrameClock();
         mEncoder.start();
+        if (mCaptureEnabled) {
+            mRecorder = new AudioRecordingThread();
+            mRecorder.start();
+        }
+    }
+
+    /**
+     * Whether this encoder should capture the microphone itself, instead of receiving
+     * audio through {@link #putAudioPcm(byte[], int, boolean)}. Should be called before
+     * starting. When enabled, pushed audio is ignored, and the end of stream is sent
+     * when the encoder is stopped.
+     *
+     * @param enabled whether to capture
+     */
+    public void setCaptureEnabled(boolean enabled) {
+        mCaptureEnabled = enabled;
     }
 
     @EncoderThread
@@ -107,9 +149,9 @@ public class AudioMediaEncoder extends MediaEncoder {
         mTotalBytes = 0;
         mLastTimeUs = 0;
         mEncoder = null;
-        if (mByteBufferPool != null) {
-            mByteBufferPool.clear();
-            mByteBufferPool = null;
+        mRecorder = null;
+        if (mDroppedBytes > 0) {
+            LOG.w("onStopped:", "dropped audio bytes:", mDroppedBytes);
         }
     }
 
@@ -119,48 +161,136 @@ public class AudioMediaEncoder extends MediaEncoder {
     }
 
     /**
-     * Sleeps for some frames duration, to skip them. This can be used to slow down
-     * the recording operation to balance it with encoding.
+     * Queues PCM data for encoding. Chunks can have any length: they are sliced
+     * into frames of {@link AudioConfig#codecFrameSize()}, and the remainder is kept
+     * for the next call. This does not allocate once frames are reused.
+     *
+     * If the encoder is behind and all frames are in use, audio is dropped
+     * but timestamps keep advancing, so the following audio is still in sync.
+     *
+     * @param pcm the data
+     * @param length the data length
+     * @param isEndOfStream whether this is the last data
      */
-    private void skipFrames(int frames) {
-        try {
-            Thread.sleep(AudioTimestamp.bytesToMillis(
-                    mConfig.frameSize() * frames,
-                    mConfig.byteRate()));
-        } catch (InterruptedException ignore) {}
-    }
-
     public void putAudioPcm(byte[] pcm, int length, boolean isEndOfStream) {
         if (pcm == null || pcm.length == 0) return;
-        if (mByteBufferPool == null) {
-            mByteBufferPool = new ByteBufferPool(length, mConfig.bufferPoolMaxSize());
-            mPcmLength = length;
+        if (mCaptureEnabled) return;
+        mFramer.write(pcm, 0, length, isEndOfStream, mFramerCallback);
+    }
+
+    /**
+     * Sets the frame timestamp and passes it to the encoding thread.
+     * Frames coming before the first video frame are dropped.
+     *
+     * @param frame the frame
+     * @param timestampUs the capture timestamp, or 0 to compute one from the data length
+     */
+    private void enqueue(@NonNull InputBuffer frame, long timestampUs) {
+        increaseTime(frame.length);
+        if (!frame.isEndOfStream && (mLastTimeUs == 0
+                || (timestampUs > 0 && timestampUs < mTimestamp.getBaseTimeUs()))) {
+            // No base time yet, or captured before it.
+            EncoderMetrics metrics = getMetrics();
+            if (metrics != null) metrics.recordDrop(EncoderMetrics.DROP_AUDIO_BEFORE_START);
+            mFramer.recycle(frame);
+            return;
+        }
+        long presentationUs = mTimestamp.toPresentationUs(
+                timestampUs > 0 ? timestampUs : mLastTimeUs);
+        if (!frame.isEndOfStream && presentationUs == PtsRebaser.DROP) {
+            // Paused. The clock kept running, so resuming is immediate.
+            mFramer.recycle(frame);
+            return;
         }
-        mCurrentBuffer = mByteBufferPool.get();
-        if (mCurrentBuffer != null) {
-            mCurrentBuffer.clear();
-            mCurrentBuffer.put(pcm, 0, length);
-
-            mCurrentBuffer.flip();
-            mCurrentBuffer.capacity();
-
-            increaseTime(length);
-            if (mLastTimeUs != 0) {
-                mTotalBytes += length;
-                enqueue(mCurrentBuffer, mLastTimeUs, length, isEndOfStream);
+        TimeLapseClock timeLapse = mTimeLapse;
+        if (timeLapse != null) {
+            if (!frame.isEndOfStream) {
+                enqueueTimeLapseSilence(frame.length, timeLapse);
+                mFramer.recycle(frame);
+                return;
             }
+            // Captured timestamps are not in the output timeline anymore.
+            presentationUs = PtsRebaser.DROP;
+        }
+        mTotalBytes += frame.length;
+        // The end of stream can come while paused: keep it after the last frame.
+        frame.timestamp = presentationUs != PtsRebaser.DROP ? presentationUs : mLastPresentationUs;
+        mLastPresentationUs = frame.timestamp;
+        if (PERFORMANCE_FILL_GAPS && timestampUs == 0 && frame.length > 0) {
+            fillGaps(frame.length);
+        }
+        if (!mInputQueue.offer(frame)) {
+            // The queue can hold all frames, but gap silence might have filled it.
+            mFramer.recycle(frame);
         }
     }
 
-    private void enqueue(@NonNull ByteBuffer byteBuffer,
-                             long timestamp, int bufferLength, boolean isEndOfStream) {
-        InputBuffer inputBuffer = mInputBufferPool.get();
+    /**
+     * In a time-lapse, the captured audio does not match the video anymore.
+     * It is replaced by silence, which is only queued as long as it does not go
+     * past the video written so far.
+     *
+     * @param frameLength the captured frame length
+     * @param timeLapse the time-lapse clock
+     */
+    private void enqueueTimeLapseSilence(int frameLength, @NonNull TimeLapseClock timeLapse) {
+        long timestampUs = timeLapse.audioFrame(frameLength, mConfig.byteRate());
+        if (timestampUs == TimeLapseClock.DROP) return;
+        InputBuffer silence = mInputBufferPool.get();
         //noinspection ConstantConditions
-        inputBuffer.source = byteBuffer;
-        inputBuffer.timestamp = timestamp;
-        inputBuffer.length = bufferLength;
-        inputBuffer.isEndOfStream = isEndOfStream;
-        mInputBufferQueue.add(inputBuffer);
+        silence.source = mSilence;
+        silence.timestamp = timestampUs;
+        silence.length = frameLength;
+        silence.isEndOfStream = false;
+        if (mInputQueue.offer(silence)) {
+            mTotalBytes += frameLength;
+            mLastPresentationUs = timestampUs;
+        } else {
+            mInputBufferPool.recycle(silence);
+        }
+    }
+
+    /**
+     * If the clock detected that audio was lost before the current frame,
+     * queues silence in its place, up to {@link #PERFORMANCE_MAX_GAPS} frames.
+     * Otherwise the gap is left in the timestamps.
+     *
+     * @param frameLength the current frame length
+     */
+    private void fillGaps(int frameLength) {
+        int gaps = mTimestamp.getGapCount(frameLength);
+        if (gaps == 0) return;
+        LOG.w("fillGaps:", "audio was lost, frames:", gaps);
+        EncoderMetrics metrics = getMetrics();
+        if (metrics != null) metrics.recordDrops(EncoderMetrics.DROP_AUDIO_LOST, gaps);
+        gaps = Math.min(gaps, PERFORMANCE_MAX_GAPS);
+        long frameUs = AudioTimestamp.bytesToUs(frameLength, mConfig.byteRate());
+        long gapStartUs = mTimestamp.getGapStartUs(mLastTimeUs);
+        for (int i = 0; i < gaps; i++) {
+            long timestampUs = mTimestamp.toPresentationUs(gapStartUs + i * frameUs);
+            if (timestampUs == PtsRebaser.DROP) continue;
+            InputBuffer silence = mInputBufferPool.get();
+            //noinspection ConstantConditions
+            silence.source = mSilence;
+            silence.timestamp = timestampUs;
+            silence.length = frameLength;
+            silence.isEndOfStream = false;
+            if (!mInputQueue.offer(silence)) {
+                mInputBufferPool.recycle(silence);
+                break;
+            }
+        }
+    }
+
+    private void drop(int length) {
+        // Keep the clock running, so that the next frames are still in sync.
+        increaseTime(length);
+        if (mDroppedBytes == 0) {
+            LOG.w("drop:", "encoder is too slow, dropping audio.");
+        }
+        mDroppedBytes += length;
+        EncoderMetrics metrics = getMetrics();
+        if (metrics != null) metrics.recordDrop(EncoderMetrics.DROP_AUDIO_BACKLOG);
     }
 
     private void increaseTime(int readBytes) {
@@ -185,128 +315,271 @@ public class AudioMediaEncoder extends MediaEncoder {
         return mConfig;
     }
 
+    /**
+     * Computes the capture time of the frame at the given position, from an
+     * {@link AudioRecord} timestamp. The result is in the timebase of the timestamp.
+     *
+     * @param stampNanos the timestamp time
+     * @param stampFramePosition the timestamp frame position
+     * @param framePosition the position of the frame to stamp
+     * @param sampleRate the sampling frequency
+     * @return the capture time in microseconds
+     */
+    static long captureTimeUs(long stampNanos, long stampFramePosition,
+                              long framePosition, int sampleRate) {
+        long offsetNanos = (framePosition - stampFramePosition) * 1000000000L / sampleRate;
+        return (stampNanos + offsetNanos) / 1000L;
+    }
+
+    /**
+     * A thread reading the microphone with an {@link AudioRecord}, used when capture
+     * is enabled. Data is read straight into the direct sources of the framer frames
+     * and passed to the encoding thread, without intermediate copies.
+     *
+     * When available, frames are stamped with {@link AudioRecord#getTimestamp}, which
+     * tells when a frame was captured. It is queried in the {@link FrameClock} of the
+     * video frames, so that audio can be compared with the video base time: if the
+     * BOOTTIME timebase is not supported, the MONOTONIC stamp is converted.
+     * Otherwise, timestamps are computed from the data length as for pushed audio.
+     *
+     * If the {@link AudioRecord} can't be created, this falls back to pushed audio.
+     */
+    private class AudioRecordingThread extends Thread {
+
+        private AudioRecordingThread() {
+            super("AudioRecordingThread");
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            int frameSize = mConfig.codecFrameSize();
+            int bufferSize = Math.max(mConfig.frameSize() * mConfig.audioRecordBufferFrames(),
+                    AudioRecord.getMinBufferSize(mConfig.samplingFrequency,
+                            mConfig.audioFormatChannels(), mConfig.encoding));
+            AudioRecord audioRecord;
+            try {
+                audioRecord = new AudioRecord(MediaRecorder.AudioSource.CAMCORDER,
+                        mConfig.samplingFrequency, mConfig.audioFormatChannels(),
+                        mConfig.encoding, bufferSize);
+            } catch (RuntimeException e) {
+                audioRecord = null;
+            }
+            if (audioRecord == null || audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+                LOG.e("AudioRecordingThread:", "could not create the AudioRecord.",
+                        "Falling back to pushed audio.");
+                if (audioRecord != null) audioRecord.release();
+                mCaptureEnabled = false;
+                return;
+            }
+            audioRecord.startRecording();
+
+            int bytesPerFrame = mConfig.channels * mConfig.sampleSizePerChannel;
+            android.media.AudioTimestamp captureTime = new android.media.AudioTimestamp();
+            ByteBuffer scratch = null;
+            long framesRead = 0;
+            while (!mRequestStop) {
+                InputBuffer frame = mFramer.obtain(false);
+                ByteBuffer target;
+                if (frame != null) {
+                    target = frame.source;
+                } else {
+                    // The encoder is behind. Keep reading, or AudioRecord would overflow.
+                    if (scratch == null) scratch = ByteBuffer.allocateDirect(frameSize);
+                    scratch.clear();
+                    target = scratch;
+                }
+                int read = audioRecord.read(target, frameSize, AudioRecord.READ_BLOCKING);
+                if (read <= 0) {
+                    LOG.w("AudioRecordingThread:", "read failed:", read);
+                    if (frame != null) mFramer.recycle(frame);
+                    if (read == AudioRecord.ERROR_INVALID_OPERATION
+                            || read == AudioRecord.ERROR_DEAD_OBJECT) break;
+                    continue;
+                }
+                long timestampUs = 0;
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                    FrameClock clock = mFrameClock;
+                    if (audioRecord.getTimestamp(captureTime,
+                            clock.getAudioTimebase()) == AudioRecord.SUCCESS) {
+                        timestampUs = captureTimeUs(captureTime.nanoTime,
+                                captureTime.framePosition, framesRead,
+                                mConfig.samplingFrequency);
+                    } else if (clock.getBase() == FrameClock.BOOTTIME
+                            && audioRecord.getTimestamp(captureTime,
+                            android.media.AudioTimestamp.TIMEBASE_MONOTONIC)
+                            == AudioRecord.SUCCESS) {
+                        timestampUs = clock.fromMonotonicUs(captureTimeUs(captureTime.nanoTime,
+                                captureTime.framePosition, framesRead,
+                                mConfig.samplingFrequency));
+                    }
+                }
+                framesRead += read / bytesPerFrame;
+                if (frame != null) {
+                    // read() does not move the position.
+                    frame.source.limit(read);
+                    frame.length = read;
+                    frame.isEndOfStream = false;
+                    enqueue(frame, timestampUs);
+                } else {
+                    drop(read);
+                }
+            }
+            audioRecord.stop();
+            audioRecord.release();
+
+            InputBuffer endOfStream = mFramer.obtain(true);
+            //noinspection ConstantConditions
+            endOfStream.source.flip();
+            endOfStream.length = 0;
+            endOfStream.isEndOfStream = true;
+            enqueue(endOfStream, 0);
+            LOG.i("AudioRecordingThread:", "finished.", "frames:", framesRead);
+        }
+    }
+
     /**
      * A thread encoding the microphone data using the media encoder APIs.
-     * Communicates with using {@link #mInputBufferQueue}.
+     * Communicates with using {@link #mInputQueue}.
      *
      * We want to do this operation on a different thread than the recording one (to avoid
      * losing frames while we're working here), and different than the {@link MediaEncoder}
      * own thread (we want that to be reactive - stop() must become onStop() soon).
+     *
+     * The thread blocks until some input is available, then encodes everything that was
+     * queued meanwhile. When the codec has no input buffer, it waits for one, draining the
+     * output so that the codec can make progress. Waits are bounded, so that we notice
+     * when recording stops.
      */
     private class AudioEncodingThread extends Thread {
+
+        private final long mFrameUs;
+        private final InputBuffer[] mBatch;
+        // Stats, only accessed by this thread.
+        private int mCodecWaits;
+        private int mStartWaits;
+
         private AudioEncodingThread() {
             // Not sure about this... This thread can do VERY time consuming operations,
             // and slowing down the preview/camera threads can break them e.g. hit internal
             // timeouts for camera requests to be consumed.
             // setPriority(Thread.MAX_PRIORITY);
+            mFrameUs = AudioTimestamp.bytesToUs(mConfig.codecFrameSize(), mConfig.byteRate());
+            mBatch = new InputBuffer[mConfig.bufferPoolMaxSize() + 1];
         }
 
         @Override
         public void run() {
+            EncoderMetrics metrics = getMetrics();
+            mInputQueue.setMetrics(metrics);
             encoding: while (isRecording()) {
-                if (mInputBufferQueue.isEmpty()) {
-                    skipFrames(3);
-                } else {
-                    LOG.v("encoding thread - performing", mInputBufferQueue.size(),
-                            "pending operations.");
-                    InputBuffer inputBuffer;
-                    while ((inputBuffer = mInputBufferQueue.peek()) != null) {
-
-                        // Performance logging
-                        if (PERFORMANCE_DEBUG) {
-                            long sendEnd = System.nanoTime() / 1000000;
-                            Long sendStart = mDebugSendStartMap.remove(inputBuffer.timestamp);
-                            //noinspection StatementWithEmptyBody
-                            if (sendStart != null) {
-                                mDebugSendAvgDelay = ((mDebugSendAvgDelay * mDebugSendCount)
-                                        + (sendEnd - sendStart)) / (++mDebugSendCount);
-                                LOG.v("send delay millis:", sendEnd - sendStart,
-                                        "average:", mDebugSendAvgDelay);
-                            } else {
-                                // This input buffer was already processed
-                                // (but tryAcquire failed for now).
-                            }
-                        }
-
-                        // Actual work
-//                        if (inputBuffer.isEndOfStream) {
-//                            acquireInputBuffer(inputBuffer);
-//                            encode(inputBuffer);
-//                            break encoding;
-//                        } else if (tryAcquireInputBuffer(inputBuffer)) {
-//                            encode(inputBuffer);
-//                        } else {
-//                            skipFrames(3);
-//                        }
-                        if (inputBuffer.isEndOfStream) {
-                            acquireInputBuffer(inputBuffer);
-                            encode(inputBuffer);
-                            break encoding;
-                        } else {
-                            if (mFirstSample == 0) {
-                                mFirstSample = 1;
-
-                                if (tryAcquireInputBuffer(inputBuffer)) {
-                                    encode(inputBuffer);
-                                } else {
-                                    skipFrames(3);
-                                }
-                            } else {
-                                if (mFirstSample == 1) {
-                                    if (mController.getPresentationTimeUs() != 0) {
-                                        mFirstSample = 2;
-
-                                        int audioChannels = mConfig.channels;
-                                        int audioSampleRate = mConfig.samplingFrequency;
-                                        int durationUs = (int)(((inputBuffer.length / (audioChannels * 2.0)) / audioSampleRate) * 1000000);
-                                        long addSize = (inputBuffer.timestamp - mController.getPresentationTimeUs() + durationUs / 2) / durationUs;
-                                        while (addSize > 0) {
-                                            InputBuffer addInputBuffer = mInputBufferPool.get();
-                                            addInputBuffer.source = mByteBufferPool.get();
-                                            if (inputBuffer.length > addInputBuffer.source.remaining()) {
-                                                LogUtil.e("bbb", "source.capacity == " + addInputBuffer.source.capacity() + ", source.remaining == " + addInputBuffer.source.remaining() + ", inputBuffer.length === " + inputBuffer.length);
-                                            } else {
-                                                addInputBuffer.source.put(new byte[inputBuffer.length], 0, inputBuffer.length);
-                                            }
-                                            addInputBuffer.timestamp = inputBuffer.timestamp - durationUs * addSize;
-                                            addInputBuffer.length = inputBuffer.length;
-                                            addInputBuffer.isEndOfStream = inputBuffer.isEndOfStream;
-                                            if (tryAcquireInputBuffer(addInputBuffer)) {
-                                                encode(addInputBuffer);
-
-                                                addSize--;
-                                            } else
-                                                skipFrames(3);
-                                        }
-                                        if (tryAcquireInputBuffer(inputBuffer)) {
-                                            encode(inputBuffer);
-                                        } else {
-                                            skipFrames(3);
-                                        }
-                                    } else
-                                        skipFrames(3);
-                                } else {
-                                    if (tryAcquireInputBuffer(inputBuffer)) {
-                                        encode(inputBuffer);
-                                    } else {
-                                        skipFrames(3);
-                                    }
-                                }
-                            }
+                int count = mInputQueue.drainTo(mBatch, INPUT_WAIT_FRAMES * mFrameUs * 1000L);
+                if (count > 0) {
+                    LOG.v("encoding thread - performing", count, "pending operations.");
+                    if (metrics != null) {
+                        metrics.recordQueue(EncoderMetrics.QUEUE_AUDIO_INPUT, count);
+                    }
+                }
+                for (int i = 0; i < count; i++) {
+                    InputBuffer inputBuffer = mBatch[i];
+                    mBatch[i] = null;
+                    if (!process(inputBuffer)) {
+                        // End of stream or not recording anymore. Drop what's left.
+                        for (int j = i + 1; j < count; j++) {
+                            discard(mBatch[j]);
+                            mBatch[j] = null;
                         }
+                        break encoding;
                     }
                 }
             }
             // We got an end of stream.
+            mInputQueue.clear();
             mInputBufferPool.clear();
-            if (PERFORMANCE_DEBUG) {
-                // After latest changes, the count here is not so different between MONO and STEREO.
-                // We get about 400 frames in both cases (430 for MONO, but doesn't seem like
-                // a big issue).
-                LOG.e("EXECUTE DELAY MILLIS:", mDebugExecuteAvgDelay,
-                        "COUNT:", mDebugExecuteCount);
-                LOG.e("SEND DELAY MILLIS:", mDebugSendAvgDelay,
-                        "COUNT:", mDebugSendCount);
+            LOG.i("encoding thread - finished.", mInputQueue,
+                    "codecWaits:", mCodecWaits,
+                    "startWaits:", mStartWaits);
+        }
+
+        /**
+         * Encodes a single input buffer, after padding the start with silence
+         * to align with the video, if needed.
+         * @return false if encoding should stop
+         */
+        private boolean process(@NonNull InputBuffer inputBuffer) {
+            if (inputBuffer.isEndOfStream) {
+                acquireInputBuffer(inputBuffer);
+                encode(inputBuffer);
+                return false;
+            }
+            if (mFirstSample == 0) {
+                mFirstSample = 1;
+                return waitAndEncode(inputBuffer);
+            }
+            if (mFirstSample == 1) {
+                // Wait for the first video frame to be written.
+                if (mController.getPresentationTimeUs() == 0) {
+                    mStartWaits++;
+                    long firstVideoUs;
+                    try {
+                        firstVideoUs = mController.awaitPresentationTimeUs();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        discard(inputBuffer);
+                        return false;
+                    }
+                    if (firstVideoUs == 0) {
+                        // Stopping without video. Keep going until the end of stream.
+                        discard(inputBuffer);
+                        return isRecording();
+                    }
+                }
+                mFirstSample = 2;
+
+                int audioChannels = mConfig.channels;
+                int audioSampleRate = mConfig.samplingFrequency;
+                int durationUs = (int)(((inputBuffer.length / (audioChannels * 2.0)) / audioSampleRate) * 1000000);
+                long addSize = (inputBuffer.timestamp - mController.getPresentationTimeUs() + durationUs / 2) / durationUs;
+                while (addSize > 0) {
+                    InputBuffer addInputBuffer = mInputBufferPool.get();
+                    //noinspection ConstantConditions
+                    addInputBuffer.source = mSilence;
+                    addInputBuffer.timestamp = inputBuffer.timestamp - durationUs * addSize;
+                    addInputBuffer.length = inputBuffer.length;
+                    addInputBuffer.isEndOfStream = inputBuffer.isEndOfStream;
+                    if (!waitAndEncode(addInputBuffer)) {
+                        discard(inputBuffer);
+                        return false;
+                    }
+                    addSize--;
+                }
+            }
+            return waitAndEncode(inputBuffer);
+        }
+
+        /**
+         * Waits for a codec input buffer, then encodes.
+         * @return false if recording stopped while waiting
+         */
+        private boolean waitAndEncode(@NonNull InputBuffer buffer) {
+            while (!tryAcquireInputBuffer(buffer, mFrameUs)) {
+                mCodecWaits++;
+                if (!isRecording()) {
+                    discard(buffer);
+                    return false;
+                }
+                // The codec might be waiting for us to take the output.
+                drainOutput(false);
+            }
+            encode(buffer);
+            return true;
+        }
+
+        private void discard(@NonNull InputBuffer buffer) {
+            if (buffer.source == mSilence) {
+                mInputBufferPool.recycle(buffer);
+            } else {
+                mFramer.recycle(buffer);
             }
         }
 
@@ -316,12 +589,14 @@ public class AudioMediaEncoder extends MediaEncoder {
             LOG.v("encoding thread - performing pending operation for timestamp:",
                     buffer.timestamp, "- encoding.");
             // NOTE: this copy is prob. the worst part here for performance
+            if (buffer.source == mSilence) {
+                mSilence.clear();
+                mSilence.limit(buffer.length);
+            }
             buffer.data.put(buffer.source);
-            mByteBufferPool.recycle(buffer.source);
-            mInputBufferQueue.remove(buffer);
             encodeInputBuffer(buffer);
             boolean eos = buffer.isEndOfStream;
-            mInputBufferPool.recycle(buffer);
+            discard(buffer);
             LOG.v("encoding thread - performing pending operation for timestamp:",
                     buffer.timestamp, "- draining.");
             // NOTE: can consider calling this drainOutput on yet another thread, which would let us
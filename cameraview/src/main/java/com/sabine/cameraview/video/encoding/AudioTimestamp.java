@@ -1,5 +1,7 @@
 package com.sabine.cameraview.video.encoding;
 
+import androidx.annotation.Nullable;
+
 import com.sabine.cameraview.utils.LogUtil;
 
 /**
@@ -11,13 +13,25 @@ import com.sabine.cameraview.utils.LogUtil;
  * all channels and the byte rate accounts for this as well.
  * If channels is 2, both values will be doubled and we behave the same.
  *
+ * Receipt times go through an {@link AudioClockEstimator}, which smooths jitter,
+ * follows the drift of the sample clock and detects gaps. Timestamps start from the
+ * base time, which is the first video frame time, and then follow the estimated clock.
+ *
  * This class keeps track of gaps between frames.
  * This can be used, for example, to write zeros instead of nothing.
+ *
+ * The clock keeps running while the recording is paused. Pauses are removed from
+ * the timestamps by {@link #toPresentationUs(long)}, just before encoding.
  */
 class AudioTimestamp {
 
     public static final String TAG = AudioTimestamp.class.getSimpleName();
 
+    // Low enough to smooth scheduling jitter, high enough to follow drift in a few seconds.
+    private static final double CLOCK_BANDWIDTH_HZ = 0.05;
+    // Chunks later than this many frames might be a gap.
+    private static final int CLOCK_GAP_FRAMES = 4;
+
     static long bytesToUs(long bytes, int byteRate) {
         return (1000000L * bytes) / byteRate;
     }
@@ -28,16 +42,22 @@ class AudioTimestamp {
 
     private int mByteRate;
     private long mBaseTimeUs;
-    private long mBytesSinceBaseTime;
     private long mGapUs;
+    private final AudioClockEstimator mClock;
+    private boolean mAnchored;
+    private long mAnchorUs;
+    private volatile PtsRebaser mRebaser;
 
-    AudioTimestamp(int byteRate) {
+    AudioTimestamp(int byteRate, int frameBytes) {
         mByteRate = byteRate;
+        mClock = new AudioClockEstimator(byteRate, CLOCK_BANDWIDTH_HZ,
+                CLOCK_GAP_FRAMES * bytesToUs(frameBytes, byteRate));
     }
 
     public void setBaseTimeUs(long baseTimeUs) {
         LogUtil.e(TAG, "drainOutput: baseTimeUs === " + baseTimeUs);
         this.mBaseTimeUs = baseTimeUs;
+        mAnchored = false;
     }
 
     public long getBaseTimeUs() {
@@ -45,50 +65,51 @@ class AudioTimestamp {
     }
 
     /**
-     * This method accounts for the current time and proved to be the most reliable among
-     * the ones tested.
+     * Returns the timestamp of a buffer that was just read, or 0 if we have
+     * no base time yet. The clock is updated in any case, so that it is
+     * already locked when the base time comes.
      *
-     * This creates regular timestamps unless we accumulate a lot of delay (greater than
-     * twice the buffer duration), in which case it creates a gap and starts again trying
-     * to be regular from the new point.
+     * The first buffer after the base time gets the base time. The following
+     * ones are spaced by the estimated clock, and might leave a gap if some
+     * audio was lost: see {@link #getGapCount(int)}.
      *
      * Returns timestamps in the {@link System#nanoTime()} reference.
      */
-    @SuppressWarnings("SameParameterValue")
     long increaseUs(int readBytes) {
+        return increaseUs(readBytes, System.nanoTime() / 1000);
+    }
+
+    long increaseUs(int readBytes, long receiptUs) {
+        long startUs = mClock.update(readBytes, receiptUs);
+        mGapUs = 0;
         if (mBaseTimeUs == 0) return 0;
-        long bufferDurationUs = bytesToUs((long) readBytes, mByteRate);
-        long bufferEndTimeUs = System.nanoTime() / 1000; // now
-        long bufferStartTimeUs = bufferEndTimeUs - bufferDurationUs;
-
-
-        // If this is the first time, the base time is the buffer start time.
-//        if (mBytesSinceBaseTime == 0) mBaseTimeUs = bufferStartTimeUs;
-
-        // Recompute time assuming that we are respecting the sampling frequency.
-        // This puts the time at the end of last read buffer, which means, where we
-        // should be if we had no delay / missed buffers.
-        long correctedTimeUs = mBaseTimeUs + bytesToUs(mBytesSinceBaseTime, mByteRate);
-        long correctionUs = bufferStartTimeUs - correctedTimeUs;
-
-//        if (correctionUs >= 2L * bufferDurationUs) {
-//            // However, if the correction is too big (> 2*bufferDurationUs), reset to this point.
-//            // This is triggered if we lose buffers and are recording/encoding at a slower rate.
-////            mBaseTimeUs = bufferStartTimeUs;
-//            mBytesSinceBaseTime = readBytes;
-//            mGapUs = correctionUs;
-//            return mBaseTimeUs;
-//        } else {
-            //noinspection StatementWithEmptyBody
-            if (correctionUs < 0) {
-                // This means that this method is being called too often, so that the expected start
-                // time for this buffer is BEFORE the last buffer end. So, respect the last buffer
-                // end instead.
-            }
-            mGapUs = 0;
-            mBytesSinceBaseTime += readBytes;
-            return correctedTimeUs;
-//        }
+        if (!mAnchored) {
+            mAnchored = true;
+            mAnchorUs = startUs;
+        } else {
+            mGapUs = mClock.getLastGapUs();
+        }
+        return mBaseTimeUs + (startUs - mAnchorUs);
+    }
+
+    /**
+     * Sets the pause intervals to remove from the timestamps.
+     * @param rebaser the rebaser, or null
+     */
+    void setRebaser(@Nullable PtsRebaser rebaser) {
+        mRebaser = rebaser;
+    }
+
+    /**
+     * Converts a timestamp from {@link #increaseUs(int)}, or from the audio capture,
+     * to the output timeline.
+     *
+     * @param timeUs the capture timestamp
+     * @return the presentation timestamp, or {@link PtsRebaser#DROP} if it was paused
+     */
+    long toPresentationUs(long timeUs) {
+        PtsRebaser rebaser = mRebaser;
+        return rebaser != null ? rebaser.rebase(timeUs) : timeUs;
     }
 
     /**
@@ -115,4 +136,12 @@ class AudioTimestamp {
     long getGapStartUs(long lastTimeUs) {
         return lastTimeUs - mGapUs;
     }
+
+    /**
+     * Returns the estimated drift of the sample clock.
+     * @return the drift in parts per million
+     */
+    double getDriftPpm() {
+        return mClock.getDriftPpm();
+    }
 }
@@ -0,0 +1,152 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Decides the video bit rate while recording, based on how well the writer keeps up.
+ *
+ * {@link MediaEncoderEngine} reports each sample written by the muxer with
+ * {@link #onSampleWritten(int, long)}, and calls {@link #evaluate(long, int, int)} after
+ * each video sample. Once per window of media time, we look at:
+ * - the writer backlog, i.e. the samples waiting in the write queues
+ * - the write latency, i.e. the longest time the muxer took to write a sample
+ * - the storage headroom, i.e. the measured write throughput over the encoded byte rate
+ *
+ * If the writer is falling behind, the bit rate goes down by a large step right away.
+ * It only goes back up by small steps, after a few healthy windows in a row, and never
+ * above the initial bit rate. After each change we wait for a cooldown, so the encoder
+ * has time to apply it before we measure again.
+ *
+ * This class is not thread safe: it is owned by the writer thread.
+ */
+class BitRateGovernor {
+
+    final static long WINDOW_US = 1000000L;
+    private final static int COOLDOWN_WINDOWS = 2;
+    private final static int HEALTHY_WINDOWS_TO_RAISE = 5;
+
+    // Falling behind: queues a quarter full, write throughput below 1.5x the
+    // encoded byte rate, or a single write that blocked for 200ms.
+    private final static float PRESSURE_BACKLOG = 0.25F;
+    private final static float PRESSURE_HEADROOM = 1.5F;
+    private final static long PRESSURE_LATENCY_NANOS = 200 * 1000000L;
+
+    // Healthy: nearly empty queues, plenty of throughput and no long write.
+    private final static float HEALTHY_BACKLOG = 0.05F;
+    private final static float HEALTHY_HEADROOM = 3F;
+    private final static long HEALTHY_LATENCY_NANOS = 50 * 1000000L;
+
+    private final int mMaxBitRate;
+    private final int mMinBitRate;
+    private int mBitRate;
+
+    private long mWindowStartUs = -1;
+    private long mWindowBytes;
+    private long mWindowWriteNanos;
+    private long mWindowMaxWriteNanos;
+    private int mCooldown;
+    private int mHealthyWindows;
+    private int mChangeCount;
+
+    /**
+     * Creates a new governor.
+     *
+     * @param maxBitRate the initial and highest bit rate
+     * @param minBitRate the lowest bit rate
+     */
+    BitRateGovernor(int maxBitRate, int minBitRate) {
+        mMaxBitRate = maxBitRate;
+        mMinBitRate = Math.min(minBitRate, maxBitRate);
+        mBitRate = maxBitRate;
+    }
+
+    /**
+     * Records a sample that was passed to the muxer.
+     *
+     * @param bytes the sample size
+     * @param writeNanos the time the muxer took to write it
+     */
+    void onSampleWritten(int bytes, long writeNanos) {
+        mWindowBytes += bytes;
+        mWindowWriteNanos += writeNanos;
+        if (writeNanos > mWindowMaxWriteNanos) mWindowMaxWriteNanos = writeNanos;
+    }
+
+    /**
+     * Returns the new bit rate, if it should change.
+     *
+     * @param timeUs timestamp of the last written sample
+     * @param backlog samples waiting to be written
+     * @param backlogCapacity max samples that can wait
+     * @return the new bit rate, or 0 to keep the current one
+     */
+    int evaluate(long timeUs, int backlog, int backlogCapacity) {
+        if (mWindowStartUs < 0 || timeUs < mWindowStartUs) {
+            restartWindow(timeUs);
+            return 0;
+        }
+        long windowUs = timeUs - mWindowStartUs;
+        if (windowUs < WINDOW_US) return 0;
+
+        float backlogFraction = (float) backlog / backlogCapacity;
+        double byteRate = mWindowBytes * 1000000D / windowUs;
+        double writeRate = mWindowWriteNanos > 0
+                ? mWindowBytes * 1000000000D / mWindowWriteNanos
+                : Double.MAX_VALUE;
+        double headroom = byteRate > 0 ? writeRate / byteRate : Double.MAX_VALUE;
+        long maxWriteNanos = mWindowMaxWriteNanos;
+        restartWindow(timeUs);
+
+        if (mCooldown > 0) {
+            mCooldown--;
+            return 0;
+        }
+        boolean pressure = backlogFraction >= PRESSURE_BACKLOG
+                || headroom < PRESSURE_HEADROOM
+                || maxWriteNanos >= PRESSURE_LATENCY_NANOS;
+        boolean healthy = backlogFraction < HEALTHY_BACKLOG
+                && headroom > HEALTHY_HEADROOM
+                && maxWriteNanos < HEALTHY_LATENCY_NANOS;
+        int bitRate = mBitRate;
+        if (pressure) {
+            mHealthyWindows = 0;
+            bitRate = Math.max(mMinBitRate, mBitRate / 4 * 3);
+        } else if (healthy) {
+            if (++mHealthyWindows >= HEALTHY_WINDOWS_TO_RAISE) {
+                mHealthyWindows = 0;
+                bitRate = Math.min(mMaxBitRate, mBitRate + mMaxBitRate / 10);
+            }
+        } else {
+            mHealthyWindows = 0;
+        }
+        if (bitRate == mBitRate) return 0;
+        mBitRate = bitRate;
+        mCooldown = COOLDOWN_WINDOWS;
+        mChangeCount++;
+        return bitRate;
+    }
+
+    private void restartWindow(long timeUs) {
+        mWindowStartUs = timeUs;
+        mWindowBytes = 0;
+        mWindowWriteNanos = 0;
+        mWindowMaxWriteNanos = 0;
+    }
+
+    int getBitRate() {
+        return mBitRate;
+    }
+
+    int getChangeCount() {
+        return mChangeCount;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "BitRateGovernor{bitRate=" + mBitRate
+                + ", max=" + mMaxBitRate
+                + ", min=" + mMinBitRate
+                + ", changes=" + mChangeCount + "}";
+    }
+}
@@ -0,0 +1,150 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Write-behind for {@link SystemMuxer} and custom muxers, which don't control their file
+ * writes: samples are copied into a buffer of {@link WriteBehindConfig#chunkBytes}
+ * and passed to the wrapped muxer in bursts, when the buffer is full, after the
+ * max delay and before video keyframes. The wrapped muxer then writes a whole chunk
+ * back to back, and storage is idle in between.
+ *
+ * {@link Mp4v2Muxer} is never wrapped, see {@link MediaEncoderEngine#setWriteBehindConfig},
+ * and Java muxers that implement {@link WriteBehindMuxer} coalesce their own writes.
+ *
+ * Track configs are passed right away, after the samples collected so far.
+ * Not thread safe: it is used on the engine writer thread.
+ */
+class CoalescingMuxer implements Muxer {
+
+    private final Muxer mMuxer;
+    private final WriteBehindConfig mConfig;
+    private final WriteBehindStats mStats;
+    private final ByteBuffer mData;
+    // Heap copy of a single sample, for muxers that want heap buffers.
+    private ByteBuffer mScratch = ByteBuffer.allocate(0);
+    private final long mMaxDelayNanos;
+    private long mFirstSampleNanos;
+
+    private int mCount;
+    private boolean[] mIsVideo = new boolean[256];
+    private boolean[] mIsKeyFrame = new boolean[256];
+    private int[] mOffsets = new int[256];
+    private int[] mSizes = new int[256];
+    private long[] mTimesUs = new long[256];
+
+    CoalescingMuxer(@NonNull Muxer muxer, @NonNull WriteBehindConfig config,
+                    @NonNull WriteBehindStats stats) {
+        mMuxer = muxer;
+        mConfig = config;
+        mStats = stats;
+        int capacity = Math.max(1, config.chunkBytes);
+        mData = muxer.acceptsDirectBuffers()
+                ? ByteBuffer.allocateDirect(capacity)
+                : ByteBuffer.allocate(capacity);
+        mMaxDelayNanos = config.maxDelayMillis * 1000000L;
+    }
+
+    @Override
+    public void addTrack(boolean isVideo, @NonNull ByteBuffer config, int size)
+            throws IOException {
+        flush();
+        mMuxer.addTrack(isVideo, config, size);
+    }
+
+    @Override
+    public void writeSample(boolean isVideo, @NonNull ByteBuffer data, int size,
+                            long presentationTimeUs, boolean isKeyFrame) throws IOException {
+        if (isVideo && isKeyFrame && mConfig.flushOnKeyFrame) flush();
+        if (size > mData.remaining()) flush();
+        if (size > mData.capacity()) {
+            // Too big to be collected.
+            long start = System.nanoTime();
+            mMuxer.writeSample(isVideo, data, size, presentationTimeUs, isKeyFrame);
+            mStats.recordFlush(size, System.nanoTime() - start);
+            return;
+        }
+        if (mCount == mSizes.length) grow();
+        if (mCount == 0) mFirstSampleNanos = System.nanoTime();
+        mIsVideo[mCount] = isVideo;
+        mIsKeyFrame[mCount] = isKeyFrame;
+        mOffsets[mCount] = mData.position();
+        mSizes[mCount] = size;
+        mTimesUs[mCount] = presentationTimeUs;
+        mCount++;
+        ByteBuffer source = data.duplicate();
+        source.limit(source.position() + size);
+        mData.put(source);
+        if (mMaxDelayNanos > 0 && System.nanoTime() - mFirstSampleNanos >= mMaxDelayNanos) {
+            flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            mMuxer.close();
+        }
+    }
+
+    @Override
+    public boolean acceptsDirectBuffers() {
+        return mMuxer.acceptsDirectBuffers();
+    }
+
+    /**
+     * Passes the collected samples to the wrapped muxer.
+     * @throws IOException if writing fails
+     */
+    private void flush() throws IOException {
+        if (mCount == 0) return;
+        long start = System.nanoTime();
+        int count = mCount;
+        int bytes = mData.position();
+        mCount = 0;
+        mData.clear();
+        for (int i = 0; i < count; i++) {
+            ByteBuffer sample = sample(mOffsets[i], mSizes[i]);
+            mMuxer.writeSample(mIsVideo[i], sample, mSizes[i], mTimesUs[i], mIsKeyFrame[i]);
+        }
+        mStats.recordFlush(bytes, System.nanoTime() - start);
+    }
+
+    @NonNull
+    private ByteBuffer sample(int offset, int size) {
+        ByteBuffer view = mData.duplicate();
+        view.limit(offset + size);
+        view.position(offset);
+        if (mData.isDirect()) return view;
+        // Heap buffers must start at index 0 of their array.
+        if (mScratch.capacity() < size) mScratch = ByteBuffer.allocate(size);
+        mScratch.clear();
+        mScratch.put(view);
+        mScratch.flip();
+        return mScratch;
+    }
+
+    private void grow() {
+        int length = mSizes.length * 2;
+        boolean[] isVideo = new boolean[length];
+        boolean[] isKeyFrame = new boolean[length];
+        int[] offsets = new int[length];
+        int[] sizes = new int[length];
+        long[] timesUs = new long[length];
+        System.arraycopy(mIsVideo, 0, isVideo, 0, mCount);
+        System.arraycopy(mIsKeyFrame, 0, isKeyFrame, 0, mCount);
+        System.arraycopy(mOffsets, 0, offsets, 0, mCount);
+        System.arraycopy(mSizes, 0, sizes, 0, mCount);
+        System.arraycopy(mTimesUs, 0, timesUs, 0, mCount);
+        mIsVideo = isVideo;
+        mIsKeyFrame = isKeyFrame;
+        mOffsets = offsets;
+        mSizes = sizes;
+        mTimesUs = timesUs;
+    }
+}
@@ -0,0 +1,120 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Collects sequential file output in a direct buffer and writes it in large chunks,
+ * as configured by a {@link WriteBehindConfig}. Used by the file muxers instead of
+ * writing each sample to the channel.
+ *
+ * Chunks are written at absolute positions and end at a multiple of the alignment,
+ * the rest being kept for the next chunk, so that storage receives whole blocks.
+ * Only {@link #flush()} writes everything. The channel position is not used.
+ *
+ * Not thread safe: it is owned by the muxer, on the engine writer thread.
+ */
+class CoalescingWriter {
+
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private final int mAlignment;
+    private final long mMaxDelayNanos;
+    private final boolean mFlushOnSyncPoint;
+    private final WriteBehindStats mStats;
+    private long mBufferStart;
+    private long mLastFlushNanos = System.nanoTime();
+
+    /**
+     * Creates a writer that appends at the given position.
+     *
+     * @param channel the file channel
+     * @param position the file position of the next byte
+     * @param config the config
+     * @param stats receives the flushes
+     */
+    CoalescingWriter(@NonNull FileChannel channel, long position,
+                     @NonNull WriteBehindConfig config, @NonNull WriteBehindStats stats) {
+        mChannel = channel;
+        mAlignment = Math.max(1, config.alignmentBytes);
+        // Whole blocks, at least two, so that a full buffer always has an aligned part.
+        int blocks = Math.max(2, (config.chunkBytes + mAlignment - 1) / mAlignment);
+        mBuffer = ByteBuffer.allocateDirect(blocks * mAlignment);
+        mMaxDelayNanos = config.maxDelayMillis * 1000000L;
+        mFlushOnSyncPoint = config.flushOnKeyFrame;
+        mStats = stats;
+        mBufferStart = position;
+    }
+
+    /**
+     * Returns the file position of the next byte.
+     * @return the position
+     */
+    long position() {
+        return mBufferStart + mBuffer.position();
+    }
+
+    /**
+     * Appends the data between position and limit, which are consumed.
+     * Writes aligned chunks whenever the buffer is full or the delay expired.
+     *
+     * @param data the data
+     * @throws IOException if writing fails
+     */
+    void write(@NonNull ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            if (!mBuffer.hasRemaining()) write(false);
+            int length = Math.min(data.remaining(), mBuffer.remaining());
+            ByteBuffer chunk = data.duplicate();
+            chunk.limit(chunk.position() + length);
+            mBuffer.put(chunk);
+            data.position(data.position() + length);
+        }
+        if (mMaxDelayNanos > 0 && System.nanoTime() - mLastFlushNanos >= mMaxDelayNanos) {
+            write(false);
+        }
+    }
+
+    /**
+     * Tells that the next data starts a sync point, like a video keyframe.
+     * If configured, what was collected so far is written.
+     *
+     * @throws IOException if writing fails
+     */
+    void syncPoint() throws IOException {
+        if (mFlushOnSyncPoint) write(false);
+    }
+
+    /**
+     * Writes everything, including the unaligned end.
+     * @throws IOException if writing fails
+     */
+    void flush() throws IOException {
+        write(true);
+    }
+
+    private void write(boolean all) throws IOException {
+        int collected = mBuffer.position();
+        int length = collected;
+        if (!all) {
+            long end = (mBufferStart + collected) / mAlignment * mAlignment;
+            length = (int) Math.max(0, end - mBufferStart);
+        }
+        mLastFlushNanos = System.nanoTime();
+        if (length == 0) return;
+        long start = mLastFlushNanos;
+        mBuffer.flip();
+        mBuffer.limit(length);
+        long position = mBufferStart;
+        while (mBuffer.hasRemaining()) position += mChannel.write(mBuffer, position);
+        // Keep the unaligned rest at the start of the buffer.
+        mBuffer.limit(collected);
+        mBuffer.compact();
+        mBufferStart += length;
+        mLastFlushNanos = System.nanoTime();
+        mStats.recordFlush(length, mLastFlushNanos - start);
+    }
+}
@@ -0,0 +1,133 @@
+package com.sabine.cameraview.video.encoding;
+
+import android.media.MediaCodecInfo.CodecProfileLevel;
+
+import androidx.annotation.NonNull;
+
+/**
+ * The level limits of H.264 (ITU-T H.264 Table A-1) and H.265 (ITU-T H.265 Table A.8,
+ * Main tier), used to find the lowest level that can encode a stream.
+ *
+ * Encoding with a higher level than needed is allowed, but it makes some codecs
+ * allocate more buffers and some decoders refuse the stream, so the level in the
+ * output format should be the lowest one that covers the stream.
+ */
+final class CodecLevels {
+
+    // level, max macroblocks per second, max frame size in macroblocks, max kbit/s (Main).
+    private final static long[][] AVC = {
+            { CodecProfileLevel.AVCLevel1, 1485, 99, 64 },
+            { CodecProfileLevel.AVCLevel11, 3000, 396, 192 },
+            { CodecProfileLevel.AVCLevel12, 6000, 396, 384 },
+            { CodecProfileLevel.AVCLevel13, 11880, 396, 768 },
+            { CodecProfileLevel.AVCLevel2, 11880, 396, 2000 },
+            { CodecProfileLevel.AVCLevel21, 19800, 792, 4000 },
+            { CodecProfileLevel.AVCLevel22, 20250, 1620, 4000 },
+            { CodecProfileLevel.AVCLevel3, 40500, 1620, 10000 },
+            { CodecProfileLevel.AVCLevel31, 108000, 3600, 14000 },
+            { CodecProfileLevel.AVCLevel32, 216000, 5120, 20000 },
+            { CodecProfileLevel.AVCLevel4, 245760, 8192, 20000 },
+            { CodecProfileLevel.AVCLevel41, 245760, 8192, 50000 },
+            { CodecProfileLevel.AVCLevel42, 522240, 8704, 50000 },
+            { CodecProfileLevel.AVCLevel5, 589824, 22080, 135000 },
+            { CodecProfileLevel.AVCLevel51, 983040, 36864, 240000 },
+            { CodecProfileLevel.AVCLevel52, 2073600, 36864, 240000 },
+    };
+
+    // level, max luma samples per second, max luma picture size, max kbit/s (Main tier).
+    private final static long[][] HEVC = {
+            { CodecProfileLevel.HEVCMainTierLevel1, 552960L, 36864, 128 },
+            { CodecProfileLevel.HEVCMainTierLevel2, 3686400L, 122880, 1500 },
+            { CodecProfileLevel.HEVCMainTierLevel21, 7372800L, 245760, 3000 },
+            { CodecProfileLevel.HEVCMainTierLevel3, 16588800L, 552960, 6000 },
+            { CodecProfileLevel.HEVCMainTierLevel31, 33177600L, 983040, 10000 },
+            { CodecProfileLevel.HEVCMainTierLevel4, 66846720L, 2228224, 12000 },
+            { CodecProfileLevel.HEVCMainTierLevel41, 133693440L, 2228224, 20000 },
+            { CodecProfileLevel.HEVCMainTierLevel5, 267386880L, 8912896, 25000 },
+            { CodecProfileLevel.HEVCMainTierLevel51, 534773760L, 8912896, 40000 },
+            { CodecProfileLevel.HEVCMainTierLevel52, 1069547520L, 8912896, 60000 },
+            { CodecProfileLevel.HEVCMainTierLevel6, 1069547520L, 35651584, 60000 },
+            { CodecProfileLevel.HEVCMainTierLevel61, 2139095040L, 35651584, 120000 },
+            { CodecProfileLevel.HEVCMainTierLevel62, 4278190080L, 35651584, 240000 },
+    };
+
+    private CodecLevels() {}
+
+    /**
+     * Returns the lowest H.264 level that covers the given stream, or -1 if none does.
+     * The High profile allows 25% more bit rate than Main at the same level.
+     *
+     * @param width the width
+     * @param height the height
+     * @param frameRate the frame rate
+     * @param bitRate the bit rate in bit/s
+     * @param highProfile whether the High profile is used
+     * @return the level constant, or -1
+     */
+    static int avcLevel(int width, int height, int frameRate, int bitRate,
+                        boolean highProfile) {
+        long widthMbs = (width + 15) / 16;
+        long heightMbs = (height + 15) / 16;
+        long frameMbs = widthMbs * heightMbs;
+        long mbps = frameMbs * Math.max(frameRate, 1);
+        long bitRateFactor = highProfile ? 1250 : 1000;
+        for (long[] level : AVC) {
+            long maxFrameMbs = level[2];
+            if (mbps > level[1] || frameMbs > maxFrameMbs) continue;
+            // Neither side can be longer than sqrt(8 * MaxFS).
+            if (widthMbs * widthMbs > 8 * maxFrameMbs) continue;
+            if (heightMbs * heightMbs > 8 * maxFrameMbs) continue;
+            if (bitRate > level[3] * bitRateFactor) continue;
+            return (int) level[0];
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the lowest H.265 Main tier level that covers the given stream,
+     * or -1 if none does.
+     *
+     * @param width the width
+     * @param height the height
+     * @param frameRate the frame rate
+     * @param bitRate the bit rate in bit/s
+     * @return the level constant, or -1
+     */
+    static int hevcLevel(int width, int height, int frameRate, int bitRate) {
+        long pictureSize = (long) width * height;
+        long sampleRate = pictureSize * Math.max(frameRate, 1);
+        for (long[] level : HEVC) {
+            long maxPictureSize = level[2];
+            if (sampleRate > level[1] || pictureSize > maxPictureSize) continue;
+            // Neither side can be longer than sqrt(8 * MaxLumaPs).
+            if ((long) width * width > 8 * maxPictureSize) continue;
+            if ((long) height * height > 8 * maxPictureSize) continue;
+            if (bitRate > level[3] * 1000) continue;
+            return (int) level[0];
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the lowest level of the given type and profile that covers the stream,
+     * or -1 if the type is unknown or no level covers it.
+     *
+     * @param mimeType video/avc or video/hevc
+     * @param profile the profile
+     * @param width the width
+     * @param height the height
+     * @param frameRate the frame rate
+     * @param bitRate the bit rate in bit/s
+     * @return the level constant, or -1
+     */
+    static int lowestLevel(@NonNull String mimeType, int profile, int width, int height,
+                           int frameRate, int bitRate) {
+        if (mimeType.equalsIgnoreCase("video/avc")) {
+            boolean high = profile == CodecProfileLevel.AVCProfileHigh;
+            return avcLevel(width, height, frameRate, bitRate, high);
+        } else if (mimeType.equalsIgnoreCase("video/hevc")) {
+            return hevcLevel(width, height, frameRate, bitRate);
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,299 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runtime metrics of a {@link MediaEncoderEngine} recording: latency of each stage
+ * of the pipeline, A/V skew, dropped samples by reason and queue depths.
+ *
+ * Metrics are only collected when the engine has a {@link MetricsConfig}. Values go
+ * into histograms with fixed buckets, so recording is cheap and never allocates.
+ * Use {@link #snapshot()} to read them.
+ *
+ * Stages starting from a capture timestamp are measured with the {@link FrameClock}
+ * of the engine, the other ones with {@link System#nanoTime()}.
+ */
+@SuppressWarnings("WeakerAccess")
+public class EncoderMetrics {
+
+    /**
+     * Receives snapshots at the interval of the {@link MetricsConfig}.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the engine thread with the metrics since the recording started.
+         * @param snapshot the metrics
+         */
+        void onMetrics(@NonNull Snapshot snapshot);
+    }
+
+    /** From the frame timestamp to the video encoder receiving the frame. */
+    public final static int STAGE_VIDEO_DISPATCH = 0;
+    /** Drawing the frame on the video encoder surface. */
+    public final static int STAGE_VIDEO_RENDER = 1;
+    /** From the frame timestamp to the encoded video sample. */
+    public final static int STAGE_VIDEO_ENCODE = 2;
+    /** From the PCM being queued to the audio encoding thread taking it. */
+    public final static int STAGE_AUDIO_INPUT = 3;
+    /** From the audio timestamp to the encoded audio sample. */
+    public final static int STAGE_AUDIO_ENCODE = 4;
+    /** From an encoded sample being queued to the writer taking it. */
+    public final static int STAGE_WRITE_QUEUE = 5;
+    /** Writing a sample to the muxer. */
+    public final static int STAGE_MUX_WRITE = 6;
+    /** From the frame timestamp to the video sample being written. */
+    public final static int STAGE_VIDEO_TOTAL = 7;
+    final static int STAGE_COUNT = 8;
+
+    /** Video frames skipped because the encoder is behind. */
+    public final static int DROP_VIDEO_BACKLOG = 0;
+    /** Audio frames dropped because the audio encoder, or an output writer, is behind. */
+    public final static int DROP_AUDIO_BACKLOG = 1;
+    /** Audio frames coming before the first video frame. */
+    public final static int DROP_AUDIO_BEFORE_START = 2;
+    /** Audio frames lost before reaching the encoder, detected by the audio clock. */
+    public final static int DROP_AUDIO_LOST = 3;
+    /** Encoded samples coming before the first video sample. */
+    public final static int DROP_BEFORE_START = 4;
+    /** Encoded samples dropped after a muxer or writer error. */
+    public final static int DROP_MUXER_ERROR = 5;
+    /** Encoded samples past the max size or max duration. */
+    public final static int DROP_LIMIT_REACHED = 6;
+    final static int DROP_COUNT = 7;
+
+    /** Encoded video samples waiting for the writer. */
+    public final static int QUEUE_VIDEO_WRITE = 0;
+    /** Encoded audio samples waiting for the writer. */
+    public final static int QUEUE_AUDIO_WRITE = 1;
+    /** PCM frames taken at once by the audio encoding thread. */
+    public final static int QUEUE_AUDIO_INPUT = 2;
+    /** Frames waiting for the video encoder. */
+    public final static int QUEUE_VIDEO_FRAMES = 3;
+    final static int QUEUE_COUNT = 4;
+
+    // Microseconds, from 0.5ms to about 1s.
+    private final static long[] LATENCY_BOUNDS = {
+            500, 1000, 2000, 4000, 8000, 16000, 32000, 64000, 128000, 256000, 512000, 1024000
+    };
+    // Microseconds. Positive when audio is ahead.
+    private final static long[] SKEW_BOUNDS = {
+            -320000, -160000, -80000, -40000, -20000, -10000, -5000, -1000,
+            1000, 5000, 10000, 20000, 40000, 80000, 160000, 320000
+    };
+    private final static long[] QUEUE_BOUNDS = {
+            0, 1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024
+    };
+
+    private final MetricsHistogram[] mStages = new MetricsHistogram[STAGE_COUNT];
+    private final MetricsHistogram mSkew = new MetricsHistogram(SKEW_BOUNDS);
+    private final MetricsHistogram[] mQueues = new MetricsHistogram[QUEUE_COUNT];
+    private final AtomicLongArray mDrops = new AtomicLongArray(DROP_COUNT);
+    private final long mStartNanos = System.nanoTime();
+
+    EncoderMetrics() {
+        for (int i = 0; i < STAGE_COUNT; i++) mStages[i] = new MetricsHistogram(LATENCY_BOUNDS);
+        for (int i = 0; i < QUEUE_COUNT; i++) mQueues[i] = new MetricsHistogram(QUEUE_BOUNDS);
+    }
+
+    void recordStage(int stage, long us) {
+        mStages[stage].record(us);
+    }
+
+    void recordSkew(long us) {
+        mSkew.record(us);
+    }
+
+    void recordQueue(int queue, long depth) {
+        mQueues[queue].record(depth);
+    }
+
+    void recordDrop(int reason) {
+        mDrops.incrementAndGet(reason);
+    }
+
+    void recordDrops(int reason, int count) {
+        mDrops.addAndGet(reason, count);
+    }
+
+    /**
+     * Copies the current metrics. Can be called from any thread.
+     * @return a snapshot
+     */
+    @NonNull
+    public Snapshot snapshot() {
+        Histogram[] stages = new Histogram[STAGE_COUNT];
+        for (int i = 0; i < STAGE_COUNT; i++) stages[i] = mStages[i].snapshot();
+        Histogram[] queues = new Histogram[QUEUE_COUNT];
+        for (int i = 0; i < QUEUE_COUNT; i++) queues[i] = mQueues[i].snapshot();
+        long[] drops = new long[DROP_COUNT];
+        for (int i = 0; i < DROP_COUNT; i++) drops[i] = mDrops.get(i);
+        return new Snapshot((System.nanoTime() - mStartNanos) / 1000000L,
+                stages, mSkew.snapshot(), drops, queues);
+    }
+
+    /**
+     * The metrics at some point of the recording.
+     */
+    public static class Snapshot {
+
+        private final long mElapsedMillis;
+        private final Histogram[] mStages;
+        private final Histogram mSkew;
+        private final long[] mDrops;
+        private final Histogram[] mQueues;
+
+        Snapshot(long elapsedMillis, @NonNull Histogram[] stages, @NonNull Histogram skew,
+                 @NonNull long[] drops, @NonNull Histogram[] queues) {
+            mElapsedMillis = elapsedMillis;
+            mStages = stages;
+            mSkew = skew;
+            mDrops = drops;
+            mQueues = queues;
+        }
+
+        /**
+         * Returns the time since the metrics were created.
+         * @return the elapsed millis
+         */
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+
+        /**
+         * Returns the latency of a stage, in microseconds.
+         * @param stage one of the STAGE constants
+         * @return the histogram
+         */
+        @NonNull
+        public Histogram getStageLatency(int stage) {
+            return mStages[stage];
+        }
+
+        /**
+         * Returns the difference between the timestamp of the last encoded audio sample
+         * and the one of each encoded video sample, in microseconds.
+         * Positive when audio is ahead.
+         * @return the histogram
+         */
+        @NonNull
+        public Histogram getAvSkew() {
+            return mSkew;
+        }
+
+        /**
+         * Returns the number of dropped samples for a reason.
+         * @param reason one of the DROP constants
+         * @return the count
+         */
+        public long getDropCount(int reason) {
+            return mDrops[reason];
+        }
+
+        /**
+         * Returns the depth of a queue, sampled each time something is added.
+         * @param queue one of the QUEUE constants
+         * @return the histogram
+         */
+        @NonNull
+        public Histogram getQueueDepth(int queue) {
+            return mQueues[queue];
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Snapshot{elapsedMillis=" + mElapsedMillis +
+                    ", stages=" + Arrays.toString(mStages) +
+                    ", avSkew=" + mSkew +
+                    ", drops=" + Arrays.toString(mDrops) +
+                    ", queues=" + Arrays.toString(mQueues) +
+                    '}';
+        }
+    }
+
+    /**
+     * An immutable histogram. Bucket i counts values up to {@link #getBounds()}[i],
+     * and the last bucket counts values greater than all bounds.
+     */
+    public static class Histogram {
+
+        private final long[] mBounds;
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mSum;
+        private final long mMin;
+        private final long mMax;
+
+        Histogram(@NonNull long[] bounds, @NonNull long[] counts,
+                  long count, long sum, long min, long max) {
+            mBounds = bounds;
+            mCounts = counts;
+            mCount = count;
+            mSum = sum;
+            mMin = min;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMin() {
+            return mMin;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        public double getMean() {
+            return mCount == 0 ? 0 : (double) mSum / mCount;
+        }
+
+        @NonNull
+        public long[] getBounds() {
+            return mBounds.clone();
+        }
+
+        @NonNull
+        public long[] getCounts() {
+            return mCounts.clone();
+        }
+
+        /**
+         * Returns an upper bound for the given percentile: the bound of the bucket
+         * that contains it, or the max if it is in the last bucket.
+         *
+         * @param percentile the percentile, from 0 to 100
+         * @return the value
+         */
+        public long getPercentile(double percentile) {
+            if (mCount == 0) return 0;
+            long target = (long) Math.ceil(mCount * percentile / 100D);
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= target && seen > 0) {
+                    return i < mBounds.length ? Math.min(mBounds[i], mMax) : mMax;
+                }
+            }
+            return mMax;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Histogram{count=" + mCount +
+                    ", mean=" + (long) getMean() +
+                    ", min=" + mMin +
+                    ", p50=" + getPercentile(50) +
+                    ", p99=" + getPercentile(99) +
+                    ", max=" + mMax +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Fragmented MP4 configuration to be passed as input to the constructor
+ * of a {@link FragmentedMp4Muxer}.
+ *
+ * A fragment is written to the file when one of the thresholds is reached, so that a
+ * recording interrupted by a crash loses at most the last fragment. Fragments always
+ * start with a video keyframe, unless {@link #maxFragmentBytes} forces an earlier flush.
+ */
+@SuppressWarnings("WeakerAccess")
+public class FragmentConfig {
+
+    // Configurable options
+    public int keyFramesPerFragment = 0; // 0 to only use the duration
+    public long fragmentDurationMillis = 2000; // 0 to only use the keyframe count
+    public int maxFragmentBytes = 8 * 1024 * 1024; // memory held for the pending fragment
+
+    @NonNull
+    FragmentConfig copy() {
+        FragmentConfig config = new FragmentConfig();
+        config.keyFramesPerFragment = keyFramesPerFragment;
+        config.fragmentDurationMillis = fragmentDurationMillis;
+        config.maxFragmentBytes = maxFragmentBytes;
+        return config;
+    }
+}
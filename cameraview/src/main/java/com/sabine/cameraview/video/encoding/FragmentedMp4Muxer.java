@@ -0,0 +1,484 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.sabine.cameraview.CameraLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pure-Java {@link Muxer} that writes fragmented MP4 files, which stay playable
+ * if the recording is interrupted.
+ *
+ * The file starts with ftyp and a moov box that has no samples, written once the codec config
+ * of all tracks is known. Samples are then collected in memory and written as a moof + mdat
+ * pair (a fragment) whenever a threshold from {@link FragmentConfig} is reached:
+ *
+ * 1. Normally, before a video keyframe, once the fragment has enough keyframes or is long
+ *    enough. This way each fragment can be decoded on its own.
+ *
+ * 2. As soon as the pending samples exceed {@link FragmentConfig#maxFragmentBytes},
+ *    to bound memory usage.
+ *
+ * Unlike {@link IsoMp4Muxer}, nothing is kept after a fragment has been written, so memory
+ * does not grow with the recording duration. If the process dies, only the pending fragment
+ * is lost.
+ */
+public class FragmentedMp4Muxer implements Muxer, WriteBehindMuxer {
+
+    private final static String TAG = FragmentedMp4Muxer.class.getSimpleName();
+    private final static CameraLogger LOG = CameraLogger.create(TAG);
+
+    // Sample flags, see ISO/IEC 14496-12 8.8.3.1.
+    private final static int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private final static int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final FragmentConfig mConfig;
+    private final Track mVideoTrack;
+    private final Track mAudioTrack;
+    private final int mWidth;
+    private final int mHeight;
+    private final boolean mHevc;
+    private final int mChannels;
+    private final int mSampleRate;
+    private final AnnexBReader mAnnexB = new AnnexBReader();
+    private final Mp4BoxWriter mMoof = new Mp4BoxWriter(4096);
+    private final ByteBuffer mMdatHeader = ByteBuffer.allocate(16);
+    private final ByteBuffer[] mFragmentBuffers = new ByteBuffer[4];
+    private final ByteBuffer mNoData = ByteBuffer.allocate(0);
+
+    private boolean mHeaderWritten;
+    private boolean mClosed;
+    private long mFirstTimeUs = -1;
+    private long mFragmentStartUs = -1;
+    private int mFragmentKeyFrames;
+    private int mSequenceNumber;
+    private long mWrittenBytes;
+    private CoalescingWriter mWriter;
+
+    /**
+     * Samples of the pending fragment, for a single track.
+     */
+    private static class Track {
+        final boolean isVideo;
+        final int trackId;
+        final int timescale;
+        final long defaultDurationUs;
+        final List<byte[]> vps = new ArrayList<>();
+        final List<byte[]> sps = new ArrayList<>();
+        final List<byte[]> pps = new ArrayList<>();
+        byte[] audioSpecificConfig;
+        boolean hasConfig;
+        boolean isDropped;
+        long lastTimeUs = -1;
+
+        ByteBuffer data;
+        int count;
+        int[] sizes = new int[64];
+        long[] timesUs = new long[64];
+        boolean[] sync = new boolean[64];
+
+        Track(boolean isVideo, int trackId, int timescale, long defaultDurationUs,
+              int initialCapacity) {
+            this.isVideo = isVideo;
+            this.trackId = trackId;
+            this.timescale = timescale;
+            this.defaultDurationUs = defaultDurationUs;
+            this.data = ByteBuffer.allocateDirect(initialCapacity);
+        }
+
+        void add(@NonNull ByteBuffer sample, long timeUs, boolean isSync) {
+            int size = sample.remaining();
+            if (data.remaining() < size) {
+                ByteBuffer grown = ByteBuffer.allocateDirect(
+                        Math.max(data.capacity() * 2, data.position() + size));
+                data.flip();
+                grown.put(data);
+                data = grown;
+            }
+            data.put(sample);
+            if (count == sizes.length) {
+                int length = count * 2;
+                int[] newSizes = new int[length];
+                long[] newTimes = new long[length];
+                boolean[] newSync = new boolean[length];
+                System.arraycopy(sizes, 0, newSizes, 0, count);
+                System.arraycopy(timesUs, 0, newTimes, 0, count);
+                System.arraycopy(sync, 0, newSync, 0, count);
+                sizes = newSizes;
+                timesUs = newTimes;
+                sync = newSync;
+            }
+            sizes[count] = size;
+            timesUs[count] = timeUs;
+            sync[count] = isSync;
+            count++;
+        }
+
+        void reset() {
+            if (count > 0) lastTimeUs = timesUs[count - 1];
+            count = 0;
+            data.clear();
+        }
+
+        long toTimescale(long timeUs) {
+            return (timeUs * timescale + 500000L) / 1000000L;
+        }
+    }
+
+    /**
+     * Creates a new muxer, truncating the given file.
+     *
+     * @param file the output file
+     * @param videoConfig the video config
+     * @param audioConfig the audio config, or null if there is no audio track
+     * @param fragmentConfig the fragment config
+     * @throws IOException if the file can't be opened
+     */
+    public FragmentedMp4Muxer(@NonNull File file, @NonNull VideoConfig videoConfig,
+                              @Nullable AudioConfig audioConfig,
+                              @NonNull FragmentConfig fragmentConfig) throws IOException {
+        mConfig = fragmentConfig.copy();
+        mWidth = videoConfig.width;
+        mHeight = videoConfig.height;
+        mHevc = videoConfig.isHevc();
+        int frameRate = videoConfig.frameRate > 0 ? videoConfig.frameRate : 30;
+        mVideoTrack = new Track(true, 1, Mp4BoxWriter.VIDEO_TIMESCALE,
+                1000000L / frameRate, 256 * 1024);
+        if (audioConfig != null) {
+            mChannels = audioConfig.channels;
+            mSampleRate = audioConfig.samplingFrequency;
+            mAudioTrack = new Track(false, 2, mSampleRate,
+                    Mp4BoxWriter.AAC_FRAME_SAMPLES * 1000000L / mSampleRate, 32 * 1024);
+        } else {
+            mChannels = 0;
+            mSampleRate = 0;
+            mAudioTrack = null;
+        }
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+    }
+
+    @Override
+    public void addTrack(boolean isVideo, @NonNull ByteBuffer config, int size) {
+        Track track = isVideo ? mVideoTrack : mAudioTrack;
+        if (track == null || mHeaderWritten) return;
+        if (isVideo) {
+            if (mHevc) {
+                mAnnexB.readHevcParameterSets(config, size, track.vps, track.sps, track.pps);
+            } else {
+                mAnnexB.readParameterSets(config, size, track.sps, track.pps);
+            }
+        } else {
+            track.audioSpecificConfig = new byte[size];
+            config.duplicate().get(track.audioSpecificConfig);
+        }
+        track.hasConfig = true;
+    }
+
+    @Override
+    public void setWriteBehind(@NonNull WriteBehindConfig config, @NonNull WriteBehindStats stats) {
+        if (mWriter != null || mClosed) return;
+        mWriter = new CoalescingWriter(mChannel, mWrittenBytes, config, stats);
+    }
+
+    @Override
+    public void writeSample(boolean isVideo, @NonNull ByteBuffer data, int size,
+                            long presentationTimeUs, boolean isKeyFrame) throws IOException {
+        Track track = isVideo ? mVideoTrack : mAudioTrack;
+        if (track == null || track.isDropped || mClosed) return;
+        long lastTimeUs = track.count > 0 ? track.timesUs[track.count - 1] : track.lastTimeUs;
+        if (presentationTimeUs <= lastTimeUs) {
+            // Out of order or duplicate: the fragment tables can't represent it.
+            return;
+        }
+        if (mFirstTimeUs < 0) mFirstTimeUs = presentationTimeUs;
+        if (isVideo && isKeyFrame && shouldFlush(presentationTimeUs)) {
+            flush(presentationTimeUs, false);
+        }
+        ByteBuffer sample;
+        if (isVideo) {
+            sample = mAnnexB.toLengthPrefixed(data, size);
+        } else {
+            sample = data.duplicate();
+            sample.limit(sample.position() + size);
+        }
+        track.add(sample, presentationTimeUs, !isVideo || isKeyFrame);
+        if (isVideo) {
+            if (mFragmentStartUs < 0) mFragmentStartUs = presentationTimeUs;
+            if (isKeyFrame) mFragmentKeyFrames++;
+        }
+        if (getPendingBytes() >= mConfig.maxFragmentBytes) {
+            flush(-1, true);
+        }
+    }
+
+    private boolean shouldFlush(long keyFrameTimeUs) {
+        if (mVideoTrack.count == 0) return false;
+        if (mConfig.keyFramesPerFragment > 0
+                && mFragmentKeyFrames >= mConfig.keyFramesPerFragment) return true;
+        return mConfig.fragmentDurationMillis > 0
+                && keyFrameTimeUs - mFragmentStartUs >= mConfig.fragmentDurationMillis * 1000L;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        try {
+            flush(-1, true);
+            if (mWriter != null) mWriter.flush();
+        } finally {
+            mChannel.close();
+            mFile.close();
+        }
+        LOG.i("close:", "fragments:", mSequenceNumber, "bytes:", mWrittenBytes);
+    }
+
+    @Override
+    public boolean acceptsDirectBuffers() {
+        return true;
+    }
+
+    /**
+     * Returns the number of fragments written so far.
+     * @return the fragment count
+     */
+    public int getFragmentCount() {
+        return mSequenceNumber;
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     * @return the written bytes
+     */
+    public long getWrittenBytes() {
+        return mWrittenBytes;
+    }
+
+    /**
+     * Returns the size of the samples waiting for the next fragment.
+     * @return the pending bytes
+     */
+    public int getPendingBytes() {
+        return mVideoTrack.data.position()
+                + (mAudioTrack == null ? 0 : mAudioTrack.data.position());
+    }
+
+    /**
+     * Writes the pending samples as a new fragment.
+     *
+     * @param nextVideoTimeUs timestamp of the video sample that follows, or -1 if unknown
+     * @param force whether to drop tracks with no config rather than waiting for it
+     */
+    private void flush(long nextVideoTimeUs, boolean force) throws IOException {
+        if (!mHeaderWritten && !writeHeader(force)) return;
+        if (mVideoTrack.count == 0 && (mAudioTrack == null || mAudioTrack.count == 0)) return;
+        mMoof.clear();
+        int moof = mMoof.start("moof");
+        int mfhd = mMoof.startFull("mfhd", 0, 0);
+        mMoof.putInt(++mSequenceNumber);
+        mMoof.end(mfhd);
+        int videoOffset = writeTraf(mVideoTrack, nextVideoTimeUs);
+        int audioOffset = mAudioTrack == null ? -1 : writeTraf(mAudioTrack, -1);
+        mMoof.end(moof);
+
+        long payload = getPendingBytes();
+        mMdatHeader.clear();
+        if (payload + 8 > 0xFFFFFFFFL) {
+            mMdatHeader.putInt(1);
+            mMdatHeader.put((byte) 'm').put((byte) 'd').put((byte) 'a').put((byte) 't');
+            mMdatHeader.putLong(payload + 16);
+        } else {
+            mMdatHeader.putInt((int) (payload + 8));
+            mMdatHeader.put((byte) 'm').put((byte) 'd').put((byte) 'a').put((byte) 't');
+        }
+        mMdatHeader.flip();
+        // Data offsets are relative to the moof start.
+        int dataOffset = mMoof.position() + mMdatHeader.remaining();
+        if (videoOffset >= 0) {
+            mMoof.putInt(videoOffset, dataOffset);
+            dataOffset += mVideoTrack.data.position();
+        }
+        if (audioOffset >= 0) {
+            mMoof.putInt(audioOffset, dataOffset);
+        }
+
+        mFragmentBuffers[0] = mMoof.flip();
+        mFragmentBuffers[1] = mMdatHeader;
+        mVideoTrack.data.flip();
+        mFragmentBuffers[2] = mVideoTrack.data;
+        if (mAudioTrack != null) mAudioTrack.data.flip();
+        mFragmentBuffers[3] = mAudioTrack != null ? mAudioTrack.data : mNoData;
+        long total = 0;
+        for (ByteBuffer buffer : mFragmentBuffers) total += buffer.remaining();
+        if (mWriter != null) {
+            // Fragments start with a keyframe.
+            mWriter.syncPoint();
+            for (ByteBuffer buffer : mFragmentBuffers) mWriter.write(buffer);
+            mWrittenBytes += total;
+        } else {
+            long written = 0;
+            while (written < total) written += mChannel.write(mFragmentBuffers);
+            mWrittenBytes += written;
+        }
+        mFragmentBuffers[2] = null;
+        mFragmentBuffers[3] = null;
+
+        mVideoTrack.reset();
+        if (mAudioTrack != null) mAudioTrack.reset();
+        mFragmentStartUs = -1;
+        mFragmentKeyFrames = 0;
+    }
+
+    /**
+     * Writes the traf box of a track.
+     *
+     * @param track the track
+     * @param nextTimeUs timestamp of the sample that follows, or -1 if unknown
+     * @return the position of the data offset to be filled, or -1 if there are no samples
+     */
+    private int writeTraf(@NonNull Track track, long nextTimeUs) {
+        if (track.count == 0 || track.isDropped) return -1;
+        int traf = mMoof.start("traf");
+        int tfhd = mMoof.startFull("tfhd", 0, 0x020000); // default-base-is-moof
+        mMoof.putInt(track.trackId);
+        mMoof.end(tfhd);
+        // Decode times are computed from the first sample of the file, so rounding
+        // errors in durations do not accumulate.
+        long baseTime = track.toTimescale(Math.max(0, track.timesUs[0] - mFirstTimeUs));
+        int tfdt = mMoof.startFull("tfdt", 1, 0);
+        mMoof.putLong(baseTime);
+        mMoof.end(tfdt);
+        int flags = 0x000001 | 0x000100 | 0x000200; // data offset, durations, sizes
+        if (track.isVideo) flags |= 0x000400; // sample flags
+        int trun = mMoof.startFull("trun", 0, flags);
+        mMoof.putInt(track.count);
+        int dataOffset = mMoof.position();
+        mMoof.putInt(0);
+        long time = baseTime;
+        for (int i = 0; i < track.count; i++) {
+            long end;
+            if (i + 1 < track.count) {
+                end = track.toTimescale(track.timesUs[i + 1] - mFirstTimeUs);
+            } else if (nextTimeUs >= 0) {
+                end = track.toTimescale(nextTimeUs - mFirstTimeUs);
+            } else if (track.isVideo && track.count > 1) {
+                end = time + time - track.toTimescale(track.timesUs[i - 1] - mFirstTimeUs);
+            } else {
+                end = time + track.toTimescale(track.defaultDurationUs);
+            }
+            mMoof.putInt((int) Math.max(1, end - time));
+            mMoof.putInt(track.sizes[i]);
+            if (track.isVideo) {
+                mMoof.putInt(track.sync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            }
+            time = Math.max(time + 1, end);
+        }
+        mMoof.end(trun);
+        mMoof.end(traf);
+        return dataOffset;
+    }
+
+    /**
+     * Writes ftyp and moov, if the codec config of all tracks is known.
+     *
+     * @param force whether to drop tracks with no config rather than waiting for it
+     * @return true if the header was written
+     */
+    private boolean writeHeader(boolean force) throws IOException {
+        boolean audioReady = mAudioTrack == null || mAudioTrack.hasConfig;
+        if (!mVideoTrack.hasConfig || !audioReady) {
+            if (!force) return false;
+            if (!mVideoTrack.hasConfig) drop(mVideoTrack);
+            if (!audioReady) drop(mAudioTrack);
+            LOG.w("writeHeader:", "Dropping tracks with no config.",
+                    "video:", mVideoTrack.isDropped,
+                    "audio:", mAudioTrack != null && mAudioTrack.isDropped);
+        }
+        Mp4BoxWriter box = new Mp4BoxWriter(1024);
+        box.writeFtyp("isom", "iso2", "iso5", mHevc ? "hvc1" : "avc1", "mp41");
+        int moov = box.start("moov");
+        box.writeMvhd(0, 3);
+        writeTrak(box, mVideoTrack);
+        if (mAudioTrack != null) writeTrak(box, mAudioTrack);
+        int mvex = box.start("mvex");
+        writeTrex(box, mVideoTrack);
+        if (mAudioTrack != null) writeTrex(box, mAudioTrack);
+        box.end(mvex);
+        box.end(moov);
+        ByteBuffer header = box.flip();
+        if (mWriter != null) {
+            mWrittenBytes += header.remaining();
+            mWriter.write(header);
+        } else {
+            while (header.hasRemaining()) mWrittenBytes += mChannel.write(header);
+        }
+        mHeaderWritten = true;
+        return true;
+    }
+
+    private void drop(@NonNull Track track) {
+        track.isDropped = true;
+        track.reset();
+    }
+
+    private void writeTrak(@NonNull Mp4BoxWriter box, @NonNull Track track) {
+        if (track.isDropped) return;
+        int trak = box.start("trak");
+        box.writeTkhd(track.trackId, 0, track.isVideo, mWidth, mHeight);
+        int mdia = box.start("mdia");
+        box.writeMdhd(track.timescale, 0);
+        box.writeHdlr(track.isVideo);
+        int minf = box.start("minf");
+        box.writeMediaHeaders(track.isVideo);
+        int stbl = box.start("stbl");
+        int stsd = box.startFull("stsd", 0, 0);
+        box.putInt(1);
+        if (track.isVideo) {
+            if (mHevc) {
+                box.writeHvc1(mWidth, mHeight, track.vps, track.sps, track.pps);
+            } else {
+                box.writeAvc1(mWidth, mHeight, track.sps, track.pps);
+            }
+        } else {
+            box.writeMp4a(mChannels, mSampleRate, track.audioSpecificConfig);
+        }
+        box.end(stsd);
+        // Empty sample tables, samples are in the fragments.
+        for (String type : new String[]{ "stts", "stsc", "stco" }) {
+            int empty = box.startFull(type, 0, 0);
+            box.putInt(0);
+            box.end(empty);
+        }
+        int stsz = box.startFull("stsz", 0, 0);
+        box.putInt(0);
+        box.putInt(0);
+        box.end(stsz);
+        box.end(stbl);
+        box.end(minf);
+        box.end(mdia);
+        box.end(trak);
+    }
+
+    private void writeTrex(@NonNull Mp4BoxWriter box, @NonNull Track track) {
+        if (track.isDropped) return;
+        int trex = box.startFull("trex", 0, 0);
+        box.putInt(track.trackId);
+        box.putInt(1); // sample description index
+        box.putInt(0); // duration
+        box.putInt(0); // size
+        box.putInt(0); // flags: audio samples are sync samples
+        box.end(trex);
+    }
+}
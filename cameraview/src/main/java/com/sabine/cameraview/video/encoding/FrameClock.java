@@ -0,0 +1,132 @@
+package com.sabine.cameraview.video.encoding;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+/**
+ * The clock of the video frame timestamps. Every time that is compared with a frame
+ * timestamp, like audio capture times, pause and resume times and latencies, must be
+ * taken with this clock.
+ *
+ * Frames come from SurfaceTexture timestamps, which are in the CLOCK_MONOTONIC base
+ * ({@link System#nanoTime()}) for Camera1, and in the CLOCK_BOOTTIME base
+ * ({@link SystemClock#elapsedRealtimeNanos()}) for Camera2, where the preview moves sensor
+ * timestamps of unknown source to it. The two bases differ by the time the device was
+ * suspended since boot, so the base is detected from a frame with {@link #detect(long)}.
+ */
+public final class FrameClock {
+
+    /**
+     * The CLOCK_MONOTONIC base, as {@link System#nanoTime()}.
+     */
+    public final static int MONOTONIC = 0;
+
+    /**
+     * The CLOCK_BOOTTIME base, as {@link SystemClock#elapsedRealtimeNanos()}.
+     */
+    public final static int BOOTTIME = 1;
+
+    /**
+     * Reads the system clocks, so that they can be replaced in tests.
+     */
+    interface Source {
+        long monotonicNanos();
+        long boottimeNanos();
+    }
+
+    private final static Source SYSTEM = new Source() {
+        @Override
+        public long monotonicNanos() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public long boottimeNanos() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+    };
+
+    private final int mBase;
+    private final Source mSource;
+
+    /**
+     * Creates a clock in the given base.
+     * @param base {@link #MONOTONIC} or {@link #BOOTTIME}
+     */
+    public FrameClock(int base) {
+        this(base, SYSTEM);
+    }
+
+    FrameClock(int base, @NonNull Source source) {
+        if (base != MONOTONIC && base != BOOTTIME) {
+            throw new IllegalArgumentException("Unknown clock base: " + base);
+        }
+        mBase = base;
+        mSource = source;
+    }
+
+    /**
+     * Returns the clock whose current time is closest to the given frame timestamp.
+     * When the device was not suspended since boot, both are the same.
+     *
+     * @param frameTimeUs a recent frame timestamp
+     * @return the frame clock
+     */
+    @NonNull
+    public static FrameClock detect(long frameTimeUs) {
+        return detect(frameTimeUs, SYSTEM);
+    }
+
+    @NonNull
+    static FrameClock detect(long frameTimeUs, @NonNull Source source) {
+        long monotonicUs = source.monotonicNanos() / 1000L;
+        long boottimeUs = source.boottimeNanos() / 1000L;
+        boolean boottime = Math.abs(frameTimeUs - boottimeUs)
+                < Math.abs(frameTimeUs - monotonicUs);
+        return new FrameClock(boottime ? BOOTTIME : MONOTONIC, source);
+    }
+
+    /**
+     * Returns the base of this clock.
+     * @return {@link #MONOTONIC} or {@link #BOOTTIME}
+     */
+    public int getBase() {
+        return mBase;
+    }
+
+    /**
+     * Returns the current time in this clock.
+     * @return the time in microseconds
+     */
+    public long nowUs() {
+        return (mBase == BOOTTIME ? mSource.boottimeNanos() : mSource.monotonicNanos()) / 1000L;
+    }
+
+    /**
+     * Converts a CLOCK_MONOTONIC time to this clock.
+     * @param monotonicUs the time in the monotonic base
+     * @return the time in this clock
+     */
+    long fromMonotonicUs(long monotonicUs) {
+        if (mBase == MONOTONIC) return monotonicUs;
+        return monotonicUs + (mSource.boottimeNanos() - mSource.monotonicNanos()) / 1000L;
+    }
+
+    /**
+     * Returns the android.media.AudioTimestamp timebase of this clock,
+     * to be passed to AudioRecord#getTimestamp.
+     * @return the timebase
+     */
+    int getAudioTimebase() {
+        return mBase == BOOTTIME
+                ? android.media.AudioTimestamp.TIMEBASE_BOOTTIME
+                : android.media.AudioTimestamp.TIMEBASE_MONOTONIC;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return mBase == BOOTTIME ? "FrameClock{BOOTTIME}" : "FrameClock{MONOTONIC}";
+    }
+}
@@ -0,0 +1,129 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+
+/**
+ * The fields of an H.265 sequence parameter set that go into the hvcC box
+ * of MP4 files: the general profile, tier and level, the chroma format
+ * and the bit depths.
+ *
+ * Parsing stops after the bit depths. Missing or truncated data leaves the
+ * defaults of the Main profile: 4:2:0, 8 bits.
+ */
+class HevcSps {
+
+    int maxSubLayers = 1;
+    boolean temporalIdNested = true;
+    int profileSpace;
+    boolean tierFlag;
+    int profileIdc = 1;
+    long profileCompatibilityFlags = 0x60000000L; // Main and Main 10 compatible
+    long constraintIndicatorFlags = 0x900000000000L; // progressive, frame only
+    int levelIdc;
+    int chromaFormatIdc = 1;
+    int bitDepthLumaMinus8;
+    int bitDepthChromaMinus8;
+
+    /**
+     * Parses a SPS NAL unit, including its 2 bytes header.
+     * @param nal the SPS
+     */
+    HevcSps(@NonNull byte[] nal) {
+        BitReader reader = new BitReader(unescape(nal));
+        try {
+            reader.skip(16); // NAL header
+            reader.skip(4); // sps_video_parameter_set_id
+            int maxSubLayersMinus1 = reader.read(3);
+            maxSubLayers = maxSubLayersMinus1 + 1;
+            temporalIdNested = reader.read(1) == 1;
+            // General profile_tier_level.
+            profileSpace = reader.read(2);
+            tierFlag = reader.read(1) == 1;
+            profileIdc = reader.read(5);
+            profileCompatibilityFlags = reader.readLong(32);
+            constraintIndicatorFlags = reader.readLong(48);
+            levelIdc = reader.read(8);
+            // Sub-layers, which we don't need but have to skip.
+            boolean[] profilePresent = new boolean[maxSubLayersMinus1];
+            boolean[] levelPresent = new boolean[maxSubLayersMinus1];
+            for (int i = 0; i < maxSubLayersMinus1; i++) {
+                profilePresent[i] = reader.read(1) == 1;
+                levelPresent[i] = reader.read(1) == 1;
+            }
+            if (maxSubLayersMinus1 > 0) reader.skip(2 * (8 - maxSubLayersMinus1));
+            for (int i = 0; i < maxSubLayersMinus1; i++) {
+                if (profilePresent[i]) reader.skip(88);
+                if (levelPresent[i]) reader.skip(8);
+            }
+            reader.readUnsignedExpGolomb(); // sps_seq_parameter_set_id
+            chromaFormatIdc = reader.readUnsignedExpGolomb();
+            if (chromaFormatIdc == 3) reader.skip(1); // separate_colour_plane_flag
+            reader.readUnsignedExpGolomb(); // pic_width_in_luma_samples
+            reader.readUnsignedExpGolomb(); // pic_height_in_luma_samples
+            if (reader.read(1) == 1) { // conformance_window_flag
+                for (int i = 0; i < 4; i++) reader.readUnsignedExpGolomb();
+            }
+            bitDepthLumaMinus8 = reader.readUnsignedExpGolomb();
+            bitDepthChromaMinus8 = reader.readUnsignedExpGolomb();
+        } catch (IndexOutOfBoundsException e) {
+            // Truncated. Keep what we have.
+        }
+    }
+
+    /**
+     * Removes the emulation prevention bytes (0x03 in 0x000003) from a NAL unit.
+     */
+    @NonNull
+    private static byte[] unescape(@NonNull byte[] nal) {
+        byte[] output = new byte[nal.length];
+        int size = 0;
+        int zeros = 0;
+        for (byte b : nal) {
+            if (zeros >= 2 && b == 3) {
+                zeros = 0;
+                continue;
+            }
+            zeros = b == 0 ? zeros + 1 : 0;
+            output[size++] = b;
+        }
+        byte[] result = new byte[size];
+        System.arraycopy(output, 0, result, 0, size);
+        return result;
+    }
+
+    private static class BitReader {
+        private final byte[] mData;
+        private int mPosition;
+
+        private BitReader(@NonNull byte[] data) {
+            mData = data;
+        }
+
+        private void skip(int bits) {
+            if (mPosition + bits > mData.length * 8) throw new IndexOutOfBoundsException();
+            mPosition += bits;
+        }
+
+        private int read(int bits) {
+            return (int) readLong(bits);
+        }
+
+        private long readLong(int bits) {
+            long value = 0;
+            for (int i = 0; i < bits; i++) {
+                int bit = (mData[mPosition >> 3] >> (7 - (mPosition & 7))) & 1;
+                value = (value << 1) | bit;
+                mPosition++;
+            }
+            return value;
+        }
+
+        private int readUnsignedExpGolomb() {
+            int zeros = 0;
+            while (read(1) == 0) {
+                if (++zeros > 31) throw new IndexOutOfBoundsException();
+            }
+            return (int) ((1L << zeros) - 1 + readLong(zeros));
+        }
+    }
+}
@@ -0,0 +1,447 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pure-Java {@link Muxer} that writes ISO-BMFF (MP4) files with H.264 or H.265 video
+ * and AAC audio.
+ *
+ * It has no Android dependency, so it can run (and be benchmarked) on a plain JVM.
+ *
+ * The file is laid out as ftyp, mdat, moov. Samples are streamed into the mdat box through a
+ * {@link FileChannel} as soon as they arrive. For each track we only keep compact sample tables
+ * made of primitive arrays (sizes, timestamps, chunk offsets, sync samples), which are turned
+ * into the moov box when {@link #close()} is called.
+ *
+ * Video samples coming from MediaCodec are in Annex-B format (start codes). They are converted
+ * to length-prefixed NAL units, in place when all start codes are 4 bytes long.
+ *
+ * Samples are assumed to have increasing presentation timestamps (no B-frames), which is
+ * what MediaCodec encoders produce with the default configuration.
+ */
+public class IsoMp4Muxer implements Muxer, WriteBehindMuxer {
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final Track mVideoTrack;
+    private final Track mAudioTrack;
+    private final int mWidth;
+    private final int mHeight;
+    private final boolean mHevc;
+    private final int mChannels;
+    private final int mSampleRate;
+    private final long mMdatStart;
+    private long mPosition;
+    private Track mLastTrack;
+    private boolean mClosed;
+    private CoalescingWriter mWriter;
+
+    private final AnnexBReader mAnnexB = new AnnexBReader();
+
+    /**
+     * Primitive sample tables for a single track.
+     */
+    static class Track {
+        final boolean isVideo;
+        final int timescale;
+        final long defaultDurationUs;
+        final List<byte[]> vps = new ArrayList<>();
+        final List<byte[]> sps = new ArrayList<>();
+        final List<byte[]> pps = new ArrayList<>();
+        byte[] audioSpecificConfig;
+        boolean hasConfig;
+
+        int sampleCount;
+        int[] sizes = new int[1024];
+        long[] timesUs = new long[1024];
+        int syncCount;
+        int[] syncSamples = new int[64]; // 1-based sample numbers
+        int chunkCount;
+        long[] chunkOffsets = new long[256];
+        int[] chunkSamples = new int[256];
+
+        Track(boolean isVideo, int timescale, long defaultDurationUs) {
+            this.isVideo = isVideo;
+            this.timescale = timescale;
+            this.defaultDurationUs = defaultDurationUs;
+        }
+
+        void addSample(int size, long timeUs, boolean isSync) {
+            if (sampleCount == sizes.length) {
+                sizes = grow(sizes);
+                timesUs = grow(timesUs);
+            }
+            sizes[sampleCount] = size;
+            timesUs[sampleCount] = timeUs;
+            sampleCount++;
+            if (isSync && isVideo) {
+                if (syncCount == syncSamples.length) syncSamples = grow(syncSamples);
+                syncSamples[syncCount++] = sampleCount;
+            }
+        }
+
+        void addChunk(long offset) {
+            if (chunkCount == chunkOffsets.length) {
+                chunkOffsets = grow(chunkOffsets);
+                chunkSamples = grow(chunkSamples);
+            }
+            chunkOffsets[chunkCount] = offset;
+            chunkSamples[chunkCount] = 0;
+            chunkCount++;
+        }
+
+        long toTimescale(long timeUs) {
+            return (timeUs * timescale + 500000L) / 1000000L;
+        }
+
+        long durationUs() {
+            if (sampleCount == 0) return 0;
+            return timesUs[sampleCount - 1] - timesUs[0] + lastSampleDurationUs();
+        }
+
+        long lastSampleDurationUs() {
+            if (sampleCount < 2) return defaultDurationUs;
+            return timesUs[sampleCount - 1] - timesUs[sampleCount - 2];
+        }
+
+        long tableBytes() {
+            return 4L * sizes.length + 8L * timesUs.length + 4L * syncSamples.length
+                    + 8L * chunkOffsets.length + 4L * chunkSamples.length;
+        }
+    }
+
+    /**
+     * Creates a new muxer, truncating the given file.
+     *
+     * @param file the output file
+     * @param videoConfig the video config
+     * @param audioConfig the audio config, or null if there is no audio track
+     * @throws IOException if the file can't be opened
+     */
+    public IsoMp4Muxer(@NonNull File file, @NonNull VideoConfig videoConfig,
+                       @Nullable AudioConfig audioConfig) throws IOException {
+        mWidth = videoConfig.width;
+        mHeight = videoConfig.height;
+        mHevc = videoConfig.isHevc();
+        int frameRate = videoConfig.frameRate > 0 ? videoConfig.frameRate : 30;
+        mVideoTrack = new Track(true, Mp4BoxWriter.VIDEO_TIMESCALE, 1000000L / frameRate);
+        if (audioConfig != null) {
+            mChannels = audioConfig.channels;
+            mSampleRate = audioConfig.samplingFrequency;
+            mAudioTrack = new Track(false, mSampleRate,
+                    Mp4BoxWriter.AAC_FRAME_SAMPLES * 1000000L / mSampleRate);
+        } else {
+            mChannels = 0;
+            mSampleRate = 0;
+            mAudioTrack = null;
+        }
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+
+        Mp4BoxWriter header = new Mp4BoxWriter(64);
+        header.writeFtyp("isom", "iso2", mHevc ? "hvc1" : "avc1", "mp41");
+        // mdat with a 64-bit size, patched on close.
+        header.putInt(1);
+        header.putFourCC("mdat");
+        header.putLong(0);
+        writeFully(header.flip());
+        mPosition = mChannel.position();
+        mMdatStart = mPosition - 16;
+    }
+
+    @Override
+    public void setWriteBehind(@NonNull WriteBehindConfig config, @NonNull WriteBehindStats stats) {
+        if (mWriter != null || mClosed) return;
+        mWriter = new CoalescingWriter(mChannel, mPosition, config, stats);
+    }
+
+    @Override
+    public void addTrack(boolean isVideo, @NonNull ByteBuffer config, int size) {
+        Track track = isVideo ? mVideoTrack : mAudioTrack;
+        if (track == null) return;
+        if (isVideo) {
+            if (mHevc) {
+                mAnnexB.readHevcParameterSets(config, size, track.vps, track.sps, track.pps);
+            } else {
+                mAnnexB.readParameterSets(config, size, track.sps, track.pps);
+            }
+        } else {
+            track.audioSpecificConfig = new byte[size];
+            config.duplicate().get(track.audioSpecificConfig);
+        }
+        track.hasConfig = true;
+    }
+
+    @Override
+    public void writeSample(boolean isVideo, @NonNull ByteBuffer data, int size,
+                            long presentationTimeUs, boolean isKeyFrame) throws IOException {
+        Track track = isVideo ? mVideoTrack : mAudioTrack;
+        if (track == null || mClosed) return;
+        if (track.sampleCount > 0 && presentationTimeUs <= track.timesUs[track.sampleCount - 1]) {
+            // Out of order or duplicate: the sample tables can't represent it.
+            return;
+        }
+        if (isVideo && isKeyFrame && mWriter != null) mWriter.syncPoint();
+        long offset = mPosition;
+        int written;
+        if (isVideo) {
+            ByteBuffer sample = mAnnexB.toLengthPrefixed(data, size);
+            written = sample.remaining();
+            append(sample);
+        } else {
+            ByteBuffer sample = data.duplicate();
+            sample.limit(sample.position() + size);
+            append(sample);
+            written = size;
+        }
+        if (mLastTrack != track || track.chunkCount == 0) {
+            track.addChunk(offset);
+            mLastTrack = track;
+        }
+        track.chunkSamples[track.chunkCount - 1]++;
+        track.addSample(written, presentationTimeUs, isKeyFrame);
+        mPosition += written;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        try {
+            long mdatSize = mPosition - mMdatStart;
+            ByteBuffer size = ByteBuffer.allocate(8);
+            size.putLong(0, mdatSize);
+            mChannel.write(size, mMdatStart + 8);
+            if (mWriter != null) {
+                mWriter.write(buildMoov().flip());
+                mWriter.flush();
+            } else {
+                mChannel.position(mPosition);
+                writeFully(buildMoov().flip());
+            }
+        } finally {
+            mChannel.close();
+            mFile.close();
+        }
+    }
+
+    @Override
+    public boolean acceptsDirectBuffers() {
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes currently held by the sample tables.
+     * @return the table size in bytes
+     */
+    public long getSampleTableBytes() {
+        return mVideoTrack.tableBytes() + (mAudioTrack == null ? 0 : mAudioTrack.tableBytes());
+    }
+
+    /**
+     * Returns the number of bytes written so far, not counting the moov box.
+     * @return the written bytes
+     */
+    public long getWrittenBytes() {
+        return mPosition;
+    }
+
+    private void writeFully(@NonNull ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) mChannel.write(buffer);
+    }
+
+    private void append(@NonNull ByteBuffer buffer) throws IOException {
+        if (mWriter != null) {
+            mWriter.write(buffer);
+        } else {
+            writeFully(buffer);
+        }
+    }
+
+    @NonNull
+    private Mp4BoxWriter buildMoov() {
+        long firstTimeUs = Long.MAX_VALUE;
+        long endTimeUs = 0;
+        for (Track track : tracks()) {
+            if (track.sampleCount == 0) continue;
+            firstTimeUs = Math.min(firstTimeUs, track.timesUs[0]);
+            endTimeUs = Math.max(endTimeUs, track.timesUs[0] + track.durationUs());
+        }
+        if (firstTimeUs == Long.MAX_VALUE) firstTimeUs = 0;
+        long movieDuration = (endTimeUs - firstTimeUs) * Mp4BoxWriter.MOVIE_TIMESCALE / 1000000L;
+
+        Mp4BoxWriter box = new Mp4BoxWriter(4096 + (int) Math.min(getSampleTableBytes(), 64L << 20));
+        int moov = box.start("moov");
+        box.writeMvhd(movieDuration, tracks().size() + 1);
+        int trackId = 1;
+        for (Track track : tracks()) {
+            if (track.sampleCount == 0) continue;
+            writeTrak(box, track, trackId++, firstTimeUs);
+        }
+        box.end(moov);
+        return box;
+    }
+
+    @NonNull
+    private List<Track> tracks() {
+        List<Track> tracks = new ArrayList<>(2);
+        tracks.add(mVideoTrack);
+        if (mAudioTrack != null) tracks.add(mAudioTrack);
+        return tracks;
+    }
+
+    private void writeTrak(@NonNull Mp4BoxWriter box, @NonNull Track track, int trackId,
+                           long movieStartUs) {
+        long durationUs = track.durationUs();
+        long movieDuration = durationUs * Mp4BoxWriter.MOVIE_TIMESCALE / 1000000L;
+        long mediaDuration = track.toTimescale(durationUs);
+        int trak = box.start("trak");
+
+        box.writeTkhd(trackId, movieDuration, track.isVideo, mWidth, mHeight);
+
+        long delayUs = track.timesUs[0] - movieStartUs;
+        if (delayUs > 0) {
+            int edts = box.start("edts");
+            int elst = box.startFull("elst", 0, 0);
+            box.putInt(2);
+            box.putInt((int) (delayUs * Mp4BoxWriter.MOVIE_TIMESCALE / 1000000L));
+            box.putInt(-1); // empty edit
+            box.putInt(0x00010000);
+            box.putInt((int) movieDuration);
+            box.putInt(0);
+            box.putInt(0x00010000);
+            box.end(elst);
+            box.end(edts);
+        }
+
+        int mdia = box.start("mdia");
+        box.writeMdhd(track.timescale, mediaDuration);
+        box.writeHdlr(track.isVideo);
+        int minf = box.start("minf");
+        box.writeMediaHeaders(track.isVideo);
+        writeStbl(box, track);
+        box.end(minf);
+        box.end(mdia);
+        box.end(trak);
+    }
+
+    private void writeStbl(@NonNull Mp4BoxWriter box, @NonNull Track track) {
+        int stbl = box.start("stbl");
+        int stsd = box.startFull("stsd", 0, 0);
+        box.putInt(1);
+        if (track.isVideo) {
+            if (mHevc) {
+                box.writeHvc1(mWidth, mHeight, track.vps, track.sps, track.pps);
+            } else {
+                box.writeAvc1(mWidth, mHeight, track.sps, track.pps);
+            }
+        } else {
+            box.writeMp4a(mChannels, mSampleRate, track.audioSpecificConfig);
+        }
+        box.end(stsd);
+
+        // stts: run-length encoded sample durations.
+        int stts = box.startFull("stts", 0, 0);
+        int sttsCount = box.position();
+        box.putInt(0);
+        int entries = 0;
+        long runDelta = -1;
+        int runLength = 0;
+        for (int i = 0; i < track.sampleCount; i++) {
+            long delta;
+            if (i + 1 < track.sampleCount) {
+                delta = track.toTimescale(track.timesUs[i + 1] - track.timesUs[0])
+                        - track.toTimescale(track.timesUs[i] - track.timesUs[0]);
+            } else {
+                delta = track.toTimescale(track.lastSampleDurationUs());
+            }
+            if (delta < 1) delta = 1;
+            if (delta == runDelta) {
+                runLength++;
+            } else {
+                if (runLength > 0) {
+                    box.putInt(runLength);
+                    box.putInt((int) runDelta);
+                    entries++;
+                }
+                runDelta = delta;
+                runLength = 1;
+            }
+        }
+        if (runLength > 0) {
+            box.putInt(runLength);
+            box.putInt((int) runDelta);
+            entries++;
+        }
+        box.putInt(sttsCount, entries);
+        box.end(stts);
+
+        // stss: only if some samples are not sync samples.
+        if (track.isVideo && track.syncCount < track.sampleCount) {
+            int stss = box.startFull("stss", 0, 0);
+            box.putInt(track.syncCount);
+            for (int i = 0; i < track.syncCount; i++) box.putInt(track.syncSamples[i]);
+            box.end(stss);
+        }
+
+        // stsc: run-length encoded chunk sizes.
+        int stsc = box.startFull("stsc", 0, 0);
+        int stscCount = box.position();
+        box.putInt(0);
+        entries = 0;
+        int lastSamples = -1;
+        for (int i = 0; i < track.chunkCount; i++) {
+            if (track.chunkSamples[i] != lastSamples) {
+                lastSamples = track.chunkSamples[i];
+                box.putInt(i + 1);
+                box.putInt(lastSamples);
+                box.putInt(1);
+                entries++;
+            }
+        }
+        box.putInt(stscCount, entries);
+        box.end(stsc);
+
+        int stsz = box.startFull("stsz", 0, 0);
+        box.putInt(0);
+        box.putInt(track.sampleCount);
+        for (int i = 0; i < track.sampleCount; i++) box.putInt(track.sizes[i]);
+        box.end(stsz);
+
+        boolean largeOffsets = track.chunkCount > 0
+                && track.chunkOffsets[track.chunkCount - 1] > 0xFFFFFFFFL;
+        int stco = box.startFull(largeOffsets ? "co64" : "stco", 0, 0);
+        box.putInt(track.chunkCount);
+        for (int i = 0; i < track.chunkCount; i++) {
+            if (largeOffsets) {
+                box.putLong(track.chunkOffsets[i]);
+            } else {
+                box.putInt((int) track.chunkOffsets[i]);
+            }
+        }
+        box.end(stco);
+        box.end(stbl);
+    }
+
+    private static int[] grow(int[] array) {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private static long[] grow(long[] array) {
+        long[] grown = new long[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
@@ -19,6 +19,7 @@ import com.sabine.cameraview.utils.LogUtil;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -112,7 +113,7 @@ public abstract class MediaEncoder {
     protected final static String NAME_VIDEO = "VideoEncoder";
     protected final static String NAME_AUDIO = "AudioEncoder";
 
-    private int mState = STATE_NONE;
+    private volatile int mState = STATE_NONE;
     private final String mName;
 
     @SuppressWarnings("WeakerAccess")
@@ -125,12 +126,15 @@ public abstract class MediaEncoder {
 
     MediaFormat mediaFormat;
 
-    protected MediaEncoderEngine.Controller mController;
+    // Null while pre-warmed, until attach() is called. Read by the draining thread.
+    protected volatile MediaEncoderEngine.Controller mController;
     private OutputBufferPool mOutputBufferPool;
     private MediaCodec.BufferInfo mBufferInfo;
     private MediaCodecBuffers mBuffers;
     private final Map<String, AtomicInteger> mPendingEvents = new HashMap<>();
     private boolean recordState;
+    private boolean mPrewarmed;
+    private volatile RuntimeException mPrewarmError;
 
     private long mStartTimeUs = 0; // In System.currentTimeMillis()
 
@@ -179,13 +183,99 @@ public abstract class MediaEncoder {
      * the previous step has completed.
      */
     final void prepare(@NonNull final MediaEncoderEngine.Controller controller) {
+        doPrepare(controller, null);
+    }
+
+    /**
+     * Prepares this encoder before any engine exists, so that creating the codec and its
+     * input surface is not paid when recording starts. The engine will then call
+     * {@link #attach(MediaEncoderEngine.Controller)} instead of
+     * {@link #prepare(MediaEncoderEngine.Controller)}.
+     * If the encoder is never attached, {@link #release()} must be called.
+     *
+     * This waits for the codec to be prepared, so it should not be called on the UI thread.
+     * If the codec can't be prepared, this encoder is released and the error is thrown.
+     *
+     * @throws RuntimeException if the codec could not be created or configured
+     */
+    public final void prewarm() {
+        mPrewarmed = true;
+        CountDownLatch latch = new CountDownLatch(1);
+        if (!doPrepare(null, latch)) return;
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        RuntimeException error = mPrewarmError;
+        if (error != null) throw error;
+    }
+
+    /**
+     * Whether {@link #prewarm()} was called.
+     * @return true if pre-warmed
+     */
+    public final boolean isPrewarmed() {
+        return mPrewarmed;
+    }
+
+    /**
+     * Whether this encoder was stopped or released, and its codec released.
+     * @return true if stopped
+     */
+    final boolean isStopped() {
+        return mState == STATE_STOPPED;
+    }
+
+    /**
+     * Attaches a pre-warmed encoder to the engine controller.
+     * @param controller the muxer controller
+     */
+    final void attach(@NonNull MediaEncoderEngine.Controller controller) {
+        LOG.i(mName, "Attaching pre-warmed encoder.");
+        mController = controller;
+    }
+
+    /**
+     * Releases a pre-warmed encoder that was never started. Started encoders are
+     * released by {@link #stop()} as usual, so this does nothing for them.
+     */
+    public final void release() {
+        if (mWorker == null || mState == STATE_STOPPED) return;
+        mWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mState != STATE_PREPARED) {
+                    LOG.w(mName, "release:", "not in the prepared state. Ignoring.", mState);
+                    return;
+                }
+                LOG.i(mName, "Releasing the pre-warmed encoder.");
+                setState(STATE_STOPPING);
+                onRelease();
+            }
+        });
+    }
+
+    /**
+     * Posts the preparation to a new worker thread.
+     *
+     * @param controller the controller, or null when pre-warming
+     * @param prewarmed counted down once a pre-warmed encoder is prepared or released
+     * @return false if not in the right state
+     */
+    private boolean doPrepare(@Nullable final MediaEncoderEngine.Controller controller,
+                              @Nullable final CountDownLatch prewarmed) {
         if (mState >= STATE_PREPARING) {
             LOG.e(mName, "Wrong state while preparing. Aborting.", mState);
-            return;
+            return false;
         }
         mController = controller;
         mBufferInfo = new MediaCodec.BufferInfo();
-        mWorker = WorkerHandler.get(mName);
+        // Each encoder gets its own thread: pre-warmed encoders can be released while
+        // another encoder with the same name is being used, and a recording can have
+        // several video encoders.
+        mWorker = WorkerHandler.get(mName + "@"
+                + Integer.toHexString(System.identityHashCode(this)));
         mWorker.getThread().setPriority(Thread.MAX_PRIORITY);
         LOG.i(mName, "Prepare was called. Posting.");
         mWorker.post(new Runnable() {
@@ -193,11 +283,34 @@ public abstract class MediaEncoder {
             public void run() {
                 LOG.i(mName, "Prepare was called. Executing.");
                 setState(STATE_PREPARING);
-                onPrepare(controller);
-                setState(STATE_PREPARED);
+                if (prewarmed == null) {
+                    onPrepare(controller);
+                    setState(STATE_PREPARED);
+                    return;
+                }
+                try {
+                    onPrepare(null);
+                    if (mMediaCodec == null) {
+                        throw new IllegalStateException("Could not create the codec.");
+                    }
+                    setState(STATE_PREPARED);
+                } catch (RuntimeException e) {
+                    // Nobody would stop this encoder: release the codec and the thread.
+                    LOG.e(mName, "Could not pre-warm. Releasing.", e);
+                    mPrewarmError = e;
+                    if (mMediaCodec != null) {
+                        mMediaCodec.release();
+                        mMediaCodec = null;
+                    }
+                    setState(STATE_STOPPED);
+                    mWorker.destroy();
+                } finally {
+                    prewarmed.countDown();
+                }
             }
         });
         mStartTimeUs = 0;
+        return true;
     }
 
     /**
@@ -245,7 +358,7 @@ public abstract class MediaEncoder {
 //        if (mName.equalsIgnoreCase("VideoEncoder"))
 //        LOG.e(mName, "Notify was called. Posting. pendingEvents:", pendingEvents.intValue());
 //        if (pendingEvents.intValue() > 2) LogUtil.w(mName, "pendingEvents.intValue() === " + pendingEvents.intValue());
-        WorkerHandler.get(mName).post(new Runnable() {
+        mWorker.post(new Runnable() {
             @Override
             public void run() {
 //                if (mName.equalsIgnoreCase("VideoEncoder"))
@@ -291,10 +404,10 @@ public abstract class MediaEncoder {
      *
      * At this point subclasses MUST create the {@link #mMediaCodec} object.
      *
-     * @param controller the muxer controller
+     * @param controller the muxer controller, or null if pre-warming
      */
     @EncoderThread
-    protected abstract void onPrepare(@NonNull MediaEncoderEngine.Controller controller);
+    protected abstract void onPrepare(@Nullable MediaEncoderEngine.Controller controller);
 
     /**
      * Start recording. This might be a lightweight operation
@@ -320,6 +433,15 @@ public abstract class MediaEncoder {
     @EncoderThread
     protected abstract void onStop();
 
+    /**
+     * Releases a prepared encoder that was never started. Implementations must
+     * eventually call {@link #onStopped()}.
+     */
+    @EncoderThread
+    protected void onRelease() {
+        onStopped();
+    }
+
     /**
      * Called by {@link #drainOutput(boolean)} when we get an EOS signal (not necessarily in the
      * parameters, might also be through an input buffer flag).
@@ -356,10 +478,23 @@ public abstract class MediaEncoder {
      */
     @SuppressWarnings("WeakerAccess")
     protected boolean tryAcquireInputBuffer(@NonNull InputBuffer holder) {
+        return tryAcquireInputBuffer(holder, INPUT_TIMEOUT_US);
+    }
+
+    /**
+     * Returns a new input buffer and index, waiting at most the given time
+     * for the codec to make one available.
+     *
+     * @param holder the input buffer holder
+     * @param timeoutUs the max wait
+     * @return true if acquired
+     */
+    @SuppressWarnings("WeakerAccess")
+    protected boolean tryAcquireInputBuffer(@NonNull InputBuffer holder, long timeoutUs) {
         if (mBuffers == null) {
             mBuffers = new MediaCodecBuffers(mMediaCodec);
         }
-        int inputBufferIndex = mMediaCodec.dequeueInputBuffer(INPUT_TIMEOUT_US);
+        int inputBufferIndex = mMediaCodec.dequeueInputBuffer(timeoutUs);
         if (inputBufferIndex < 0) {
             return false;
         } else {
@@ -425,6 +560,9 @@ public abstract class MediaEncoder {
             mBuffers = new MediaCodecBuffers(mMediaCodec);
         }
         while (true) {
+            // Null if a pre-warmed encoder is released before being attached: its output
+            // is the EOS we signaled, and maybe a format, which are not written anywhere.
+            MediaEncoderEngine.Controller controller = mController;
 //            long time1 = isVideo?SystemClock.elapsedRealtime():0;
             int encoderStatus = mMediaCodec.dequeueOutputBuffer(mBufferInfo, OUTPUT_TIMEOUT_US);
 //            long time2 = isVideo?SystemClock.elapsedRealtime():0;
@@ -441,7 +579,9 @@ public abstract class MediaEncoder {
 
 //                long time5, time6, time7, time8;
 //                time6 = time7 = time8 = time5 = isVideo ? SystemClock.elapsedRealtime() : 0;
-                if (isCodecConfig) {
+                if (controller == null) {
+                    LOG.i(mName, "DRAINING - Not attached. Dropping output.");
+                } else if (isCodecConfig) {
 //                    time6 = isVideo ? SystemClock.elapsedRealtime() : 0;
                     OutputBuffer buffer = mOutputBufferPool.get();
                     //noinspection ConstantConditions
@@ -453,7 +593,7 @@ public abstract class MediaEncoder {
 //                    time8 = isVideo ? SystemClock.elapsedRealtime() : 0;
 //                    byte[] bytes = new byte[buffer.data.remaining()];
 //                    buffer.data.get(bytes);
-                } else if (mController.isStarted() && mBufferInfo.size != 0) {
+                } else if (controller.isStarted() && mBufferInfo.size != 0) {
 
                     // adjust the ByteBuffer values to match BufferInfo (not needed?)
                     if (mBufferInfo.offset != 0) {
@@ -502,11 +642,15 @@ public abstract class MediaEncoder {
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                 // should happen before receiving buffers, and should only happen once
                 LogUtil.e(mName, "bbb INFO_OUTPUT_FORMAT_CHANGED + presentationTimeUs === " + mBufferInfo.presentationTimeUs);
-                if (mController.isStarted()) {
+                if (controller == null) {
+                    LOG.i(mName, "DRAINING - Not attached. Ignoring the format.");
+                    continue;
+                }
+                if (controller.isStarted()) {
                     throw new RuntimeException("MediaFormat changed twice.");
                 }
                 mediaFormat = mMediaCodec.getOutputFormat();
-                mController.notifyStarted(mediaFormat/*, mLastTimeUs, mName.equals("VideoEncoder")*/);
+                controller.notifyStarted(mediaFormat/*, mLastTimeUs, mName.equals("VideoEncoder")*/);
                 setState(STATE_STARTED);
                 if (mOutputBufferPool == null) mOutputBufferPool = new OutputBufferPool();
             } else {
@@ -528,6 +672,16 @@ public abstract class MediaEncoder {
         return recordState;
     }
 
+    /**
+     * Returns the engine metrics, if enabled and if we are attached to an engine.
+     * @return the metrics or null
+     */
+    @Nullable
+    protected EncoderMetrics getMetrics() {
+        MediaEncoderEngine.Controller controller = mController;
+        return controller != null ? controller.getMetrics() : null;
+    }
+
     /**
      * Should be called by subclasses to pass the milliseconds of the first frame - as soon
      * as this information is available. The milliseconds should be in the
@@ -14,13 +14,13 @@ import androidx.annotation.RequiresApi;
 import com.sabine.cameraview.CameraLogger;
 import com.sabine.cameraview.internal.WorkerHandler;
 import com.sabine.cameraview.utils.LogUtil;
-import com.sabinetek.mp4v2utils.Mp4v2Helper;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
@@ -29,6 +29,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * The entry point for encoding video files.
@@ -37,7 +38,8 @@ import java.util.concurrent.atomic.AtomicInteger;
  * controls a {@link MediaEncoder} instance for each track (e.g. one for video, one for audio).
  *
  * 1. We prepare the MediaEncoders: {@link MediaEncoder#prepare(Controller)}
- *    MediaEncoders can be prepared synchronously or not.
+ *    MediaEncoders can be prepared synchronously or not. Encoders that were already
+ *    prepared with {@link MediaEncoder#prewarm()} are just attached.
  *
  * 2. Someone calls {@link #start()} from any thread.
  *    As a consequence, we start the MediaEncoders: {@link MediaEncoder#start()}.
@@ -98,21 +100,58 @@ public class MediaEncoderEngine {
         void onEncodingEnd(int reason, @Nullable Exception e);
     }
 
+    /**
+     * Receives segment events, when the engine was created with a {@link SegmentConfig}.
+     */
+    public interface SegmentListener {
+
+        /**
+         * Called when a segment was completed. This is called on the writer thread,
+         * so it should return quickly.
+         *
+         * @param index the segment index, as passed to {@link Muxer.Factory#createMuxer(int)}
+         * @param startTimeUs timestamp of the first sample of this segment
+         * @param endTimeUs timestamp of the first sample of the next segment, or of the
+         *                  last sample if this is the last segment
+         * @param e the error, if present
+         */
+        void onSegmentEnd(int index, long startTimeUs, long endTimeUs, @Nullable Exception e);
+    }
+
+    /**
+     * Receives the bit rate changes of {@link #setAdaptiveBitRate(boolean)}.
+     */
+    public interface BitRateListener {
+
+        /**
+         * Called when the video bit rate was changed while encoding, because the writer
+         * could not keep up or recovered.
+         *
+         * @param videoBitrate the new bit rate
+         */
+        @EncoderThread
+        void onEncodingBitRateChanged(int videoBitrate);
+    }
+
+    /**
+     * An encoded sample waiting to be written. Entries and their buffers are recycled
+     * by the engine after the muxer has consumed them.
+     */
     public class WriteOutputEntry {
-        public byte[] mOutputBuffer;
+        /**
+         * The sample data, from position 0 to limit. Comes from {@link #mSampleArena}.
+         */
+        public ByteBuffer mOutputBuffer;
+        public int mSize;
         public boolean mIsConfig;
         public boolean mIsVideo;
         public long mPresentationTimeUs;
+        public boolean mIsKeyFrame;
+        // When the entry was queued, only with metrics.
+        public long mQueuedNanos;
 
         public WriteOutputEntry() {
         }
-
-        public WriteOutputEntry(byte[] outputBuffer, boolean isConfig, boolean isVideo, long presentationTimeUs) {
-            mOutputBuffer = outputBuffer;
-            mIsConfig = isConfig;
-            mIsVideo = isVideo;
-            mPresentationTimeUs = presentationTimeUs;
-        }
     }
 
     private final static String TAG = MediaEncoderEngine.class.getSimpleName();
@@ -124,6 +163,19 @@ public class MediaEncoderEngine {
     public final static int END_BY_MAX_DURATION = 1;
     public final static int END_BY_MAX_SIZE = 2;
 
+    // Max number of encoded samples waiting to be written, for each track.
+    // At 60fps this is more than 15 seconds of video.
+    private final static int WRITE_QUEUE_CAPACITY = 1024;
+    // The writer is always woken up by the encoders. This is just a safety net.
+    private final static long WRITER_PARK_TIMEOUT_NANOS = 100 * 1000000L;
+    // Max bytes of free sample buffers kept for reuse.
+    private final static long SAMPLE_ARENA_MAX_RETAINED_BYTES = 64 * 1024 * 1024L;
+    // The adaptive bit rate never goes below this fraction of the initial one.
+    private final static int MIN_BIT_RATE_DIVIDER = 4;
+    // Max audio held past a segment boundary while waiting for a video keyframe. Beyond
+    // this, the oldest held audio is written to the current segment, where video still is.
+    private final static long MAX_HELD_AUDIO_US = 2000000L;
+
     private final List<MediaEncoder> mEncoders = new ArrayList<>();
     private int mStartedEncodersCount = 0;
     private int mStoppedEncodersCount = 0;
@@ -132,19 +184,123 @@ public class MediaEncoderEngine {
 
     @SuppressWarnings("FieldCanBeLocal")
     private final Controller mController = new Controller();
-    private final WorkerHandler mControllerThread = WorkerHandler.get("EncoderEngine");
+    // Several engines can run at once, see addAudioOutput().
+    private final WorkerHandler mControllerThread = WorkerHandler.get("EncoderEngine@"
+            + Integer.toHexString(System.identityHashCode(this)));
     private final Object mControllerLock = new Object();
-    private final Object mOutputQueueLock = new Object();
     private Listener mListener;
-    private int mEndReason = END_BY_USER;
+    // Written by the writer thread when a limit is reached.
+    private volatile int mEndReason = END_BY_USER;
+    // Limits, set before start(). The limiter is owned by the writer thread.
+    private long mMaxSize;
+    private long mMaxDurationUs;
+    private RecordingLimiter mLimiter;
 
-    private Mp4v2Helper mMp4v2Helper;
+    // Only written by the writer thread when segmenting.
+    private Muxer mMuxer;
+    // The first muxer error. Only written by the writer thread, read after it ends.
+    private volatile Exception mMuxerError;
 
     private final Map<String, AtomicInteger> mPendingEvents = new HashMap<>();
 
-    private Thread mWriteMp4Thread;
-    private List<WriteOutputEntry> mOutputEntrys;
-    private boolean mWriteEnd;
+    private volatile Thread mWriteMp4Thread;
+    private final SampleQueue<WriteOutputEntry> mVideoOutputQueue
+            = new SampleQueue<>(WRITE_QUEUE_CAPACITY);
+    private final SampleQueue<WriteOutputEntry> mAudioOutputQueue
+            = new SampleQueue<>(WRITE_QUEUE_CAPACITY);
+    private final SampleQueue.Sink<WriteOutputEntry> mWriteSink
+            = new SampleQueue.Sink<WriteOutputEntry>() {
+        @Override
+        public void onItem(@NonNull WriteOutputEntry item) {
+            if (preRollEntry(item)) return;
+            if (holdEntry(item)) return;
+            writeEntry(item);
+            recycleEntry(item);
+        }
+    };
+    private volatile boolean mWriteEnd;
+    private volatile boolean mWriterParked;
+    private final SampleBufferArena mSampleArena;
+
+    // Segmenting, only when created with a Muxer.Factory. Fields are owned by the writer
+    // thread, except mSegmentOriginUs which is read by the Controller.
+    private final Muxer.Factory mMuxerFactory;
+    private final long mSegmentDurationUs;
+    // Written before start() by addAudioOutput().
+    private boolean mHasAudio;
+    private SegmentListener mSegmentListener;
+    private volatile long mSegmentOriginUs = -1;
+    private Muxer mNextMuxer;
+    private int mSegmentIndex;
+    private long mSegmentStartUs = -1;
+    private long mSegmentCutUs = -1;
+    private long mNextBoundaryUs = Long.MAX_VALUE;
+    private boolean mVideoCrossedCut;
+    private boolean mAudioCrossedCut;
+    private long mLastTimeUs;
+    private ByteBuffer mVideoTrackConfig;
+    private ByteBuffer mAudioTrackConfig;
+    // Audio samples past the segment boundary, waiting for the video keyframe
+    // that tells where the next segment starts.
+    private final ArrayDeque<WriteOutputEntry> mHeldAudioEntries = new ArrayDeque<>();
+    private final ArrayDeque<WriteOutputEntry> mFreeEntries = new ArrayDeque<>();
+
+    // Pre-roll. The buffer is owned by the writer thread and released when flushed.
+    private PreRollBuffer mPreRollBuffer;
+    private boolean mPreRollArmed;
+    private volatile boolean mPreRollTriggered;
+    private final PreRollBuffer.Consumer mPreRollConsumer = new PreRollBuffer.Consumer() {
+        @Override
+        public void onSample(@NonNull ByteBuffer data, boolean isVideo, long timeUs,
+                             boolean isKeyFrame) {
+            int size = data.remaining();
+            WriteOutputEntry entry = obtainEntry(size);
+            entry.mIsConfig = false;
+            entry.mIsVideo = isVideo;
+            entry.mPresentationTimeUs = timeUs;
+            entry.mIsKeyFrame = isKeyFrame;
+            entry.mQueuedNanos = 0;
+            entry.mOutputBuffer.put(data);
+            entry.mOutputBuffer.flip();
+            if (!holdEntry(entry)) {
+                writeEntry(entry);
+                recycleEntry(entry);
+            }
+        }
+    };
+    private int mEntryAllocationCount;
+    // Pause intervals, removed from the timeline of all tracks.
+    private final PtsRebaser mPtsRebaser = new PtsRebaser();
+    // Time-lapse decimation, only when configured.
+    private TimeLapseClock mTimeLapse;
+    // The clock of the frame timestamps.
+    private volatile FrameClock mFrameClock = new FrameClock(FrameClock.MONOTONIC);
+    // Engines receiving a copy of our encoded audio. Not modified after start().
+    private final List<MediaEncoderEngine> mAudioOutputs = new ArrayList<>();
+    // Adaptive bit rate. The governor is owned by the writer thread.
+    private boolean mAdaptiveBitRate;
+    private BitRateGovernor mBitRateGovernor;
+    private BitRateListener mBitRateListener;
+    // Writer thread stats, only written by the writer thread.
+    private int mWriterMaxBatch;
+    private int mWriterWakeups;
+    private long mWriterWaitNanos;
+    // Metrics, only when configured.
+    private volatile EncoderMetrics mMetrics;
+    private MetricsConfig mMetricsConfig;
+    // Write-behind, only when configured.
+    private WriteBehindConfig mWriteBehindConfig;
+    private volatile WriteBehindStats mWriteBehindStats;
+    private final Runnable mMetricsReport = new Runnable() {
+        @Override
+        public void run() {
+            EncoderMetrics metrics = mMetrics;
+            MetricsConfig config = mMetricsConfig;
+            if (metrics == null || config == null || config.listener == null) return;
+            config.listener.onMetrics(metrics.snapshot());
+            mControllerThread.post(config.intervalMillis, this);
+        }
+    };
 
     /**
      * Creates a new engine for the given file, with the given encoders and max limits,
@@ -159,36 +315,78 @@ public class MediaEncoderEngine {
                               @NonNull VideoMediaEncoder videoEncoder,
                               @Nullable AudioMediaEncoder audioEncoder,
                               @Nullable Listener listener) {
-        mMp4v2Helper = new Mp4v2Helper();
-        mListener = listener;
-        mEncoders.add(videoEncoder);
-        mEncoders.add(audioEncoder);
+        this(new Mp4v2Muxer(file, videoEncoder.getVideoConfig(), audioEncoder.getAudioConfig()),
+                videoEncoder, audioEncoder, listener);
+    }
+
+    /**
+     * Creates a new engine that writes to the given {@link Muxer},
+     * with the given encoders and listener to receive events.
+     *
+     * @param muxer the muxer backend
+     * @param videoEncoder video encoder to use
+     * @param audioEncoder audio encoder to use
+     * @param listener a listener
+     */
+    public MediaEncoderEngine(@NonNull Muxer muxer,
+                              @NonNull VideoMediaEncoder videoEncoder,
+                              @Nullable AudioMediaEncoder audioEncoder,
+                              @Nullable Listener listener) {
+        this(muxer, null, 0, videoEncoder, audioEncoder, listener);
+    }
 
-        AudioConfig audioConfig = audioEncoder.getAudioConfig();
-        VideoConfig videoConfig = videoEncoder.getVideoConfig();
+    /**
+     * Creates a new engine that splits the recording into segments of the given duration,
+     * each one written by a new {@link Muxer} from the factory. Encoders keep running
+     * across segments, and each segment starts with a video keyframe.
+     * Use {@link #setSegmentListener(SegmentListener)} to know when segments are completed.
+     *
+     * @param muxerFactory creates a muxer for each segment
+     * @param segmentConfig the segment config
+     * @param videoEncoder video encoder to use
+     * @param audioEncoder audio encoder to use
+     * @param listener a listener
+     * @throws IOException if the first muxer can't be created
+     */
+    public MediaEncoderEngine(@NonNull Muxer.Factory muxerFactory,
+                              @NonNull SegmentConfig segmentConfig,
+                              @NonNull VideoMediaEncoder videoEncoder,
+                              @Nullable AudioMediaEncoder audioEncoder,
+                              @Nullable Listener listener) throws IOException {
+        this(muxerFactory.createMuxer(0), muxerFactory,
+                segmentConfig.segmentDurationMillis * 1000L,
+                videoEncoder, audioEncoder, listener);
+    }
 
-        if (mMp4v2Helper != null) {
-            int result = mMp4v2Helper.init(file.getAbsolutePath(), videoConfig.width, videoConfig.height, videoConfig.frameRate, audioConfig.channels, audioConfig.samplingFrequency);
-            if (result > 0) {
-                LogUtil.e(TAG, "init mp4v2 success");
-            } else {
-                LogUtil.e(TAG, "init mp4v2 failed");
-            }
+    private MediaEncoderEngine(@NonNull Muxer muxer,
+                               @Nullable Muxer.Factory muxerFactory,
+                               long segmentDurationUs,
+                               @NonNull VideoMediaEncoder videoEncoder,
+                               @Nullable AudioMediaEncoder audioEncoder,
+                               @Nullable Listener listener) {
+        if (muxerFactory != null && segmentDurationUs <= 0) {
+            throw new IllegalArgumentException("Invalid segment duration: " + segmentDurationUs);
         }
+        mMuxer = muxer;
+        mMuxerFactory = muxerFactory;
+        mSegmentDurationUs = segmentDurationUs;
+        mHasAudio = audioEncoder != null;
+        mListener = listener;
+        mEncoders.add(videoEncoder);
+        if (audioEncoder != null) mEncoders.add(audioEncoder);
+        // Direct buffers only when the muxer can read them without a copy.
+        mSampleArena = new SampleBufferArena(muxer.acceptsDirectBuffers(),
+                SAMPLE_ARENA_MAX_RETAINED_BYTES);
+
         mPendingEvents.put(TAG, new AtomicInteger(0));
-        mOutputEntrys = new ArrayList<>();
         mWriteEnd = false;
 
-        // Trying to convert the size constraints to duration constraints,
-        // because they are super easy to check.
-        // This is really naive & probably not accurate, but...
-        int bitRate = 0;
-        for (MediaEncoder encoder : mEncoders) {
-            bitRate += encoder.getEncodedBitRate();
-        }
-        int byteRate = bitRate / 8;
         for (MediaEncoder encoder : mEncoders) {
-            encoder.prepare(mController);
+            if (encoder.isPrewarmed()) {
+                encoder.attach(mController);
+            } else {
+                encoder.prepare(mController);
+            }
         }
         Date nowtime = new Date();
         LogUtil.e(TAG, new SimpleDateFormat("yyyy-MM-dd-hh-mm-ss").format(nowtime) + " version : 2.2.11");
@@ -199,73 +397,664 @@ public class MediaEncoderEngine {
      */
     public final void start() {
         mPresentationTimeUs = 0;
-        LOG.i("Passing event to encoders:", "START");
-        for (MediaEncoder encoder : mEncoders) {
-            encoder.start();
+        if (mMaxSize > 0 || mMaxDurationUs > 0) {
+            mLimiter = new RecordingLimiter(mMaxSize, mMaxDurationUs);
         }
-        mWriteMp4Thread = new Thread() {
+        mWriteMp4Thread = new Thread("Mp4Writer") {
             @Override
             public void run() {
-                while (!mWriteEnd) {
-//                    synchronized (mControllerLock) {
-//                    Log.e("aaa", "run: mOutputEntrys.size === " + mOutputEntrys.size());
-                        if (mOutputEntrys.size() == 0) {
-                            try {
-                                synchronized (mOutputQueueLock) {
-                                    mOutputQueueLock.wait();
-                                }
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
-                        } else {
-                            if (mMp4v2Helper != null) {
-                                int result = 0;
-                                WriteOutputEntry writeOutputEntry = mOutputEntrys.get(0);
-                                if (writeOutputEntry == null) {
-                                    LogUtil.e(TAG, "run: writeOutputEntry == " + writeOutputEntry);
-                                    for (int i = 0; i < mOutputEntrys.size(); i++) {
-                                        LogUtil.e("aaa", "run: i === " + i + ", mOutputEntrys.get(i) === " + mOutputEntrys.get(i) + ", writeOutputEntry === " + writeOutputEntry);
-                                    }
-                                }
-//                                if (writeOutputEntry != null) {
-                                    if (writeOutputEntry.mIsConfig) {
-                                        if (writeOutputEntry.mIsVideo) {
-                                            if (mMp4v2Helper != null) result = mMp4v2Helper.addVideoTrack(writeOutputEntry.mOutputBuffer, writeOutputEntry.mOutputBuffer.length);
-                                        } else {
-                                            if (mMp4v2Helper != null) result = mMp4v2Helper.addAudioTrack(writeOutputEntry.mOutputBuffer, writeOutputEntry.mOutputBuffer.length);
-                                        }
-                                    } else {
-                                        if (mPresentationTimeUs == 0 && writeOutputEntry.mIsVideo) {
-                                            mPresentationTimeUs = writeOutputEntry.mPresentationTimeUs;
-                                        }
-                                        if (mPresentationTimeUs != 0) {
-                                            if (writeOutputEntry.mIsVideo && mMp4v2Helper != null && writeOutputEntry.mPresentationTimeUs >= mPresentationTimeUs) {
-                                                result = mMp4v2Helper.writeVideo(writeOutputEntry.mOutputBuffer, writeOutputEntry.mOutputBuffer.length, writeOutputEntry.mPresentationTimeUs);
-                                            } else if (mMp4v2Helper != null && writeOutputEntry.mPresentationTimeUs >= mPresentationTimeUs) {
-                                                result = mMp4v2Helper.writeAudio(writeOutputEntry.mOutputBuffer, writeOutputEntry.mOutputBuffer.length, writeOutputEntry.mPresentationTimeUs);
-                                            }
-                                        }
-                                    }
-                                synchronized (mOutputQueueLock) {
-                                    mOutputEntrys.remove(0);
-                                }
-//                                } else {
-//                                    LogUtil.e(TAG, "writeOutputEntry == null");
-//                                }
-                                if (result < 0) LogUtil.e(TAG, "write: encodeArray.length == " + writeOutputEntry.mOutputBuffer.length + ", result = " + result);
-
-                            } else
-                                break;
+                try {
+                    while (true) {
+                        int written = writePending();
+                        if (written > mWriterMaxBatch) mWriterMaxBatch = written;
+                        if (written > 0) continue;
+                        // Nothing to write. When stopping, we only leave after both queues
+                        // were drained, or we would lose the last samples.
+                        if (mWriteEnd && mVideoOutputQueue.isEmpty()
+                                && mAudioOutputQueue.isEmpty()) break;
+                        mWriterParked = true;
+                        if (!mWriteEnd && mVideoOutputQueue.isEmpty()
+                                && mAudioOutputQueue.isEmpty()) {
+                            long parkStart = System.nanoTime();
+                            LockSupport.parkNanos(this, WRITER_PARK_TIMEOUT_NANOS);
+                            mWriterWaitNanos += System.nanoTime() - parkStart;
+                            mWriterWakeups++;
                         }
-//                    }
+                        mWriterParked = false;
+                    }
+                } catch (RuntimeException e) {
+                    LOG.e("Mp4Writer:", "Writer failed.", e);
+                    if (mMuxerError == null) mMuxerError = e;
+                } finally {
+                    // From now on, encoder threads must not wait for us.
+                    mVideoOutputQueue.close();
+                    mAudioOutputQueue.close();
                 }
-                if (mMp4v2Helper != null) {
-                    mMp4v2Helper.close();
-                    mMp4v2Helper = null;
+                LOG.i("Mp4Writer:", "finished.",
+                        "video:", mVideoOutputQueue,
+                        "audio:", mAudioOutputQueue,
+                        "maxBatch:", mWriterMaxBatch,
+                        "wakeups:", mWriterWakeups,
+                        "waitMillis:", mWriterWaitNanos / 1000000L,
+                        "entries:", mEntryAllocationCount,
+                        "arena:", mSampleArena);
+                finishWriting();
+                mSampleArena.clear();
+                synchronized (mFreeEntries) {
+                    mFreeEntries.clear();
                 }
             }
         };
+        // Start the writer first: encoders might write as soon as they are started.
         mWriteMp4Thread.start();
+        if (mMetricsConfig != null && mMetricsConfig.listener != null
+                && mMetricsConfig.intervalMillis > 0) {
+            mControllerThread.post(mMetricsConfig.intervalMillis, mMetricsReport);
+        }
+        LOG.i("Passing event to encoders:", "START");
+        for (MediaEncoder encoder : mEncoders) {
+            encoder.start();
+        }
+    }
+
+    /**
+     * Passes a single entry to the muxer. Called on the writer thread only.
+     * @param entry the entry
+     */
+    private void writeEntry(@NonNull WriteOutputEntry entry) {
+        EncoderMetrics metrics = mMetrics;
+        // After an error, keep draining the queues but drop everything.
+        if (mMuxerError != null) {
+            if (metrics != null) metrics.recordDrop(EncoderMetrics.DROP_MUXER_ERROR);
+            return;
+        }
+        if (metrics != null && entry.mQueuedNanos > 0) {
+            metrics.recordStage(EncoderMetrics.STAGE_WRITE_QUEUE,
+                    (System.nanoTime() - entry.mQueuedNanos) / 1000L);
+        }
+        try {
+            if (entry.mIsConfig) {
+                if (mMuxerFactory != null) keepTrackConfig(entry);
+                mMuxer.addTrack(entry.mIsVideo, entry.mOutputBuffer, entry.mSize);
+            } else {
+                long timeUs = entry.mPresentationTimeUs;
+                if (mPresentationTimeUs == 0 && entry.mIsVideo) {
+                    mPresentationTimeUs = timeUs;
+                    if (mMuxerFactory != null) {
+                        mSegmentStartUs = timeUs;
+                        mNextBoundaryUs = timeUs + mSegmentDurationUs;
+                        mSegmentOriginUs = timeUs;
+                    }
+                }
+                if (mPresentationTimeUs != 0 && timeUs >= mPresentationTimeUs
+                        && !acceptLimits(entry)) {
+                    if (metrics != null) metrics.recordDrop(EncoderMetrics.DROP_LIMIT_REACHED);
+                } else if (mPresentationTimeUs != 0 && timeUs >= mPresentationTimeUs) {
+                    boolean startsSegment = mMuxerFactory != null && mNextMuxer == null
+                            && entry.mIsVideo && entry.mIsKeyFrame && timeUs >= mNextBoundaryUs;
+                    if (startsSegment) startNextSegment(timeUs);
+                    Muxer muxer = segmentMuxer(entry.mIsVideo, timeUs);
+                    long writeStart = System.nanoTime();
+                    muxer.writeSample(entry.mIsVideo, entry.mOutputBuffer, entry.mSize,
+                            timeUs, entry.mIsKeyFrame);
+                    long writeEnd = System.nanoTime();
+                    if (mAdaptiveBitRate) {
+                        governBitRate(entry, sampleWriteNanos(entry, writeEnd - writeStart));
+                    }
+                    if (metrics != null) {
+                        metrics.recordStage(EncoderMetrics.STAGE_MUX_WRITE,
+                                (writeEnd - writeStart) / 1000L);
+                        if (entry.mIsVideo && mTimeLapse == null) {
+                            // Timestamps don't include pauses.
+                            metrics.recordStage(EncoderMetrics.STAGE_VIDEO_TOTAL,
+                                    mFrameClock.nowUs() - mPtsRebaser.getPausedUs() - timeUs);
+                        }
+                    }
+                    if (timeUs > mLastTimeUs) mLastTimeUs = timeUs;
+                    if (startsSegment) releaseHeldEntries();
+                } else if (metrics != null) {
+                    metrics.recordDrop(EncoderMetrics.DROP_BEFORE_START);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Muxers can also throw unchecked exceptions, for example MediaMuxer's
+            // IllegalStateException. Either way, the writer must keep draining.
+            LOG.e("writeEntry:", "Muxer failed. Dropping the next samples.", e);
+            mMuxerError = e;
+        }
+    }
+
+    /**
+     * Checks the max size and duration before writing an entry. The first time a limit
+     * is reached, the engine is stopped with the matching end reason.
+     *
+     * @param entry a sample entry
+     * @return true if the entry can be written
+     */
+    private boolean acceptLimits(@NonNull WriteOutputEntry entry) {
+        RecordingLimiter limiter = mLimiter;
+        if (limiter == null) return true;
+        boolean reached = limiter.getEndReason() != RecordingLimiter.NOT_REACHED;
+        if (limiter.accept(entry.mIsVideo, entry.mSize, entry.mPresentationTimeUs,
+                entry.mIsKeyFrame)) return true;
+        if (!reached) {
+            mEndReason = limiter.getEndReason();
+            LOG.i("acceptLimits:", "limit reached.", "reason:", mEndReason,
+                    "timeUs:", entry.mPresentationTimeUs,
+                    "estimatedBytes:", limiter.getEstimatedBytes());
+            mControllerThread.run(new Runnable() {
+                @Override
+                public void run() {
+                    stop();
+                }
+            });
+        }
+        return false;
+    }
+
+    /**
+     * Returns the time it took to write a sample to storage. With write-behind, the
+     * muxer call either only copies the sample, or writes a whole chunk: charging that
+     * to one sample would look like a stall, so the sample gets its share of the
+     * flush throughput instead.
+     *
+     * @param entry the entry that was just written
+     * @param callNanos the time the muxer call took
+     * @return the write time
+     */
+    private long sampleWriteNanos(@NonNull WriteOutputEntry entry, long callNanos) {
+        WriteBehindStats stats = mWriteBehindStats;
+        if (stats == null) return callNanos;
+        return (long) (entry.mSize * stats.getLastFlushNanosPerByte());
+    }
+
+    /**
+     * Writes the samples waiting in the queues, merging the two tracks by presentation
+     * time. When the writer is behind, the queues hold many samples each: draining one
+     * queue and then the other would interleave the file in large single-track runs.
+     * Called by the writer thread.
+     *
+     * @return the number of samples written
+     */
+    private int writePending() {
+        int written = 0;
+        // One pass at most, so that the caller gets to check the end.
+        int max = mVideoOutputQueue.capacity() + mAudioOutputQueue.capacity();
+        while (written < max) {
+            WriteOutputEntry video = mVideoOutputQueue.peek();
+            WriteOutputEntry audio = mAudioOutputQueue.peek();
+            if (video == null && audio == null) return written;
+            boolean takeVideo = audio == null || (video != null
+                    && video.mPresentationTimeUs <= audio.mPresentationTimeUs);
+            SampleQueue<WriteOutputEntry> queue = takeVideo
+                    ? mVideoOutputQueue : mAudioOutputQueue;
+            //noinspection ConstantConditions
+            mWriteSink.onItem(queue.poll());
+            written++;
+        }
+        return written;
+    }
+
+    /**
+     * Feeds the bit rate governor and applies its decisions to the video encoder.
+     *
+     * @param entry the entry that was just written
+     * @param writeNanos the time it took to write it, from {@link #sampleWriteNanos}
+     */
+    private void governBitRate(@NonNull WriteOutputEntry entry, long writeNanos) {
+        if (mBitRateGovernor == null) {
+            // Created here because the encoder might lower the bit rate while preparing.
+            int bitRate = getVideoEncoder().getEncodedBitRate();
+            if (bitRate <= 0) return;
+            mBitRateGovernor = new BitRateGovernor(bitRate, bitRate / MIN_BIT_RATE_DIVIDER);
+        }
+        mBitRateGovernor.onSampleWritten(entry.mSize, writeNanos);
+        if (!entry.mIsVideo) return;
+        int backlog = mVideoOutputQueue.size() + mAudioOutputQueue.size();
+        final int bitRate = mBitRateGovernor.evaluate(entry.mPresentationTimeUs, backlog,
+                mVideoOutputQueue.capacity() + mAudioOutputQueue.capacity());
+        if (bitRate <= 0) return;
+        LOG.w("governBitRate:", "changing bit rate.", "backlog:", backlog,
+                "writeMillis:", writeNanos / 1000000L, "governor:", mBitRateGovernor);
+        getVideoEncoder().requestBitRate(bitRate);
+        mControllerThread.run(new Runnable() {
+            @Override
+            public void run() {
+                if (mBitRateListener != null) mBitRateListener.onEncodingBitRateChanged(bitRate);
+            }
+        });
+    }
+
+    /**
+     * Sets whether the video bit rate should be lowered when the writer can not keep up
+     * (slow storage, for example), and raised again up to the initial bit rate when it
+     * recovers. Defaults to false. Should be called before {@link #start()}.
+     *
+     * @param adaptiveBitRate whether to adapt the bit rate
+     */
+    public void setAdaptiveBitRate(boolean adaptiveBitRate) {
+        mAdaptiveBitRate = adaptiveBitRate;
+    }
+
+    /**
+     * Sets a listener for the bit rate changes made when
+     * {@link #setAdaptiveBitRate(boolean)} is enabled.
+     *
+     * @param listener the listener
+     */
+    public void setBitRateListener(@Nullable BitRateListener listener) {
+        mBitRateListener = listener;
+    }
+
+    /**
+     * Keeps samples in the pre-roll buffer until the trigger, and writes the buffer
+     * before the first sample that comes after the trigger.
+     *
+     * @param entry the entry
+     * @return true if the entry was kept
+     */
+    private boolean preRollEntry(@NonNull WriteOutputEntry entry) {
+        if (mPreRollBuffer == null || entry.mIsConfig) return false;
+        if (mPreRollTriggered) {
+            flushPreRoll();
+            return false;
+        }
+        mPreRollBuffer.add(entry.mOutputBuffer, entry.mSize, entry.mIsVideo,
+                entry.mPresentationTimeUs, entry.mIsKeyFrame);
+        recycleEntry(entry);
+        return true;
+    }
+
+    private void flushPreRoll() {
+        PreRollBuffer buffer = mPreRollBuffer;
+        if (buffer == null) return;
+        LOG.i("flushPreRoll:", "triggered:", mPreRollTriggered, "buffer:", buffer);
+        mPreRollBuffer = null;
+        buffer.drain(mPreRollConsumer);
+    }
+
+    /**
+     * Keeps audio samples that might belong to the next segment, until the video keyframe
+     * that starts it is written. Without this, audio which is usually ahead of video
+     * would end up in the wrong segment.
+     *
+     * If the keyframe is late, for example because the encoder ignored the sync frame
+     * request, at most {@link #MAX_HELD_AUDIO_US} of audio is kept.
+     *
+     * @param entry the entry
+     * @return true if the entry was kept
+     */
+    private boolean holdEntry(@NonNull WriteOutputEntry entry) {
+        if (mMuxerFactory == null || entry.mIsConfig || entry.mIsVideo
+                || mNextMuxer != null || mMuxerError != null) return false;
+        if (mHeldAudioEntries.isEmpty() && entry.mPresentationTimeUs < mNextBoundaryUs) {
+            return false;
+        }
+        mHeldAudioEntries.addLast(entry);
+        WriteOutputEntry oldest;
+        while ((oldest = mHeldAudioEntries.peekFirst()) != null
+                && entry.mPresentationTimeUs - oldest.mPresentationTimeUs > MAX_HELD_AUDIO_US) {
+            LOG.v("holdEntry:", "no keyframe yet. Writing audio to the current segment.",
+                    "timeUs:", oldest.mPresentationTimeUs);
+            mHeldAudioEntries.pollFirst();
+            writeEntry(oldest);
+            recycleEntry(oldest);
+        }
+        return true;
+    }
+
+    private void releaseHeldEntries() {
+        WriteOutputEntry entry;
+        while ((entry = mHeldAudioEntries.pollFirst()) != null) {
+            writeEntry(entry);
+            recycleEntry(entry);
+        }
+    }
+
+    private void keepTrackConfig(@NonNull WriteOutputEntry entry) {
+        ByteBuffer config = ByteBuffer.allocate(entry.mSize);
+        config.put(entry.mOutputBuffer.duplicate());
+        config.flip();
+        if (entry.mIsVideo) {
+            mVideoTrackConfig = config;
+        } else {
+            mAudioTrackConfig = config;
+        }
+    }
+
+    /**
+     * Opens the muxer for the next segment, which starts at the given video keyframe.
+     * The current one stays open until both tracks have reached this time.
+     *
+     * @param cutTimeUs the segment start
+     * @throws IOException if the muxer can't be created
+     */
+    private void startNextSegment(long cutTimeUs) throws IOException {
+        //noinspection ConstantConditions
+        mNextMuxer = writeBehind(mMuxerFactory.createMuxer(mSegmentIndex + 1));
+        if (mVideoTrackConfig != null) {
+            mNextMuxer.addTrack(true, mVideoTrackConfig.duplicate(), mVideoTrackConfig.remaining());
+        }
+        if (mAudioTrackConfig != null) {
+            mNextMuxer.addTrack(false, mAudioTrackConfig.duplicate(), mAudioTrackConfig.remaining());
+        }
+        mSegmentCutUs = cutTimeUs;
+        mVideoCrossedCut = false;
+        mAudioCrossedCut = !mHasAudio;
+        LOG.i("startNextSegment:", "index:", mSegmentIndex + 1, "cutTimeUs:", cutTimeUs);
+    }
+
+    /**
+     * Returns the muxer for a sample, depending on which side of the segment cut it is.
+     * When both tracks have passed the cut, the previous segment is completed.
+     *
+     * @param isVideo whether this is a video sample
+     * @param timeUs the sample timestamp
+     * @return the muxer
+     */
+    @NonNull
+    private Muxer segmentMuxer(boolean isVideo, long timeUs) {
+        if (mNextMuxer == null || timeUs < mSegmentCutUs) return mMuxer;
+        if (isVideo) {
+            mVideoCrossedCut = true;
+        } else {
+            mAudioCrossedCut = true;
+        }
+        if (!mVideoCrossedCut || !mAudioCrossedCut) return mNextMuxer;
+        finishSegment();
+        return mMuxer;
+    }
+
+    private void finishSegment() {
+        Muxer finished = mMuxer;
+        mMuxer = mNextMuxer;
+        mNextMuxer = null;
+        Exception error = null;
+        try {
+            finished.close();
+        } catch (IOException | RuntimeException e) {
+            LOG.e("finishSegment:", "Could not close the muxer.", e);
+            error = e;
+        }
+        if (mSegmentListener != null) {
+            mSegmentListener.onSegmentEnd(mSegmentIndex, mSegmentStartUs, mSegmentCutUs, error);
+        }
+        mSegmentIndex++;
+        mSegmentStartUs = mSegmentCutUs;
+        mSegmentCutUs = -1;
+        // Boundaries stay on the original grid, so segment lengths do not drift.
+        long elapsed = mSegmentStartUs - mSegmentOriginUs;
+        mNextBoundaryUs = mSegmentOriginUs
+                + (elapsed / mSegmentDurationUs + 1) * mSegmentDurationUs;
+    }
+
+    /**
+     * Writes what is left and closes the muxer. Called on the writer thread at the end.
+     */
+    private void finishWriting() {
+        flushPreRoll();
+        releaseHeldEntries();
+        if (mNextMuxer != null) finishSegment();
+        Exception error = null;
+        try {
+            mMuxer.close();
+        } catch (IOException | RuntimeException e) {
+            LOG.e("Mp4Writer:", "Could not close the muxer.", e);
+            error = e;
+            if (mMuxerError == null) mMuxerError = e;
+        }
+        if (mMuxerFactory != null && mSegmentListener != null) {
+            mSegmentListener.onSegmentEnd(mSegmentIndex, mSegmentStartUs, mLastTimeUs, error);
+        }
+        WriteBehindStats stats = mWriteBehindStats;
+        if (stats != null) LOG.i("Mp4Writer:", "writeBehind:", stats.snapshot());
+    }
+
+    /**
+     * Applies the write-behind config, if any, to a new muxer. Muxers that write
+     * their own file collect their output, the others are wrapped.
+     *
+     * @param muxer a muxer
+     * @return the muxer to use
+     */
+    @NonNull
+    private Muxer writeBehind(@NonNull Muxer muxer) {
+        WriteBehindConfig config = mWriteBehindConfig;
+        WriteBehindStats stats = mWriteBehindStats;
+        if (config == null || stats == null) return muxer;
+        if (muxer instanceof WriteBehindMuxer) {
+            ((WriteBehindMuxer) muxer).setWriteBehind(config, stats);
+            return muxer;
+        }
+        return new CoalescingMuxer(muxer, config, stats);
+    }
+
+    /**
+     * Sets a listener for segment events. Has no effect unless this engine was created
+     * with a {@link SegmentConfig}. Should be called before {@link #start()}.
+     *
+     * @param listener a listener
+     */
+    public void setSegmentListener(@Nullable SegmentListener listener) {
+        mSegmentListener = listener;
+    }
+
+    /**
+     * Arms the pre-roll: encoded samples are kept in memory, within the given budget,
+     * and are only written after {@link #triggerPreRoll()} is called or the engine is
+     * stopped. Should be called before {@link #start()}.
+     *
+     * @param config the pre-roll config
+     */
+    public void setPreRollConfig(@NonNull PreRollConfig config) {
+        mPreRollBuffer = new PreRollBuffer(config.maxBytes, config.durationMillis * 1000L);
+        mPreRollArmed = true;
+    }
+
+    /**
+     * Sets the max size of the recording, including an estimate of the index written
+     * by the muxer. When segmenting, this is the size of all segments together.
+     * The recording is stopped at a video keyframe before the size is exceeded,
+     * and ends with {@link #END_BY_MAX_SIZE}. Should be called before {@link #start()}.
+     *
+     * @param maxSize the max size in bytes, or 0 for no limit
+     */
+    public void setMaxSize(long maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Sets the max duration of the recording, not counting pauses. The recording is
+     * stopped at a video keyframe before the duration is exceeded, and ends with
+     * {@link #END_BY_MAX_DURATION}. Should be called before {@link #start()}.
+     *
+     * @param maxDurationMillis the max duration, or 0 for no limit
+     */
+    public void setMaxDuration(long maxDurationMillis) {
+        mMaxDurationUs = maxDurationMillis * 1000L;
+    }
+
+    /**
+     * Enables metrics for this recording. Should be called before {@link #start()}.
+     * If the config has a listener, it is called on the engine thread at the config
+     * interval, until the engine ends.
+     *
+     * @param config the metrics config
+     */
+    public void setMetricsConfig(@NonNull MetricsConfig config) {
+        mMetricsConfig = config;
+        mMetrics = new EncoderMetrics();
+    }
+
+    /**
+     * Returns the metrics of this recording, if enabled with
+     * {@link #setMetricsConfig(MetricsConfig)}.
+     * @return the metrics or null
+     */
+    @Nullable
+    public EncoderMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Enables write-behind: output is collected in memory and written in large chunks.
+     * Segments use the same config. Should be called before {@link #start()}.
+     *
+     * The {@link Mp4v2Muxer} can't be used: the native library writes each sample to
+     * the file itself, so even a wrapped mp4v2 muxer makes one native write per sample.
+     * Record with an {@link IsoMp4Muxer} instead, which writes the same files.
+     *
+     * @param config the write-behind config
+     * @throws IllegalStateException if this engine writes with the mp4v2 muxer
+     */
+    public void setWriteBehindConfig(@NonNull WriteBehindConfig config) {
+        if (mWriteBehindConfig != null) return;
+        if (mMuxer instanceof Mp4v2Muxer) {
+            throw new IllegalStateException("Write-behind needs a Java muxer, like IsoMp4Muxer.");
+        }
+        mWriteBehindConfig = config;
+        mWriteBehindStats = new WriteBehindStats();
+        mMuxer = writeBehind(mMuxer);
+    }
+
+    /**
+     * Returns the write-behind stats of this recording, if enabled with
+     * {@link #setWriteBehindConfig(WriteBehindConfig)}.
+     * @return the stats or null
+     */
+    @Nullable
+    public WriteBehindStats getWriteBehindStats() {
+        return mWriteBehindStats;
+    }
+
+    /**
+     * Records a time-lapse: only some frames are drawn and encoded, and they are written
+     * at the playback frame rate. Should be called before {@link #start()}.
+     * The audio encoder, if any, writes silence as long as the video instead of the
+     * captured audio. To drop the audio track, create the engine without audio encoder.
+     *
+     * @param config the time-lapse config
+     */
+    public void setTimeLapseConfig(@NonNull TimeLapseConfig config) {
+        mTimeLapse = new TimeLapseClock(config);
+    }
+
+    /**
+     * Sets the clock of the frame timestamps, as detected with {@link FrameClock#detect(long)}.
+     * Pause, resume, audio capture and latency times are taken with it.
+     * Should be called before {@link #start()} and {@link #pause()}.
+     * Defaults to the {@link FrameClock#MONOTONIC} clock.
+     *
+     * @param clock the frame clock
+     */
+    public void setFrameClock(@NonNull FrameClock clock) {
+        mFrameClock = clock;
+    }
+
+    /**
+     * Returns the clock of the frame timestamps.
+     * @return the frame clock
+     */
+    @NonNull
+    public FrameClock getFrameClock() {
+        return mFrameClock;
+    }
+
+    /**
+     * Writes the samples kept by the pre-roll, and all the following ones.
+     * Has no effect unless {@link #setPreRollConfig(PreRollConfig)} was called.
+     * Can be called from any thread.
+     */
+    public void triggerPreRoll() {
+        if (mPreRollTriggered) return;
+        LOG.i("triggerPreRoll:", "triggered.");
+        mPreRollTriggered = true;
+        signalWriter();
+    }
+
+    /**
+     * Pauses the recording. Codecs and muxer stay open, but frames and audio captured
+     * from now on are not encoded, until {@link #resume()} is called. The pause time is
+     * taken with the {@link FrameClock}, to be compared with capture timestamps.
+     * Can be called from any thread.
+     */
+    public void pause() {
+        if (mPtsRebaser.pause(mFrameClock.nowUs())) {
+            LOG.i("pause:", "paused.");
+        }
+    }
+
+    /**
+     * Resumes a recording paused with {@link #pause()}. The paused time is removed from
+     * the timestamps of the following samples, so that the file plays back continuously.
+     * This only updates the timeline, so it takes effect with the next frame.
+     * Can be called from any thread.
+     */
+    public void resume() {
+        if (mPtsRebaser.resume(mFrameClock.nowUs())) {
+            LOG.i("resume:", "resumed.", "pausedUs:", mPtsRebaser.getPausedUs());
+        }
+    }
+
+    /**
+     * Whether the recording is paused.
+     * @return true if paused
+     */
+    public boolean isPaused() {
+        return mPtsRebaser.isPaused();
+    }
+
+    /**
+     * Returns an entry whose buffer can hold the given number of bytes.
+     * @param size the sample size
+     * @return an entry
+     */
+    @NonNull
+    private WriteOutputEntry obtainEntry(int size) {
+        WriteOutputEntry entry;
+        synchronized (mFreeEntries) {
+            entry = mFreeEntries.pollLast();
+            if (entry == null) mEntryAllocationCount++;
+        }
+        if (entry == null) entry = new WriteOutputEntry();
+        entry.mOutputBuffer = mSampleArena.acquire(size);
+        entry.mSize = size;
+        return entry;
+    }
+
+    /**
+     * Gives back the entry and its buffer, once the muxer has written it.
+     * @param entry the entry
+     */
+    private void recycleEntry(@NonNull WriteOutputEntry entry) {
+        mSampleArena.release(entry.mOutputBuffer);
+        entry.mOutputBuffer = null;
+        synchronized (mFreeEntries) {
+            mFreeEntries.addLast(entry);
+        }
+    }
+
+    /**
+     * Returns the number of sample buffers and entries that were allocated so far.
+     * During a recording this should stop growing after the first seconds, which means
+     * that the path from the encoders to the muxer is allocation-free.
+     *
+     * @return the allocation count
+     */
+    public int getSampleAllocationCount() {
+        synchronized (mFreeEntries) {
+            return mSampleArena.getAllocationCount() + mEntryAllocationCount;
+        }
+    }
+
+    /**
+     * Wakes up the writer thread, if it is waiting for samples.
+     */
+    private void signalWriter() {
+        Thread writer = mWriteMp4Thread;
+        if (mWriterParked && writer != null) {
+            LockSupport.unpark(writer);
+        }
     }
 
     /**
@@ -290,6 +1079,7 @@ public class MediaEncoderEngine {
      */
     public final void stop() {
         LogUtil.i("Passing event to encoders:", "STOP");
+        mController.notifyStopping();
         for (MediaEncoder encoder : mEncoders) {
             encoder.stop();
         }
@@ -305,13 +1095,20 @@ public class MediaEncoderEngine {
      * the listener.
      */
     private void end() {
-        synchronized (mOutputQueueLock) {
-            mWriteEnd = true;
-            mOutputQueueLock.notify();
+        mWriteEnd = true;
+        Thread writer = mWriteMp4Thread;
+        if (writer != null) {
+            // Wait for the file to be finalized before notifying.
+            LockSupport.unpark(writer);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
         synchronized (mControllerLock) {
             LOG.e("end:", "Releasing muxer after all encoders have been released.");
-            Exception error = null;
+            Exception error = mMuxerError;
 //            mMp4v2Helper.close();
 //            mMp4v2Helper = null;
 
@@ -319,7 +1116,7 @@ public class MediaEncoderEngine {
 //            mOutputQueueLock.notify();
 
             LogUtil.w("end:", "\n\n\n ");
-            mEndReason = END_BY_USER;
+            mControllerThread.remove(mMetricsReport);
             mControllerThread.destroy();
             if (mListener != null) {
                 mListener.onEncodingEnd(mEndReason, error);
@@ -345,7 +1142,66 @@ public class MediaEncoderEngine {
     @SuppressWarnings("unused")
     @Nullable
     public AudioMediaEncoder getAudioEncoder() {
-        return (AudioMediaEncoder) mEncoders.get(1);
+        return mEncoders.size() > 1 ? (AudioMediaEncoder) mEncoders.get(1) : null;
+    }
+
+    /**
+     * Makes the given engine write a copy of the audio encoded by this one, so that several
+     * outputs of the same recording can share the audio encoder. The other engine must have
+     * been created without an audio encoder, and with a muxer that has an audio track.
+     * Should be called before {@link #start()} on both engines.
+     *
+     * Audio samples coming before the first video sample of the other engine are dropped,
+     * as usual. The other engine ends when its video encoder is stopped.
+     *
+     * @param engine the engine
+     */
+    public void addAudioOutput(@NonNull MediaEncoderEngine engine) {
+        if (engine.getAudioEncoder() != null) {
+            throw new IllegalArgumentException("The output engine has its own audio encoder.");
+        }
+        engine.mHasAudio = true;
+        mAudioOutputs.add(engine);
+    }
+
+    /**
+     * Copies an audio entry into the write queue of the engines passed to
+     * {@link #addAudioOutput(MediaEncoderEngine)}. Called by the audio encoder thread,
+     * which is the only producer of their audio queues.
+     *
+     * This never waits for an output writer, so that a slow or stopped output can't
+     * stall the audio of the main recording: samples that don't fit are dropped.
+     * The track config, queued first, is the only entry that may wait.
+     * @param source the entry, with data from 0 to limit
+     */
+    private void writeAudioOutputs(@NonNull WriteOutputEntry source) {
+        for (int i = 0; i < mAudioOutputs.size(); i++) {
+            MediaEncoderEngine output = mAudioOutputs.get(i);
+            if (output.mWriteEnd) continue;
+            WriteOutputEntry entry = output.obtainEntry(source.mSize);
+            entry.mIsConfig = source.mIsConfig;
+            entry.mIsVideo = false;
+            entry.mPresentationTimeUs = source.mPresentationTimeUs;
+            entry.mIsKeyFrame = true;
+            entry.mQueuedNanos = 0;
+            entry.mOutputBuffer.put(source.mOutputBuffer);
+            entry.mOutputBuffer.flip();
+            source.mOutputBuffer.position(0);
+            boolean queued = entry.mIsConfig
+                    ? output.mAudioOutputQueue.put(entry)
+                    : output.mAudioOutputQueue.offer(entry);
+            if (!queued) {
+                output.recycleEntry(entry);
+                EncoderMetrics metrics = output.mMetrics;
+                if (metrics != null) {
+                    metrics.recordDrop(output.mAudioOutputQueue.isClosed()
+                            ? EncoderMetrics.DROP_MUXER_ERROR
+                            : EncoderMetrics.DROP_AUDIO_BACKLOG);
+                }
+                continue;
+            }
+            output.signalWriter();
+        }
     }
 
     /**
@@ -355,7 +1211,10 @@ public class MediaEncoderEngine {
     @SuppressWarnings("WeakerAccess")
     public class Controller {
 
-        private long mPresentationTimeUs = 0;
+        private volatile long mPresentationTimeUs = 0;
+        // Signaled when the first video sample is written, or when stopping.
+        private final Object mFirstVideoLock = new Object();
+        private boolean mStopping;
 
         /**
          * Request that the muxer should start. This is not guaranteed to be executed:
@@ -422,19 +1281,40 @@ public class MediaEncoderEngine {
 //                byte[] encodeArray = new byte[buffer.data.remaining()];
 //                buffer.data.get(encodeArray);
 
-                WriteOutputEntry writeOutputEntry = new WriteOutputEntry();
-                writeOutputEntry.mOutputBuffer = new byte[nBufferSize];
+                WriteOutputEntry writeOutputEntry = obtainEntry(nBufferSize);
                 writeOutputEntry.mIsConfig = isConfig;
                 writeOutputEntry.mIsVideo = buffer.isVideo;
                 writeOutputEntry.mPresentationTimeUs = buffer.info.presentationTimeUs;
+                // Audio samples are all sync samples.
+                writeOutputEntry.mIsKeyFrame = !buffer.isVideo
+                        || (buffer.info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
                 if (mPresentationTimeUs == 0 && buffer.isVideo)
-                    mPresentationTimeUs = buffer.info.presentationTimeUs;
-                buffer.data.get(writeOutputEntry.mOutputBuffer);
-                synchronized (mOutputQueueLock) {
-//                    mOutputEntrys.add(new WriteOutputEntry(encodeArray, isConfig, buffer.isVideo, buffer.info.presentationTimeUs));
-                    mOutputEntrys.add(writeOutputEntry);
-                    mOutputQueueLock.notify();
+                    setPresentationTimeUs(buffer.info.presentationTimeUs);
+                EncoderMetrics metrics = mMetrics;
+                if (metrics != null && !isConfig) {
+                    writeOutputEntry.mQueuedNanos = System.nanoTime();
+                    recordOutput(metrics, buffer.isVideo, buffer.info.presentationTimeUs,
+                            mFrameClock.nowUs() - mPtsRebaser.getPausedUs());
+                } else {
+                    writeOutputEntry.mQueuedNanos = 0;
+                }
+                writeOutputEntry.mOutputBuffer.put(buffer.data);
+                writeOutputEntry.mOutputBuffer.flip();
+                if (!buffer.isVideo && !mAudioOutputs.isEmpty()) {
+                    writeAudioOutputs(writeOutputEntry);
+                }
+                // Each track is drained by a single thread, so each queue has a single producer.
+                SampleQueue<WriteOutputEntry> queue = buffer.isVideo
+                        ? mVideoOutputQueue : mAudioOutputQueue;
+                if (!queue.put(writeOutputEntry)) {
+                    // The writer has ended or failed.
+                    recycleEntry(writeOutputEntry);
+                    if (metrics != null) metrics.recordDrop(EncoderMetrics.DROP_MUXER_ERROR);
                 }
+                // Before the pre-roll trigger nothing is written, so there's no need to
+                // wake up the writer for each sample. It will move them to the buffer in
+                // batches, when its park timeout expires.
+                if (!mPreRollArmed || mPreRollTriggered) signalWriter();
             }
                 pool.recycle(buffer);
 
@@ -525,8 +1405,122 @@ public class MediaEncoderEngine {
             }
         }
 
+        /**
+         * Returns the timestamp of the first video sample. Samples are rebased by
+         * {@link #getPtsRebaser()} before encoding, so this is in the output timeline.
+         * @return the first video timestamp, or 0
+         */
         public long getPresentationTimeUs() {
             return mPresentationTimeUs;
         }
+
+        private void setPresentationTimeUs(long timeUs) {
+            synchronized (mFirstVideoLock) {
+                mPresentationTimeUs = timeUs;
+                mFirstVideoLock.notifyAll();
+            }
+        }
+
+        /**
+         * Blocks until the first video sample is written, then returns its timestamp
+         * as {@link #getPresentationTimeUs()}. Returns 0 if the engine stops first.
+         * @return the first video timestamp, or 0
+         * @throws InterruptedException if interrupted while waiting
+         */
+        long awaitPresentationTimeUs() throws InterruptedException {
+            synchronized (mFirstVideoLock) {
+                while (mPresentationTimeUs == 0 && !mStopping) {
+                    mFirstVideoLock.wait();
+                }
+                return mPresentationTimeUs;
+            }
+        }
+
+        /**
+         * Wakes up the encoders waiting in {@link #awaitPresentationTimeUs()}.
+         */
+        private void notifyStopping() {
+            synchronized (mFirstVideoLock) {
+                mStopping = true;
+                mFirstVideoLock.notifyAll();
+            }
+        }
+
+        /**
+         * Returns the pause intervals of the recording. Encoders should pass capture
+         * timestamps through it before encoding, and drop samples captured while paused.
+         * @return the rebaser
+         */
+        @NonNull
+        PtsRebaser getPtsRebaser() {
+            return mPtsRebaser;
+        }
+
+        /**
+         * Returns the time-lapse clock, if recording a time-lapse. Video frames should
+         * go through it after the rebaser, and skipped frames should not be drawn.
+         * @return the clock or null
+         */
+        @Nullable
+        TimeLapseClock getTimeLapse() {
+            return mTimeLapse;
+        }
+
+        /**
+         * Returns the clock of the frame timestamps. Capture times compared with
+         * frame timestamps should be taken with it.
+         * @return the frame clock
+         */
+        @NonNull
+        FrameClock getFrameClock() {
+            return mFrameClock;
+        }
+
+        /**
+         * Returns the metrics, if enabled.
+         * @return the metrics or null
+         */
+        @Nullable
+        public EncoderMetrics getMetrics() {
+            return mMetrics;
+        }
+
+        // Written by the audio encoder, read by the video encoder. Only with metrics.
+        private volatile long mLastAudioOutputUs;
+
+        private void recordOutput(@NonNull EncoderMetrics metrics, boolean isVideo,
+                                  long timeUs, long nowUs) {
+            // Time-lapse timestamps are not capture times anymore.
+            boolean latency = mTimeLapse == null;
+            if (isVideo) {
+                if (latency) metrics.recordStage(EncoderMetrics.STAGE_VIDEO_ENCODE, nowUs - timeUs);
+                metrics.recordQueue(EncoderMetrics.QUEUE_VIDEO_WRITE, mVideoOutputQueue.size());
+                long audioUs = mLastAudioOutputUs;
+                if (audioUs != 0) metrics.recordSkew(audioUs - timeUs);
+            } else {
+                if (latency) metrics.recordStage(EncoderMetrics.STAGE_AUDIO_ENCODE, nowUs - timeUs);
+                metrics.recordQueue(EncoderMetrics.QUEUE_AUDIO_WRITE, mAudioOutputQueue.size());
+                mLastAudioOutputUs = timeUs;
+            }
+        }
+
+        private long mRequestedSegments = 0;
+
+        /**
+         * When segmenting, tells the video encoder that the frame with the given timestamp
+         * is the first one of a new segment and should be encoded as a sync frame.
+         * Returns true once per segment. Should be called by the video encoder thread only.
+         *
+         * @param timestampUs the frame timestamp
+         * @return true if a sync frame should be requested
+         */
+        public boolean shouldRequestSyncFrame(long timestampUs) {
+            long origin = mSegmentOriginUs;
+            if (mMuxerFactory == null || origin < 0 || timestampUs < origin) return false;
+            long segments = (timestampUs - origin) / mSegmentDurationUs;
+            if (segments <= mRequestedSegments) return false;
+            mRequestedSegments = segments;
+            return true;
+        }
     }
 }
@@ -0,0 +1,17 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Metrics configuration to be passed to {@link MediaEncoderEngine#setMetricsConfig(MetricsConfig)}.
+ *
+ * When set, the engine collects {@link EncoderMetrics} during the recording.
+ * If a {@link #listener} is set, it receives a snapshot every {@link #intervalMillis}.
+ */
+@SuppressWarnings("WeakerAccess")
+public class MetricsConfig {
+
+    // Configurable options
+    public long intervalMillis = 1000; // time between listener calls, 0 to disable them
+    @Nullable public EncoderMetrics.Listener listener; // receives periodic snapshots
+}
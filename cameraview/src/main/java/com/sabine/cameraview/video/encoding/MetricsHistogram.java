@@ -0,0 +1,57 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram with fixed buckets, which can be recorded from any thread without
+ * locks or allocations. Bucket i counts values up to bounds[i], and the last
+ * bucket counts values greater than all bounds.
+ */
+class MetricsHistogram {
+
+    private final long[] mBounds;
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * Creates a histogram.
+     * @param bounds increasing bucket upper bounds
+     */
+    MetricsHistogram(@NonNull long[] bounds) {
+        mBounds = bounds;
+        mCounts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    void record(long value) {
+        int bucket = 0;
+        while (bucket < mBounds.length && value > mBounds[bucket]) bucket++;
+        mCounts.incrementAndGet(bucket);
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long min = mMin.get();
+        while (value < min && !mMin.compareAndSet(min, value)) min = mMin.get();
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) max = mMax.get();
+    }
+
+    /**
+     * Copies the current values. Values recorded meanwhile might be partially included.
+     * @return a snapshot
+     */
+    @NonNull
+    EncoderMetrics.Histogram snapshot() {
+        long[] counts = new long[mCounts.length()];
+        for (int i = 0; i < counts.length; i++) counts[i] = mCounts.get(i);
+        long count = mCount.get();
+        return new EncoderMetrics.Histogram(mBounds.clone(), counts, count,
+                count == 0 ? 0 : mSum.get(),
+                count == 0 ? 0 : mMin.get(),
+                count == 0 ? 0 : mMax.get());
+    }
+}
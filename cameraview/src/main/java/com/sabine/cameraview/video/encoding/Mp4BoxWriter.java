@@ -0,0 +1,341 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * A growable big-endian buffer to build ISO-BMFF boxes, with helpers for the boxes
+ * shared by {@link IsoMp4Muxer} and {@link FragmentedMp4Muxer}.
+ *
+ * Boxes are opened with {@link #start(String)} or {@link #startFull(String, int, int)},
+ * which return the box position, and closed with {@link #end(int)}, which writes the size.
+ */
+class Mp4BoxWriter {
+
+    final static int MOVIE_TIMESCALE = 1000;
+    final static int VIDEO_TIMESCALE = 90000;
+    final static int AAC_FRAME_SAMPLES = 1024;
+
+    private ByteBuffer mBuffer;
+
+    Mp4BoxWriter(int capacity) {
+        mBuffer = ByteBuffer.allocate(capacity);
+    }
+
+    private void ensure(int bytes) {
+        if (mBuffer.remaining() >= bytes) return;
+        int capacity = Math.max(mBuffer.capacity() * 2, mBuffer.position() + bytes);
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        mBuffer.flip();
+        grown.put(mBuffer);
+        mBuffer = grown;
+    }
+
+    int position() {
+        return mBuffer.position();
+    }
+
+    void clear() {
+        mBuffer.clear();
+    }
+
+    int start(@NonNull String type) {
+        int position = mBuffer.position();
+        putInt(0);
+        putFourCC(type);
+        return position;
+    }
+
+    int startFull(@NonNull String type, int version, int flags) {
+        int position = start(type);
+        putInt((version << 24) | flags);
+        return position;
+    }
+
+    void end(int start) {
+        mBuffer.putInt(start, mBuffer.position() - start);
+    }
+
+    void putByte(int value) {
+        ensure(1);
+        mBuffer.put((byte) value);
+    }
+
+    void putShort(int value) {
+        ensure(2);
+        mBuffer.putShort((short) value);
+    }
+
+    void putInt(int value) {
+        ensure(4);
+        mBuffer.putInt(value);
+    }
+
+    void putInt(int position, int value) {
+        mBuffer.putInt(position, value);
+    }
+
+    void putLong(long value) {
+        ensure(8);
+        mBuffer.putLong(value);
+    }
+
+    void putBytes(@NonNull byte[] bytes) {
+        ensure(bytes.length);
+        mBuffer.put(bytes);
+    }
+
+    void putZeros(int count) {
+        ensure(count);
+        for (int i = 0; i < count; i++) mBuffer.put((byte) 0);
+    }
+
+    void putFourCC(@NonNull String type) {
+        ensure(4);
+        for (int i = 0; i < 4; i++) mBuffer.put((byte) type.charAt(i));
+    }
+
+    void putString(@NonNull String value) {
+        ensure(value.length() + 1);
+        for (int i = 0; i < value.length(); i++) mBuffer.put((byte) value.charAt(i));
+        mBuffer.put((byte) 0);
+    }
+
+    void putMatrix() {
+        putInt(0x00010000);
+        putInt(0);
+        putInt(0);
+        putInt(0);
+        putInt(0x00010000);
+        putInt(0);
+        putInt(0);
+        putInt(0);
+        putInt(0x40000000);
+    }
+
+    /**
+     * Flips the buffer for reading and returns it.
+     * @return the buffer
+     */
+    @NonNull
+    ByteBuffer flip() {
+        mBuffer.flip();
+        return mBuffer;
+    }
+
+    void writeFtyp(@NonNull String... compatibleBrands) {
+        int ftyp = start("ftyp");
+        putFourCC("isom");
+        putInt(0x200);
+        for (String brand : compatibleBrands) putFourCC(brand);
+        end(ftyp);
+    }
+
+    void writeMvhd(long duration, int nextTrackId) {
+        int mvhd = startFull("mvhd", 0, 0);
+        putInt(0); // creation time
+        putInt(0); // modification time
+        putInt(MOVIE_TIMESCALE);
+        putInt((int) duration);
+        putInt(0x00010000); // rate
+        putShort(0x0100); // volume
+        putZeros(10);
+        putMatrix();
+        putZeros(24);
+        putInt(nextTrackId);
+        end(mvhd);
+    }
+
+    void writeTkhd(int trackId, long duration, boolean isVideo, int width, int height) {
+        int tkhd = startFull("tkhd", 0, 3); // enabled, in movie
+        putInt(0);
+        putInt(0);
+        putInt(trackId);
+        putInt(0);
+        putInt((int) duration);
+        putZeros(8);
+        putShort(0); // layer
+        putShort(0); // alternate group
+        putShort(isVideo ? 0 : 0x0100); // volume
+        putShort(0);
+        putMatrix();
+        putInt(isVideo ? width << 16 : 0);
+        putInt(isVideo ? height << 16 : 0);
+        end(tkhd);
+    }
+
+    void writeMdhd(int timescale, long duration) {
+        boolean longDuration = duration > 0xFFFFFFFFL;
+        int mdhd = startFull("mdhd", longDuration ? 1 : 0, 0);
+        if (longDuration) {
+            putLong(0);
+            putLong(0);
+            putInt(timescale);
+            putLong(duration);
+        } else {
+            putInt(0);
+            putInt(0);
+            putInt(timescale);
+            putInt((int) duration);
+        }
+        putShort(0x55C4); // "und"
+        putShort(0);
+        end(mdhd);
+    }
+
+    void writeHdlr(boolean isVideo) {
+        int hdlr = startFull("hdlr", 0, 0);
+        putInt(0);
+        putFourCC(isVideo ? "vide" : "soun");
+        putZeros(12);
+        putString(isVideo ? "VideoHandler" : "SoundHandler");
+        end(hdlr);
+    }
+
+    /**
+     * Writes the media header (vmhd or smhd) and the data information box,
+     * which come first in minf.
+     * @param isVideo whether this is a video track
+     */
+    void writeMediaHeaders(boolean isVideo) {
+        if (isVideo) {
+            int vmhd = startFull("vmhd", 0, 1);
+            putZeros(8);
+            end(vmhd);
+        } else {
+            int smhd = startFull("smhd", 0, 0);
+            putZeros(4);
+            end(smhd);
+        }
+        int dinf = start("dinf");
+        int dref = startFull("dref", 0, 0);
+        putInt(1);
+        int url = startFull("url ", 0, 1); // self-contained
+        end(url);
+        end(dref);
+        end(dinf);
+    }
+
+    void writeAvc1(int width, int height, @NonNull List<byte[]> sps, @NonNull List<byte[]> pps) {
+        int avc1 = start("avc1");
+        putZeros(6);
+        putShort(1); // data reference index
+        putZeros(16);
+        putShort(width);
+        putShort(height);
+        putInt(0x00480000); // 72 dpi
+        putInt(0x00480000);
+        putInt(0);
+        putShort(1); // frame count
+        putZeros(32); // compressor name
+        putShort(0x0018); // depth
+        putShort(-1);
+        int avcC = start("avcC");
+        byte[] first = sps.isEmpty() ? new byte[4] : sps.get(0);
+        putByte(1);
+        putByte(first.length > 1 ? first[1] : 0); // profile
+        putByte(first.length > 2 ? first[2] : 0); // compatibility
+        putByte(first.length > 3 ? first[3] : 0); // level
+        putByte(0xFF); // 4 bytes NAL lengths
+        putByte(0xE0 | sps.size());
+        for (byte[] nal : sps) {
+            putShort(nal.length);
+            putBytes(nal);
+        }
+        putByte(pps.size());
+        for (byte[] nal : pps) {
+            putShort(nal.length);
+            putBytes(nal);
+        }
+        end(avcC);
+        end(avc1);
+    }
+
+    void writeHvc1(int width, int height, @NonNull List<byte[]> vps,
+                   @NonNull List<byte[]> sps, @NonNull List<byte[]> pps) {
+        int hvc1 = start("hvc1");
+        putZeros(6);
+        putShort(1); // data reference index
+        putZeros(16);
+        putShort(width);
+        putShort(height);
+        putInt(0x00480000); // 72 dpi
+        putInt(0x00480000);
+        putInt(0);
+        putShort(1); // frame count
+        putZeros(32); // compressor name
+        putShort(0x0018); // depth
+        putShort(-1);
+        int hvcC = start("hvcC");
+        HevcSps info = new HevcSps(sps.isEmpty() ? new byte[0] : sps.get(0));
+        putByte(1);
+        putByte((info.profileSpace << 6) | (info.tierFlag ? 0x20 : 0) | info.profileIdc);
+        putInt((int) info.profileCompatibilityFlags);
+        putShort((int) (info.constraintIndicatorFlags >> 32));
+        putInt((int) info.constraintIndicatorFlags);
+        putByte(info.levelIdc);
+        putShort(0xF000); // min spatial segmentation
+        putByte(0xFC); // parallelism type
+        putByte(0xFC | info.chromaFormatIdc);
+        putByte(0xF8 | info.bitDepthLumaMinus8);
+        putByte(0xF8 | info.bitDepthChromaMinus8);
+        putShort(0); // average frame rate
+        // 4 bytes NAL lengths.
+        putByte((info.maxSubLayers << 3) | (info.temporalIdNested ? 0x04 : 0) | 0x03);
+        putByte((vps.isEmpty() ? 0 : 1) + (sps.isEmpty() ? 0 : 1) + (pps.isEmpty() ? 0 : 1));
+        writeNalArray(32, vps);
+        writeNalArray(33, sps);
+        writeNalArray(34, pps);
+        end(hvcC);
+        end(hvc1);
+    }
+
+    private void writeNalArray(int type, @NonNull List<byte[]> nals) {
+        if (nals.isEmpty()) return;
+        putByte(0x80 | type); // complete array
+        putShort(nals.size());
+        for (byte[] nal : nals) {
+            putShort(nal.length);
+            putBytes(nal);
+        }
+    }
+
+    void writeMp4a(int channels, int sampleRate, @Nullable byte[] audioSpecificConfig) {
+        byte[] asc = audioSpecificConfig != null ? audioSpecificConfig : new byte[0];
+        int mp4a = start("mp4a");
+        putZeros(6);
+        putShort(1); // data reference index
+        putZeros(8);
+        putShort(channels);
+        putShort(16); // sample size
+        putZeros(4);
+        putInt(sampleRate << 16);
+        int esds = startFull("esds", 0, 0);
+        int decoderSpecificInfo = 2 + asc.length;
+        int decoderConfig = 2 + 13 + decoderSpecificInfo;
+        int slConfig = 3;
+        putByte(0x03); // ES_Descriptor
+        putByte(3 + decoderConfig + slConfig);
+        putShort(0); // ES_ID
+        putByte(0);
+        putByte(0x04); // DecoderConfigDescriptor
+        putByte(13 + decoderSpecificInfo);
+        putByte(0x40); // MPEG-4 audio
+        putByte(0x15); // audio stream
+        putByte(0);
+        putShort(0); // buffer size
+        putInt(0); // max bitrate
+        putInt(0); // avg bitrate
+        putByte(0x05); // DecoderSpecificInfo
+        putByte(asc.length);
+        putBytes(asc);
+        putByte(0x06); // SLConfigDescriptor
+        putByte(1);
+        putByte(0x02);
+        end(esds);
+        end(mp4a);
+    }
+}
@@ -0,0 +1,69 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+
+import com.sabine.cameraview.utils.LogUtil;
+import com.sabinetek.mp4v2utils.Mp4v2Helper;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link Muxer} backed by the native mp4v2 library, through {@link Mp4v2Helper}.
+ * This is the default one.
+ *
+ * Errors from the native library are logged but not thrown, since mp4v2 keeps going
+ * after a failed write.
+ */
+public class Mp4v2Muxer implements Muxer {
+
+    private final static String TAG = Mp4v2Muxer.class.getSimpleName();
+
+    private Mp4v2Helper mMp4v2Helper;
+
+    public Mp4v2Muxer(@NonNull File file, @NonNull VideoConfig videoConfig,
+                      @NonNull AudioConfig audioConfig) {
+        mMp4v2Helper = new Mp4v2Helper();
+        int result = mMp4v2Helper.init(file.getAbsolutePath(), videoConfig.width,
+                videoConfig.height, videoConfig.frameRate, audioConfig.channels,
+                audioConfig.samplingFrequency);
+        if (result > 0) {
+            LogUtil.e(TAG, "init mp4v2 success");
+        } else {
+            LogUtil.e(TAG, "init mp4v2 failed");
+        }
+    }
+
+    @Override
+    public void addTrack(boolean isVideo, @NonNull ByteBuffer config, int size) {
+        if (mMp4v2Helper == null) return;
+        int result = isVideo
+                ? mMp4v2Helper.addVideoTrack(config, size)
+                : mMp4v2Helper.addAudioTrack(config, size);
+        if (result < 0) LogUtil.e(TAG, "addTrack: size == " + size + ", result = " + result);
+    }
+
+    @Override
+    public void writeSample(boolean isVideo, @NonNull ByteBuffer data, int size,
+                            long presentationTimeUs, boolean isKeyFrame) {
+        if (mMp4v2Helper == null) return;
+        int result = isVideo
+                ? mMp4v2Helper.writeVideo(data, size, presentationTimeUs)
+                : mMp4v2Helper.writeAudio(data, size, presentationTimeUs);
+        if (result < 0) LogUtil.e(TAG, "write: encodeArray.length == " + size + ", result = " + result);
+    }
+
+    @Override
+    public void close() {
+        if (mMp4v2Helper != null) {
+            mMp4v2Helper.close();
+            mMp4v2Helper = null;
+        }
+    }
+
+    @Override
+    public boolean acceptsDirectBuffers() {
+        // The native library only reads byte arrays.
+        return false;
+    }
+}
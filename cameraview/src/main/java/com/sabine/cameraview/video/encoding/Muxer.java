@@ -0,0 +1,82 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The muxing backend used by {@link MediaEncoderEngine}.
+ *
+ * All methods are called on the engine writer thread, in this order:
+ *
+ * 1. {@link #addTrack(boolean, ByteBuffer, int)} once per track, with the codec config data
+ *    (for example SPS/PPS for video, AudioSpecificConfig for AAC) as returned by MediaCodec.
+ *
+ * 2. {@link #writeSample(boolean, ByteBuffer, int, long, boolean)} for each encoded sample.
+ *    Samples of a given track come in decoding order, but tracks can be interleaved freely.
+ *
+ * 3. {@link #close()} to finalize the file.
+ *
+ * The data passed to these methods belongs to the engine and is recycled as soon as the call
+ * returns. Implementations can modify it in place, but must copy it if they need to keep it.
+ *
+ * @see Mp4v2Muxer
+ * @see SystemMuxer
+ * @see IsoMp4Muxer
+ */
+public interface Muxer {
+
+    /**
+     * Creates muxers for consecutive segments of a recording.
+     */
+    interface Factory {
+
+        /**
+         * Creates the muxer for the given segment.
+         *
+         * @param segment the segment index, starting at 0
+         * @return a new muxer
+         * @throws IOException if the output can't be opened
+         */
+        @NonNull
+        Muxer createMuxer(int segment) throws IOException;
+    }
+
+    /**
+     * Adds a track. The data is read from the buffer position.
+     *
+     * @param isVideo whether this is the video track
+     * @param config the codec config data
+     * @param size the config size
+     * @throws IOException if writing fails
+     */
+    void addTrack(boolean isVideo, @NonNull ByteBuffer config, int size) throws IOException;
+
+    /**
+     * Writes an encoded sample. The data is read from the buffer position.
+     *
+     * @param isVideo whether this is a video sample
+     * @param data the sample data
+     * @param size the sample size
+     * @param presentationTimeUs the sample timestamp
+     * @param isKeyFrame whether this is a sync sample
+     * @throws IOException if writing fails
+     */
+    void writeSample(boolean isVideo, @NonNull ByteBuffer data, int size,
+                     long presentationTimeUs, boolean isKeyFrame) throws IOException;
+
+    /**
+     * Finalizes the output and releases resources.
+     * @throws IOException if writing fails
+     */
+    void close() throws IOException;
+
+    /**
+     * Whether this muxer can read direct buffers without an extra copy.
+     * When false, the engine passes heap buffers, whose array starts at index 0.
+     *
+     * @return true if direct buffers are preferred
+     */
+    boolean acceptsDirectBuffers();
+}
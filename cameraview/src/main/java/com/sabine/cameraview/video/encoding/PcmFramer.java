@@ -0,0 +1,164 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Slices PCM chunks of any length into frames of a fixed size, copying them
+ * into direct buffers that are reused once the encoder is done with them.
+ *
+ * Frames are {@link InputBuffer}s whose {@link InputBuffer#source} holds the data.
+ * Up to maxFrames of them are allocated, the first time they are needed. After that,
+ * writing does not allocate, as long as frames are recycled.
+ *
+ * When all frames are in use, because the encoder is behind, the audio that does not
+ * fit is dropped one frame at a time, and the callback is told about it. This lets
+ * the caller keep the clock running, so that audio after the gap is still in sync.
+ *
+ * Writing is meant for a single thread. Frames can be recycled from any thread.
+ */
+class PcmFramer {
+
+    /**
+     * Receives the frames.
+     */
+    interface Callback {
+
+        /**
+         * A frame is complete. The source is ready to be read.
+         * The frame must be passed to {@link #recycle(InputBuffer)} after use.
+         * @param frame the frame
+         */
+        void onFrame(@NonNull InputBuffer frame);
+
+        /**
+         * A frame worth of audio was dropped, because no frame was available.
+         * @param length the dropped bytes
+         */
+        void onFrameDropped(int length);
+    }
+
+    private final int mFrameSize;
+    private final InputBuffer[] mFree;
+    private final Object mLock = new Object();
+    private int mFreeCount;
+    private int mAllocated;
+
+    // Only accessed by the writing thread.
+    private InputBuffer mCurrent;
+    private int mCurrentSkipped;
+    private long mDroppedFrames;
+
+    PcmFramer(int frameSize, int maxFrames) {
+        mFrameSize = frameSize;
+        mFree = new InputBuffer[maxFrames];
+    }
+
+    int getFrameSize() {
+        return mFrameSize;
+    }
+
+    /**
+     * Returns the number of frames that were dropped.
+     * Should be called by the writing thread.
+     * @return the dropped frames
+     */
+    long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * Copies the given PCM, passing each complete frame to the callback.
+     * Data that does not complete a frame is kept for the next call, unless this
+     * is the end of the stream: in this case, the remaining data is passed as a last,
+     * shorter frame, flagged as end of stream. This last frame is always passed.
+     *
+     * @param pcm the data
+     * @param offset the data offset
+     * @param length the data length
+     * @param isEndOfStream whether this is the last data
+     * @param callback the callback
+     */
+    void write(@NonNull byte[] pcm, int offset, int length, boolean isEndOfStream,
+               @NonNull Callback callback) {
+        int end = offset + length;
+        while (offset < end) {
+            if (mCurrent == null && mCurrentSkipped == 0) {
+                mCurrent = obtain(false);
+            }
+            int count;
+            if (mCurrent != null) {
+                count = Math.min(end - offset, mCurrent.source.remaining());
+                mCurrent.source.put(pcm, offset, count);
+                if (!mCurrent.source.hasRemaining()) emit(false, callback);
+            } else {
+                count = Math.min(end - offset, mFrameSize - mCurrentSkipped);
+                mCurrentSkipped += count;
+                if (mCurrentSkipped == mFrameSize) {
+                    mCurrentSkipped = 0;
+                    mDroppedFrames++;
+                    callback.onFrameDropped(mFrameSize);
+                }
+            }
+            offset += count;
+        }
+        if (isEndOfStream) {
+            if (mCurrentSkipped > 0) {
+                callback.onFrameDropped(mCurrentSkipped);
+                mCurrentSkipped = 0;
+            }
+            // The end of stream must reach the encoder, even if we are out of frames.
+            if (mCurrent == null) mCurrent = obtain(true);
+            //noinspection ConstantConditions
+            emit(true, callback);
+        }
+    }
+
+    private void emit(boolean isEndOfStream, @NonNull Callback callback) {
+        InputBuffer frame = mCurrent;
+        mCurrent = null;
+        frame.source.flip();
+        frame.length = frame.source.remaining();
+        frame.isEndOfStream = isEndOfStream;
+        callback.onFrame(frame);
+    }
+
+    /**
+     * Gives back a frame passed to {@link Callback#onFrame(InputBuffer)}.
+     * @param frame the frame
+     */
+    void recycle(@NonNull InputBuffer frame) {
+        synchronized (mLock) {
+            if (mFreeCount < mFree.length) {
+                mFree[mFreeCount++] = frame;
+            }
+        }
+    }
+
+    /**
+     * Returns a free frame with a cleared source, so that callers can fill it
+     * without {@link #write(byte[], int, int, boolean, Callback)}.
+     * The frame must be passed to {@link #recycle(InputBuffer)} after use.
+     *
+     * @param force whether to allocate a frame when none is free, even above maxFrames
+     * @return a frame, or null if none is free
+     */
+    @Nullable
+    InputBuffer obtain(boolean force) {
+        InputBuffer frame = null;
+        synchronized (mLock) {
+            if (mFreeCount > 0) {
+                frame = mFree[--mFreeCount];
+                mFree[mFreeCount] = null;
+            } else if (mAllocated < mFree.length || force) {
+                mAllocated++;
+                frame = new InputBuffer();
+                frame.source = ByteBuffer.allocateDirect(mFrameSize);
+            }
+        }
+        if (frame != null) frame.source.clear();
+        return frame;
+    }
+}
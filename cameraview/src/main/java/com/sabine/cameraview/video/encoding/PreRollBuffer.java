@@ -0,0 +1,234 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A bounded ring of encoded samples, used by {@link MediaEncoderEngine} to keep the
+ * last seconds of a recording before it is triggered (see {@link PreRollConfig}).
+ *
+ * Sample data is copied into a single direct buffer, so the history lives off-heap and
+ * its memory is allocated once. Sample metadata is kept in primitive arrays.
+ *
+ * Samples are evicted a whole keyframe interval (GOP) at a time, so that the oldest sample
+ * is always a video keyframe and the buffer can be written to a new file at any time.
+ * A GOP is evicted when the rest of the buffer still covers the duration, or when
+ * there is no space for a new sample.
+ *
+ * This class is not thread safe: it is owned by the writer thread.
+ */
+class PreRollBuffer {
+
+    /**
+     * Receives the buffered samples. The data buffer is only valid during the call.
+     */
+    interface Consumer {
+        void onSample(@NonNull ByteBuffer data, boolean isVideo, long timeUs, boolean isKeyFrame);
+    }
+
+    private final ByteBuffer mData;
+    private final ByteBuffer mView;
+    private final long mDurationUs;
+
+    // Sample metadata, indexed by sequence number & mMask.
+    private int[] mOffsets = new int[256];
+    private int[] mSizes = new int[256];
+    private long[] mTimes = new long[256];
+    private boolean[] mVideo = new boolean[256];
+    private boolean[] mKeyFrame = new boolean[256];
+    private int mMask = 255;
+
+    // Sequence numbers of the oldest sample, of the next sample and of the
+    // second video keyframe (the start of the next GOP), or -1.
+    private long mHead;
+    private long mTail;
+    private long mNextGop = -1;
+    private int mWriteOffset;
+    private long mLastTimeUs;
+    private int mBytes;
+    private long mDroppedCount;
+
+    /**
+     * Creates a new buffer.
+     *
+     * @param maxBytes the data capacity
+     * @param durationUs the history to keep
+     */
+    PreRollBuffer(int maxBytes, long durationUs) {
+        mData = ByteBuffer.allocateDirect(maxBytes);
+        mView = mData.duplicate();
+        mDurationUs = durationUs;
+    }
+
+    /**
+     * Copies a sample into the buffer, evicting older GOPs if needed.
+     * Samples that come before the first video keyframe are dropped.
+     *
+     * @param data the sample data, from position 0
+     * @param size the sample size
+     * @param isVideo whether this is a video sample
+     * @param timeUs the sample timestamp
+     * @param isKeyFrame whether this is a sync sample
+     */
+    void add(@NonNull ByteBuffer data, int size, boolean isVideo, long timeUs,
+             boolean isKeyFrame) {
+        boolean startsGop = isVideo && isKeyFrame;
+        if (isEmpty() && !startsGop) {
+            mDroppedCount++;
+            return;
+        }
+        int offset = allocate(size);
+        while (offset < 0 && !isEmpty()) {
+            evictGop();
+            if (isEmpty() && !startsGop) {
+                // Everything was evicted, and this sample can't start a new history.
+                mDroppedCount++;
+                return;
+            }
+            offset = allocate(size);
+        }
+        if (offset < 0) {
+            mDroppedCount++;
+            return;
+        }
+        if (mTail - mHead > mMask) grow();
+        ByteBuffer source = data.duplicate();
+        source.position(0).limit(size);
+        mView.clear();
+        mView.position(offset);
+        mView.put(source);
+
+        int slot = (int) (mTail & mMask);
+        mOffsets[slot] = offset;
+        mSizes[slot] = size;
+        mTimes[slot] = timeUs;
+        mVideo[slot] = isVideo;
+        mKeyFrame[slot] = isKeyFrame;
+        if (startsGop && mNextGop < 0 && mTail > mHead) mNextGop = mTail;
+        mTail++;
+        mWriteOffset = offset + size;
+        mBytes += size;
+        if (timeUs > mLastTimeUs) mLastTimeUs = timeUs;
+
+        // Keep at least the duration, starting from a keyframe.
+        while (mNextGop >= 0 && mLastTimeUs - mTimes[(int) (mNextGop & mMask)] >= mDurationUs) {
+            evictGop();
+        }
+    }
+
+    /**
+     * Returns the offset where a sample of the given size can be written, or -1.
+     * Samples are contiguous: if there is no space at the end, we wrap to the start.
+     */
+    private int allocate(int size) {
+        int capacity = mData.capacity();
+        if (isEmpty()) {
+            mWriteOffset = 0;
+            return size <= capacity ? 0 : -1;
+        }
+        int readOffset = mOffsets[(int) (mHead & mMask)];
+        if (mWriteOffset > readOffset) {
+            if (size <= capacity - mWriteOffset) return mWriteOffset;
+            return size < readOffset ? 0 : -1;
+        }
+        // Written data wrapped, free space is between the write and read offsets.
+        return size < readOffset - mWriteOffset ? mWriteOffset : -1;
+    }
+
+    /**
+     * Removes the oldest GOP, including the audio samples that were added with it.
+     */
+    private void evictGop() {
+        long end = mNextGop >= 0 ? mNextGop : mTail;
+        for (long i = mHead; i < end; i++) {
+            mBytes -= mSizes[(int) (i & mMask)];
+        }
+        mHead = end;
+        mNextGop = -1;
+        for (long i = mHead + 1; i < mTail; i++) {
+            int slot = (int) (i & mMask);
+            if (mVideo[slot] && mKeyFrame[slot]) {
+                mNextGop = i;
+                break;
+            }
+        }
+    }
+
+    private void grow() {
+        int capacity = (mMask + 1) * 2;
+        int[] offsets = new int[capacity];
+        int[] sizes = new int[capacity];
+        long[] times = new long[capacity];
+        boolean[] video = new boolean[capacity];
+        boolean[] keyFrame = new boolean[capacity];
+        int newMask = capacity - 1;
+        for (long i = mHead; i < mTail; i++) {
+            int from = (int) (i & mMask);
+            int to = (int) (i & newMask);
+            offsets[to] = mOffsets[from];
+            sizes[to] = mSizes[from];
+            times[to] = mTimes[from];
+            video[to] = mVideo[from];
+            keyFrame[to] = mKeyFrame[from];
+        }
+        mOffsets = offsets;
+        mSizes = sizes;
+        mTimes = times;
+        mVideo = video;
+        mKeyFrame = keyFrame;
+        mMask = newMask;
+    }
+
+    /**
+     * Passes all samples to the consumer, oldest first, and empties the buffer.
+     * @param consumer the consumer
+     */
+    void drain(@NonNull Consumer consumer) {
+        while (!isEmpty()) {
+            int slot = (int) (mHead & mMask);
+            mView.clear();
+            mView.position(mOffsets[slot]);
+            mView.limit(mOffsets[slot] + mSizes[slot]);
+            ByteBuffer sample = mView.slice();
+            consumer.onSample(sample, mVideo[slot], mTimes[slot], mKeyFrame[slot]);
+            mBytes -= mSizes[slot];
+            mHead++;
+        }
+        mNextGop = -1;
+    }
+
+    boolean isEmpty() {
+        return mHead == mTail;
+    }
+
+    int getSampleCount() {
+        return (int) (mTail - mHead);
+    }
+
+    int getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Returns the time between the oldest sample and the newest one.
+     * @return the buffered duration
+     */
+    long getDurationUs() {
+        if (isEmpty()) return 0;
+        return mLastTimeUs - mTimes[(int) (mHead & mMask)];
+    }
+
+    long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "PreRollBuffer{samples=" + getSampleCount()
+                + ", bytes=" + mBytes
+                + ", durationUs=" + getDurationUs()
+                + ", dropped=" + mDroppedCount + "}";
+    }
+}
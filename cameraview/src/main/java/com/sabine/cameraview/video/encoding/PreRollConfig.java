@@ -0,0 +1,21 @@
+package com.sabine.cameraview.video.encoding;
+
+/**
+ * Pre-roll configuration to be passed to {@link MediaEncoderEngine#setPreRollConfig(PreRollConfig)}.
+ *
+ * While armed, the engine keeps the last encoded samples in memory instead of writing them.
+ * When {@link MediaEncoderEngine#triggerPreRoll()} is called, they are written to the file
+ * followed by the live stream, so that the video starts before the trigger.
+ * If the engine is stopped without a trigger, only the buffered samples are written.
+ *
+ * The buffer always starts with a video keyframe, so the kept history is between
+ * {@link #durationMillis} and {@link #durationMillis} plus one keyframe interval,
+ * unless {@link #maxBytes} is reached first.
+ */
+@SuppressWarnings("WeakerAccess")
+public class PreRollConfig {
+
+    // Configurable options
+    public long durationMillis = 10000; // history to keep before the trigger
+    public int maxBytes = 16 * 1024 * 1024; // off-heap memory for the buffered samples
+}
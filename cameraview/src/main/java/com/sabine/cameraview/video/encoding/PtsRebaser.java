@@ -0,0 +1,108 @@
+package com.sabine.cameraview.video.encoding;
+
+import java.util.Arrays;
+
+/**
+ * Removes paused intervals from the timeline of a recording, so that the output
+ * plays back continuously across pauses.
+ *
+ * Pauses are recorded in the capture time reference, the one of video frames and
+ * audio timestamps, so pause times must be taken with the {@link FrameClock}.
+ * A sample captured during a pause is dropped, and a sample captured after it is
+ * moved back by the duration of all the pauses that ended before it.
+ * Since samples are rebased by their capture time and not by the time they reach the
+ * encoder, audio that is still in flight when the pause starts is kept, and tracks
+ * stay in sync.
+ *
+ * Timestamps that are increasing before rebasing are still increasing after.
+ * Can be used from any thread.
+ */
+class PtsRebaser {
+
+    /**
+     * Returned by {@link #rebase(long)} for samples captured during a pause.
+     */
+    final static long DROP = -1;
+
+    // Pause intervals, the last one is open while paused.
+    private long[] mStarts = new long[4];
+    private long[] mEnds = new long[4];
+    // Duration of the intervals up to each one, included.
+    private long[] mOffsets = new long[4];
+    private int mCount;
+    private boolean mPaused;
+
+    /**
+     * Starts a pause. Does nothing if already paused.
+     *
+     * @param nowUs the current time in the frame clock
+     * @return true if paused
+     */
+    synchronized boolean pause(long nowUs) {
+        if (mPaused) return false;
+        if (mCount > 0) nowUs = Math.max(nowUs, mEnds[mCount - 1]);
+        if (mCount == mStarts.length) {
+            mStarts = Arrays.copyOf(mStarts, mCount * 2);
+            mEnds = Arrays.copyOf(mEnds, mCount * 2);
+            mOffsets = Arrays.copyOf(mOffsets, mCount * 2);
+        }
+        mStarts[mCount] = nowUs;
+        mEnds[mCount] = Long.MAX_VALUE;
+        mOffsets[mCount] = mCount > 0 ? mOffsets[mCount - 1] : 0;
+        mCount++;
+        mPaused = true;
+        return true;
+    }
+
+    /**
+     * Ends the current pause. Does nothing if not paused.
+     *
+     * @param nowUs the current time in the frame clock
+     * @return true if resumed
+     */
+    synchronized boolean resume(long nowUs) {
+        if (!mPaused) return false;
+        int last = mCount - 1;
+        mEnds[last] = Math.max(nowUs, mStarts[last]);
+        mOffsets[last] += mEnds[last] - mStarts[last];
+        mPaused = false;
+        return true;
+    }
+
+    synchronized boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * Returns the number of pauses so far, including the current one.
+     * @return the pause count
+     */
+    synchronized int getPauseCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the total duration of the pauses that ended.
+     * @return the paused time
+     */
+    synchronized long getPausedUs() {
+        if (mCount == 0) return 0;
+        return mPaused ? (mCount > 1 ? mOffsets[mCount - 2] : 0) : mOffsets[mCount - 1];
+    }
+
+    /**
+     * Returns the timestamp of a sample in the output timeline, or {@link #DROP}
+     * if it was captured during a pause. Samples usually come after all pauses,
+     * so this is checked first.
+     *
+     * @param timeUs the capture time
+     * @return the presentation time, or DROP
+     */
+    synchronized long rebase(long timeUs) {
+        for (int i = mCount - 1; i >= 0; i--) {
+            if (timeUs >= mEnds[i]) return timeUs - mOffsets[i];
+            if (timeUs >= mStarts[i]) return DROP;
+        }
+        return timeUs;
+    }
+}
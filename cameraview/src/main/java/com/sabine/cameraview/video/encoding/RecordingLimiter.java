@@ -0,0 +1,121 @@
+package com.sabine.cameraview.video.encoding;
+
+/**
+ * Enforces the max size and max duration of a recording, on the writer thread.
+ *
+ * Every written sample is counted, together with an estimate of the index the muxer
+ * adds for it (sample tables or fragment headers) and of the file header, so that the
+ * estimated file size never goes past the max size. The recording is cut before a
+ * video keyframe when the next group of pictures, as large and as long as the largest
+ * one so far, would not fit. This way the file ends at a keyframe boundary. If a group
+ * turns out larger than expected, it is cut before the first sample that does not fit.
+ *
+ * Once cut, all samples at or after the cut time are rejected.
+ * Not thread safe: it is owned by the engine writer thread.
+ */
+class RecordingLimiter {
+
+    /**
+     * Returned by {@link #getEndReason()} while no limit was reached.
+     */
+    final static int NOT_REACHED = -1;
+
+    // Index bytes for each sample: size, duration, sync and chunk entries.
+    // Matches or exceeds what IsoMp4Muxer, FragmentedMp4Muxer and mp4v2 write.
+    final static long INDEX_BYTES_PER_SAMPLE = 16;
+    // File header, track boxes and codec configs.
+    final static long INDEX_BYTES_BASE = 8 * 1024;
+
+    private final long mMaxBytes;
+    private final long mMaxDurationUs;
+    private long mStartUs = -1;
+    private long mSampleBytes;
+    private long mSampleCount;
+    private long mGopStartBytes = -1;
+    private long mGopStartUs;
+    private long mMaxGopBytes;
+    private long mMaxGopUs;
+    private long mCutUs = Long.MAX_VALUE;
+    private int mEndReason = NOT_REACHED;
+
+    /**
+     * Creates a limiter.
+     *
+     * @param maxBytes the max size in bytes, or 0 for no limit
+     * @param maxDurationUs the max duration, or 0 for no limit
+     */
+    RecordingLimiter(long maxBytes, long maxDurationUs) {
+        mMaxBytes = maxBytes;
+        mMaxDurationUs = maxDurationUs;
+    }
+
+    /**
+     * Counts a sample that is about to be written, or rejects it if it goes past a limit.
+     * The first accepted video sample starts the recording.
+     *
+     * @param isVideo whether this is a video sample
+     * @param size the sample size
+     * @param timeUs the sample timestamp
+     * @param isKeyFrame whether this is a video keyframe
+     * @return true if the sample should be written
+     */
+    boolean accept(boolean isVideo, int size, long timeUs, boolean isKeyFrame) {
+        if (timeUs >= mCutUs) return false;
+        if (mStartUs < 0 && isVideo) mStartUs = timeUs;
+        if (isVideo && isKeyFrame) {
+            long bytes = getEstimatedBytes();
+            if (mGopStartBytes >= 0) {
+                mMaxGopBytes = Math.max(mMaxGopBytes, bytes - mGopStartBytes);
+                mMaxGopUs = Math.max(mMaxGopUs, timeUs - mGopStartUs);
+                if (mMaxBytes > 0 && bytes + mMaxGopBytes > mMaxBytes) {
+                    return cut(timeUs, MediaEncoderEngine.END_BY_MAX_SIZE);
+                }
+                if (mMaxDurationUs > 0 && timeUs - mStartUs + mMaxGopUs > mMaxDurationUs) {
+                    return cut(timeUs, MediaEncoderEngine.END_BY_MAX_DURATION);
+                }
+            }
+            mGopStartBytes = bytes;
+            mGopStartUs = timeUs;
+        }
+        if (mMaxDurationUs > 0 && mStartUs >= 0 && timeUs - mStartUs >= mMaxDurationUs) {
+            return cut(timeUs, MediaEncoderEngine.END_BY_MAX_DURATION);
+        }
+        if (mMaxBytes > 0
+                && getEstimatedBytes() + size + INDEX_BYTES_PER_SAMPLE > mMaxBytes) {
+            return cut(timeUs, MediaEncoderEngine.END_BY_MAX_SIZE);
+        }
+        mSampleBytes += size;
+        mSampleCount++;
+        return true;
+    }
+
+    private boolean cut(long timeUs, int reason) {
+        mCutUs = timeUs;
+        if (mEndReason == NOT_REACHED) mEndReason = reason;
+        return false;
+    }
+
+    /**
+     * Returns the engine end reason for the limit that was reached, or {@link #NOT_REACHED}.
+     * @return the end reason
+     */
+    int getEndReason() {
+        return mEndReason;
+    }
+
+    /**
+     * Returns the bytes of the accepted samples.
+     * @return the sample bytes
+     */
+    long getSampleBytes() {
+        return mSampleBytes;
+    }
+
+    /**
+     * Returns the estimated file size: accepted samples and their index.
+     * @return the estimated size in bytes
+     */
+    long getEstimatedBytes() {
+        return INDEX_BYTES_BASE + mSampleBytes + mSampleCount * INDEX_BYTES_PER_SAMPLE;
+    }
+}
@@ -0,0 +1,185 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A size-classed pool of byte buffers for encoded samples.
+ *
+ * {@link MediaEncoderEngine} copies each encoded sample out of the codec output buffer
+ * (which must be released to the codec immediately) into a buffer from this arena, and gives
+ * it back after the muxer has written it. Once the pool has warmed up, no more buffers are
+ * allocated: {@link #getAllocationCount()} stops growing.
+ *
+ * Sizes are rounded up to a power of two, starting at {@link #MIN_SIZE}. Samples that
+ * are larger than {@link #MAX_SIZE} are still served, but the buffer is not retained.
+ * Free buffers are retained up to a total byte budget.
+ *
+ * All methods are thread safe.
+ */
+class SampleBufferArena {
+
+    private final static int MIN_SHIFT = 12;
+    private final static int MAX_SHIFT = 24;
+    final static int MIN_SIZE = 1 << MIN_SHIFT; // 4 KB
+    final static int MAX_SIZE = 1 << MAX_SHIFT; // 16 MB
+    private final static int CLASS_COUNT = MAX_SHIFT - MIN_SHIFT + 1;
+
+    private final boolean mDirect;
+    private final long mMaxRetainedBytes;
+    private final ByteBuffer[][] mFree = new ByteBuffer[CLASS_COUNT][];
+    private final int[] mFreeCount = new int[CLASS_COUNT];
+    private final Object mLock = new Object();
+
+    private long mRetainedBytes;
+    private long mAllocatedBytes;
+    private int mAllocationCount;
+    private int mOversizeCount;
+    private long mAcquireCount;
+    private long mDiscardCount;
+
+    /**
+     * Creates a new arena.
+     *
+     * @param direct whether to allocate direct buffers (for native consumers) or heap buffers
+     *               (which have a backing array)
+     * @param maxRetainedBytes max bytes kept in the free lists
+     */
+    SampleBufferArena(boolean direct, long maxRetainedBytes) {
+        mDirect = direct;
+        mMaxRetainedBytes = maxRetainedBytes;
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            mFree[i] = new ByteBuffer[4];
+        }
+    }
+
+    /**
+     * Returns a cleared buffer with at least the given capacity.
+     * Should be passed to {@link #release(ByteBuffer)} after use.
+     *
+     * @param size the needed capacity
+     * @return a buffer
+     */
+    @NonNull
+    ByteBuffer acquire(int size) {
+        int sizeClass = sizeClassOf(size);
+        int capacity = sizeClass >= 0 ? 1 << (sizeClass + MIN_SHIFT) : size;
+        synchronized (mLock) {
+            mAcquireCount++;
+            if (sizeClass >= 0 && mFreeCount[sizeClass] > 0) {
+                int index = --mFreeCount[sizeClass];
+                ByteBuffer buffer = mFree[sizeClass][index];
+                mFree[sizeClass][index] = null;
+                mRetainedBytes -= buffer.capacity();
+                buffer.clear();
+                return buffer;
+            }
+            if (sizeClass < 0) mOversizeCount++;
+            mAllocationCount++;
+            mAllocatedBytes += capacity;
+        }
+        return allocate(capacity);
+    }
+
+    /**
+     * Gives back a buffer that was returned by {@link #acquire(int)}.
+     * @param buffer the buffer
+     */
+    void release(@NonNull ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClassOf(capacity);
+        synchronized (mLock) {
+            if (sizeClass < 0 || capacity != 1 << (sizeClass + MIN_SHIFT)
+                    || mRetainedBytes + capacity > mMaxRetainedBytes) {
+                mDiscardCount++;
+                return;
+            }
+            ByteBuffer[] free = mFree[sizeClass];
+            int count = mFreeCount[sizeClass];
+            if (count == free.length) {
+                ByteBuffer[] grown = new ByteBuffer[count * 2];
+                System.arraycopy(free, 0, grown, 0, count);
+                mFree[sizeClass] = free = grown;
+            }
+            free[count] = buffer;
+            mFreeCount[sizeClass] = count + 1;
+            mRetainedBytes += capacity;
+        }
+    }
+
+    /**
+     * Drops all the free buffers.
+     */
+    void clear() {
+        synchronized (mLock) {
+            for (int i = 0; i < CLASS_COUNT; i++) {
+                for (int j = 0; j < mFreeCount[i]; j++) mFree[i][j] = null;
+                mFreeCount[i] = 0;
+            }
+            mRetainedBytes = 0;
+        }
+    }
+
+    /**
+     * Returns the number of buffers that were allocated so far. In steady state,
+     * this number should not grow.
+     * @return the allocation count
+     */
+    int getAllocationCount() {
+        synchronized (mLock) {
+            return mAllocationCount;
+        }
+    }
+
+    /**
+     * Returns the total bytes that were allocated so far.
+     * @return the allocated bytes
+     */
+    long getAllocatedBytes() {
+        synchronized (mLock) {
+            return mAllocatedBytes;
+        }
+    }
+
+    /**
+     * Returns the number of {@link #acquire(int)} calls so far.
+     * @return the acquire count
+     */
+    long getAcquireCount() {
+        synchronized (mLock) {
+            return mAcquireCount;
+        }
+    }
+
+    boolean isDirect() {
+        return mDirect;
+    }
+
+    @NonNull
+    private ByteBuffer allocate(int capacity) {
+        return mDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    // Returns -1 if size is too big to be pooled.
+    private static int sizeClassOf(int size) {
+        if (size <= MIN_SIZE) return 0;
+        if (size > MAX_SIZE) return -1;
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift - MIN_SHIFT;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return getClass().getSimpleName() + " - direct:" + mDirect
+                    + ", allocations:" + mAllocationCount
+                    + ", allocatedBytes:" + mAllocatedBytes
+                    + ", oversize:" + mOversizeCount
+                    + ", acquires:" + mAcquireCount
+                    + ", discards:" + mDiscardCount
+                    + ", retainedBytes:" + mRetainedBytes;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free ring queue with exactly one producer thread and one consumer thread.
+ *
+ * This is used by {@link MediaEncoderEngine} to hand encoded samples from the encoder
+ * threads to the muxer writer thread. Each track has its own queue, so that each queue
+ * has a single producer (the thread draining that track's codec).
+ *
+ * The producer publishes items with {@link #offer(Object)} or {@link #put(Object)}.
+ * The consumer takes them one at a time with {@link #poll()}, or every pending item
+ * in one pass with {@link #drain(Sink)}. Either way the read index moves as soon as an
+ * item is taken, so a producer waiting for room doesn't wait for the consumer to process
+ * the rest of the batch. When it stops, the consumer calls {@link #close()}, so that a
+ * producer waiting in {@link #put(Object)} does not wait forever.
+ *
+ * The queue also keeps some counters (depth, producer wait time) that can be read
+ * from any thread. They are approximate and meant for logging and tuning only.
+ *
+ * @param <T> the item type
+ */
+class SampleQueue<T> {
+
+    /**
+     * Receives the items taken by {@link #drain(Sink)}.
+     * @param <T> the item type
+     */
+    interface Sink<T> {
+        void onItem(@NonNull T item);
+    }
+
+    // When full, the producer parks for this long before trying again.
+    private final static long PUT_PARK_NANOS = 50000L; // 50us
+
+    private final Object[] mItems;
+    private final int mMask;
+
+    // Next slot to be read. Only written by the consumer.
+    private final AtomicLong mHead = new AtomicLong(0);
+    // Next slot to be written. Only written by the producer.
+    private final AtomicLong mTail = new AtomicLong(0);
+    // Producer-local copy of mHead, so we don't read the volatile at each offer.
+    private long mHeadCache = 0;
+
+    // Set by the consumer when it won't drain anymore.
+    private volatile boolean mClosed = false;
+
+    private volatile int mMaxDepth = 0;
+    private volatile long mOfferCount = 0;
+    private volatile long mFullCount = 0;
+    private volatile long mPutWaitNanos = 0;
+
+    /**
+     * Creates a new queue. The capacity is rounded up to the next power of two.
+     * @param capacity the minimum capacity
+     */
+    SampleQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        mItems = new Object[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Tries to add an item. Must only be called by the producer thread.
+     * @param item the item
+     * @return false if the queue is full
+     */
+    boolean offer(@NonNull T item) {
+        long tail = mTail.get();
+        if (tail - mHeadCache >= mItems.length) {
+            mHeadCache = mHead.get();
+            if (tail - mHeadCache >= mItems.length) {
+                return false;
+            }
+        }
+        mItems[(int) tail & mMask] = item;
+        // Volatile write: publishes the slot above to the consumer.
+        mTail.set(tail + 1);
+        int depth = (int) (tail + 1 - mHeadCache);
+        if (depth > mMaxDepth) mMaxDepth = depth;
+        mOfferCount++;
+        return true;
+    }
+
+    /**
+     * Adds an item, waiting for the consumer to make room if the queue is full.
+     * Returns false without adding the item if the queue was closed, before or
+     * while waiting. The item is then owned by the caller again.
+     * Must only be called by the producer thread.
+     *
+     * @param item the item
+     * @return false if the queue is closed
+     */
+    boolean put(@NonNull T item) {
+        if (mClosed) return false;
+        if (offer(item)) return true;
+        mFullCount++;
+        long start = System.nanoTime();
+        boolean added;
+        while (!(added = offer(item))) {
+            if (mClosed) break;
+            LockSupport.parkNanos(PUT_PARK_NANOS);
+        }
+        mPutWaitNanos += System.nanoTime() - start;
+        return added;
+    }
+
+    /**
+     * Tells the producer that items won't be drained anymore, so that
+     * {@link #put(Object)} stops waiting. Called by the consumer when it ends or fails.
+     * Items that are still in the queue are not released.
+     */
+    void close() {
+        mClosed = true;
+    }
+
+    /**
+     * Whether {@link #close()} was called.
+     * @return true if closed
+     */
+    boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Takes all the items that are currently in the queue and passes them to the sink,
+     * in insertion order. Must only be called by the consumer thread.
+     *
+     * @param sink the sink
+     * @return the number of items taken
+     */
+    @SuppressWarnings("unchecked")
+    int drain(@NonNull Sink<T> sink) {
+        long head = mHead.get();
+        long tail = mTail.get();
+        for (long i = head; i < tail; i++) {
+            int index = (int) i & mMask;
+            T item = (T) mItems[index];
+            mItems[index] = null;
+            // Give the slot back before the sink works on the item.
+            mHead.set(i + 1);
+            sink.onItem(item);
+        }
+        return (int) (tail - head);
+    }
+
+    /**
+     * Removes and returns the oldest item, or null if the queue is empty.
+     * Must only be called by the consumer thread.
+     * @return the oldest item or null
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    T poll() {
+        long head = mHead.get();
+        if (head == mTail.get()) return null;
+        int index = (int) head & mMask;
+        T item = (T) mItems[index];
+        mItems[index] = null;
+        mHead.set(head + 1);
+        return item;
+    }
+
+    /**
+     * Returns the oldest item without removing it, or null.
+     * Must only be called by the consumer thread.
+     * @return the oldest item or null
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    T peek() {
+        long head = mHead.get();
+        if (head == mTail.get()) return null;
+        return (T) mItems[(int) head & mMask];
+    }
+
+    boolean isEmpty() {
+        return mHead.get() == mTail.get();
+    }
+
+    int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    int capacity() {
+        return mItems.length;
+    }
+
+    /**
+     * Returns the maximum number of items that were queued at the same time.
+     * @return the max depth
+     */
+    int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    /**
+     * Returns the number of items that were added so far.
+     * @return the offer count
+     */
+    long getOfferCount() {
+        return mOfferCount;
+    }
+
+    /**
+     * Returns the number of times {@link #put(Object)} found the queue full.
+     * @return the full count
+     */
+    long getFullCount() {
+        return mFullCount;
+    }
+
+    /**
+     * Returns the total time that the producer spent waiting in {@link #put(Object)}.
+     * @return the wait time in nanoseconds
+     */
+    long getPutWaitNanos() {
+        return mPutWaitNanos;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " - size:" + size() + ", capacity:" + capacity()
+                + ", maxDepth:" + mMaxDepth + ", offers:" + mOfferCount
+                + ", full:" + mFullCount + ", putWaitMillis:" + (mPutWaitNanos / 1000000L);
+    }
+}
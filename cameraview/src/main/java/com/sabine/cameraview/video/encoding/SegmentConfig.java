@@ -0,0 +1,38 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Segment configuration to be passed as input to the constructor
+ * of a {@link MediaEncoderEngine}, to split a recording into consecutive files.
+ *
+ * Encoders keep running across segments. Each segment starts with a video keyframe,
+ * which the video encoder is asked to produce when the segment duration is reached.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SegmentConfig {
+
+    // Configurable options
+    public long segmentDurationMillis = 60000;
+
+    /**
+     * Returns the file for the given segment. By default, the index is appended
+     * to the file name, e.g. video_000.mp4, video_001.mp4...
+     *
+     * @param file the recording file
+     * @param index the segment index
+     * @return the segment file
+     */
+    @NonNull
+    public File getSegmentFile(@NonNull File file, int index) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        return new File(file.getParentFile(),
+                String.format(Locale.US, "%s_%03d%s", base, index, extension));
+    }
+}
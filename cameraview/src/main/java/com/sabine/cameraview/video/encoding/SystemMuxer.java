@@ -0,0 +1,237 @@
+package com.sabine.cameraview.video.encoding;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import com.sabine.cameraview.CameraLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link Muxer} backed by the platform {@link MediaMuxer}. Video snapshots use it
+ * when the native mp4v2 library can't be loaded.
+ *
+ * MediaMuxer can only be started once all tracks were added, while the engine might receive
+ * samples of the first track before the config of the second. These samples are copied and
+ * kept until the muxer starts.
+ *
+ * The rotation hint is only written when the encoder did not rotate the frames itself,
+ * which {@link TextureMediaEncoder} does.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class SystemMuxer implements Muxer {
+
+    private final static String TAG = SystemMuxer.class.getSimpleName();
+    private final static CameraLogger LOG = CameraLogger.create(TAG);
+
+    /**
+     * The calls made to {@link MediaMuxer}, so that they can be replaced in tests.
+     */
+    interface Backend {
+        int addTrack(boolean isVideo, @NonNull ByteBuffer csd);
+        void setOrientationHint(int degrees);
+        void start();
+        void writeSampleData(int track, @NonNull ByteBuffer data, int offset, int size,
+                             long presentationTimeUs, int flags);
+        void stop();
+        void release();
+    }
+
+    private final Backend mBackend;
+    private final int mTrackCount;
+    private final int mOrientationHint;
+    private int mVideoTrack = -1;
+    private int mAudioTrack = -1;
+    private boolean mStarted;
+    private final List<PendingSample> mPendingSamples = new ArrayList<>();
+
+    private static class PendingSample {
+        private boolean isVideo;
+        private ByteBuffer data;
+        private long presentationTimeUs;
+        private boolean isKeyFrame;
+    }
+
+    /**
+     * Creates a new muxer.
+     *
+     * @param file the output file
+     * @param videoConfig the video config
+     * @param audioConfig the audio config, or null if there is no audio track
+     * @param rotation the rotation left in the frames by the encoder, in degrees
+     * @throws IOException if the file can't be opened
+     */
+    public SystemMuxer(@NonNull File file, @NonNull VideoConfig videoConfig,
+                       AudioConfig audioConfig, int rotation) throws IOException {
+        this(new MediaMuxerBackend(file, videoConfig, audioConfig), audioConfig != null,
+                rotation);
+    }
+
+    SystemMuxer(@NonNull Backend backend, boolean hasAudio, int rotation) {
+        mBackend = backend;
+        mTrackCount = hasAudio ? 2 : 1;
+        mOrientationHint = orientationHint(rotation);
+    }
+
+    /**
+     * MediaMuxer only accepts 0, 90, 180 and 270.
+     *
+     * @param rotation any rotation in degrees
+     * @return the closest accepted hint
+     */
+    static int orientationHint(int rotation) {
+        int degrees = ((rotation % 360) + 360) % 360;
+        return ((degrees + 45) / 90 * 90) % 360;
+    }
+
+    @Override
+    public void addTrack(boolean isVideo, @NonNull ByteBuffer config, int size)
+            throws IOException {
+        ByteBuffer csd = ByteBuffer.allocate(size);
+        ByteBuffer source = config.duplicate();
+        source.limit(source.position() + size);
+        csd.put(source);
+        csd.flip();
+        try {
+            if (isVideo) {
+                mVideoTrack = mBackend.addTrack(true, csd);
+            } else {
+                mAudioTrack = mBackend.addTrack(false, csd);
+            }
+            int added = (mVideoTrack >= 0 ? 1 : 0) + (mAudioTrack >= 0 ? 1 : 0);
+            if (added == mTrackCount) {
+                if (mOrientationHint != 0) mBackend.setOrientationHint(mOrientationHint);
+                mBackend.start();
+                mStarted = true;
+            }
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            throw new IOException("MediaMuxer could not add the track.", e);
+        }
+        if (mStarted) {
+            for (PendingSample sample : mPendingSamples) {
+                write(sample.isVideo, sample.data, sample.data.remaining(),
+                        sample.presentationTimeUs, sample.isKeyFrame);
+            }
+            mPendingSamples.clear();
+        }
+    }
+
+    @Override
+    public void writeSample(boolean isVideo, @NonNull ByteBuffer data, int size,
+                            long presentationTimeUs, boolean isKeyFrame) throws IOException {
+        if (mStarted) {
+            write(isVideo, data, size, presentationTimeUs, isKeyFrame);
+        } else {
+            PendingSample sample = new PendingSample();
+            sample.isVideo = isVideo;
+            sample.data = ByteBuffer.allocate(size);
+            ByteBuffer source = data.duplicate();
+            source.limit(source.position() + size);
+            sample.data.put(source);
+            sample.data.flip();
+            sample.presentationTimeUs = presentationTimeUs;
+            sample.isKeyFrame = isKeyFrame;
+            mPendingSamples.add(sample);
+        }
+    }
+
+    private void write(boolean isVideo, @NonNull ByteBuffer data, int size,
+                       long presentationTimeUs, boolean isKeyFrame) throws IOException {
+        try {
+            mBackend.writeSampleData(isVideo ? mVideoTrack : mAudioTrack, data,
+                    data.position(), size, presentationTimeUs,
+                    isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            // MediaMuxer throws these when the sample or its state is invalid.
+            throw new IOException("MediaMuxer could not write the sample.", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        try {
+            if (mStarted) mBackend.stop();
+        } catch (IllegalStateException e) {
+            LOG.e("close:", "Could not stop the muxer.", e);
+            error = new IOException("MediaMuxer could not stop.", e);
+        }
+        mBackend.release();
+        mPendingSamples.clear();
+        if (error != null) throw error;
+    }
+
+    @Override
+    public boolean acceptsDirectBuffers() {
+        return true;
+    }
+
+    private static class MediaMuxerBackend implements Backend {
+
+        private final MediaMuxer mMediaMuxer;
+        private final VideoConfig mVideoConfig;
+        private final AudioConfig mAudioConfig;
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+        private MediaMuxerBackend(@NonNull File file, @NonNull VideoConfig videoConfig,
+                                  AudioConfig audioConfig) throws IOException {
+            mMediaMuxer = new MediaMuxer(file.getAbsolutePath(),
+                    MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            mVideoConfig = videoConfig;
+            mAudioConfig = audioConfig;
+        }
+
+        @Override
+        public int addTrack(boolean isVideo, @NonNull ByteBuffer csd) {
+            MediaFormat format;
+            if (isVideo) {
+                format = MediaFormat.createVideoFormat(mVideoConfig.mimeType,
+                        mVideoConfig.width, mVideoConfig.height);
+            } else {
+                format = MediaFormat.createAudioFormat(mAudioConfig.mimeType,
+                        mAudioConfig.samplingFrequency, mAudioConfig.channels);
+            }
+            // MediaMuxer splits SPS and PPS if they are both in csd-0.
+            format.setByteBuffer("csd-0", csd);
+            LOG.i("addTrack:", "isVideo:", isVideo, "format:", format);
+            return mMediaMuxer.addTrack(format);
+        }
+
+        @Override
+        public void setOrientationHint(int degrees) {
+            mMediaMuxer.setOrientationHint(degrees);
+        }
+
+        @Override
+        public void start() {
+            mMediaMuxer.start();
+        }
+
+        @Override
+        public void writeSampleData(int track, @NonNull ByteBuffer data, int offset, int size,
+                                    long presentationTimeUs, int flags) {
+            //noinspection WrongConstant
+            mInfo.set(offset, size, presentationTimeUs, flags);
+            mMediaMuxer.writeSampleData(track, data, mInfo);
+        }
+
+        @Override
+        public void stop() {
+            mMediaMuxer.stop();
+        }
+
+        @Override
+        public void release() {
+            mMediaMuxer.release();
+        }
+    }
+}
@@ -50,7 +50,21 @@ public class TextureMediaEncoder extends VideoMediaEncoder<TextureConfig> {
 
     private Thread videoEncoderThread;
 
-    public TextureMediaEncoder(@NonNull TextureConfig config, AudioMediaEncoder audioMediaEncoder) {
+    // Frames skipped because this encoder was behind. Only written by the encoder thread.
+    private volatile int mDroppedFrames;
+    // Pauses seen by the encoder thread, to request a sync frame after each one.
+    private int mPauseCount;
+
+    /**
+     * Creates the encoder. The audio encoder, if any, receives the time of the first frame.
+     * Encoders of additional outputs have no audio encoder, see
+     * {@link MediaEncoderEngine#addAudioOutput(MediaEncoderEngine)}.
+     *
+     * @param config the config
+     * @param audioMediaEncoder the audio encoder of the same recording, or null
+     */
+    public TextureMediaEncoder(@NonNull TextureConfig config,
+                               @Nullable AudioMediaEncoder audioMediaEncoder) {
         super(config.copy());
         mAudioMediaEncoder = audioMediaEncoder;
     }
@@ -113,7 +127,7 @@ public class TextureMediaEncoder extends VideoMediaEncoder<TextureConfig> {
 
     @EncoderThread
     @Override
-    protected void onPrepare(@NonNull MediaEncoderEngine.Controller controller) {
+    protected void onPrepare(@Nullable MediaEncoderEngine.Controller controller) {
         // We rotate the texture using transformRotation. Pass rotation=0 to super so that
         // no rotation metadata is written into the output file.
         mTransformRotation = mConfig.rotation;
@@ -163,6 +177,9 @@ public class TextureMediaEncoder extends VideoMediaEncoder<TextureConfig> {
         } else if (getPendingEvents(FRAME_EVENT) > 20) {
 //            LogUtil.w("bbb shouldRenderFrame - Dropping, we already have too many pending events:",
 //                    getPendingEvents(FRAME_EVENT));
+            mDroppedFrames++;
+            EncoderMetrics metrics = getMetrics();
+            if (metrics != null) metrics.recordDrop(EncoderMetrics.DROP_VIDEO_BACKLOG);
             return false;
         } else {
             return true;
@@ -189,15 +206,41 @@ public class TextureMediaEncoder extends VideoMediaEncoder<TextureConfig> {
     }
 
     private void onFrame(@NonNull Frame frame) {
+        // Remove pauses from the timeline. Frames captured while paused are not encoded.
+        PtsRebaser rebaser = mController.getPtsRebaser();
+        long presentationUs = rebaser.rebase(frame.timestampUs());
+        if (presentationUs == PtsRebaser.DROP) {
+            mFramePool.recycle(frame);
+            return;
+        }
         if (!shouldRenderFrame(frame.timestampUs())) {
 //            LogUtil.w(TAG, "bbb !shouldRenderFrame : frame.timestampUs === " + frame.timestampUs() + ", mFrameNumber === " + mFrameNumber + ", isRecording == " + isRecording());
             mFramePool.recycle(frame);
             return;
         }
+        // Time-lapse: skip frames before drawing, so they cost no GPU nor encoder time.
+        TimeLapseClock timeLapse = mController.getTimeLapse();
+        if (timeLapse != null) {
+            presentationUs = timeLapse.videoFrame(presentationUs);
+            if (presentationUs == TimeLapseClock.DROP) {
+                mFramePool.recycle(frame);
+                return;
+            }
+        }
 
 //        long beginTime = SystemClock.elapsedRealtime();
+        EncoderMetrics metrics = getMetrics();
+        long renderStartNanos = 0;
+        if (metrics != null) {
+            renderStartNanos = System.nanoTime();
+            // Frame timestamps are in the frame clock, not always in nanoTime.
+            metrics.recordStage(EncoderMetrics.STAGE_VIDEO_DISPATCH,
+                    mController.getFrameClock().nowUs() - frame.timestampUs());
+            metrics.recordQueue(EncoderMetrics.QUEUE_VIDEO_FRAMES,
+                    getPendingEvents(FRAME_EVENT));
+        }
         // Notify we're got the first frame and its absolute time.
-        if (mFrameNumber == 1) {
+        if (mFrameNumber == 1 && mAudioMediaEncoder != null) {
             mAudioMediaEncoder.setBaseTimeUs(frame.timestampUs());
         }
         if (mDrawer.getMaxTexture() < 2 && lastScaleX != mConfig.scaleX) { // 如果跟之前值不一样，说明摄像头切换了，需要左右翻转图像
@@ -274,6 +317,16 @@ public class TextureMediaEncoder extends VideoMediaEncoder<TextureConfig> {
             mDrawer = new GlTextureDrawer(new int[]{mConfig.textureId}, GLES20.GL_TEXTURE_2D, mConfig.frontIsFirst);
             mDrawer.setFilter(new EndOutputFilter());
         }
+        // When segmenting, this frame might have to start a new segment.
+        // After a pause, start again with a sync frame.
+        boolean resumed = false;
+        if (!rebaser.isPaused() && rebaser.getPauseCount() != mPauseCount) {
+            mPauseCount = rebaser.getPauseCount();
+            resumed = true;
+        }
+        if (mController.shouldRequestSyncFrame(presentationUs) || resumed) {
+            requestSyncFrame();
+        }
         if (mDrawer != null) {
             GLES20.glViewport(0, 0, getVideoConfig().width, getVideoConfig().height);
             mDrawer.setTextureTransform(mEncodeTransform/*transform*/);
@@ -286,9 +339,13 @@ public class TextureMediaEncoder extends VideoMediaEncoder<TextureConfig> {
 //        }
 
 //        if (mWindow != null) {
-        mWindow.setPresentationTime(frame.timestampNanos);
+        mWindow.setPresentationTime(presentationUs * 1000L);
         mWindow.swapBuffers();
 //        }
+        if (metrics != null) {
+            metrics.recordStage(EncoderMetrics.STAGE_VIDEO_RENDER,
+                    (System.nanoTime() - renderStartNanos) / 1000L);
+        }
 //        long swapBuffersTime = SystemClock.elapsedRealtime();
         mFramePool.recycle(frame);
 //        LOG.i(TAG, mFirstTimeUs, "onFrame recycle time:", SystemClock.elapsedRealtime()-swapBuffersTime, ", swapBuffers time:", swapBuffersTime-drawTime, ", draw time:", drawTime-encodeTime, ", encode time:", encodeTime-beginTime);
@@ -318,6 +375,15 @@ public class TextureMediaEncoder extends VideoMediaEncoder<TextureConfig> {
         }
     }
 
+    /**
+     * Returns the number of frames that were skipped because this encoder
+     * could not keep up. Each output of a recording has its own count.
+     * @return the dropped frames
+     */
+    public int getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
     public void setFileterLevel(float level) {
         this.filterLevel = level;
     }
@@ -0,0 +1,101 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Decides which frames are kept in a time-lapse, and rewrites their timestamps
+ * so that they are spaced by the playback frame rate. See {@link TimeLapseConfig}.
+ *
+ * Timestamps are in the output timeline, after pauses were removed, and the output
+ * starts at the time of the first frame, which is always kept. Frames are kept at a
+ * regular pace: after a stall, missed captures are skipped rather than written in a burst.
+ *
+ * When the audio is replaced by silence, it follows the written video, so that both
+ * tracks have the same length whatever the speed-up.
+ *
+ * Video methods are called by the video encoder thread, audio methods by the audio one.
+ */
+class TimeLapseClock {
+
+    final static long DROP = PtsRebaser.DROP;
+
+    private final long mIntervalUs;
+    private final int mFrameInterval;
+    private final double mPlaybackFrameUs;
+
+    // Written by the video thread, read by the audio thread.
+    private volatile long mBaseUs = -1;
+    private volatile long mVideoEndUs;
+    private long mNextCaptureUs;
+    private long mCapturedFrames;
+    private long mWrittenFrames;
+    private long mAudioBytes;
+
+    TimeLapseClock(@NonNull TimeLapseConfig config) {
+        if (config.playbackFrameRate <= 0) {
+            throw new IllegalArgumentException("Invalid playback frame rate: "
+                    + config.playbackFrameRate);
+        }
+        if (config.captureIntervalMillis <= 0 && config.frameInterval <= 0) {
+            throw new IllegalArgumentException("Either captureIntervalMillis or frameInterval"
+                    + " should be set.");
+        }
+        mIntervalUs = config.captureIntervalMillis * 1000L;
+        mFrameInterval = config.frameInterval;
+        mPlaybackFrameUs = 1000000D / config.playbackFrameRate;
+    }
+
+    /**
+     * Returns the output timestamp of a video frame, or {@link #DROP}
+     * if it should not be drawn.
+     *
+     * @param timeUs the frame timestamp
+     * @return the output timestamp, or DROP
+     */
+    long videoFrame(long timeUs) {
+        long captured = mCapturedFrames++;
+        long base = mBaseUs;
+        if (base < 0) {
+            base = timeUs;
+            mNextCaptureUs = timeUs + mIntervalUs;
+        } else if (mIntervalUs > 0) {
+            if (timeUs < mNextCaptureUs) return DROP;
+            mNextCaptureUs += mIntervalUs;
+            if (mNextCaptureUs <= timeUs) mNextCaptureUs = timeUs + mIntervalUs;
+        } else if (captured % mFrameInterval != 0) {
+            return DROP;
+        }
+        long timestampUs = base + Math.round(mWrittenFrames * mPlaybackFrameUs);
+        mWrittenFrames++;
+        mVideoEndUs = base + Math.round(mWrittenFrames * mPlaybackFrameUs);
+        mBaseUs = base;
+        return timestampUs;
+    }
+
+    /**
+     * Returns the output timestamp of the next silent audio frame, or {@link #DROP}
+     * if the audio is already as long as the video. Should be called for each
+     * captured audio frame, which come faster than needed.
+     *
+     * @param length the frame length
+     * @param byteRate the audio byte rate
+     * @return the output timestamp, or DROP
+     */
+    long audioFrame(int length, int byteRate) {
+        long base = mBaseUs;
+        if (base < 0) return DROP;
+        long timestampUs = base + AudioTimestamp.bytesToUs(mAudioBytes, byteRate);
+        long endUs = base + AudioTimestamp.bytesToUs(mAudioBytes + length, byteRate);
+        if (endUs > mVideoEndUs) return DROP;
+        mAudioBytes += length;
+        return timestampUs;
+    }
+
+    /**
+     * Returns the number of frames written so far.
+     * @return the written frames
+     */
+    long getWrittenFrames() {
+        return mWrittenFrames;
+    }
+}
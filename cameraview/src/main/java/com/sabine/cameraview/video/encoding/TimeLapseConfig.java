@@ -0,0 +1,22 @@
+package com.sabine.cameraview.video.encoding;
+
+/**
+ * Time-lapse configuration to be passed to {@link MediaEncoderEngine#setTimeLapseConfig(TimeLapseConfig)}.
+ *
+ * Only some of the frames are captured, either one every {@link #captureIntervalMillis}
+ * or one every {@link #frameInterval} frames, and they are written at
+ * {@link #playbackFrameRate}, so that the video plays faster than real time.
+ * Skipped frames are not drawn nor encoded.
+ *
+ * The captured audio would not match the video, so it is either dropped or,
+ * with {@link #silentAudio}, replaced by silence as long as the video.
+ */
+@SuppressWarnings("WeakerAccess")
+public class TimeLapseConfig {
+
+    // Configurable options
+    public long captureIntervalMillis = 1000; // time between captured frames, 0 to use frameInterval
+    public int frameInterval = 0; // capture one frame every frameInterval, if there's no interval
+    public int playbackFrameRate = 30; // frame rate of the output video
+    public boolean silentAudio = false; // write a silent audio track instead of none
+}
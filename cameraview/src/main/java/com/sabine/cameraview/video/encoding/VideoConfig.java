@@ -24,4 +24,12 @@ public class VideoConfig {
         output.mimeType = this.mimeType;
         output.encoder = this.encoder;
     }
+
+    /**
+     * Whether this is an H.265 config, as opposed to H.264 or H.263.
+     * @return true if H.265
+     */
+    public boolean isHevc() {
+        return "video/hevc".equalsIgnoreCase(mimeType); // MediaFormat.MIMETYPE_VIDEO_HEVC
+    }
 }
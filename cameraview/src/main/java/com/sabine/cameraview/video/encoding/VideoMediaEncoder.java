@@ -9,6 +9,7 @@ import android.util.Log;
 import android.view.Surface;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 
 import com.sabine.cameraview.CameraLogger;
@@ -50,6 +51,9 @@ abstract class VideoMediaEncoder<C extends VideoConfig> extends MediaEncoder {
 
     private boolean mSyncFrameFound = false;
 
+    // Bit rate requested by the engine, applied on the encoder thread.
+    private volatile int mRequestedBitRate = 0;
+
     VideoMediaEncoder(@NonNull C config) {
         super(NAME_VIDEO);
         mConfig = config;
@@ -58,7 +62,7 @@ abstract class VideoMediaEncoder<C extends VideoConfig> extends MediaEncoder {
 
     @EncoderThread
     @Override
-    protected void onPrepare(@NonNull MediaEncoderEngine.Controller controller) {
+    protected void onPrepare(@Nullable MediaEncoderEngine.Controller controller) {
 
     }
 
@@ -79,33 +83,30 @@ abstract class VideoMediaEncoder<C extends VideoConfig> extends MediaEncoder {
         format.setInteger(MediaFormat.KEY_FRAME_RATE, mConfig.frameRate);
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1); // seconds between key frames!
         format.setInteger(MediaFormat.KEY_ROTATION, mConfig.rotation);
-        if (Build.VERSION.SDK_INT > Build.VERSION_CODES.M) {
-            /**
-             * 可选配置，设置码率模式
-             * BITRATE_MODE_VBR：恒定质量
-             * BITRATE_MODE_VBR：可变码率
-             * BITRATE_MODE_CBR：恒定码率
-             */
-            format.setInteger(MediaFormat.KEY_BITRATE_MODE, MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR);
-            /**
-             * 可选配置，设置H264 Profile
-             * 需要做兼容性检查
-             */
-            format.setInteger(MediaFormat.KEY_PROFILE, MediaCodecInfo.CodecProfileLevel.AVCProfileHigh);
-            /**
-             * 可选配置，设置H264 Level
-             * 需要做兼容性检查
-             */
-            format.setInteger(MediaFormat.KEY_LEVEL, MediaCodecInfo.CodecProfileLevel.HEVCHighTierLevel31);
-        }
-
-        LogUtil.e(TAG, "onPrepare: " + format);
         try {
             if (mConfig.encoder != null) {
                 mMediaCodec = MediaCodec.createByCodecName(mConfig.encoder);
             } else {
                 mMediaCodec = MediaCodec.createEncoderByType(mConfig.mimeType);
             }
+            if (Build.VERSION.SDK_INT > Build.VERSION_CODES.M) {
+                /**
+                 * 可选配置，设置码率模式
+                 * BITRATE_MODE_VBR：恒定质量
+                 * BITRATE_MODE_VBR：可变码率
+                 * BITRATE_MODE_CBR：恒定码率
+                 */
+                format.setInteger(MediaFormat.KEY_BITRATE_MODE, MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR);
+                // Profile and level must be supported by this codec, for this mime type.
+                MediaCodecInfo.CodecProfileLevel profileLevel = selectProfileLevel(mConfig.mimeType,
+                        mMediaCodec.getCodecInfo().getCapabilitiesForType(mConfig.mimeType).profileLevels,
+                        mConfig.width, mConfig.height, mConfig.frameRate, mVideoRealBitrate);
+                if (profileLevel != null) {
+                    format.setInteger(MediaFormat.KEY_PROFILE, profileLevel.profile);
+                    format.setInteger(MediaFormat.KEY_LEVEL, profileLevel.level);
+                }
+            }
+            LogUtil.e(TAG, "onPrepare: " + format);
             mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
             mSurface = mMediaCodec.createInputSurface();
             mMediaCodec.start();
@@ -117,8 +118,60 @@ abstract class VideoMediaEncoder<C extends VideoConfig> extends MediaEncoder {
                 mMediaCodec = null;
                 mVideoRealBitrate -= 10 * 1000 * 1000;
                 if (mVideoRealBitrate > 0) onPrepare(onPrepareListener);
+            } else if (mMediaCodec != null) {
+                // Not configured or not started: it can't be used.
+                mMediaCodec.release();
+                mMediaCodec = null;
+            }
+        }
+    }
+
+    /**
+     * Selects the profile to encode with and the lowest level that covers the size,
+     * frame rate and bit rate of the stream, as given by {@link CodecLevels}.
+     * For H.264 the profile is High, or Main. For H.265 it is Main: the input surface is 8 bits.
+     * The level is capped to the highest one the codec supports for the profile.
+     * Returns null to keep the codec defaults, for other types or when the codec
+     * supports none of these profiles.
+     *
+     * @param mimeType the mime type
+     * @param supported the profile levels supported by the codec for this type
+     * @param width the video width
+     * @param height the video height
+     * @param frameRate the frame rate
+     * @param bitRate the bit rate
+     * @return the profile level, or null
+     */
+    @Nullable
+    static MediaCodecInfo.CodecProfileLevel selectProfileLevel(
+            @NonNull String mimeType, @Nullable MediaCodecInfo.CodecProfileLevel[] supported,
+            int width, int height, int frameRate, int bitRate) {
+        int[] profiles;
+        if (mimeType.equalsIgnoreCase("video/avc")) {
+            profiles = new int[]{ MediaCodecInfo.CodecProfileLevel.AVCProfileHigh,
+                    MediaCodecInfo.CodecProfileLevel.AVCProfileMain };
+        } else if (mimeType.equalsIgnoreCase("video/hevc")) {
+            profiles = new int[]{ MediaCodecInfo.CodecProfileLevel.HEVCProfileMain };
+        } else {
+            return null;
+        }
+        if (supported == null) return null;
+        for (int profile : profiles) {
+            int maxLevel = -1;
+            for (MediaCodecInfo.CodecProfileLevel candidate : supported) {
+                if (candidate.profile != profile) continue;
+                maxLevel = Math.max(maxLevel, candidate.level);
             }
+            if (maxLevel < 0) continue;
+            int level = CodecLevels.lowestLevel(mimeType, profile, width, height,
+                    frameRate, bitRate);
+            MediaCodecInfo.CodecProfileLevel result = new MediaCodecInfo.CodecProfileLevel();
+            result.profile = profile;
+            // Higher levels have higher constants, so min() caps to the codec support.
+            result.level = level < 0 ? maxLevel : Math.min(level, maxLevel);
+            return result;
         }
+        return null;
     }
 
     @EncoderThread
@@ -141,6 +194,20 @@ abstract class VideoMediaEncoder<C extends VideoConfig> extends MediaEncoder {
 //        drainOutput(true);
     }
 
+    /**
+     * The input surface has no frames, so we can signal the end of stream right away:
+     * the draining thread will then release everything in {@link #onStopped()}.
+     */
+    @EncoderThread
+    @Override
+    protected void onRelease() {
+        if (mMediaCodec == null) {
+            super.onRelease();
+            return;
+        }
+        mMediaCodec.signalEndOfInputStream();
+    }
+
     /**
      * The first frame that we write MUST have the BUFFER_FLAG_SYNC_FRAME flag set.
      * It sometimes doesn't because we might drop some frames in {@link #drainOutput(boolean)},
@@ -154,6 +221,7 @@ abstract class VideoMediaEncoder<C extends VideoConfig> extends MediaEncoder {
      */
     @Override
     protected void onWriteOutput(@NonNull OutputBufferPool pool, @NonNull OutputBuffer buffer, boolean isConfig) {
+        applyRequestedBitRate();
         if (isConfig) super.onWriteOutput(pool, buffer, isConfig);
         else {
             if (!mSyncFrameFound) {
@@ -166,9 +234,7 @@ abstract class VideoMediaEncoder<C extends VideoConfig> extends MediaEncoder {
                     super.onWriteOutput(pool, buffer, isConfig);
                 } else {
                     LogUtil.w("onWriteOutput:", "bbb DROPPING FRAME and requesting a sync frame soon. flags === " + buffer.info.flags);
-                    Bundle params = new Bundle();
-                    params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
-                    mMediaCodec.setParameters(params);
+                    requestSyncFrame();
                     pool.recycle(buffer);
                 }
             } else {
@@ -177,6 +243,40 @@ abstract class VideoMediaEncoder<C extends VideoConfig> extends MediaEncoder {
         }
     }
 
+    /**
+     * Asks the codec to encode the next frame as a sync frame.
+     */
+    protected void requestSyncFrame() {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mMediaCodec.setParameters(params);
+    }
+
+    /**
+     * Asks the codec to change its bit rate while encoding. Can be called from any thread:
+     * the change is applied on the encoder thread, with the next output.
+     *
+     * @param bitRate the new bit rate
+     */
+    void requestBitRate(int bitRate) {
+        mRequestedBitRate = bitRate;
+    }
+
+    private void applyRequestedBitRate() {
+        int bitRate = mRequestedBitRate;
+        if (bitRate <= 0 || bitRate == mVideoRealBitrate || mMediaCodec == null) return;
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        try {
+            mMediaCodec.setParameters(params);
+            LOG.i("applyRequestedBitRate:", "from", mVideoRealBitrate, "to", bitRate);
+            mVideoRealBitrate = bitRate;
+        } catch (IllegalStateException e) {
+            LOG.w("applyRequestedBitRate:", "codec refused the new bit rate.", e);
+            mRequestedBitRate = 0;
+        }
+    }
+
     @Override
     protected int getEncodedBitRate() {
         LogUtil.e(TAG, "getEncodedBitRate: mVideoRealBitrate = " + mVideoRealBitrate);
@@ -0,0 +1,30 @@
+package com.sabine.cameraview.video.encoding;
+
+import com.sabine.cameraview.controls.VideoCodec;
+import com.sabine.cameraview.size.Size;
+
+import java.io.File;
+
+/**
+ * An additional output of a video snapshot, for example a low resolution proxy
+ * of the recorded file, or a live stream.
+ *
+ * Each output has its own video encoder, which draws the same filtered texture as the
+ * main one, so filters are rendered once per frame no matter how many outputs there are.
+ * Frames are dropped separately for each output, when its encoder can't keep up.
+ * The audio is encoded once and a copy is written to each output that wants it.
+ *
+ * The size should have the aspect ratio of the main video, or frames are stretched.
+ * The frame rate is the one of the main video.
+ */
+@SuppressWarnings("WeakerAccess")
+public class VideoOutputConfig {
+
+    // Configurable options
+    public Size size;
+    public VideoCodec videoCodec = VideoCodec.DEVICE_DEFAULT;
+    public int videoBitRate = 0; // 0 to estimate it from the size and frame rate
+    public boolean audio = true; // whether to write a copy of the audio track
+    public File file; // the output file, unless a muxer is set
+    public Muxer muxer; // a custom backend, used for a single recording
+}
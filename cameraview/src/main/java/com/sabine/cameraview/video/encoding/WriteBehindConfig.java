@@ -0,0 +1,23 @@
+package com.sabine.cameraview.video.encoding;
+
+/**
+ * Write-behind configuration to be passed to
+ * {@link MediaEncoderEngine#setWriteBehindConfig(WriteBehindConfig)}.
+ *
+ * Instead of one small write per sample, output is collected in memory and written
+ * in large chunks, which storage handles much better. A chunk is written when
+ * {@link #chunkBytes} are collected, after {@link #maxDelayMillis}, and before
+ * each video keyframe if {@link #flushOnKeyFrame} is set. The file muxers write
+ * whole multiples of {@link #alignmentBytes}, and keep the rest for the next chunk.
+ *
+ * At most {@link #chunkBytes} of output are lost if the process dies.
+ */
+@SuppressWarnings("WeakerAccess")
+public class WriteBehindConfig {
+
+    // Configurable options
+    public int chunkBytes = 2 * 1024 * 1024; // memory used to collect output
+    public int alignmentBytes = 4096; // file writes end at multiples of this
+    public long maxDelayMillis = 2000; // max time output stays in memory, 0 for no limit
+    public boolean flushOnKeyFrame = true; // write what was collected before each keyframe
+}
@@ -0,0 +1,19 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A {@link Muxer} that writes its own file, and can collect its output in large
+ * chunks with a {@link CoalescingWriter}. Other muxers are wrapped in a
+ * {@link CoalescingMuxer} instead.
+ */
+interface WriteBehindMuxer {
+
+    /**
+     * Enables write-behind. Called by the engine before the first sample.
+     *
+     * @param config the config
+     * @param stats receives the flushes
+     */
+    void setWriteBehind(@NonNull WriteBehindConfig config, @NonNull WriteBehindStats stats);
+}
@@ -0,0 +1,140 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics of the write-behind stage of a {@link MediaEncoderEngine}, enabled with a
+ * {@link WriteBehindConfig}: written bytes, throughput and latency of each flush.
+ * Use {@link #snapshot()} to read them.
+ */
+@SuppressWarnings("WeakerAccess")
+public class WriteBehindStats {
+
+    // Microseconds, from 0.25ms to about 0.5s.
+    private final static long[] FLUSH_BOUNDS = {
+            250, 500, 1000, 2000, 4000, 8000, 16000, 32000, 64000, 128000, 256000, 512000
+    };
+
+    private final MetricsHistogram mFlushLatency = new MetricsHistogram(FLUSH_BOUNDS);
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mFlushes = new AtomicLong();
+    private final AtomicLong mFlushNanos = new AtomicLong();
+    private final long mStartNanos = System.nanoTime();
+    // Write time of a byte in the last flush.
+    private volatile double mLastFlushNanosPerByte;
+
+    WriteBehindStats() {}
+
+    void recordFlush(long bytes, long nanos) {
+        if (bytes > 0) mLastFlushNanosPerByte = (double) nanos / bytes;
+        mBytes.addAndGet(bytes);
+        mFlushes.incrementAndGet();
+        mFlushNanos.addAndGet(nanos);
+        mFlushLatency.record(nanos / 1000L);
+    }
+
+    /**
+     * Returns the time it took to write a byte in the last flush, or 0 before the
+     * first one. A sample that went out with a flush took about its size times this.
+     * @return nanoseconds per byte
+     */
+    double getLastFlushNanosPerByte() {
+        return mLastFlushNanosPerByte;
+    }
+
+    /**
+     * Copies the current statistics. Can be called from any thread.
+     * @return a snapshot
+     */
+    @NonNull
+    public Snapshot snapshot() {
+        return new Snapshot((System.nanoTime() - mStartNanos) / 1000000L,
+                mBytes.get(), mFlushes.get(), mFlushNanos.get() / 1000000L,
+                mFlushLatency.snapshot());
+    }
+
+    /**
+     * The write-behind statistics at some point of the recording.
+     */
+    public static class Snapshot {
+
+        private final long mElapsedMillis;
+        private final long mBytes;
+        private final long mFlushes;
+        private final long mFlushMillis;
+        private final EncoderMetrics.Histogram mFlushLatency;
+
+        Snapshot(long elapsedMillis, long bytes, long flushes, long flushMillis,
+                 @NonNull EncoderMetrics.Histogram flushLatency) {
+            mElapsedMillis = elapsedMillis;
+            mBytes = bytes;
+            mFlushes = flushes;
+            mFlushMillis = flushMillis;
+            mFlushLatency = flushLatency;
+        }
+
+        /**
+         * Returns the time since the stats were created.
+         * @return the elapsed millis
+         */
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+
+        /**
+         * Returns the bytes written to the output so far.
+         * @return the written bytes
+         */
+        public long getBytesWritten() {
+            return mBytes;
+        }
+
+        /**
+         * Returns the number of flushes so far.
+         * @return the flush count
+         */
+        public long getFlushCount() {
+            return mFlushes;
+        }
+
+        /**
+         * Returns the average output rate since the recording started.
+         * @return bytes per second
+         */
+        public long getBytesPerSecond() {
+            return mElapsedMillis == 0 ? 0 : mBytes * 1000L / mElapsedMillis;
+        }
+
+        /**
+         * Returns the rate at which the output accepted data while flushing,
+         * which is close to the storage throughput.
+         * @return bytes per second
+         */
+        public long getFlushBytesPerSecond() {
+            return mFlushMillis == 0 ? 0 : mBytes * 1000L / mFlushMillis;
+        }
+
+        /**
+         * Returns the duration of each flush, in microseconds.
+         * @return the histogram
+         */
+        @NonNull
+        public EncoderMetrics.Histogram getFlushLatency() {
+            return mFlushLatency;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Snapshot{elapsedMillis=" + mElapsedMillis +
+                    ", bytes=" + mBytes +
+                    ", flushes=" + mFlushes +
+                    ", bytesPerSecond=" + getBytesPerSecond() +
+                    ", flushBytesPerSecond=" + getFlushBytesPerSecond() +
+                    ", flushLatency=" + mFlushLatency +
+                    '}';
+        }
+    }
+}
@@ -53,6 +53,48 @@ public class Mp4v2Helper {
      * */
     public native int writeAudio(byte[] data, int dataLen, long presentationTimeUs);
 
+    /**
+     * Adds the video track from a heap buffer. The native library only reads byte arrays,
+     * so dataLen bytes are read from index 0 of the backing array.
+     * Direct buffers are not supported.
+     * @return -1 if failed, dataLen pack in if success
+     * */
+    public int addVideoTrack(ByteBuffer data, int dataLen) {
+        return addVideoTrack(heapArray(data), dataLen);
+    }
+
+    /**
+     * Adds the audio track. Same as {@link #addVideoTrack(ByteBuffer, int)}.
+     * @return -1 if failed, dataLen pack in if success
+     * */
+    public int addAudioTrack(ByteBuffer data, int dataLen) {
+        return addAudioTrack(heapArray(data), dataLen);
+    }
+
+    /**
+     * Writes a video frame. Same as {@link #addVideoTrack(ByteBuffer, int)}.
+     * @return -1 if failed, dataLen pack in if success
+     * */
+    public int writeVideo(ByteBuffer data, int dataLen, long presentationTimeUs) {
+        return writeVideo(heapArray(data), dataLen, presentationTimeUs);
+    }
+
+    /**
+     * Writes an audio frame. Same as {@link #addVideoTrack(ByteBuffer, int)}.
+     * @return -1 if failed, dataLen pack in if success
+     * */
+    public int writeAudio(ByteBuffer data, int dataLen, long presentationTimeUs) {
+        return writeAudio(heapArray(data), dataLen, presentationTimeUs);
+    }
+
+    // The byte[] natives always read from index 0.
+    private static byte[] heapArray(ByteBuffer data) {
+        if (!data.hasArray() || data.arrayOffset() + data.position() != 0) {
+            throw new IllegalArgumentException("Heap buffers must start at index 0 of their array.");
+        }
+        return data.array();
+    }
+
     /**
      * 结束并关闭Mp4文件
      * */
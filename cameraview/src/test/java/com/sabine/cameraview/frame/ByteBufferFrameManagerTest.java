@@ -0,0 +1,106 @@
+package com.sabine.cameraview.frame;
+
+import android.graphics.ImageFormat;
+
+import com.sabine.cameraview.engine.offset.Angles;
+import com.sabine.cameraview.size.Size;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ByteBufferFrameManagerTest {
+
+    // NV21, 4x4.
+    private final static int FRAME_BYTES = 24;
+
+    private ByteBufferFrameManager mManager;
+
+    @Before
+    public void setUp() {
+        mManager = new ByteBufferFrameManager(2, null);
+        mManager.setMaxMemory(4 * FRAME_BYTES);
+        mManager.setUp(ImageFormat.NV21, new Size(4, 4), new Angles());
+    }
+
+    private Frame nextFrame(long time) {
+        byte[] buffer = mManager.getBuffer();
+        if (buffer == null) return null;
+        buffer[0] = (byte) time;
+        return mManager.getFrame(buffer, time);
+    }
+
+    @Test
+    public void testRetainDoesNotCopy() {
+        Frame frame = nextFrame(1);
+        assertNotNull(frame);
+        byte[] data = frame.getData();
+        assertSame(frame, frame.retain());
+        // The processor returns, the frame is kept.
+        frame.release();
+        assertSame(data, frame.getData());
+        assertEquals(1, mManager.getExtraFrames());
+        frame.release();
+        assertEquals(0, mManager.getExtraFrames());
+    }
+
+    @Test
+    public void testPoolGrowsUpToMaxMemory() {
+        // Two frames kept by processors: the camera still has two buffers.
+        Frame first = nextFrame(1).retain();
+        Frame second = nextFrame(2).retain();
+        first.release();
+        second.release();
+        assertEquals(2, mManager.getExtraFrames());
+        Frame third = nextFrame(3);
+        Frame fourth = nextFrame(4);
+        assertNotNull(third);
+        assertNotNull(fourth);
+        // At max memory: retained frames are not replaced.
+        third.retain();
+        third.release();
+        fourth.release();
+        assertEquals(2, mManager.getExtraFrames());
+        assertNotNull(nextFrame(5));
+        assertNull(nextFrame(6));
+
+        // Releasing kept frames shrinks the pool back.
+        first.release();
+        second.release();
+        assertEquals(0, mManager.getExtraFrames());
+        third.release();
+    }
+
+    @Test
+    public void testFreezeCopiesOnlyAtMaxMemory() {
+        mManager.setMaxMemory(3 * FRAME_BYTES);
+        Frame first = nextFrame(1);
+        Frame frozen = first.freeze();
+        assertSame(first, frozen);
+        first.release();
+
+        Frame second = nextFrame(2);
+        Frame copy = second.freeze();
+        assertNotSame(second, copy);
+        byte[] copyData = copy.getData();
+        assertNotSame(second.getData(), copyData);
+        assertEquals(2, copyData[0]);
+        second.release();
+        copy.release();
+
+        // Copies are reused.
+        Frame third = nextFrame(3);
+        Frame otherCopy = third.freeze();
+        assertSame(copyData, otherCopy.getData());
+        assertEquals(3, copyData[0]);
+        otherCopy.release();
+        third.release();
+        frozen.release();
+        assertEquals(0, mManager.getExtraFrames());
+    }
+}
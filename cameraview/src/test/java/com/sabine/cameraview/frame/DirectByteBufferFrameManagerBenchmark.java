@@ -0,0 +1,125 @@
+package com.sabine.cameraview.frame;
+
+import android.graphics.ImageFormat;
+
+import androidx.annotation.NonNull;
+
+import com.sabine.cameraview.engine.offset.Angles;
+import com.sabine.cameraview.size.Size;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Times a processor that reads the luma plane from a direct buffer, when frames
+ * come from {@link ByteBufferFrameManager} (copied by the processor) or from
+ * {@link DirectByteBufferFrameManager} (copied once by the manager).
+ */
+public class DirectByteBufferFrameManagerBenchmark {
+
+    private final static String TAG = DirectByteBufferFrameManagerBenchmark.class.getSimpleName();
+    private final static Logger LOG = Logger.getLogger(TAG);
+
+    private final static int FRAMES = 300;
+    private final static int WARMUP_ROUNDS = 2;
+    private final static int ROUNDS = 5;
+
+    private interface Pipeline {
+        long frame(byte[] cameraData, long time);
+    }
+
+    @Test
+    public void benchmark() {
+        bench(new Size(640, 480));
+        bench(new Size(1920, 1080));
+    }
+
+    private void bench(Size size) {
+        byte[] cameraData = new byte[size.getWidth() * size.getHeight() * 3 / 2];
+        for (int i = 0; i < cameraData.length; i++) cameraData[i] = (byte) i;
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            run(heap(size), cameraData);
+            run(direct(size), cameraData);
+        }
+        long heap = 0, direct = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            heap += run(heap(size), cameraData);
+            direct += run(direct(size), cameraData);
+        }
+        String timings = size + ": heap " + (heap / ROUNDS / FRAMES) + " ns/frame, direct "
+                + (direct / ROUNDS / FRAMES) + " ns/frame";
+        LOG.info(timings);
+        assertTrue(timings, direct <= 2 * heap);
+    }
+
+    private long run(Pipeline pipeline, byte[] cameraData) {
+        long expected = -1;
+        long start = System.nanoTime();
+        for (int i = 0; i < FRAMES; i++) {
+            long sum = pipeline.frame(cameraData, i);
+            if (expected == -1) expected = sum;
+            assertEquals(expected, sum);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long consume(ByteBuffer buffer, int lumaBytes) {
+        long sum = 0;
+        for (int i = 0; i < lumaBytes; i += 8) sum += buffer.getLong(i);
+        return sum;
+    }
+
+    private Pipeline heap(final Size size) {
+        final ByteBufferFrameManager manager = new ByteBufferFrameManager(2, null);
+        manager.setUp(ImageFormat.NV21, size, new Angles());
+        final int lumaBytes = size.getWidth() * size.getHeight();
+        final ByteBuffer scratch = ByteBuffer.allocateDirect(manager.getFrameBytes())
+                .order(ByteOrder.nativeOrder());
+        return new Pipeline() {
+            @Override
+            public long frame(byte[] cameraData, long time) {
+                byte[] buffer = manager.getBuffer();
+                assertNotNull(buffer);
+                System.arraycopy(cameraData, 0, buffer, 0, buffer.length); // Camera fill
+                Frame frame = manager.getFrame(buffer, time);
+                byte[] data = frame.getData();
+                scratch.clear();
+                scratch.put(data);
+                long sum = consume(scratch, lumaBytes);
+                frame.release();
+                return sum;
+            }
+        };
+    }
+
+    private Pipeline direct(final Size size) {
+        final byte[][] available = new byte[1][];
+        final DirectByteBufferFrameManager manager = new DirectByteBufferFrameManager(2,
+                new ByteBufferFrameManager.BufferCallback() {
+                    @Override
+                    public void onBufferAvailable(@NonNull byte[] buffer) {
+                        available[0] = buffer;
+                    }
+                });
+        manager.setUp(ImageFormat.NV21, size, new Angles());
+        final int lumaBytes = size.getWidth() * size.getHeight();
+        return new Pipeline() {
+            @Override
+            public long frame(byte[] cameraData, long time) {
+                byte[] buffer = available[0];
+                System.arraycopy(cameraData, 0, buffer, 0, buffer.length); // Camera fill
+                Frame frame = manager.getFrame(buffer, time);
+                long sum = consume(frame.<ByteBuffer>getData(), lumaBytes);
+                frame.release();
+                return sum;
+            }
+        };
+    }
+}
@@ -0,0 +1,110 @@
+package com.sabine.cameraview.frame;
+
+import android.graphics.ImageFormat;
+
+import androidx.annotation.NonNull;
+
+import com.sabine.cameraview.engine.offset.Angles;
+import com.sabine.cameraview.size.Size;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DirectByteBufferFrameManagerTest {
+
+    // NV21, 8x8.
+    private final static int FRAME_BYTES = 96;
+
+    private final List<byte[]> mArrays = new ArrayList<>();
+    private DirectByteBufferFrameManager mManager;
+
+    @Before
+    public void setUp() {
+        mManager = new DirectByteBufferFrameManager(2, new ByteBufferFrameManager.BufferCallback() {
+            @Override
+            public void onBufferAvailable(@NonNull byte[] buffer) {
+                mArrays.add(buffer);
+            }
+        });
+        mManager.setUp(ImageFormat.NV21, new Size(8, 8), new Angles());
+    }
+
+    @Test
+    public void testBuffersAreDirectAndAligned() {
+        ByteBuffer buffer = mManager.getBuffer();
+        assertNotNull(buffer);
+        assertTrue(buffer.isDirect());
+        assertEquals(ByteOrder.nativeOrder(), buffer.order());
+        assertEquals(0, buffer.capacity() % DirectByteBufferFrameManager.ALIGNMENT);
+        assertEquals(FRAME_BYTES, buffer.limit());
+        mManager.onBufferUnused(buffer);
+    }
+
+    @Test
+    public void testArraysAreCopiedAndGivenBack() {
+        assertEquals(2, mArrays.size());
+        byte[] array = mArrays.remove(0);
+        array[0] = 7;
+        Frame frame = mManager.getFrame(array, 1);
+        assertNotNull(frame);
+        // The camera gets its array back before the frame is released.
+        assertEquals(2, mArrays.size());
+        assertSame(array, mArrays.get(1));
+        ByteBuffer data = frame.getData();
+        assertEquals(FRAME_BYTES, data.remaining());
+        assertEquals(7, data.get(0));
+        frame.release();
+    }
+
+    @Test
+    public void testBuffersAreReusedAfterSizeChange() {
+        ByteBuffer first = mManager.getBuffer();
+        ByteBuffer second = mManager.getBuffer();
+        mManager.onBufferUnused(first);
+        mManager.onBufferUnused(second);
+        mManager.release();
+
+        // Smaller: both are reused.
+        mManager.setUp(ImageFormat.NV21, new Size(4, 4), new Angles());
+        ByteBuffer buffer = mManager.getBuffer();
+        assertSame(first, buffer);
+        assertEquals(24, buffer.limit());
+        mManager.onBufferUnused(buffer);
+        mManager.release();
+
+        // Larger: new buffers.
+        mManager.setUp(ImageFormat.NV21, new Size(16, 16), new Angles());
+        buffer = mManager.getBuffer();
+        assertTrue(buffer != first && buffer != second);
+        assertTrue(buffer.capacity() >= 384);
+    }
+
+    @Test
+    public void testPinnedBufferIsNotReused() {
+        Frame first = mManager.getFrame(mArrays.remove(0), 1);
+        Frame second = mManager.getFrame(mArrays.remove(0), 2);
+        ByteBuffer pinned = first.getData();
+        mManager.pin(pinned);
+        first.release();
+        second.release();
+        ByteBuffer buffer = mManager.getBuffer();
+        assertTrue(buffer != pinned);
+        assertNull(mManager.getBuffer());
+        mManager.onBufferUnused(buffer);
+
+        mManager.unpin(pinned);
+        mManager.getBuffer();
+        assertSame(pinned, mManager.getBuffer());
+    }
+}
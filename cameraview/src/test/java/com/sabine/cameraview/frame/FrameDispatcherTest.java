@@ -0,0 +1,210 @@
+package com.sabine.cameraview.frame;
+
+import android.graphics.ImageFormat;
+
+import androidx.annotation.NonNull;
+
+import com.sabine.cameraview.engine.offset.Angles;
+import com.sabine.cameraview.size.Size;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FrameDispatcherTest {
+
+    private static class TestFrameManager extends FrameManager<byte[]> {
+
+        private final AtomicInteger mReleased = new AtomicInteger();
+
+        private TestFrameManager(int poolSize) {
+            super(poolSize, byte[].class);
+        }
+
+        @Override
+        protected void onFrameDataReleased(@NonNull byte[] data, boolean recycled) {
+            mReleased.incrementAndGet();
+        }
+
+        @NonNull
+        @Override
+        protected byte[] onCloneFrameData(@NonNull byte[] data) {
+            return data.clone();
+        }
+    }
+
+    /**
+     * Runs tasks only when asked, to control when processors run.
+     */
+    private static class ManualExecutor implements java.util.concurrent.Executor {
+
+        private final List<Runnable> mTasks = new ArrayList<>();
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            mTasks.add(command);
+        }
+
+        private void runAll() {
+            while (!mTasks.isEmpty()) mTasks.remove(0).run();
+        }
+    }
+
+    private static class CountingProcessor implements FrameProcessor {
+
+        private final List<Long> mTimes = new ArrayList<>();
+
+        @Override
+        public void process(@NonNull Frame frame) {
+            mTimes.add(frame.getTime());
+        }
+    }
+
+    private TestFrameManager mManager;
+
+    @Before
+    public void setUp() {
+        mManager = new TestFrameManager(8);
+        mManager.setUp(ImageFormat.NV21, new Size(4, 4), new Angles());
+    }
+
+    @Test
+    public void testFrameReturnsAfterLastProcessor() {
+        ManualExecutor executor = new ManualExecutor();
+        FrameDispatcher dispatcher = new FrameDispatcher(executor);
+        CountingProcessor first = new CountingProcessor();
+        CountingProcessor second = new CountingProcessor();
+        dispatcher.add(first, new FrameProcessorConfig());
+        dispatcher.add(second, new FrameProcessorConfig());
+        Frame frame = mManager.getFrame(new byte[24], 1);
+        assertNotNull(frame);
+        dispatcher.dispatch(frame);
+        assertEquals(0, mManager.mReleased.get());
+        executor.mTasks.remove(0).run();
+        assertEquals(0, mManager.mReleased.get());
+        executor.runAll();
+        assertEquals(1, mManager.mReleased.get());
+        assertEquals(1, first.mTimes.size());
+        assertEquals(1, second.mTimes.size());
+    }
+
+    @Test
+    public void testDropIfBusy() {
+        ManualExecutor executor = new ManualExecutor();
+        FrameDispatcher dispatcher = new FrameDispatcher(executor);
+        CountingProcessor latest = new CountingProcessor();
+        CountingProcessor queued = new CountingProcessor();
+        FrameProcessorConfig queueConfig = new FrameProcessorConfig();
+        queueConfig.maxQueuedFrames = 2;
+        queueConfig.dropOldest = false;
+        dispatcher.add(latest, new FrameProcessorConfig());
+        dispatcher.add(queued, queueConfig);
+        // Nothing runs while frames come: both processors are busy.
+        for (long time = 1; time <= 5; time++) {
+            dispatcher.dispatch(mManager.getFrame(new byte[24], time));
+        }
+        executor.runAll();
+        // The default config keeps the newest frame only.
+        assertEquals(1, latest.mTimes.size());
+        assertEquals(5L, (long) latest.mTimes.get(0));
+        // The queue keeps the first frames, and drops the new ones when full.
+        assertEquals(2, queued.mTimes.size());
+        assertEquals(2L, (long) queued.mTimes.get(1));
+        FrameProcessorStats stats = dispatcher.getStats(queued);
+        assertNotNull(stats);
+        assertEquals(2, stats.getProcessedCount());
+        assertEquals(3, stats.getDroppedCount());
+        assertEquals(2, stats.getMaxQueueDepth());
+        assertEquals(0, stats.getQueueDepth());
+        assertEquals(4, dispatcher.getStats(latest).getDroppedCount());
+        // All frames went back to the pool.
+        assertEquals(5, mManager.mReleased.get());
+    }
+
+    @Test
+    public void testRemoveReleasesWaitingFrames() {
+        ManualExecutor executor = new ManualExecutor();
+        FrameDispatcher dispatcher = new FrameDispatcher(executor);
+        CountingProcessor processor = new CountingProcessor();
+        dispatcher.add(processor, new FrameProcessorConfig());
+        dispatcher.dispatch(mManager.getFrame(new byte[24], 1));
+        dispatcher.remove(processor);
+        assertNull(dispatcher.getStats(processor));
+        assertEquals(1, mManager.mReleased.get());
+        executor.runAll();
+        assertEquals(0, processor.mTimes.size());
+    }
+
+    @Test
+    public void testRejectedFramesAreReleased() {
+        final boolean[] reject = { true };
+        final ManualExecutor manual = new ManualExecutor();
+        FrameDispatcher dispatcher = new FrameDispatcher(new java.util.concurrent.Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                if (reject[0]) throw new RejectedExecutionException();
+                manual.execute(command);
+            }
+        });
+        CountingProcessor processor = new CountingProcessor();
+        dispatcher.add(processor, new FrameProcessorConfig());
+        dispatcher.dispatch(mManager.getFrame(new byte[24], 1));
+        assertEquals(1, mManager.mReleased.get());
+        FrameProcessorStats stats = dispatcher.getStats(processor);
+        assertNotNull(stats);
+        assertEquals(1, stats.getDroppedCount());
+        assertEquals(0, stats.getQueueDepth());
+        // The lane is scheduled again once the executor accepts it.
+        reject[0] = false;
+        dispatcher.dispatch(mManager.getFrame(new byte[24], 2));
+        manual.runAll();
+        assertEquals(1, processor.mTimes.size());
+        assertEquals(2L, (long) processor.mTimes.get(0));
+        assertEquals(2, mManager.mReleased.get());
+    }
+
+    @Test
+    public void testSlowProcessorDoesNotBlockOthers() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        FrameDispatcher dispatcher = new FrameDispatcher(executor);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        final CountDownLatch fastDone = new CountDownLatch(5);
+        dispatcher.add(new FrameProcessor() {
+            @Override
+            public void process(@NonNull Frame frame) {
+                try {
+                    unblock.await();
+                } catch (InterruptedException ignore) {}
+            }
+        }, new FrameProcessorConfig());
+        FrameProcessorConfig fastConfig = new FrameProcessorConfig();
+        fastConfig.maxQueuedFrames = 8;
+        dispatcher.add(new FrameProcessor() {
+            @Override
+            public void process(@NonNull Frame frame) {
+                fastDone.countDown();
+            }
+        }, fastConfig);
+        for (long time = 1; time <= 5; time++) {
+            dispatcher.dispatch(mManager.getFrame(new byte[24], time));
+        }
+        assertTrue(fastDone.await(5, TimeUnit.SECONDS));
+        unblock.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(5, mManager.mReleased.get());
+    }
+}
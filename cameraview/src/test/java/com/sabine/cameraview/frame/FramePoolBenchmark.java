@@ -0,0 +1,115 @@
+package com.sabine.cameraview.frame;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Times one poll and one offer per frame on {@link FramePool} and LinkedBlockingQueue,
+ * with one camera thread and 1, 2 or 4 processor threads giving frames back.
+ */
+public class FramePoolBenchmark {
+
+    private final static String TAG = FramePoolBenchmark.class.getSimpleName();
+    private final static Logger LOG = Logger.getLogger(TAG);
+
+    private final static int POOL_SIZE = 4;
+    private final static int FRAMES = 200000;
+    private final static int WARMUP_ROUNDS = 2;
+    private final static int ROUNDS = 5;
+
+    private interface Pool {
+        Object poll();
+        void offer(Object item);
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        for (int processors : new int[]{1, 2, 4}) {
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                run(new QueuePool(), processors);
+                run(new RingPool(), processors);
+            }
+            long queue = 0, ring = 0;
+            for (int i = 0; i < ROUNDS; i++) {
+                queue += run(new QueuePool(), processors);
+                ring += run(new RingPool(), processors);
+            }
+            String timings = processors + " processors: LinkedBlockingQueue "
+                    + (queue / ROUNDS / FRAMES) + " ns/frame, FramePool "
+                    + (ring / ROUNDS / FRAMES) + " ns/frame";
+            LOG.info(timings);
+            assertTrue(timings, ring <= 2 * queue);
+        }
+    }
+
+    private long run(final Pool pool, int processors) throws InterruptedException {
+        for (int i = 0; i < POOL_SIZE; i++) pool.offer(new Object());
+        final FramePool<Object> handoff = new FramePool<>(POOL_SIZE);
+        final CountDownLatch done = new CountDownLatch(processors);
+        final int perProcessor = FRAMES / processors;
+        for (int p = 0; p < processors; p++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int count = 0;
+                    while (count < perProcessor) {
+                        Object frame = handoff.take();
+                        if (frame == null) {
+                            Thread.yield();
+                            continue;
+                        }
+                        pool.offer(frame); // Frame.release()
+                        count++;
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        long start = System.nanoTime();
+        int dispatched = 0;
+        while (dispatched < perProcessor * processors) {
+            Object frame = pool.poll(); // FrameManager.getFrame()
+            if (frame == null) {
+                Thread.yield();
+                continue;
+            }
+            while (!handoff.offer(frame)) Thread.yield();
+            dispatched++;
+        }
+        done.await();
+        return System.nanoTime() - start;
+    }
+
+    private static class QueuePool implements Pool {
+        private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>(POOL_SIZE);
+
+        @Override
+        public Object poll() {
+            return queue.poll();
+        }
+
+        @Override
+        public void offer(Object item) {
+            queue.offer(item);
+        }
+    }
+
+    private static class RingPool implements Pool {
+        private final FramePool<Object> pool = new FramePool<>(POOL_SIZE);
+
+        @Override
+        public Object poll() {
+            return pool.poll();
+        }
+
+        @Override
+        public void offer(Object item) {
+            pool.offer(item);
+        }
+    }
+}
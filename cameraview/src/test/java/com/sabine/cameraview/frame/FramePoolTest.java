@@ -0,0 +1,85 @@
+package com.sabine.cameraview.frame;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FramePoolTest {
+
+    @Test
+    public void testCapacityAndCounters() {
+        FramePool<Integer> pool = new FramePool<>(3);
+        assertNull(pool.poll());
+        assertTrue(pool.offer(1));
+        assertTrue(pool.offer(2));
+        assertTrue(pool.offer(3));
+        assertFalse(pool.offer(4));
+        assertEquals(3, pool.size());
+        assertEquals(1, (int) pool.poll());
+        assertEquals(2, (int) pool.poll());
+        // Wraps around.
+        assertTrue(pool.offer(5));
+        assertEquals(3, (int) pool.poll());
+        assertEquals(5, (int) pool.poll());
+        FramePoolStats stats = pool.getStats();
+        assertEquals(3, stats.getCapacity());
+        assertEquals(0, stats.getSize());
+        assertEquals(4, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+        assertEquals(1, stats.getDropCount());
+    }
+
+    @Test
+    public void testClear() {
+        FramePool<Integer> pool = new FramePool<>(2);
+        pool.offer(1);
+        pool.offer(2);
+        pool.clear();
+        assertEquals(0, pool.size());
+        assertNull(pool.take());
+        assertTrue(pool.offer(3));
+        assertEquals(0, pool.getStats().getHitCount());
+    }
+
+    @Test
+    public void testItemsAreNeverLostUnderContention() throws Exception {
+        final int items = 4;
+        final FramePool<Object> pool = new FramePool<>(items);
+        for (int i = 0; i < items; i++) pool.offer(new Object());
+        int threads = 4;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch end = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ignore) {}
+                    for (int i = 0; i < 20000; i++) {
+                        Object item = pool.poll();
+                        if (item != null && !pool.offer(item)) {
+                            throw new AssertionError("Pool overflow");
+                        }
+                    }
+                    end.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        end.await();
+        Set<Object> found = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        Object item;
+        while ((item = pool.take()) != null) found.add(item);
+        assertEquals(items, found.size());
+        assertEquals(0, pool.getStats().getDropCount());
+    }
+}
@@ -0,0 +1,115 @@
+package com.sabine.cameraview.frame;
+
+import com.sabine.cameraview.size.Size;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Times {@link YuvConverter} against a floating point conversion on common preview
+ * sizes. The parallel runs use one thread per core.
+ */
+public class YuvConverterBenchmark {
+
+    private final static String TAG = YuvConverterBenchmark.class.getSimpleName();
+    private final static Logger LOG = Logger.getLogger(TAG);
+
+    private final static Size[] SIZES = new Size[]{
+            new Size(640, 480), new Size(1280, 720), new Size(1920, 1080)};
+    private final static int WARMUP_ROUNDS = 20;
+    private final static int ROUNDS = 30;
+
+    private interface Conversion {
+        void run(byte[] nv21, int width, int height);
+    }
+
+    @Test
+    public void benchmark() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(cores);
+        final YuvConverter serial = new YuvConverter(null);
+        final YuvConverter parallel = new YuvConverter(pool);
+        for (Size size : SIZES) {
+            int width = size.getWidth(), height = size.getHeight();
+            byte[] nv21 = new byte[width * height * 3 / 2];
+            new Random(0).nextBytes(nv21);
+            final int[] argb = new int[width * height];
+            final byte[] rgb = new byte[width * height * 3];
+            final float[] tensor = new float[width * height * 3];
+            long floating = measure(new Conversion() {
+                @Override
+                public void run(byte[] nv21, int width, int height) {
+                    floatingPoint(nv21, width, height, argb);
+                }
+            }, nv21, width, height);
+            long serialArgb = measure(new Conversion() {
+                @Override
+                public void run(byte[] nv21, int width, int height) {
+                    serial.toArgb(nv21, width, height, argb);
+                }
+            }, nv21, width, height);
+            long parallelArgb = measure(new Conversion() {
+                @Override
+                public void run(byte[] nv21, int width, int height) {
+                    parallel.toArgb(nv21, width, height, argb);
+                }
+            }, nv21, width, height);
+            long parallelRgb = measure(new Conversion() {
+                @Override
+                public void run(byte[] nv21, int width, int height) {
+                    parallel.toRgb(nv21, width, height, rgb);
+                }
+            }, nv21, width, height);
+            long parallelTensor = measure(new Conversion() {
+                @Override
+                public void run(byte[] nv21, int width, int height) {
+                    parallel.toTensor(nv21, width, height, tensor, true, 1F / 255F, 0F);
+                }
+            }, nv21, width, height);
+            String timings = size + ": float " + floating + " us, argb " + serialArgb
+                    + " us, parallel argb " + parallelArgb + " us, parallel rgb " + parallelRgb
+                    + " us, parallel tensor " + parallelTensor + " us";
+            LOG.info(timings);
+            assertTrue(timings, serialArgb <= 2 * floating);
+            // Forking costs more than it saves on small frames or a single core.
+            if (cores > 1 && width >= 1280) {
+                assertTrue(timings, parallelArgb < serialArgb);
+            } else {
+                assertTrue(timings, parallelArgb <= 2 * serialArgb);
+            }
+        }
+        pool.shutdown();
+    }
+
+    private static long measure(Conversion conversion, byte[] nv21, int width, int height) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) conversion.run(nv21, width, height);
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) conversion.run(nv21, width, height);
+        return (System.nanoTime() - start) / ROUNDS / 1000L;
+    }
+
+    private static void floatingPoint(byte[] nv21, int width, int height, int[] argb) {
+        int frameSize = width * height;
+        for (int row = 0; row < height; row++) {
+            for (int x = 0; x < width; x++) {
+                int y = nv21[row * width + x] & 0xFF;
+                int chroma = frameSize + (row / 2) * width + (x & ~1);
+                int v = (nv21[chroma] & 0xFF) - 128;
+                int u = (nv21[chroma + 1] & 0xFF) - 128;
+                int r = clamp(y + 1.402F * v);
+                int g = clamp(y - 0.344136F * u - 0.714136F * v);
+                int b = clamp(y + 1.772F * u);
+                argb[row * width + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    private static int clamp(float value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : (int) value);
+    }
+}
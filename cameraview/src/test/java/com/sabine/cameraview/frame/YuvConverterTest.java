@@ -0,0 +1,177 @@
+package com.sabine.cameraview.frame;
+
+import android.graphics.ImageFormat;
+
+import com.sabine.cameraview.engine.offset.Angles;
+import com.sabine.cameraview.size.Size;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class YuvConverterTest {
+
+    private static ForkJoinPool sPool;
+
+    @BeforeClass
+    public static void setUpPool() {
+        sPool = new ForkJoinPool(4);
+    }
+
+    @AfterClass
+    public static void releasePool() {
+        sPool.shutdown();
+    }
+
+    private static byte[] nv21(int width, int height, long seed) {
+        int chroma = 2 * ((width + 1) / 2) * ((height + 1) / 2);
+        byte[] data = new byte[width * height + chroma];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static int clamp(double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    @Test
+    public void testMatchesFloatConversion() {
+        int width = 7, height = 5;
+        byte[] data = nv21(width, height, 1);
+        int[] argb = new int[width * height];
+        new YuvConverter(null).toArgb(data, width, height, argb);
+        int chromaRow = 2 * ((width + 1) / 2);
+        for (int row = 0; row < height; row++) {
+            for (int x = 0; x < width; x++) {
+                int luma = data[row * width + x] & 0xFF;
+                int chroma = width * height + (row / 2) * chromaRow + (x / 2) * 2;
+                int v = (data[chroma] & 0xFF) - 128;
+                int u = (data[chroma + 1] & 0xFF) - 128;
+                int pixel = argb[row * width + x];
+                assertEquals(0xFF, pixel >>> 24);
+                assertTrue(Math.abs(clamp(luma + 1.402 * v) - ((pixel >> 16) & 0xFF)) <= 1);
+                assertTrue(Math.abs(clamp(luma - 0.344136 * u - 0.714136 * v)
+                        - ((pixel >> 8) & 0xFF)) <= 1);
+                assertTrue(Math.abs(clamp(luma + 1.772 * u) - (pixel & 0xFF)) <= 1);
+            }
+        }
+    }
+
+    @Test
+    public void testParallelMatchesSerial() {
+        int width = 640, height = 482;
+        byte[] data = nv21(width, height, 2);
+        YuvConverter serial = new YuvConverter(null);
+        YuvConverter parallel = new YuvConverter(sPool);
+
+        int[] argb = new int[width * height];
+        int[] parallelArgb = new int[width * height];
+        serial.toArgb(data, width, height, argb);
+        parallel.toArgb(data, width, height, parallelArgb);
+        assertArrayEquals(argb, parallelArgb);
+
+        byte[] rgb = new byte[3 * width * height];
+        parallel.toRgb(data, width, height, rgb);
+        float[] hwc = new float[3 * width * height];
+        parallel.toTensor(data, width, height, hwc, false, 1F / 255F, 0F);
+        float[] chw = new float[3 * width * height];
+        parallel.toTensor(data, width, height, chw, true, 2F, -1F);
+        int pixels = width * height;
+        for (int i = 0; i < pixels; i++) {
+            int r = (argb[i] >> 16) & 0xFF;
+            int g = (argb[i] >> 8) & 0xFF;
+            int b = argb[i] & 0xFF;
+            assertEquals(r, rgb[3 * i] & 0xFF);
+            assertEquals(b, rgb[3 * i + 2] & 0xFF);
+            assertEquals(g * (1F / 255F), hwc[3 * i + 1], 0F);
+            assertEquals(2F * b - 1F, chw[2 * pixels + i], 0F);
+        }
+    }
+
+    @Test
+    public void testStridedPlanes() {
+        int width = 10, height = 6;
+        byte[] data = nv21(width, height, 3);
+        int[] expected = new int[width * height];
+        YuvConverter converter = new YuvConverter(null);
+        converter.toArgb(data, width, height, expected);
+
+        // YUV_420_888 with padded rows: a semi-planar VU buffer and a planar one.
+        int yStride = 16, vuStride = 12, uvStride = 8;
+        ByteBuffer y = ByteBuffer.allocateDirect(yStride * height);
+        ByteBuffer vu = ByteBuffer.allocateDirect(vuStride * height / 2);
+        ByteBuffer u = ByteBuffer.allocateDirect(uvStride * height / 2);
+        ByteBuffer v = ByteBuffer.allocateDirect(uvStride * height / 2);
+        for (int row = 0; row < height; row++) {
+            for (int x = 0; x < width; x++) y.put(row * yStride + x, data[row * width + x]);
+        }
+        for (int row = 0; row < height / 2; row++) {
+            for (int x = 0; x < width / 2; x++) {
+                byte cv = data[width * height + row * width + 2 * x];
+                byte cu = data[width * height + row * width + 2 * x + 1];
+                vu.put(row * vuStride + 2 * x, cv);
+                vu.put(row * vuStride + 2 * x + 1, cu);
+                u.put(row * uvStride + x, cu);
+                v.put(row * uvStride + x, cv);
+            }
+        }
+        YuvConverter.Plane yPlane = new YuvConverter.Plane(y, 0, yStride, 1);
+        int[] actual = new int[width * height];
+        converter.convert(new YuvConverter.Planes(width, height, yPlane,
+                new YuvConverter.Plane(vu, 1, vuStride, 2),
+                new YuvConverter.Plane(vu, 0, vuStride, 2)),
+                new YuvConverter.Output(0, actual, null, null, 1F, 0F));
+        assertArrayEquals(expected, actual);
+
+        Arrays.fill(actual, 0);
+        converter.convert(new YuvConverter.Planes(width, height, yPlane,
+                new YuvConverter.Plane(u, 0, uvStride, 1),
+                new YuvConverter.Plane(v, 0, uvStride, 1)),
+                new YuvConverter.Output(0, actual, null, null, 1F, 0F));
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void testFrames() {
+        int width = 8, height = 8;
+        byte[] data = nv21(width, height, 4);
+        int[] expected = new int[width * height];
+        YuvConverter converter = new YuvConverter(null);
+        converter.toArgb(data, width, height, expected);
+
+        ByteBufferFrameManager heap = new ByteBufferFrameManager(1, null);
+        heap.setUp(ImageFormat.NV21, new Size(width, height), new Angles());
+        byte[] buffer = heap.getBuffer();
+        System.arraycopy(data, 0, buffer, 0, data.length);
+        Frame frame = heap.getFrame(buffer, 0);
+        int[] actual = new int[width * height];
+        converter.toArgb(frame, actual);
+        assertArrayEquals(expected, actual);
+        frame.release();
+
+        DirectByteBufferFrameManager direct = new DirectByteBufferFrameManager(1, null);
+        direct.setUp(ImageFormat.NV21, new Size(width, height), new Angles());
+        ByteBuffer directBuffer = direct.getBuffer();
+        directBuffer.put(data);
+        directBuffer.flip();
+        frame = direct.getFrame(directBuffer, 0);
+        Arrays.fill(actual, 0);
+        converter.toArgb(frame, actual);
+        assertArrayEquals(expected, actual);
+        frame.release();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOutputTooSmall() {
+        new YuvConverter(null).toRgb(nv21(4, 4, 5), 4, 4, new byte[16 * 3 - 1]);
+    }
+}
@@ -0,0 +1,112 @@
+package com.sabine.cameraview.internal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EncoderCapabilityIndexTest {
+
+    private final static String KEY = "vendor/device:10/QP1A/123:user/release-keys/29";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static EncoderCapabilityIndex filled(String key) {
+        EncoderCapabilityIndex index = new EncoderCapabilityIndex(key);
+        index.putEncoders("video/avc", Arrays.asList("OMX.qcom.video.encoder.avc",
+                "c2.android.avc.encoder"));
+        index.putEncoders("audio/mp4a-latm", Arrays.asList("c2.android.aac.encoder"));
+        index.putBitRateRange("OMX.qcom.video.encoder.avc", "video/avc", 1, 100000000);
+        index.putResult("size/OMX.qcom.video.encoder.avc/video/avc/1920x1080",
+                (1920L << 32) | 1080);
+        index.putResult("size/OMX.qcom.video.encoder.avc/video/avc/8000x6000",
+                EncoderCapabilityIndex.FAILED);
+        index.putConfigured("video/OMX.qcom.video.encoder.avc/video/avc/1920x1080/30/20000000");
+        return index;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        File file = new File(mFolder.getRoot(), "index");
+        EncoderCapabilityIndex index = filled(KEY);
+        assertTrue(index.isDirty());
+        index.save(file);
+        assertFalse(index.isDirty());
+
+        EncoderCapabilityIndex loaded = new EncoderCapabilityIndex(KEY);
+        assertTrue(loaded.load(file));
+        assertTrue(loaded.isLoaded());
+        assertFalse(loaded.isDirty());
+        assertEquals(index.size(), loaded.size());
+        assertEquals(Arrays.asList("OMX.qcom.video.encoder.avc", "c2.android.avc.encoder"),
+                loaded.getEncoders("video/avc"));
+        assertEquals(100000000,
+                loaded.getBitRateRange("OMX.qcom.video.encoder.avc", "video/avc")[1]);
+        assertEquals((1920L << 32) | 1080, (long) loaded.getResult(
+                "size/OMX.qcom.video.encoder.avc/video/avc/1920x1080"));
+        assertEquals(EncoderCapabilityIndex.FAILED, (long) loaded.getResult(
+                "size/OMX.qcom.video.encoder.avc/video/avc/8000x6000"));
+        assertTrue(loaded.isConfigured(
+                "video/OMX.qcom.video.encoder.avc/video/avc/1920x1080/30/20000000"));
+        assertFalse(loaded.isConfigured(
+                "video/OMX.qcom.video.encoder.avc/video/avc/1920x1080/60/20000000"));
+        // Compact: a few hundred bytes.
+        assertTrue(file.length() < 1024);
+    }
+
+    @Test
+    public void testOtherBuildIsIgnored() throws IOException {
+        File file = new File(mFolder.getRoot(), "index");
+        filled(KEY).save(file);
+        EncoderCapabilityIndex index = new EncoderCapabilityIndex(KEY + "-ota");
+        assertFalse(index.load(file));
+        assertNull(index.getEncoders("video/avc"));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testCorruptedFileIsIgnored() throws IOException {
+        File file = new File(mFolder.getRoot(), "index");
+        filled(KEY).save(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length() / 2);
+        int value = raf.read();
+        raf.seek(raf.length() / 2);
+        raf.write(value ^ 0xFF);
+        raf.close();
+        EncoderCapabilityIndex index = new EncoderCapabilityIndex(KEY);
+        assertFalse(index.load(file));
+        assertEquals(0, index.size());
+
+        // Truncated
+        RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+        truncate.setLength(10);
+        truncate.close();
+        assertFalse(index.load(file));
+        assertFalse(index.load(new File(mFolder.getRoot(), "missing")));
+    }
+
+    @Test
+    public void testSameEncodersAreNotDirty() throws IOException {
+        File file = new File(mFolder.getRoot(), "index");
+        filled(KEY).save(file);
+        EncoderCapabilityIndex index = new EncoderCapabilityIndex(KEY);
+        assertTrue(index.load(file));
+        index.putEncoders("audio/mp4a-latm", Arrays.asList("c2.android.aac.encoder"));
+        index.putConfigured("video/OMX.qcom.video.encoder.avc/video/avc/1920x1080/30/20000000");
+        assertFalse(index.isDirty());
+        index.clear();
+        assertTrue(index.isDirty());
+        assertEquals(0, index.size());
+    }
+}
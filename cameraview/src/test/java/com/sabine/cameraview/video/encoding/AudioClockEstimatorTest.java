@@ -0,0 +1,145 @@
+package com.sabine.cameraview.video.encoding;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AudioClockEstimatorTest {
+
+    // 44.1kHz stereo 16bit, read in 1024 samples frames.
+    private final static int BYTE_RATE = 44100 * 2 * 2;
+    private final static int CHUNK = 4096;
+    private final static double CHUNK_US = CHUNK * 1000000D / BYTE_RATE;
+    private final static long GAP_THRESHOLD_US = 4 * (long) CHUNK_US;
+    private final static double BANDWIDTH_HZ = 0.05;
+    private final static long LATENCY_US = 5000;
+    private final static long HOUR_US = 3600L * 1000000L;
+    // Ignore the first minute, while the loop locks.
+    private final static long LOCK_US = 60L * 1000000L;
+
+    /**
+     * Simulated capture. True times are those of the sample clock, which runs at
+     * BYTE_RATE * (1 + driftPpm), and chunks are received some time after they end.
+     */
+    private static class Capture {
+
+        private final AudioClockEstimator estimator = new AudioClockEstimator(BYTE_RATE,
+                BANDWIDTH_HZ, GAP_THRESHOLD_US);
+        private final Random random = new Random(1234);
+        private final double usPerByte;
+        private final long jitterUs;
+        private long bytes;
+        private long lastStartUs = Long.MIN_VALUE;
+        private double offsetUs = Double.NaN;
+        private double maxErrorUs;
+        private double sumSquaredErrorUs;
+        private long errors;
+        private double naiveMaxErrorUs;
+
+        private Capture(double driftPpm, long jitterUs) {
+            this.usPerByte = 1000000D / (BYTE_RATE * (1D + driftPpm / 1000000D));
+            this.jitterUs = jitterUs;
+        }
+
+        private double trueStartUs() {
+            return bytes * usPerByte;
+        }
+
+        private long receiptUs(long stallUntilUs) {
+            double endUs = (bytes + CHUNK) * usPerByte;
+            double receipt = endUs + LATENCY_US + random.nextDouble() * jitterUs;
+            return (long) Math.max(receipt, stallUntilUs);
+        }
+
+        /**
+         * Runs the capture for the given time, optionally delaying all chunks
+         * received before stallUntilUs.
+         */
+        private void run(long durationUs, long stallUntilUs) {
+            long endBytes = bytes + (long) (durationUs / usPerByte);
+            while (bytes < endBytes) {
+                long receipt = receiptUs(stallUntilUs);
+                long start = estimator.update(CHUNK, receipt);
+                assertTrue(start > lastStartUs);
+                lastStartUs = start;
+                double trueStart = trueStartUs();
+                if (trueStart >= LOCK_US) {
+                    // The constant receipt latency can't be recovered, measure around it.
+                    if (Double.isNaN(offsetUs)) offsetUs = start - trueStart;
+                    double error = start - trueStart - offsetUs;
+                    maxErrorUs = Math.max(maxErrorUs, Math.abs(error));
+                    sumSquaredErrorUs += error * error;
+                    errors++;
+                    double naive = bytes * 1000000D / BYTE_RATE - trueStart;
+                    naiveMaxErrorUs = Math.max(naiveMaxErrorUs, Math.abs(naive));
+                }
+                bytes += CHUNK;
+            }
+        }
+
+        /**
+         * Loses the given audio: it is never received.
+         */
+        private void lose(long durationUs) {
+            bytes += (long) (durationUs / usPerByte) / CHUNK * CHUNK;
+        }
+
+        private double rmsErrorUs() {
+            return Math.sqrt(sumSquaredErrorUs / errors);
+        }
+    }
+
+    @Test
+    public void testSmoothsJitter() {
+        // Receipt jitter up to 20ms.
+        Capture capture = new Capture(0, 20000);
+        capture.run(2 * HOUR_US, 0);
+        assertTrue(capture.maxErrorUs < 3000);
+        assertTrue(capture.rmsErrorUs() < 1000);
+        assertEquals(0, capture.estimator.getGapCount());
+    }
+
+    @Test
+    public void testTracksDrift() {
+        // A sample clock 150ppm fast: counting bytes is 1 second off after 2 hours.
+        Capture capture = new Capture(150, 10000);
+        capture.run(2 * HOUR_US, 0);
+        assertTrue(capture.naiveMaxErrorUs > 1000000);
+        assertTrue(capture.maxErrorUs < 3000);
+        assertEquals(150, capture.estimator.getDriftPpm(), 5);
+
+        capture = new Capture(-80, 10000);
+        capture.run(2 * HOUR_US, 0);
+        assertTrue(capture.maxErrorUs < 3000);
+        assertEquals(-80, capture.estimator.getDriftPpm(), 5);
+    }
+
+    @Test
+    public void testDetectsGaps() {
+        Capture capture = new Capture(50, 10000);
+        capture.run(HOUR_US / 2, 0);
+        capture.lose(250000);
+        capture.run(HOUR_US / 2, 0);
+        capture.lose(1000000);
+        capture.run(HOUR_US / 2, 0);
+        assertEquals(2, capture.estimator.getGapCount());
+        assertEquals(1250000, capture.estimator.getTotalGapUs(), 2 * CHUNK_US);
+        // Chunks received before the gap is confirmed are off by the gap, the others are not.
+        assertTrue(capture.rmsErrorUs() < 10000);
+    }
+
+    @Test
+    public void testStallIsNotAGap() {
+        Capture capture = new Capture(0, 10000);
+        capture.run(HOUR_US / 4, 0);
+        // Nothing is received for 400ms, then chunks come all at once.
+        long stallUntil = (long) capture.trueStartUs() + 400000;
+        capture.run(1000000, stallUntil);
+        capture.run(HOUR_US / 4, 0);
+        assertEquals(0, capture.estimator.getGapCount());
+        assertTrue(capture.maxErrorUs < 3000);
+    }
+}
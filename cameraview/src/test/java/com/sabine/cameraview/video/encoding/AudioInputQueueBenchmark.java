@@ -0,0 +1,79 @@
+package com.sabine.cameraview.video.encoding;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Times how long audio buffers wait in the {@link AudioInputQueue} with the blocking
+ * drain, and with the loop it replaced, which slept for three periods when empty.
+ */
+public class AudioInputQueueBenchmark {
+
+    private final static String TAG = AudioInputQueueBenchmark.class.getSimpleName();
+    private final static Logger LOG = Logger.getLogger(TAG);
+
+    // A 1024 samples stereo frame at 44.1kHz lasts about 23ms. Use a shorter one to keep it fast.
+    private final static long PERIOD_MILLIS = 5;
+    private final static int BUFFERS = 60;
+
+    @Test
+    public void benchmark() throws Exception {
+        // Blocking drain.
+        final AudioInputQueue queue = new AudioInputQueue(BUFFERS);
+        Thread producer = produce(queue);
+        InputBuffer[] batch = new InputBuffer[BUFFERS];
+        int received = 0;
+        while (received < BUFFERS) {
+            received += queue.drainTo(batch, TimeUnit.MILLISECONDS.toNanos(4 * PERIOD_MILLIS));
+        }
+        producer.join();
+        long blockingLatencyUs = queue.getAverageLatencyUs();
+
+        // Sleep polling.
+        final AudioInputQueue polled = new AudioInputQueue(BUFFERS);
+        producer = produce(polled);
+        received = 0;
+        while (received < BUFFERS) {
+            if (polled.size() == 0) {
+                Thread.sleep(3 * PERIOD_MILLIS);
+                continue;
+            }
+            received += polled.drainTo(batch, 0);
+        }
+        producer.join();
+        long pollingLatencyUs = polled.getAverageLatencyUs();
+
+        String timings = "blocking " + blockingLatencyUs + " us/buffer, polling "
+                + pollingLatencyUs + " us/buffer, empty wakeups " + queue.getEmptyWakeups();
+        LOG.info(timings);
+        assertTrue(timings, blockingLatencyUs < pollingLatencyUs);
+    }
+
+    private static Thread produce(final AudioInputQueue queue) {
+        final AtomicLong next = new AtomicLong(System.nanoTime());
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < BUFFERS; i++) {
+                    long wait = next.addAndGet(TimeUnit.MILLISECONDS.toNanos(PERIOD_MILLIS))
+                            - System.nanoTime();
+                    if (wait > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    queue.offer(new InputBuffer());
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,77 @@
+package com.sabine.cameraview.video.encoding;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AudioInputQueueTest {
+
+    @Test
+    public void testOfferAndDrainInOrder() {
+        AudioInputQueue queue = new AudioInputQueue(4);
+        InputBuffer first = new InputBuffer();
+        InputBuffer second = new InputBuffer();
+        assertTrue(queue.offer(first));
+        assertTrue(queue.offer(second));
+        assertEquals(2, queue.size());
+
+        InputBuffer[] batch = new InputBuffer[4];
+        assertEquals(2, queue.drainTo(batch, 0));
+        assertSame(first, batch[0]);
+        assertSame(second, batch[1]);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testOfferWhenFull() {
+        AudioInputQueue queue = new AudioInputQueue(2);
+        assertTrue(queue.offer(new InputBuffer()));
+        assertTrue(queue.offer(new InputBuffer()));
+        assertFalse(queue.offer(new InputBuffer()));
+        assertEquals(1, queue.getRejectedCount());
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void testDrainTimeout() {
+        AudioInputQueue queue = new AudioInputQueue(2);
+        long start = System.nanoTime();
+        assertEquals(0, queue.drainTo(new InputBuffer[2], TimeUnit.MILLISECONDS.toNanos(20)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(1, queue.getEmptyWakeups());
+    }
+
+    @Test
+    public void testNoWaitWhenQueued() {
+        AudioInputQueue queue = new AudioInputQueue(2);
+        queue.offer(new InputBuffer());
+        assertEquals(1, queue.drainTo(new InputBuffer[2], TimeUnit.SECONDS.toNanos(5)));
+        assertEquals(0, queue.getWakeups());
+        assertEquals(0, queue.getEmptyWakeups());
+    }
+
+    @Test(timeout = 5000)
+    public void testWokenUpByProducer() throws Exception {
+        final AudioInputQueue queue = new AudioInputQueue(2);
+        final int[] drained = new int[1];
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drained[0] = queue.drainTo(new InputBuffer[2], TimeUnit.SECONDS.toNanos(10));
+            }
+        });
+        consumer.start();
+        queue.offer(new InputBuffer());
+        consumer.join();
+        // Whether the consumer had to wait depends on scheduling, but it never
+        // wakes up empty while a buffer is coming.
+        assertEquals(1, drained[0]);
+        assertTrue(queue.getWakeups() <= 1);
+        assertEquals(0, queue.getEmptyWakeups());
+    }
+}
@@ -0,0 +1,86 @@
+package com.sabine.cameraview.video.encoding;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BitRateGovernorTest {
+
+    private final static int MAX = 20 * 1000 * 1000;
+    private final static int CAPACITY = 2048;
+    private final static long FRAME_US = 1000000L / 30;
+
+    private long mTimeUs = 0;
+
+    /**
+     * Simulates the given number of seconds of 30fps video at the governor bit rate,
+     * written with the given throughput, and returns the number of changes.
+     */
+    private int run(BitRateGovernor governor, int seconds, long bytesPerSecond, int backlog) {
+        int changes = 0;
+        for (int i = 0; i < seconds * 30; i++) {
+            int bytes = governor.getBitRate() / 8 / 30;
+            governor.onSampleWritten(bytes, bytes * 1000000000L / bytesPerSecond);
+            mTimeUs += FRAME_US;
+            if (governor.evaluate(mTimeUs, backlog, CAPACITY) > 0) changes++;
+        }
+        return changes;
+    }
+
+    @Test
+    public void testStableWhenHealthy() {
+        BitRateGovernor governor = new BitRateGovernor(MAX, MAX / 4);
+        assertEquals(0, run(governor, 60, 100 * 1000 * 1000, 0));
+        assertEquals(MAX, governor.getBitRate());
+    }
+
+    @Test
+    public void testLowersUnderBacklog() {
+        BitRateGovernor governor = new BitRateGovernor(MAX, MAX / 4);
+        run(governor, 10, 100 * 1000 * 1000, CAPACITY / 2);
+        assertTrue(governor.getBitRate() < MAX);
+        // Never below the minimum.
+        run(governor, 60, 100 * 1000 * 1000, CAPACITY / 2);
+        assertEquals(MAX / 4, governor.getBitRate());
+    }
+
+    @Test
+    public void testLowersOnSlowStorage() {
+        BitRateGovernor governor = new BitRateGovernor(MAX, MAX / 4);
+        // The storage only writes 3MB/s, encoder produces 2.5MB/s: no headroom.
+        run(governor, 10, 3 * 1000 * 1000, 0);
+        int lowered = governor.getBitRate();
+        assertTrue(lowered < MAX);
+        // At the lower rate there's enough headroom to hold, but not to go back up.
+        assertTrue(lowered / 8 * 3 / 2 <= 3 * 1000 * 1000);
+    }
+
+    @Test
+    public void testRecoversSlowly() {
+        BitRateGovernor governor = new BitRateGovernor(MAX, MAX / 4);
+        run(governor, 10, 100 * 1000 * 1000, CAPACITY / 2);
+        int lowered = governor.getBitRate();
+        // Healthy again: a single small step after some seconds, not a jump.
+        run(governor, 6, 100 * 1000 * 1000, 0);
+        assertTrue(governor.getBitRate() > lowered);
+        assertTrue(governor.getBitRate() <= lowered + MAX / 10);
+        run(governor, 120, 100 * 1000 * 1000, 0);
+        assertEquals(MAX, governor.getBitRate());
+    }
+
+    @Test
+    public void testHysteresis() {
+        BitRateGovernor governor = new BitRateGovernor(MAX, MAX / 4);
+        // Alternating pressure and healthy seconds should not make the rate oscillate.
+        int changes = 0;
+        for (int i = 0; i < 30; i++) {
+            changes += run(governor, 1, 100 * 1000 * 1000, i % 2 == 0 ? CAPACITY / 2 : 0);
+        }
+        int lowered = governor.getBitRate();
+        assertTrue(lowered < MAX);
+        assertEquals(governor.getChangeCount(), changes);
+        // Only decreases: the healthy seconds never add up to a raise.
+        assertEquals(MAX / 4, lowered);
+    }
+}
@@ -0,0 +1,146 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CoalescingWriterTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static WriteBehindConfig config(int chunkBytes, int alignmentBytes) {
+        WriteBehindConfig config = new WriteBehindConfig();
+        config.chunkBytes = chunkBytes;
+        config.alignmentBytes = alignmentBytes;
+        config.maxDelayMillis = 0;
+        return config;
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) bytes[i] = (byte) (seed + i * 7);
+        return bytes;
+    }
+
+    @Test
+    public void testAlignedChunks() throws IOException {
+        File file = mFolder.newFile("test.bin");
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        FileChannel channel = out.getChannel();
+        WriteBehindStats stats = new WriteBehindStats();
+        // Starts after a 10 bytes header, like a muxer would.
+        CoalescingWriter writer = new CoalescingWriter(channel, 10, config(64, 16), stats);
+        byte[] data = bytes(200, 3);
+        for (int i = 0; i < data.length; i += 25) writer.write(ByteBuffer.wrap(data, i, 25));
+        assertEquals(210, writer.position());
+        // Only whole blocks were written: the file ends at a multiple of the alignment.
+        assertTrue(channel.size() > 0);
+        assertEquals(0, channel.size() % 16);
+        assertEquals(0, channel.position());
+        WriteBehindStats.Snapshot before = stats.snapshot();
+        assertEquals(channel.size() - 10, before.getBytesWritten());
+
+        writer.flush();
+        assertEquals(210, channel.size());
+        WriteBehindStats.Snapshot after = stats.snapshot();
+        assertEquals(200, after.getBytesWritten());
+        assertEquals(before.getFlushCount() + 1, after.getFlushCount());
+        assertEquals(after.getFlushCount(), after.getFlushLatency().getCount());
+        out.close();
+
+        byte[] written = Files.readAllBytes(file.toPath());
+        byte[] expected = new byte[210];
+        System.arraycopy(data, 0, expected, 10, data.length);
+        assertArrayEquals(expected, written);
+    }
+
+    @Test
+    public void testSyncPoint() throws IOException {
+        File file = mFolder.newFile("test.bin");
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        FileChannel channel = out.getChannel();
+        WriteBehindConfig config = config(1024, 16);
+        WriteBehindStats stats = new WriteBehindStats();
+        CoalescingWriter writer = new CoalescingWriter(channel, 0, config, stats);
+        writer.write(ByteBuffer.wrap(bytes(40, 0)));
+        assertEquals(0, channel.size());
+        writer.syncPoint();
+        assertEquals(32, channel.size());
+        assertEquals(1, stats.snapshot().getFlushCount());
+
+        config.flushOnKeyFrame = false;
+        writer = new CoalescingWriter(channel, 32, config, stats);
+        writer.write(ByteBuffer.wrap(bytes(40, 0)));
+        writer.syncPoint();
+        assertEquals(32, channel.size());
+        out.close();
+    }
+
+    @Test
+    public void testMuxerBursts() throws IOException {
+        final List<Long> times = new ArrayList<>();
+        final List<byte[]> samples = new ArrayList<>();
+        final int[] tracks = new int[1];
+        Muxer delegate = new Muxer() {
+            @Override
+            public void addTrack(boolean isVideo, @NonNull ByteBuffer config, int size) {
+                tracks[0]++;
+            }
+
+            @Override
+            public void writeSample(boolean isVideo, @NonNull ByteBuffer data, int size,
+                                    long presentationTimeUs, boolean isKeyFrame) {
+                // Heap buffers must start at index 0.
+                assertEquals(0, data.arrayOffset() + data.position());
+                byte[] sample = new byte[size];
+                data.duplicate().get(sample);
+                samples.add(sample);
+                times.add(presentationTimeUs);
+            }
+
+            @Override
+            public void close() {}
+
+            @Override
+            public boolean acceptsDirectBuffers() {
+                return false;
+            }
+        };
+        WriteBehindStats stats = new WriteBehindStats();
+        CoalescingMuxer muxer = new CoalescingMuxer(delegate, config(100, 1), stats);
+        muxer.addTrack(true, ByteBuffer.allocate(4), 4);
+        List<byte[]> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            byte[] sample = bytes(i == 10 ? 150 : 30, i);
+            expected.add(sample);
+            muxer.writeSample(true, ByteBuffer.wrap(sample), sample.length, i * 1000, i % 7 == 0);
+            // Collected until a keyframe or the buffer is full.
+            assertTrue(samples.size() <= i + 1);
+        }
+        assertTrue(samples.size() < 20);
+        muxer.close();
+        assertEquals(1, tracks[0]);
+        assertEquals(20, samples.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i * 1000L, (long) times.get(i));
+            assertArrayEquals(expected.get(i), samples.get(i));
+        }
+        assertEquals(19 * 30 + 150, stats.snapshot().getBytesWritten());
+    }
+}
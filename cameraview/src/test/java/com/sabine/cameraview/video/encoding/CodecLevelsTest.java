@@ -0,0 +1,111 @@
+package com.sabine.cameraview.video.encoding;
+
+import android.media.MediaCodecInfo.CodecProfileLevel;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class CodecLevelsTest {
+
+    private final static int MBPS = 1000000;
+
+    @Test
+    public void testAvcLevels() {
+        assertEquals(CodecProfileLevel.AVCLevel31,
+                CodecLevels.avcLevel(1280, 720, 30, 4 * MBPS, true));
+        assertEquals(CodecProfileLevel.AVCLevel4,
+                CodecLevels.avcLevel(1920, 1080, 30, 10 * MBPS, true));
+        assertEquals(CodecProfileLevel.AVCLevel42,
+                CodecLevels.avcLevel(1920, 1080, 60, 10 * MBPS, true));
+        assertEquals(CodecProfileLevel.AVCLevel51,
+                CodecLevels.avcLevel(3840, 2160, 30, 40 * MBPS, true));
+        // Too large for any level.
+        assertEquals(-1, CodecLevels.avcLevel(7680, 4320, 30, 40 * MBPS, true));
+    }
+
+    @Test
+    public void testAvcBitRate() {
+        // Above the 14Mbit/s of 3.1 for Main, but within the 17.5Mbit/s of High.
+        assertEquals(CodecProfileLevel.AVCLevel31,
+                CodecLevels.avcLevel(1280, 720, 30, 16 * MBPS, true));
+        assertEquals(CodecProfileLevel.AVCLevel32,
+                CodecLevels.avcLevel(1280, 720, 30, 16 * MBPS, false));
+        // Size and rate of level 4, bit rate of 4.1.
+        assertEquals(CodecProfileLevel.AVCLevel41,
+                CodecLevels.avcLevel(1920, 1080, 30, 30 * MBPS, true));
+    }
+
+    @Test
+    public void testAvcAspectRatio() {
+        // Few macroblocks, but 512 macroblocks wide needs 8 * MaxFS >= 512 * 512.
+        assertEquals(CodecProfileLevel.AVCLevel51,
+                CodecLevels.avcLevel(8192, 64, 30, MBPS, true));
+    }
+
+    @Test
+    public void testHevcLevels() {
+        assertEquals(CodecProfileLevel.HEVCMainTierLevel31,
+                CodecLevels.hevcLevel(1280, 720, 30, 4 * MBPS));
+        assertEquals(CodecProfileLevel.HEVCMainTierLevel4,
+                CodecLevels.hevcLevel(1920, 1080, 30, 10 * MBPS));
+        assertEquals(CodecProfileLevel.HEVCMainTierLevel41,
+                CodecLevels.hevcLevel(1920, 1080, 60, 10 * MBPS));
+        assertEquals(CodecProfileLevel.HEVCMainTierLevel41,
+                CodecLevels.hevcLevel(1920, 1080, 30, 15 * MBPS));
+        assertEquals(CodecProfileLevel.HEVCMainTierLevel5,
+                CodecLevels.hevcLevel(3840, 2160, 30, 20 * MBPS));
+        assertEquals(CodecProfileLevel.HEVCMainTierLevel61,
+                CodecLevels.hevcLevel(7680, 4320, 60, 100 * MBPS));
+    }
+
+    @Test
+    public void testSelectLowestLevel() {
+        CodecProfileLevel[] supported = {
+                profileLevel(CodecProfileLevel.AVCProfileMain, CodecProfileLevel.AVCLevel4),
+                profileLevel(CodecProfileLevel.AVCProfileHigh, CodecProfileLevel.AVCLevel51),
+        };
+        CodecProfileLevel result = VideoMediaEncoder.selectProfileLevel("video/avc",
+                supported, 1920, 1080, 30, 10 * MBPS);
+        assertNotNull(result);
+        assertEquals(CodecProfileLevel.AVCProfileHigh, result.profile);
+        assertEquals(CodecProfileLevel.AVCLevel4, result.level);
+    }
+
+    @Test
+    public void testSelectCappedLevel() {
+        CodecProfileLevel[] supported = {
+                profileLevel(CodecProfileLevel.AVCProfileMain, CodecProfileLevel.AVCLevel31),
+        };
+        CodecProfileLevel result = VideoMediaEncoder.selectProfileLevel("video/avc",
+                supported, 1920, 1080, 30, 10 * MBPS);
+        assertNotNull(result);
+        assertEquals(CodecProfileLevel.AVCProfileMain, result.profile);
+        assertEquals(CodecProfileLevel.AVCLevel31, result.level);
+        // Not covered by any level: the highest supported one.
+        result = VideoMediaEncoder.selectProfileLevel("video/avc",
+                supported, 7680, 4320, 30, 10 * MBPS);
+        assertNotNull(result);
+        assertEquals(CodecProfileLevel.AVCLevel31, result.level);
+    }
+
+    @Test
+    public void testSelectUnsupported() {
+        CodecProfileLevel[] supported = {
+                profileLevel(CodecProfileLevel.AVCProfileBaseline, CodecProfileLevel.AVCLevel4),
+        };
+        assertNull(VideoMediaEncoder.selectProfileLevel("video/avc",
+                supported, 1280, 720, 30, 4 * MBPS));
+        assertNull(VideoMediaEncoder.selectProfileLevel("video/x-vnd.on2.vp8",
+                supported, 1280, 720, 30, 4 * MBPS));
+    }
+
+    private static CodecProfileLevel profileLevel(int profile, int level) {
+        CodecProfileLevel result = new CodecProfileLevel();
+        result.profile = profile;
+        result.level = level;
+        return result;
+    }
+}
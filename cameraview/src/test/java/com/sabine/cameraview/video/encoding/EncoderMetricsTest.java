@@ -0,0 +1,63 @@
+package com.sabine.cameraview.video.encoding;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class EncoderMetricsTest {
+
+    @Test
+    public void testHistogramBuckets() {
+        MetricsHistogram histogram = new MetricsHistogram(new long[]{ 10, 100, 1000 });
+        for (long value : new long[]{ 1, 10, 11, 50, 100, 500, 5000 }) histogram.record(value);
+        EncoderMetrics.Histogram snapshot = histogram.snapshot();
+        assertArrayEquals(new long[]{ 2, 3, 1, 1 }, snapshot.getCounts());
+        assertEquals(7, snapshot.getCount());
+        assertEquals(1, snapshot.getMin());
+        assertEquals(5000, snapshot.getMax());
+        assertEquals(5672 / 7D, snapshot.getMean(), 0.001);
+        assertEquals(100, snapshot.getPercentile(50));
+        assertEquals(1000, snapshot.getPercentile(80));
+        assertEquals(5000, snapshot.getPercentile(100));
+    }
+
+    @Test
+    public void testEmptyHistogram() {
+        EncoderMetrics.Histogram snapshot = new MetricsHistogram(new long[]{ 10 }).snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMin());
+        assertEquals(0, snapshot.getMax());
+        assertEquals(0, snapshot.getPercentile(99));
+    }
+
+    @Test
+    public void testConcurrentRecording() throws InterruptedException {
+        final EncoderMetrics metrics = new EncoderMetrics();
+        final int threads = 4;
+        final int values = 100000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < values; i++) {
+                        metrics.recordStage(EncoderMetrics.STAGE_VIDEO_RENDER, i % 3000);
+                        metrics.recordDrop(EncoderMetrics.DROP_VIDEO_BACKLOG);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        EncoderMetrics.Snapshot snapshot = metrics.snapshot();
+        EncoderMetrics.Histogram render = snapshot.getStageLatency(EncoderMetrics.STAGE_VIDEO_RENDER);
+        assertEquals(threads * values, render.getCount());
+        assertEquals(0, render.getMin());
+        assertEquals(2999, render.getMax());
+        assertEquals(threads * values, snapshot.getDropCount(EncoderMetrics.DROP_VIDEO_BACKLOG));
+        assertEquals(0, snapshot.getDropCount(EncoderMetrics.DROP_AUDIO_LOST));
+    }
+}
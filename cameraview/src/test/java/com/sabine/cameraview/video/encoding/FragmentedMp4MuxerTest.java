@@ -0,0 +1,173 @@
+package com.sabine.cameraview.video.encoding;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FragmentedMp4MuxerTest {
+
+    private final static byte[] CONFIG = { 0, 0, 0, 1, 0x67, 0x64, 0, 0x1F, 0, 0, 0, 1, 0x68, 0x11 };
+    private final static byte[] ASC = { 0x12, 0x10 };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static FragmentedMp4Muxer open(File file, FragmentConfig config) throws IOException {
+        VideoConfig videoConfig = new TextureConfig();
+        videoConfig.width = 640;
+        videoConfig.height = 480;
+        videoConfig.frameRate = 30;
+        AudioConfig audioConfig = new AudioConfig();
+        audioConfig.samplingFrequency = 44100;
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(file, videoConfig, audioConfig, config);
+        muxer.addTrack(true, ByteBuffer.wrap(CONFIG), CONFIG.length);
+        muxer.addTrack(false, ByteBuffer.wrap(ASC), ASC.length);
+        return muxer;
+    }
+
+    /**
+     * Writes the given number of 30fps frames with a keyframe each second,
+     * interleaved with AAC frames.
+     */
+    private static void write(FragmentedMp4Muxer muxer, int fromFrame, int toFrame)
+            throws IOException {
+        ByteBuffer video = ByteBuffer.allocateDirect(1000);
+        ByteBuffer audio = ByteBuffer.allocateDirect(200);
+        long audioFrameUs = Mp4BoxWriter.AAC_FRAME_SAMPLES * 1000000L / 44100;
+        for (int i = fromFrame; i < toFrame; i++) {
+            long videoUs = i * 1000000L / 30;
+            video.clear();
+            video.putInt(0, 1);
+            video.put(4, (byte) 0x41);
+            muxer.writeSample(true, video, video.capacity(), videoUs, i % 30 == 0);
+            long nextVideoUs = (i + 1) * 1000000L / 30;
+            for (long audioUs = (videoUs + audioFrameUs - 1) / audioFrameUs * audioFrameUs;
+                 audioUs < nextVideoUs; audioUs += audioFrameUs) {
+                audio.clear();
+                muxer.writeSample(false, audio, audio.capacity(), audioUs, true);
+            }
+        }
+    }
+
+    /**
+     * Lists the top level boxes of the file, as "type@position".
+     */
+    private static List<String> boxes(File file) throws IOException {
+        List<String> boxes = new ArrayList<>();
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        long position = 0;
+        while (position + 8 <= in.length()) {
+            in.seek(position);
+            long size = in.readInt() & 0xFFFFFFFFL;
+            byte[] type = new byte[4];
+            in.readFully(type);
+            if (size == 1) size = in.readLong();
+            if (size < 8 || position + size > in.length()) break; // truncated
+            boxes.add(new String(type, "US-ASCII") + "@" + position);
+            position += size;
+        }
+        in.close();
+        return boxes;
+    }
+
+    private static String types(List<String> boxes) {
+        StringBuilder builder = new StringBuilder();
+        for (String box : boxes) {
+            if (builder.length() > 0) builder.append(",");
+            builder.append(box.substring(0, 4));
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void testFragmentsAreWrittenBeforeClose() throws IOException {
+        File file = mFolder.newFile("fragmented.mp4");
+        FragmentConfig config = new FragmentConfig();
+        config.fragmentDurationMillis = 1000;
+        FragmentedMp4Muxer muxer = open(file, config);
+        write(muxer, 0, 75);
+        // Keyframes at 1s and 2s closed two fragments. The rest is pending,
+        // and would be the only loss if the app died now.
+        assertEquals(2, muxer.getFragmentCount());
+        assertEquals("ftyp,moov,moof,mdat,moof,mdat", types(boxes(file)));
+        assertTrue(muxer.getPendingBytes() > 0);
+        muxer.close();
+        assertEquals("ftyp,moov,moof,mdat,moof,mdat,moof,mdat", types(boxes(file)));
+    }
+
+    @Test
+    public void testKeyFrameCount() throws IOException {
+        File file = mFolder.newFile("keyframes.mp4");
+        FragmentConfig config = new FragmentConfig();
+        config.keyFramesPerFragment = 2;
+        config.fragmentDurationMillis = 0;
+        FragmentedMp4Muxer muxer = open(file, config);
+        write(muxer, 0, 30 * 6);
+        assertEquals(2, muxer.getFragmentCount());
+        muxer.close();
+        assertEquals(3, muxer.getFragmentCount());
+    }
+
+    @Test
+    public void testMaxFragmentBytes() throws IOException {
+        File file = mFolder.newFile("small.mp4");
+        FragmentConfig config = new FragmentConfig();
+        config.fragmentDurationMillis = 60000;
+        config.maxFragmentBytes = 20000;
+        FragmentedMp4Muxer muxer = open(file, config);
+        write(muxer, 0, 30 * 10);
+        assertTrue(muxer.getFragmentCount() > 10);
+        assertTrue(muxer.getPendingBytes() < config.maxFragmentBytes);
+        muxer.close();
+    }
+
+    /**
+     * Checks that the decode time of each video fragment is the end of the previous one,
+     * and that data offsets point to the mdat payload.
+     */
+    @Test
+    public void testTimelineIsContinuous() throws IOException {
+        File file = mFolder.newFile("timeline.mp4");
+        FragmentConfig config = new FragmentConfig();
+        config.fragmentDurationMillis = 1000;
+        FragmentedMp4Muxer muxer = open(file, config);
+        write(muxer, 0, 30 * 5);
+        muxer.close();
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        long expectedTime = 0;
+        int frames = 0;
+        for (String box : boxes(file)) {
+            if (!box.startsWith("moof")) continue;
+            long moof = Long.parseLong(box.substring(5));
+            in.seek(moof);
+            int moofSize = in.readInt();
+            // moof header (8) + mfhd (16) + traf header (8) + tfhd (16)
+            in.seek(moof + 8 + 16 + 8 + 16 + 12);
+            assertEquals(expectedTime, in.readLong()); // tfdt
+            in.skipBytes(12); // trun header
+            int count = in.readInt();
+            assertEquals(moofSize + 8, in.readInt()); // data offset
+            for (int i = 0; i < count; i++) {
+                expectedTime += in.readInt();
+                assertEquals(1000, in.readInt());
+                int flags = in.readInt();
+                assertEquals(i == 0 ? 0x02000000 : 0x01010000, flags);
+            }
+            frames += count;
+        }
+        in.close();
+        assertEquals(150, frames);
+        assertEquals(150 * 3000, expectedTime);
+    }
+}
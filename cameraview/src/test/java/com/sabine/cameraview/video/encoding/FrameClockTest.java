@@ -0,0 +1,88 @@
+package com.sabine.cameraview.video.encoding;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrameClockTest {
+
+    // The device was suspended for two hours since boot.
+    private final static long SUSPENDED_NANOS = 2L * 3600L * 1000000000L;
+
+    private static class OffsetSource implements FrameClock.Source {
+        long monotonicNanos = 50L * 1000000000L;
+
+        @Override
+        public long monotonicNanos() {
+            return monotonicNanos;
+        }
+
+        @Override
+        public long boottimeNanos() {
+            return monotonicNanos + SUSPENDED_NANOS;
+        }
+    }
+
+    @Test
+    public void testDetect() {
+        OffsetSource source = new OffsetSource();
+        long monotonicFrameUs = source.monotonicNanos() / 1000L - 30000;
+        long boottimeFrameUs = source.boottimeNanos() / 1000L - 30000;
+        assertEquals(FrameClock.MONOTONIC,
+                FrameClock.detect(monotonicFrameUs, source).getBase());
+        assertEquals(FrameClock.BOOTTIME,
+                FrameClock.detect(boottimeFrameUs, source).getBase());
+    }
+
+    @Test
+    public void testNowUs() {
+        OffsetSource source = new OffsetSource();
+        assertEquals(source.monotonicNanos() / 1000L,
+                new FrameClock(FrameClock.MONOTONIC, source).nowUs());
+        assertEquals(source.boottimeNanos() / 1000L,
+                new FrameClock(FrameClock.BOOTTIME, source).nowUs());
+    }
+
+    @Test
+    public void testAudioTimebase() {
+        OffsetSource source = new OffsetSource();
+        assertEquals(android.media.AudioTimestamp.TIMEBASE_MONOTONIC,
+                new FrameClock(FrameClock.MONOTONIC, source).getAudioTimebase());
+        assertEquals(android.media.AudioTimestamp.TIMEBASE_BOOTTIME,
+                new FrameClock(FrameClock.BOOTTIME, source).getAudioTimebase());
+    }
+
+    @Test
+    public void testFromMonotonic() {
+        OffsetSource source = new OffsetSource();
+        assertEquals(1000, new FrameClock(FrameClock.MONOTONIC, source).fromMonotonicUs(1000));
+        assertEquals(1000 + SUSPENDED_NANOS / 1000L,
+                new FrameClock(FrameClock.BOOTTIME, source).fromMonotonicUs(1000));
+    }
+
+    @Test
+    public void testConvertedAudioMatchesBoottimeVideo() {
+        OffsetSource source = new OffsetSource();
+        // The first Camera2 frame, in boottime.
+        long baseTimeUs = source.boottimeNanos() / 1000L;
+        FrameClock clock = FrameClock.detect(baseTimeUs, source);
+        assertEquals(FrameClock.BOOTTIME, clock.getBase());
+
+        // Audio captured 10ms after the frame, stamped in monotonic time
+        // because the record does not support the boottime timebase.
+        source.monotonicNanos += 20000000L;
+        long stampNanos = source.monotonicNanos - 10000000L;
+        long monotonicUs = AudioMediaEncoder.captureTimeUs(stampNanos, 480, 480, 48000);
+        assertTrue(monotonicUs < baseTimeUs);
+        long timestampUs = clock.fromMonotonicUs(monotonicUs);
+        assertEquals(baseTimeUs + 10000, timestampUs);
+    }
+
+    @Test
+    public void testCaptureTime() {
+        // 480 frames after the stamp at 48kHz is 10ms later.
+        assertEquals(1010000, AudioMediaEncoder.captureTimeUs(1000000000L, 1000, 1480, 48000));
+        assertEquals(990000, AudioMediaEncoder.captureTimeUs(1000000000L, 1480, 1000, 48000));
+    }
+}
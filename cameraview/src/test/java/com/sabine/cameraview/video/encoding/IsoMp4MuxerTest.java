@@ -0,0 +1,258 @@
+package com.sabine.cameraview.video.encoding;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IsoMp4MuxerTest {
+
+    private final static byte[] SPS = { 0x67, 0x64, 0x00, 0x1F, 0x12, 0x34 };
+    private final static byte[] PPS = { 0x68, (byte) 0xEE, 0x3C, (byte) 0x80 };
+    private final static byte[] ASC = { 0x12, 0x10 };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static VideoConfig videoConfig() {
+        VideoConfig config = new TextureConfig();
+        config.width = 1280;
+        config.height = 720;
+        config.frameRate = 30;
+        return config;
+    }
+
+    private static AudioConfig audioConfig() {
+        AudioConfig config = new AudioConfig();
+        config.channels = 1;
+        config.samplingFrequency = 44100;
+        return config;
+    }
+
+    private static ByteBuffer annexB(boolean fourBytes, byte[]... nals) {
+        int size = 0;
+        for (byte[] nal : nals) size += nal.length + (fourBytes ? 4 : 3);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        for (byte[] nal : nals) {
+            if (fourBytes) buffer.put((byte) 0);
+            buffer.put((byte) 0).put((byte) 0).put((byte) 1).put(nal);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static IsoMp4Muxer open(File file) throws IOException {
+        IsoMp4Muxer muxer = new IsoMp4Muxer(file, videoConfig(), audioConfig());
+        ByteBuffer config = annexB(true, SPS, PPS);
+        muxer.addTrack(true, config, config.remaining());
+        muxer.addTrack(false, ByteBuffer.wrap(ASC), ASC.length);
+        return muxer;
+    }
+
+    /**
+     * Returns the position of the first box with the given type path, or -1.
+     */
+    private static long find(RandomAccessFile file, long start, long end, String... path)
+            throws IOException {
+        long position = start;
+        while (position + 8 <= end) {
+            file.seek(position);
+            long size = file.readInt() & 0xFFFFFFFFL;
+            byte[] type = new byte[4];
+            file.readFully(type);
+            int header = 8;
+            if (size == 1) {
+                size = file.readLong();
+                header = 16;
+            }
+            if (new String(type, "US-ASCII").equals(path[0])) {
+                if (path.length == 1) return position;
+                String[] rest = new String[path.length - 1];
+                System.arraycopy(path, 1, rest, 0, rest.length);
+                // Skip the sample description header to reach sample entries.
+                int skip = path[0].equals("stsd") ? 8 : 0;
+                return find(file, position + header + skip, position + size, rest);
+            }
+            position += size;
+        }
+        return -1;
+    }
+
+    @Test
+    public void testBoxStructure() throws IOException {
+        File file = mFolder.newFile("test.mp4");
+        IsoMp4Muxer muxer = open(file);
+        byte[] slice = { 0x65, 1, 2, 3, 4, 5 };
+        byte[] delta = { 0x41, 9, 9 };
+        for (int i = 0; i < 90; i++) {
+            boolean key = i % 30 == 0;
+            // Mix 3 and 4 bytes start codes.
+            ByteBuffer video = key ? annexB(true, SPS, PPS, slice) : annexB(i % 2 == 0, delta);
+            muxer.writeSample(true, video, video.remaining(), 1000000L + i * 33333L, key);
+            ByteBuffer audio = ByteBuffer.wrap(new byte[] { 1, 2, 3 });
+            muxer.writeSample(false, audio, 3, 1000000L + i * 23220L, true);
+        }
+        muxer.close();
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        long length = in.length();
+        assertEquals(0, find(in, 0, length, "ftyp"));
+        long mdat = find(in, 0, length, "mdat");
+        assertTrue(mdat > 0);
+        in.seek(mdat + 8);
+        long mdatSize = in.readLong();
+        assertEquals(find(in, 0, length, "moov"), mdat + mdatSize);
+
+        long stsz = find(in, 0, length, "moov", "trak", "mdia", "minf", "stbl", "stsz");
+        in.seek(stsz + 16);
+        assertEquals(90, in.readInt());
+        // Keyframe: 3 NAL units with 4 bytes length prefixes.
+        assertEquals(3 * 4 + SPS.length + PPS.length + slice.length, in.readInt());
+        assertEquals(4 + delta.length, in.readInt());
+
+        long stss = find(in, 0, length, "moov", "trak", "mdia", "minf", "stbl", "stss");
+        in.seek(stss + 12);
+        assertEquals(3, in.readInt());
+        assertEquals(1, in.readInt());
+        assertEquals(31, in.readInt());
+
+        long avcC = find(in, 0, length,
+                "moov", "trak", "mdia", "minf", "stbl", "stsd", "avc1");
+        in.seek(avcC + 8 + 78 + 8 + 6);
+        assertEquals(SPS.length, in.readShort());
+        byte[] sps = new byte[SPS.length];
+        in.readFully(sps);
+        assertArrayEquals(SPS, sps);
+
+        long stco = find(in, 0, length, "moov", "trak", "mdia", "minf", "stbl", "stco");
+        in.seek(stco + 12);
+        assertEquals(90, in.readInt()); // tracks alternate, one chunk per sample
+        in.seek(in.readInt());
+        assertEquals(SPS.length, in.readInt());
+        in.close();
+    }
+
+    @Test
+    public void testWriteBehindOutputIsIdentical() throws IOException {
+        File direct = mFolder.newFile("direct.mp4");
+        File coalesced = mFolder.newFile("coalesced.mp4");
+        WriteBehindConfig config = new WriteBehindConfig();
+        config.chunkBytes = 8192;
+        WriteBehindStats stats = new WriteBehindStats();
+        IsoMp4Muxer first = open(direct);
+        IsoMp4Muxer second = open(coalesced);
+        second.setWriteBehind(config, stats);
+        byte[] slice = new byte[700];
+        slice[0] = 0x65;
+        for (int i = 0; i < 300; i++) {
+            boolean key = i % 30 == 0;
+            for (IsoMp4Muxer muxer : new IsoMp4Muxer[]{ first, second }) {
+                ByteBuffer video = annexB(true, slice);
+                muxer.writeSample(true, video, video.remaining(), i * 33333L, key);
+                ByteBuffer audio = ByteBuffer.wrap(new byte[] { 1, 2, 3 });
+                muxer.writeSample(false, audio, 3, i * 23220L, true);
+            }
+        }
+        first.close();
+        second.close();
+        assertArrayEquals(Files.readAllBytes(direct.toPath()),
+                Files.readAllBytes(coalesced.toPath()));
+        assertTrue(stats.snapshot().getFlushCount() > 1);
+        assertTrue(stats.snapshot().getBytesWritten() > 300 * 700);
+    }
+
+    @Test
+    public void testHevcSampleEntry() throws IOException {
+        // 1280x720, Main profile, level 3.1, with emulation prevention bytes.
+        byte[] vps = { 0x40, 0x01, 0x0C, 0x01, (byte) 0xFF, (byte) 0xFF, 0x01, 0x60, 0x00, 0x00,
+                0x03, 0x00, (byte) 0x90, 0x00, 0x00, 0x03, 0x00, 0x00, 0x03, 0x00, 0x5D,
+                (byte) 0x95, (byte) 0x98, 0x09 };
+        byte[] sps = { 0x42, 0x01, 0x01, 0x01, 0x60, 0x00, 0x00, 0x03, 0x00, (byte) 0x90, 0x00,
+                0x00, 0x03, 0x00, 0x00, 0x03, 0x00, 0x5D, (byte) 0xA0, 0x02, (byte) 0x80,
+                (byte) 0x80, 0x2D, 0x16, 0x59, 0x59, (byte) 0xA4, (byte) 0x93, 0x2B, (byte) 0xC0 };
+        byte[] pps = { 0x44, 0x01, (byte) 0xC1, 0x72, (byte) 0xB4, 0x62, 0x40 };
+        File file = mFolder.newFile("hevc.mp4");
+        VideoConfig config = videoConfig();
+        config.mimeType = "video/hevc";
+        IsoMp4Muxer muxer = new IsoMp4Muxer(file, config, null);
+        ByteBuffer parameters = annexB(true, vps, sps, pps);
+        muxer.addTrack(true, parameters, parameters.remaining());
+        ByteBuffer video = annexB(true, new byte[]{ 0x26, 0x01, 1, 2, 3 });
+        muxer.writeSample(true, video, video.remaining(), 0, true);
+        muxer.close();
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        long length = in.length();
+        // Third compatible brand, after the major brand and version.
+        in.seek(8 + 8 + 8);
+        byte[] brand = new byte[4];
+        in.readFully(brand);
+        assertEquals("hvc1", new String(brand, "US-ASCII"));
+        long hvc1 = find(in, 0, length,
+                "moov", "trak", "mdia", "minf", "stbl", "stsd", "hvc1");
+        assertTrue(hvc1 > 0);
+        in.seek(hvc1 + 8 + 78 + 4);
+        in.readFully(brand);
+        assertEquals("hvcC", new String(brand, "US-ASCII"));
+        assertEquals(1, in.readByte());
+        assertEquals(1, in.readByte()); // Main profile
+        assertEquals(0x60000000, in.readInt());
+        assertEquals((short) 0x9000, in.readShort());
+        assertEquals(0, in.readInt());
+        assertEquals(93, in.readByte()); // level 3.1
+        assertEquals((short) 0xF000, in.readShort());
+        assertEquals((byte) 0xFC, in.readByte());
+        assertEquals((byte) 0xFD, in.readByte()); // 4:2:0
+        assertEquals((byte) 0xF8, in.readByte()); // 8 bits
+        assertEquals((byte) 0xF8, in.readByte());
+        assertEquals(0, in.readShort());
+        assertEquals(0x0F, in.readByte());
+        assertEquals(3, in.readByte());
+        assertEquals((byte) 0xA0, in.readByte()); // VPS array
+        assertEquals(1, in.readShort());
+        assertEquals(vps.length, in.readShort());
+        in.close();
+    }
+
+    /**
+     * Writes one hour of 30fps video and AAC audio with tiny payloads, and checks that
+     * the sample tables kept in memory stay small.
+     */
+    @Test
+    public void testOneHourSampleTableSize() throws IOException {
+        File file = mFolder.newFile("hour.mp4");
+        IsoMp4Muxer muxer = open(file);
+        ByteBuffer video = ByteBuffer.allocateDirect(64);
+        ByteBuffer audio = ByteBuffer.allocateDirect(16);
+        long durationUs = 3600 * 1000000L;
+        long audioFrameUs = Mp4BoxWriter.AAC_FRAME_SAMPLES * 1000000L / 44100;
+        long nextAudioUs = 0;
+        int samples = 0;
+        for (long videoUs = 0; videoUs < durationUs; videoUs += 33333) {
+            while (nextAudioUs <= videoUs) {
+                audio.clear();
+                muxer.writeSample(false, audio, audio.capacity(), nextAudioUs, true);
+                nextAudioUs += audioFrameUs;
+                samples++;
+            }
+            video.clear();
+            video.putInt(0, 1);
+            video.put(4, (byte) 0x41);
+            muxer.writeSample(true, video, video.capacity(), videoUs, samples % 30 == 0);
+            samples++;
+        }
+        long tableBytes = muxer.getSampleTableBytes();
+        muxer.close();
+        // Well below 100 bytes of bookkeeping per sample.
+        assertTrue(tableBytes < 100L * samples);
+    }
+}
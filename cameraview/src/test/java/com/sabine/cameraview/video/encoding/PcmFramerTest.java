@@ -0,0 +1,143 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PcmFramerTest {
+
+    // 1024 stereo 16bit samples.
+    private final static int FRAME_SIZE = 4096;
+    // 44.1kHz stereo 16bit.
+    private final static int BYTE_RATE = 44100 * 2 * 2;
+    // Chunk lengths, as they could come from AudioRecord reads.
+    private final static int[] CHUNKS = { 3528, 4096, 1000, 8820, 2048, 5000 };
+
+    /**
+     * Keeps the frames, or recycles them right away.
+     */
+    private static class Collector implements PcmFramer.Callback {
+
+        private final PcmFramer mFramer;
+        private final boolean mRecycle;
+        private final List<byte[]> mFrames = new ArrayList<>();
+        private final List<Boolean> mEndOfStream = new ArrayList<>();
+        private long mFrameCount;
+        private long mDroppedBytes;
+
+        private Collector(@NonNull PcmFramer framer, boolean recycle) {
+            mFramer = framer;
+            mRecycle = recycle;
+        }
+
+        @Override
+        public void onFrame(@NonNull InputBuffer frame) {
+            mFrameCount++;
+            if (mRecycle) {
+                mFramer.recycle(frame);
+            } else {
+                byte[] data = new byte[frame.length];
+                frame.source.get(data);
+                mFrames.add(data);
+                mEndOfStream.add(frame.isEndOfStream);
+            }
+        }
+
+        @Override
+        public void onFrameDropped(int length) {
+            mDroppedBytes += length;
+        }
+    }
+
+    @Test
+    public void testSlicesChunksIntoFrames() {
+        PcmFramer framer = new PcmFramer(FRAME_SIZE, 100);
+        Collector collector = new Collector(framer, false);
+        int total = 0;
+        for (int chunk : CHUNKS) {
+            byte[] pcm = new byte[chunk];
+            for (int i = 0; i < chunk; i++) pcm[i] = (byte) (total + i);
+            framer.write(pcm, 0, chunk, false, collector);
+            total += chunk;
+        }
+        assertEquals(total / FRAME_SIZE, collector.mFrames.size());
+        int index = 0;
+        for (byte[] frame : collector.mFrames) {
+            assertEquals(FRAME_SIZE, frame.length);
+            for (byte b : frame) assertEquals((byte) index++, b);
+        }
+    }
+
+    @Test
+    public void testEndOfStreamFlushesRemainder() {
+        PcmFramer framer = new PcmFramer(FRAME_SIZE, 100);
+        Collector collector = new Collector(framer, false);
+        framer.write(new byte[FRAME_SIZE + 100], 0, FRAME_SIZE + 100, true, collector);
+        assertEquals(2, collector.mFrames.size());
+        assertEquals(100, collector.mFrames.get(1).length);
+        assertEquals(false, collector.mEndOfStream.get(0));
+        assertEquals(true, collector.mEndOfStream.get(1));
+    }
+
+    @Test
+    public void testOverflowDropsAndKeepsClock() {
+        PcmFramer framer = new PcmFramer(FRAME_SIZE, 2);
+        Collector collector = new Collector(framer, false);
+        byte[] pcm = new byte[FRAME_SIZE * 5];
+        framer.write(pcm, 0, pcm.length, false, collector);
+        assertEquals(2, collector.mFrames.size());
+        assertEquals(3, framer.getDroppedFrames());
+        assertEquals(3 * FRAME_SIZE, collector.mDroppedBytes);
+
+        // End of stream goes through even without free frames.
+        framer.write(pcm, 0, 10, true, collector);
+        assertEquals(3, collector.mFrames.size());
+        assertEquals(true, collector.mEndOfStream.get(2));
+        assertEquals(FRAME_SIZE * 3 + 10, collector.mDroppedBytes);
+    }
+
+    /**
+     * Feeds seconds of audio in chunks of various lengths, recycling frames as
+     * the encoder would, and counts the bytes allocated per second of audio.
+     */
+    @Test
+    public void testSteadyStateAllocations() {
+        PcmFramer framer = new PcmFramer(FRAME_SIZE, 8);
+        Collector collector = new Collector(framer, true);
+        byte[] pcm = new byte[10000];
+        // Warm up: allocate frames and let the JIT compile.
+        feed(framer, collector, pcm, 20);
+
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int seconds = 60;
+        long start = bean.getThreadAllocatedBytes(thread);
+        long frames = collector.mFrameCount;
+        feed(framer, collector, pcm, seconds);
+        long allocated = bean.getThreadAllocatedBytes(thread) - start;
+        frames = collector.mFrameCount - frames;
+
+        assertEquals(0, framer.getDroppedFrames());
+        assertTrue(frames >= (long) seconds * BYTE_RATE / FRAME_SIZE - 1);
+        // Leave some room for the measurement itself.
+        assertTrue(allocated / seconds < 64);
+    }
+
+    private static void feed(PcmFramer framer, Collector collector, byte[] pcm, int seconds) {
+        long bytes = (long) seconds * BYTE_RATE;
+        int chunk = 0;
+        while (bytes > 0) {
+            int length = (int) Math.min(bytes, CHUNKS[chunk++ % CHUNKS.length]);
+            framer.write(pcm, 0, length, false, collector);
+            bytes -= length;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PreRollBufferTest {
+
+    private final static long FRAME_US = 1000000L / 30;
+    private final static long AUDIO_FRAME_US = 23220;
+
+    /**
+     * Adds 30fps frames with a keyframe each second and the interleaved audio frames.
+     * Each sample is filled with the low byte of its index.
+     */
+    private static void add(PreRollBuffer buffer, int frames, int videoSize) {
+        ByteBuffer video = ByteBuffer.allocate(videoSize);
+        ByteBuffer audio = ByteBuffer.allocate(200);
+        long audioUs = 0;
+        for (int i = 0; i < frames; i++) {
+            long videoUs = i * FRAME_US;
+            fill(video, i);
+            buffer.add(video, videoSize, true, videoUs, i % 30 == 0);
+            for (; audioUs < videoUs + FRAME_US; audioUs += AUDIO_FRAME_US) {
+                fill(audio, i);
+                buffer.add(audio, audio.capacity(), false, audioUs, true);
+            }
+        }
+    }
+
+    private static void fill(ByteBuffer buffer, int value) {
+        for (int i = 0; i < buffer.capacity(); i++) buffer.put(i, (byte) value);
+    }
+
+    private static class Recorder implements PreRollBuffer.Consumer {
+        private final List<Long> videoTimes = new ArrayList<>();
+        private boolean firstIsKeyFrame;
+        private boolean dataIsIntact = true;
+
+        @Override
+        public void onSample(@NonNull ByteBuffer data, boolean isVideo, long timeUs,
+                             boolean isKeyFrame) {
+            if (isVideo && videoTimes.isEmpty()) firstIsKeyFrame = isKeyFrame;
+            if (isVideo) {
+                videoTimes.add(timeUs);
+                byte expected = (byte) (timeUs / FRAME_US);
+                for (int i = data.position(); i < data.limit(); i++) {
+                    if (data.get(i) != expected) dataIsIntact = false;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testKeepsDurationFromKeyFrame() {
+        PreRollBuffer buffer = new PreRollBuffer(8 * 1024 * 1024, 3000000L);
+        add(buffer, 30 * 10, 1000); // 10 seconds
+        long durationUs = buffer.getDurationUs();
+        assertTrue(durationUs >= 3000000L);
+        assertTrue(durationUs < 4000000L);
+
+        Recorder recorder = new Recorder();
+        buffer.drain(recorder);
+        assertTrue(recorder.firstIsKeyFrame);
+        assertEquals(0, recorder.videoTimes.get(0) % (30 * FRAME_US));
+        assertEquals(299 * FRAME_US, (long) recorder.videoTimes.get(recorder.videoTimes.size() - 1));
+        assertTrue(recorder.dataIsIntact);
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.getBytes());
+    }
+
+    @Test
+    public void testByteBudgetEvictsWholeGops() {
+        // Room for about two seconds and a half.
+        PreRollBuffer buffer = new PreRollBuffer(100 * 1000, 60000000L);
+        add(buffer, 30 * 10, 1000);
+        assertTrue(buffer.getBytes() <= 100 * 1000);
+        assertTrue(buffer.getDurationUs() >= 1000000L);
+
+        Recorder recorder = new Recorder();
+        buffer.drain(recorder);
+        assertTrue(recorder.firstIsKeyFrame);
+        assertTrue(recorder.dataIsIntact);
+        // Frames are contiguous up to the last one.
+        for (int i = 1; i < recorder.videoTimes.size(); i++) {
+            assertEquals(FRAME_US, recorder.videoTimes.get(i) - recorder.videoTimes.get(i - 1));
+        }
+        assertEquals(299 * FRAME_US, (long) recorder.videoTimes.get(recorder.videoTimes.size() - 1));
+    }
+
+    @Test
+    public void testDropsSamplesBeforeFirstKeyFrame() {
+        PreRollBuffer buffer = new PreRollBuffer(1024 * 1024, 1000000L);
+        ByteBuffer sample = ByteBuffer.allocate(100);
+        buffer.add(sample, 100, false, 0, true);
+        buffer.add(sample, 100, true, 0, false);
+        assertTrue(buffer.isEmpty());
+        assertEquals(2, buffer.getDroppedCount());
+        buffer.add(sample, 100, true, FRAME_US, true);
+        buffer.add(sample, 100, false, FRAME_US, true);
+        assertEquals(2, buffer.getSampleCount());
+    }
+
+    @Test
+    public void testSampleLargerThanBudget() {
+        PreRollBuffer buffer = new PreRollBuffer(1000, 1000000L);
+        add(buffer, 1, 100);
+        assertTrue(!buffer.isEmpty());
+        ByteBuffer sample = ByteBuffer.allocate(2000);
+        buffer.add(sample, 2000, true, FRAME_US, true);
+        assertTrue(buffer.isEmpty());
+    }
+}
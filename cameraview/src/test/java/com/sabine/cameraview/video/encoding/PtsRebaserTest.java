@@ -0,0 +1,157 @@
+package com.sabine.cameraview.video.encoding;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PtsRebaserTest {
+
+    private final static long VIDEO_FRAME_US = 33333;
+    // 1024 samples at 48kHz.
+    private final static long AUDIO_FRAME_US = 21333;
+
+    @Test
+    public void testNoPause() {
+        PtsRebaser rebaser = new PtsRebaser();
+        assertEquals(123456, rebaser.rebase(123456));
+        assertEquals(0, rebaser.getPausedUs());
+        assertFalse(rebaser.isPaused());
+    }
+
+    @Test
+    public void testPauseInBoottimeClock() {
+        // The device was suspended for an hour: boottime is far ahead of nanoTime.
+        final long suspendedNanos = 3600L * 1000000000L;
+        final long[] monotonicNanos = new long[]{ 10L * 1000000000L };
+        FrameClock.Source source = new FrameClock.Source() {
+            @Override
+            public long monotonicNanos() {
+                return monotonicNanos[0];
+            }
+
+            @Override
+            public long boottimeNanos() {
+                return monotonicNanos[0] + suspendedNanos;
+            }
+        };
+        long frameUs = source.boottimeNanos() / 1000L;
+        FrameClock clock = FrameClock.detect(frameUs, source);
+        PtsRebaser rebaser = new PtsRebaser();
+
+        monotonicNanos[0] += 100000000L;
+        assertTrue(rebaser.pause(clock.nowUs()));
+        // Audio captured just before the pause, still in flight: kept.
+        long inFlightUs = frameUs + 90000;
+        assertEquals(inFlightUs, rebaser.rebase(inFlightUs));
+        // Captured after the pause: dropped.
+        assertEquals(PtsRebaser.DROP, rebaser.rebase(frameUs + 110000));
+
+        monotonicNanos[0] += 1000000000L;
+        assertTrue(rebaser.resume(clock.nowUs()));
+        assertEquals(1000000, rebaser.getPausedUs());
+        // Captured after the resume: shifted by the pause only.
+        assertEquals(frameUs + 200000, rebaser.rebase(frameUs + 1200000));
+    }
+
+    @Test
+    public void testPauseDropsAndShifts() {
+        PtsRebaser rebaser = new PtsRebaser();
+        assertTrue(rebaser.pause(1000000));
+        assertTrue(rebaser.isPaused());
+        // Captured before the pause: kept, even if it arrives later.
+        assertEquals(999999, rebaser.rebase(999999));
+        // Captured during the pause.
+        assertEquals(PtsRebaser.DROP, rebaser.rebase(1000000));
+        assertEquals(PtsRebaser.DROP, rebaser.rebase(5000000));
+        assertTrue(rebaser.resume(3000000));
+        assertFalse(rebaser.isPaused());
+        assertEquals(PtsRebaser.DROP, rebaser.rebase(2999999));
+        // The resume time takes the place of the pause time.
+        assertEquals(1000000, rebaser.rebase(3000000));
+        assertEquals(1500000, rebaser.rebase(3500000));
+        assertEquals(2000000, rebaser.getPausedUs());
+    }
+
+    @Test
+    public void testRepeatedCallsAreIgnored() {
+        PtsRebaser rebaser = new PtsRebaser();
+        assertFalse(rebaser.resume(100));
+        assertTrue(rebaser.pause(1000));
+        assertFalse(rebaser.pause(2000));
+        assertTrue(rebaser.resume(3000));
+        assertFalse(rebaser.resume(4000));
+        assertEquals(1, rebaser.getPauseCount());
+        assertEquals(2000, rebaser.getPausedUs());
+    }
+
+    @Test
+    public void testPausesAccumulate() {
+        PtsRebaser rebaser = new PtsRebaser();
+        // More pauses than the initial capacity.
+        long now = 0;
+        long paused = 0;
+        for (int i = 0; i < 10; i++) {
+            now += 1000000;
+            rebaser.pause(now);
+            assertEquals(paused, rebaser.getPausedUs());
+            now += 500000 + i;
+            paused += 500000 + i;
+            rebaser.resume(now);
+            assertEquals(paused, rebaser.getPausedUs());
+        }
+        assertEquals(now + 10 - paused, rebaser.rebase(now + 10));
+        // Samples between old pauses still get their own offset.
+        assertEquals(1000000 + 100, rebaser.rebase(1500000 + 100));
+    }
+
+    /**
+     * Simulates a recording with random pauses. Video frames arrive right away, while audio
+     * frames arrive late, so that some of them are rebased after the pause they precede
+     * has started. Both tracks must stay increasing, continuous and in sync.
+     */
+    @Test
+    public void testTracksStayContinuous() {
+        PtsRebaser rebaser = new PtsRebaser();
+        Random random = new Random(42);
+        long video = 1000000;
+        long audio = 1000000;
+        long lastVideo = -1;
+        long lastAudio = -1;
+        long audioDelay = 60000;
+        for (long now = 1000000; now < 600000000; now += 1000) {
+            if (random.nextInt(20000) == 0) {
+                if (rebaser.isPaused()) {
+                    rebaser.resume(now);
+                } else {
+                    rebaser.pause(now);
+                }
+            }
+            while (video <= now) {
+                long pts = rebaser.rebase(video);
+                if (pts != PtsRebaser.DROP) {
+                    assertTrue(pts > lastVideo);
+                    // A pause leaves a hole shorter than two frames.
+                    if (lastVideo >= 0) assertTrue(pts - lastVideo < 2 * VIDEO_FRAME_US);
+                    lastVideo = pts;
+                }
+                video += VIDEO_FRAME_US;
+            }
+            while (audio + audioDelay <= now) {
+                long pts = rebaser.rebase(audio);
+                if (pts != PtsRebaser.DROP) {
+                    assertTrue(pts > lastAudio);
+                    if (lastAudio >= 0) assertTrue(pts - lastAudio < 2 * AUDIO_FRAME_US);
+                    lastAudio = pts;
+                }
+                audio += AUDIO_FRAME_US;
+            }
+        }
+        assertTrue(rebaser.getPauseCount() > 5);
+        // Still in sync: the last samples are at most a frame and the delay apart.
+        assertTrue(Math.abs(lastVideo - lastAudio) < VIDEO_FRAME_US + audioDelay);
+    }
+}
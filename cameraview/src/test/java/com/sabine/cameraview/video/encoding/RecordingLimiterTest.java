@@ -0,0 +1,79 @@
+package com.sabine.cameraview.video.encoding;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecordingLimiterTest {
+
+    private final static long FRAME_US = 33333;
+    private final static int GOP_FRAMES = 30;
+    private final static int KEY_FRAME_BYTES = 50000;
+    private final static int FRAME_BYTES = 10000;
+    private final static int AUDIO_BYTES = 400;
+
+    /**
+     * Feeds a 30fps stream with a keyframe every second and audio every 21ms,
+     * until the limiter cuts it. Returns the timestamp of the last accepted video sample.
+     */
+    private static long feed(RecordingLimiter limiter, int frames) {
+        long lastVideoUs = -1;
+        long audioUs = 0;
+        for (int i = 0; i < frames; i++) {
+            long timeUs = i * FRAME_US;
+            boolean key = i % GOP_FRAMES == 0;
+            if (limiter.accept(true, key ? KEY_FRAME_BYTES : FRAME_BYTES, timeUs, key)) {
+                lastVideoUs = timeUs;
+            }
+            while (audioUs < timeUs + FRAME_US) {
+                limiter.accept(false, AUDIO_BYTES, audioUs, true);
+                audioUs += 21333;
+            }
+        }
+        return lastVideoUs;
+    }
+
+    @Test
+    public void testNoLimits() {
+        RecordingLimiter limiter = new RecordingLimiter(0, 0);
+        assertEquals(299 * FRAME_US, feed(limiter, 300));
+        assertEquals(RecordingLimiter.NOT_REACHED, limiter.getEndReason());
+    }
+
+    @Test
+    public void testMaxDurationCutsAtKeyFrame() {
+        RecordingLimiter limiter = new RecordingLimiter(0, 5000000);
+        long last = feed(limiter, 600);
+        assertEquals(MediaEncoderEngine.END_BY_MAX_DURATION, limiter.getEndReason());
+        // Five whole groups of pictures: the next one would not fit.
+        assertEquals((5 * GOP_FRAMES - 1) * FRAME_US, last);
+        assertFalse(limiter.accept(false, AUDIO_BYTES, 5 * GOP_FRAMES * FRAME_US, true));
+        assertTrue(limiter.accept(false, AUDIO_BYTES, 5 * GOP_FRAMES * FRAME_US - 1, true));
+    }
+
+    @Test
+    public void testMaxSizeCutsAtKeyFrame() {
+        long maxBytes = 1500000;
+        RecordingLimiter limiter = new RecordingLimiter(maxBytes, 0);
+        long last = feed(limiter, 600);
+        assertEquals(MediaEncoderEngine.END_BY_MAX_SIZE, limiter.getEndReason());
+        assertTrue(limiter.getEstimatedBytes() <= maxBytes);
+        // Ends with a whole group of pictures.
+        assertEquals(0, (last / FRAME_US + 1) % GOP_FRAMES);
+        assertTrue(limiter.getSampleBytes() > maxBytes - 400000);
+    }
+
+    @Test
+    public void testMaxSizeCutsInsideLargeGroup() {
+        RecordingLimiter limiter = new RecordingLimiter(200000, 0);
+        // Keyframe and a few frames fit, then frames get bigger than expected.
+        assertTrue(limiter.accept(true, KEY_FRAME_BYTES, 0, true));
+        long timeUs = FRAME_US;
+        while (limiter.accept(true, 30000, timeUs, false)) timeUs += FRAME_US;
+        assertEquals(MediaEncoderEngine.END_BY_MAX_SIZE, limiter.getEndReason());
+        assertTrue(limiter.getEstimatedBytes() <= 200000);
+        assertFalse(limiter.accept(true, 1, timeUs + FRAME_US, true));
+    }
+}
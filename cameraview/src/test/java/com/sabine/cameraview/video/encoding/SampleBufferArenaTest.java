@@ -0,0 +1,47 @@
+package com.sabine.cameraview.video.encoding;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SampleBufferArenaTest {
+
+    @Test
+    public void testSizeClasses() {
+        SampleBufferArena arena = new SampleBufferArena(false, Long.MAX_VALUE);
+        assertEquals(SampleBufferArena.MIN_SIZE, arena.acquire(1).capacity());
+        assertEquals(SampleBufferArena.MIN_SIZE, arena.acquire(SampleBufferArena.MIN_SIZE).capacity());
+        assertEquals(2 * SampleBufferArena.MIN_SIZE, arena.acquire(SampleBufferArena.MIN_SIZE + 1).capacity());
+        int oversize = SampleBufferArena.MAX_SIZE + 1;
+        assertEquals(oversize, arena.acquire(oversize).capacity());
+    }
+
+    /**
+     * Simulates a recording with variable sample sizes and some writer backlog.
+     * After the warm up, no more buffers should be allocated.
+     */
+    @Test
+    public void testSteadyStateIsAllocationFree() {
+        SampleBufferArena arena = new SampleBufferArena(false, 64 * 1024 * 1024L);
+        ArrayDeque<ByteBuffer> inFlight = new ArrayDeque<>();
+        Random random = new Random(42);
+        int warmUpAllocations = -1;
+        for (int i = 0; i < 20000; i++) {
+            // 30fps with a keyframe each second: big keyframes, small delta frames.
+            int size = i % 30 == 0 ? 300000 + random.nextInt(200000) : 20000 + random.nextInt(60000);
+            ByteBuffer buffer = arena.acquire(size);
+            assertTrue(buffer.capacity() >= size);
+            assertEquals(0, buffer.position());
+            inFlight.addLast(buffer);
+            while (inFlight.size() > 8) arena.release(inFlight.pollFirst());
+            if (i == 1000) warmUpAllocations = arena.getAllocationCount();
+        }
+        assertEquals(warmUpAllocations, arena.getAllocationCount());
+        assertEquals(20000, arena.getAcquireCount());
+    }
+}
@@ -0,0 +1,168 @@
+package com.sabine.cameraview.video.encoding;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Times the video and audio handoff to the writer thread with {@link SampleQueue}
+ * and with a locked ArrayList, checking that no sample is lost or reordered.
+ */
+public class SampleQueueBenchmark {
+
+    private final static String TAG = SampleQueueBenchmark.class.getSimpleName();
+    private final static Logger LOG = Logger.getLogger(TAG);
+
+    private final static int SAMPLES = 50000;
+    private final static int WARMUP_ROUNDS = 1;
+    private final static int ROUNDS = 3;
+
+    private interface Handoff {
+        void put(boolean video, long value);
+        void end();
+        void consume(long[] lastVideo, long[] lastAudio);
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            run(new ListHandoff());
+            run(new RingHandoff());
+        }
+        long list = 0, ring = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            list += run(new ListHandoff());
+            ring += run(new RingHandoff());
+        }
+        String timings = "list " + (list / ROUNDS / (2 * SAMPLES)) + " ns/sample, ring "
+                + (ring / ROUNDS / (2 * SAMPLES)) + " ns/sample";
+        LOG.info(timings);
+        assertTrue(timings, ring <= 2 * list);
+    }
+
+    private long run(final Handoff handoff) throws InterruptedException {
+        final long[] lastVideo = new long[]{-1};
+        final long[] lastAudio = new long[]{-1};
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                handoff.consume(lastVideo, lastAudio);
+            }
+        });
+        Thread video = producer(handoff, true);
+        Thread audio = producer(handoff, false);
+        long start = System.nanoTime();
+        consumer.start();
+        video.start();
+        audio.start();
+        video.join();
+        audio.join();
+        handoff.end();
+        consumer.join();
+        long elapsed = System.nanoTime() - start;
+        assertEquals(SAMPLES - 1, lastVideo[0]);
+        assertEquals(SAMPLES - 1, lastAudio[0]);
+        return elapsed;
+    }
+
+    private static Thread producer(final Handoff handoff, final boolean video) {
+        return new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (long i = 0; i < SAMPLES; i++) handoff.put(video, i);
+            }
+        });
+    }
+
+    private static void check(long[] last, long value) {
+        if (value != last[0] + 1) throw new AssertionError("Out of order: " + value);
+        last[0] = value;
+    }
+
+    private static class ListHandoff implements Handoff {
+        private final Object lock = new Object();
+        private final List<long[]> list = new ArrayList<>();
+        private volatile boolean ended;
+
+        @Override
+        public void put(boolean video, long value) {
+            synchronized (lock) {
+                list.add(new long[]{video ? 1 : 0, value});
+                lock.notify();
+            }
+        }
+
+        @Override
+        public void end() {
+            synchronized (lock) {
+                ended = true;
+                lock.notify();
+            }
+        }
+
+        @Override
+        public void consume(long[] lastVideo, long[] lastAudio) {
+            while (true) {
+                long[] item;
+                synchronized (lock) {
+                    while (list.isEmpty() && !ended) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException ignore) {}
+                    }
+                    if (list.isEmpty()) return;
+                    item = list.remove(0);
+                }
+                check(item[0] == 1 ? lastVideo : lastAudio, item[1]);
+            }
+        }
+    }
+
+    private static class RingHandoff implements Handoff {
+        private final SampleQueue<long[]> video = new SampleQueue<>(1024);
+        private final SampleQueue<long[]> audio = new SampleQueue<>(1024);
+        private volatile Thread consumer;
+        private volatile boolean parked;
+        private volatile boolean ended;
+
+        @Override
+        public void put(boolean isVideo, long value) {
+            (isVideo ? video : audio).put(new long[]{isVideo ? 1 : 0, value});
+            Thread thread = consumer;
+            if (parked && thread != null) LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void end() {
+            ended = true;
+            Thread thread = consumer;
+            if (thread != null) LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void consume(final long[] lastVideo, final long[] lastAudio) {
+            consumer = Thread.currentThread();
+            SampleQueue.Sink<long[]> sink = new SampleQueue.Sink<long[]>() {
+                @Override
+                public void onItem(long[] item) {
+                    check(item[0] == 1 ? lastVideo : lastAudio, item[1]);
+                }
+            };
+            while (true) {
+                if (video.drain(sink) + audio.drain(sink) > 0) continue;
+                if (ended && video.isEmpty() && audio.isEmpty()) return;
+                parked = true;
+                if (!ended && video.isEmpty() && audio.isEmpty()) {
+                    LockSupport.parkNanos(this, 1000000L);
+                }
+                parked = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.sabine.cameraview.video.encoding;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SampleQueueTest {
+
+    @Test
+    public void testRingQueueIsOrdered() {
+        SampleQueue<Long> queue = new SampleQueue<>(5);
+        assertEquals(8, queue.capacity());
+        for (long i = 0; i < 8; i++) assertTrue(queue.offer(i));
+        assertFalse(queue.offer(8L));
+        final long[] expected = new long[]{0};
+        int count = queue.drain(new SampleQueue.Sink<Long>() {
+            @Override
+            public void onItem(Long item) {
+                assertEquals(expected[0]++, (long) item);
+            }
+        });
+        assertEquals(8, count);
+        assertTrue(queue.isEmpty());
+        assertEquals(8, queue.getMaxDepth());
+    }
+
+    @Test(timeout = 5000)
+    public void testPutStopsWaitingWhenClosed() throws Exception {
+        final SampleQueue<Integer> queue = new SampleQueue<>(2);
+        assertTrue(queue.put(0));
+        assertTrue(queue.put(1));
+        final AtomicBoolean added = new AtomicBoolean(true);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // Full: waits for the consumer, which dies.
+                added.set(queue.put(2));
+            }
+        });
+        producer.start();
+        Thread.sleep(50);
+        queue.close();
+        producer.join();
+        assertFalse(added.get());
+        assertEquals(2, queue.size());
+        // Closed: never waits.
+        assertFalse(queue.put(3));
+        assertTrue(queue.isClosed());
+    }
+
+    @Test
+    public void testDrainFreesSlotsPerItem() {
+        final SampleQueue<Integer> queue = new SampleQueue<>(2);
+        assertTrue(queue.offer(0));
+        assertTrue(queue.offer(1));
+        assertFalse(queue.offer(2));
+        final int[] accepted = new int[1];
+        queue.drain(new SampleQueue.Sink<Integer>() {
+            @Override
+            public void onItem(@NonNull Integer item) {
+                // The slot of this item is already free.
+                if (queue.offer(10 + item)) accepted[0]++;
+            }
+        });
+        assertEquals(2, accepted[0]);
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void testPollAndPeek() {
+        SampleQueue<Integer> queue = new SampleQueue<>(4);
+        assertNull(queue.poll());
+        queue.offer(0);
+        queue.offer(1);
+        assertEquals(Integer.valueOf(0), queue.peek());
+        assertEquals(Integer.valueOf(0), queue.poll());
+        assertEquals(Integer.valueOf(1), queue.peek());
+        assertEquals(Integer.valueOf(1), queue.poll());
+        assertNull(queue.peek());
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,128 @@
+package com.sabine.cameraview.video.encoding;
+
+import android.media.MediaCodec;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SystemMuxerTest {
+
+    private static class FakeBackend implements SystemMuxer.Backend {
+        private final List<String> calls = new ArrayList<>();
+        private boolean failWrites;
+        private boolean released;
+
+        @Override
+        public int addTrack(boolean isVideo, @NonNull ByteBuffer csd) {
+            calls.add("addTrack " + isVideo + " " + csd.remaining());
+            return isVideo ? 0 : 1;
+        }
+
+        @Override
+        public void setOrientationHint(int degrees) {
+            calls.add("orientation " + degrees);
+        }
+
+        @Override
+        public void start() {
+            calls.add("start");
+        }
+
+        @Override
+        public void writeSampleData(int track, @NonNull ByteBuffer data, int offset, int size,
+                                    long presentationTimeUs, int flags) {
+            if (failWrites) throw new IllegalStateException("Failed");
+            calls.add("write " + track + " " + data.get(offset) + " " + size + " "
+                    + presentationTimeUs + " " + flags);
+        }
+
+        @Override
+        public void stop() {
+            calls.add("stop");
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+
+    private static ByteBuffer data(int first, int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(0, (byte) first);
+        return buffer;
+    }
+
+    @Test
+    public void testSamplesBeforeStartAreKept() throws IOException {
+        FakeBackend backend = new FakeBackend();
+        SystemMuxer muxer = new SystemMuxer(backend, true, 0);
+        muxer.addTrack(true, data(0, 10), 10);
+        muxer.writeSample(true, data(7, 100), 100, 1000, true);
+        muxer.addTrack(false, data(0, 2), 2);
+        muxer.writeSample(false, data(8, 50), 50, 1100, true);
+        muxer.writeSample(true, data(9, 80), 80, 1200, false);
+        muxer.close();
+        assertEquals(7, backend.calls.size());
+        assertEquals("addTrack true 10", backend.calls.get(0));
+        assertEquals("start", backend.calls.get(2));
+        assertEquals("write 0 7 100 1000 " + MediaCodec.BUFFER_FLAG_KEY_FRAME,
+                backend.calls.get(3));
+        assertEquals("write 1 8 50 1100 " + MediaCodec.BUFFER_FLAG_KEY_FRAME,
+                backend.calls.get(4));
+        assertEquals("write 0 9 80 1200 0", backend.calls.get(5));
+        assertEquals("stop", backend.calls.get(6));
+        assertTrue(backend.released);
+    }
+
+    @Test
+    public void testOrientationHint() throws IOException {
+        FakeBackend backend = new FakeBackend();
+        SystemMuxer muxer = new SystemMuxer(backend, false, 450);
+        muxer.addTrack(true, data(0, 10), 10);
+        muxer.close();
+        assertEquals("orientation 90", backend.calls.get(1));
+        assertEquals("start", backend.calls.get(2));
+        assertEquals(0, SystemMuxer.orientationHint(0));
+        assertEquals(0, SystemMuxer.orientationHint(360));
+        assertEquals(90, SystemMuxer.orientationHint(80));
+        assertEquals(180, SystemMuxer.orientationHint(-180));
+        assertEquals(270, SystemMuxer.orientationHint(-90));
+        assertEquals(0, SystemMuxer.orientationHint(350));
+    }
+
+    @Test
+    public void testNoOrientationHintWithoutRotation() throws IOException {
+        FakeBackend backend = new FakeBackend();
+        SystemMuxer muxer = new SystemMuxer(backend, false, 0);
+        muxer.addTrack(true, data(0, 10), 10);
+        muxer.close();
+        assertEquals("start", backend.calls.get(1));
+    }
+
+    @Test
+    public void testUncheckedErrorsAreIOExceptions() throws IOException {
+        FakeBackend backend = new FakeBackend();
+        SystemMuxer muxer = new SystemMuxer(backend, false, 0);
+        muxer.addTrack(true, data(0, 10), 10);
+        backend.failWrites = true;
+        try {
+            muxer.writeSample(true, data(1, 10), 10, 0, true);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        muxer.close();
+        assertTrue(backend.released);
+    }
+}
@@ -0,0 +1,109 @@
+package com.sabine.cameraview.video.encoding;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimeLapseClockTest {
+
+    private final static long FRAME_US = 33333;
+    // 1024 samples, 16 bit mono at 44.1kHz.
+    private final static int AUDIO_FRAME_BYTES = 2048;
+    private final static int AUDIO_BYTE_RATE = 88200;
+
+    private static TimeLapseConfig interval(long millis) {
+        TimeLapseConfig config = new TimeLapseConfig();
+        config.captureIntervalMillis = millis;
+        return config;
+    }
+
+    @Test
+    public void testIntervalDecimation() {
+        TimeLapseClock clock = new TimeLapseClock(interval(1000));
+        long start = 5000000;
+        long last = -1;
+        // Ten minutes at 30fps.
+        for (long t = start; t < start + 600000000; t += FRAME_US) {
+            long pts = clock.videoFrame(t);
+            if (pts == TimeLapseClock.DROP) continue;
+            if (last < 0) {
+                assertEquals(start, pts);
+            } else {
+                long delta = pts - last;
+                assertTrue(delta == 33333 || delta == 33334);
+            }
+            last = pts;
+        }
+        assertEquals(600, clock.getWrittenFrames());
+    }
+
+    @Test
+    public void testFrameDecimation() {
+        TimeLapseConfig config = new TimeLapseConfig();
+        config.captureIntervalMillis = 0;
+        config.frameInterval = 4;
+        config.playbackFrameRate = 25;
+        TimeLapseClock clock = new TimeLapseClock(config);
+        for (int i = 0; i < 12; i++) {
+            long pts = clock.videoFrame(1000 + i * FRAME_US);
+            if (i % 4 == 0) {
+                assertEquals(1000 + (i / 4) * 40000, pts);
+            } else {
+                assertEquals(TimeLapseClock.DROP, pts);
+            }
+        }
+    }
+
+    @Test
+    public void testNoBurstAfterStall() {
+        TimeLapseClock clock = new TimeLapseClock(interval(100));
+        assertEquals(0, clock.videoFrame(0));
+        // Frames stop for a second: only one is written when they come back.
+        assertEquals(33333, clock.videoFrame(1000000));
+        assertEquals(TimeLapseClock.DROP, clock.videoFrame(1050000));
+        assertEquals(66667, clock.videoFrame(1100000));
+    }
+
+    @Test
+    public void testSilenceFollowsVideo() {
+        TimeLapseClock clock = new TimeLapseClock(interval(500));
+        long audioUs = AudioTimestamp.bytesToUs(AUDIO_FRAME_BYTES, AUDIO_BYTE_RATE);
+        // Nothing before the first video frame.
+        assertEquals(TimeLapseClock.DROP, clock.audioFrame(AUDIO_FRAME_BYTES, AUDIO_BYTE_RATE));
+        long lastVideo = -1;
+        long lastAudio = -1;
+        long audioEnd = -1;
+        long video = 1000000;
+        long audio = 1000000;
+        for (long now = 1000000; now < 61000000; now += 1000) {
+            while (video <= now) {
+                long pts = clock.videoFrame(video);
+                if (pts != TimeLapseClock.DROP) lastVideo = pts;
+                video += FRAME_US;
+            }
+            while (audio <= now) {
+                long pts = clock.audioFrame(AUDIO_FRAME_BYTES, AUDIO_BYTE_RATE);
+                if (pts != TimeLapseClock.DROP) {
+                    assertTrue(pts > lastAudio);
+                    if (lastAudio >= 0) assertTrue(pts - lastAudio <= audioUs + 1);
+                    lastAudio = pts;
+                    audioEnd = pts + audioUs;
+                    // Never ahead of the video.
+                    assertTrue(audioEnd <= lastVideo + FRAME_US + 1);
+                }
+                audio += audioUs;
+            }
+        }
+        // 120 frames at 30fps: four seconds of video, and as much silence.
+        assertEquals(120, clock.getWrittenFrames());
+        assertTrue(lastVideo + FRAME_US - audioEnd < audioUs);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidConfig() {
+        TimeLapseConfig config = new TimeLapseConfig();
+        config.captureIntervalMillis = 0;
+        new TimeLapseClock(config);
+    }
+}